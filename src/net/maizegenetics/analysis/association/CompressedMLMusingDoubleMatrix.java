@@ -1,5 +1,8 @@
 package net.maizegenetics.analysis.association;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import net.maizegenetics.analysis.data.ExportPlugin;
 import net.maizegenetics.dna.snp.GenotypeTable;
 import net.maizegenetics.dna.snp.GenotypeTableUtils;
@@ -13,6 +16,7 @@ import net.maizegenetics.phenotype.PhenotypeBuilder;
 import net.maizegenetics.phenotype.TaxaAttribute;
 import net.maizegenetics.phenotype.Phenotype.ATTRIBUTE_TYPE;
 import net.maizegenetics.plugindef.DataSet;
+import net.maizegenetics.prefs.TasselPrefs;
 import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrix;
 import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory;
 import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory.FactoryType;
@@ -41,7 +45,12 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import net.maizegenetics.taxa.distance.DistanceMatrixBuilder;
 
@@ -50,6 +59,10 @@ public class CompressedMLMusingDoubleMatrix {
     private static final Logger myLogger = LogManager.getLogger(CompressedMLMusingDoubleMatrix.class);
     private static final List<String> homGenotypes = Arrays.asList("A","C","G","T","Z");
     private static final List<String> hetGenotypes = Arrays.asList("R","W","K","Y","S","M","0");
+    //number of markers read and submitted for testing at a time
+    private static final int MARKER_BLOCK_SIZE = 1024;
+    //maximum number of sub-inverses of V kept for reuse by missing data pattern
+    private static final int MAX_CACHED_INVERSES = 32;
     private final boolean useCompression;
     private final boolean useP3D;
     private final double compression;
@@ -385,156 +398,35 @@ public class CompressedMLMusingDoubleMatrix {
             }
 
             //iterate markers
+            //markers are tested in parallel and results are recorded in marker order
             if (testMarkers) {
-                for (int m = 0; m < numberOfMarkers; m++) {
-                	OpenBitSet missingObsForSite = new OpenBitSet(missing);
-                	missingObsForSite.or(missingForSite(m));
-                	
-                    //only data for which missing=false are in the Z matrix
-                    //the block below finds the rows of Z that have no marker data.
-                    //Those rows/columns will need to be removed from ZKZ or from V, depending on the analysis method.
-                	OpenBitSet missingFromZ = new OpenBitSet(nonMissingObs);
-                	
-                    int nonMissingCount = 0;
-                    for (int i = 0; i < totalObs; i++) {
-                        if (!missing.fastGet(i)) {
-                            if (missingObsForSite.fastGet(i)) {
-                            	missingFromZ.fastSet(nonMissingCount);
-                            }
-                            nonMissingCount++;
+                int numThreads = Math.max(1, TasselPrefs.getMaxThreads());
+                MarkerTestContext context = new MarkerTestContext(y, fixed, zk, missing, totalObs, nonMissingObs, baseModeldf, numThreads);
+                ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+                try {
+                    for (int blockStart = 0; blockStart < numberOfMarkers; blockStart += MARKER_BLOCK_SIZE) {
+                        int blockEnd = Math.min(numberOfMarkers, blockStart + MARKER_BLOCK_SIZE);
+
+                        //marker data is read by this thread, since genotype tables are not necessarily thread safe
+                        List<Future<CompressedMLMResult>> blockResults = new ArrayList<>(blockEnd - blockStart);
+                        for (int m = blockStart; m < blockEnd; m++) {
+                            MarkerData markerData = readMarkerData(m);
+                            blockResults.add(pool.submit(() -> testMarker(context, markerData)));
                         }
-                    }
-
-                    //test for all missing
-                    if (nonMissingCount == 0) {
-                        myLogger.error("All values missing for " + myGenotype.siteName(m));
-                        continue;
-                    }
-
-                    //adjust y for missing data
-                    DoubleMatrix ymarker = AssociationUtils.getNonMissingValues(y, missingFromZ);
-
-                    //adjust the fixed effects
-                    DoubleMatrix fixed2 = AssociationUtils.getNonMissingValues(fixed, missingFromZ);
-
-                    //add marker data to fixed effects
-                    ArrayList<Byte> markerIds = new ArrayList<>();
-                    int nAlleles = 0;
-                    int markerdf = 0;
-                    DoubleMatrix X;
-                    int[] alleleCounts = null;
-                    
-                    if (useGenotypeCalls) {
-                    	byte[] genotypes = ModelEffectUtils.genotypesToUnphasedSorted(AssociationUtils.getNonMissingBytes(myGenoPheno.genotypeAllTaxa(m), missingObsForSite));
-                        FactorModelEffect markerEffect = new FactorModelEffect(ModelEffectUtils.getIntegerLevels(genotypes, markerIds), true);
-                        X = fixed2.concatenate(markerEffect.getX(), false);
-                        nAlleles = markerEffect.getNumberOfLevels();
-                        alleleCounts = markerEffect.getLevelCounts();
-                        markerdf = nAlleles - 1;
-                    } else if (useReferenceProbability) { 
-                        double[] genotypes = AssociationUtils.getNonMissingDoubles(myGenoPheno.referenceProb(m), missingObsForSite);
-                        int nrows = genotypes.length;
-                        X = fixed2.concatenate(DoubleMatrixFactory.DEFAULT.make(nrows, 1, genotypes), false);
-                        nAlleles = 1;
-                        alleleCounts = new int[]{nrows};
-                        markerdf = 1;
-                    } else {
-                    	X = null;
-                    }
-                    
-                    CompressedMLMResult result = new CompressedMLMResult();
-                    //need to add marker information to result once Alignment is stable
-
-                    if (useP3D) {
-                        testMarkerUsingP3D(result, ymarker, X, Vminus.getInverse(missingFromZ, nonMissingObs), markerdf, markerIds);
-                    } else {
-                    	DoubleMatrix Zsel = AssociationUtils.getNonMissingValues(zk[0], missingFromZ);
-                        if (!testMarkerUsingEMMA(result, ymarker, X, zk[1], Zsel, nAlleles, markerIds)) continue;
-                        markerdf = result.modeldf - baseModeldf;
-                    }
-
-                    //if the results are to be filtered on pmax check for that condition
-                    boolean recordTheseResults = true;
-                    if (parentPlugin.isFilterOutput() && result.p > parentPlugin.getMaxp()) {
-                        recordTheseResults = false;
-                    }
 
-                    if (recordTheseResults) {
-                        //add result to main
-                        //{"Trait","Marker","Chr","Pos","Locus","Site","df","F","p","errordf","MarkerR2","Genetic Var","Residual Var", "-2LnLikelihood"};
-                    	//results with additive and dominance effects
-                    	//{"Trait","Marker","Chr","Pos","Locus","Site","df","F","p","add_effect","add_F","add_p","dom_effect","dom_F","dom_p","errordf","MarkerR2","Genetic Var","Residual Var", "-2LnLikelihood"}
-                    	
-                        String markername = myGenotype.siteName(m);
-                        String chr = "";
-                        String pos = "";
-                        String locus = myGenotype.chromosomeName(m);
-                        String site = Integer.toString(myGenotype.chromosomalPosition(m));
-                        double errordf = (double) (ymarker.numberOfRows() - result.modeldf);
-
-                        tableRow = new Object[]{attr.name(),
-                        		markername,
-                        		locus,
-                        		site,
-                        		new Integer(markerdf),
-                        		new Double(result.F),
-                        		new Double(result.p),
-                        		new Double(result.addEffect),
-                        		new Double(result.Fadd),
-                        		new Double(result.padd),
-                        		new Double(result.domEffect),
-                        		new Double(result.Fdom),
-                        		new Double(result.pdom),
-                        		new Double(errordf),
-                        		new Double(result.r2),
-                        		new Double(genvar),
-                        		new Double(resvar),
-                        		new Double(-2 * lnlk)};
-                        siteReportBuilder.add(tableRow);
-
-                        //add result to alleles
-                        //"Trait","Marker","Chr","Pos","Allele","Effect", obs
-                        int numberOfRowsKept = totalObs - (int) missingObsForSite.cardinality();
-                        if (useReferenceProbability) {
-                        	tableRow = new Object[]{attr.name(),
-                        			markername,
-                        			locus,
-                        			site,
-                        			"",
-                        			result.beta.get(result.beta.numberOfRows() - 1, 0),
-                        			numberOfRowsKept
-                        	};
-
-                            //record the results
-                        	alleleReportBuilder.add(tableRow);
-                        } else if (nAlleles > 1) {
-                            for (int a = 0; a < nAlleles; a++) {
-                                Double estimate;
-                                if (a < nAlleles - 1) {
-                                    estimate = result.beta.get(result.beta.numberOfRows() - nAlleles + 1 + a, 0);
-                                } else {
-                                    estimate = 0.0;
-                                }
-                                tableRow = new Object[]{attr.name(),
-                                		markername,
-                                		locus,
-                                		site,
-//                                		markerIds.get(a),
-                                		NucleotideAlignmentConstants.getNucleotideIUPAC(markerIds.get(a)),
-                                		estimate,
-                                		alleleCounts[a]
-                                };
-
-                                //record the results
-                            	alleleReportBuilder.add(tableRow);
-                            }
+                        //results are recorded in marker order
+                        for (int m = blockStart; m < blockEnd; m++) {
+                            CompressedMLMResult result = markerResult(blockResults.get(m - blockStart));
+                            if (result != null) recordMarkerResult(attr.name(), m, result, totalObs);
                         }
 
+                        iterationsSofar += blockEnd - blockStart;
+                        int progress = (int) ((double) iterationsSofar / (double) expectedIterations * 100);
+                        progress = Math.min(99, progress);
+                        parentPlugin.updateProgress(progress);
                     }
-                    iterationsSofar++;
-                    int progress = (int) ((double) iterationsSofar / (double) expectedIterations * 100);
-                    progress = Math.min(99, progress);
-                    parentPlugin.updateProgress(progress);
+                } finally {
+                    pool.shutdownNow();
                 }
             }
 
@@ -566,30 +458,215 @@ public class CompressedMLMusingDoubleMatrix {
 //    	return missing;
 //    }
     
-    private BitSet missingForSite(int site) {
+    /**
+     * Reads the genotypes or probabilities of a marker for all observations.
+     */
+    private MarkerData readMarkerData(int site) {
+    	if (useGenotypeCalls) {
+    		return new MarkerData(site, myGenoPheno.genotypeAllTaxa(site), null);
+    	} else if (useReferenceProbability) {
+    		return new MarkerData(site, null, myGenoPheno.referenceProb(site));
+    	} else {
+    		return new MarkerData(site, null, myGenoPheno.alleleProbsOfType(SITE_SCORE_TYPE.DepthA, site));
+    	}
+    }
+
+    private BitSet missingForSite(MarkerData markerData) {
     	//returns BitSet with missing set for each observation with a missing genotype value
     	int nobs = myGenoPheno.phenotype().numberOfObservations();
     	OpenBitSet missing = new OpenBitSet(nobs);
     	if (useGenotypeCalls) {
-        	byte[] siteGenotype = myGenoPheno.genotypeAllTaxa(site);
+        	byte[] siteGenotype = markerData.genotypes;
         	byte missingByte = GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
         	for (int i = 0; i < nobs; i++) {
         		if (siteGenotype[i] == missingByte) missing.fastSet(i);
         	}
-    	} else if (useReferenceProbability) {
-    		float[] probs = myGenoPheno.referenceProb(site);
-    		for (int t = 0; t < nobs; t++) {
-    			if (probs[t] == Float.NaN) missing.fastSet(t);
-    		}
     	} else {
-			float[] probs = myGenoPheno.alleleProbsOfType(SITE_SCORE_TYPE.DepthA, site);
+    		float[] probs = markerData.probabilities;
     		for (int t = 0; t < nobs; t++) {
     			if (probs[t] == Float.NaN) missing.fastSet(t);
     		}
     	}
     	return missing;
     }
-    
+
+    /**
+     * Tests one marker. This is called by several threads at once, so it only changes
+     * the returned result and the sub-inverse cache of context.
+     * @return	the result or null if the marker could not be tested
+     */
+    private CompressedMLMResult testMarker(MarkerTestContext context, MarkerData markerData) {
+    	OpenBitSet missingObsForSite = new OpenBitSet(context.missing);
+    	missingObsForSite.or(missingForSite(markerData));
+
+        //only data for which missing=false are in the Z matrix
+        //the block below finds the rows of Z that have no marker data.
+        //Those rows/columns will need to be removed from ZKZ or from V, depending on the analysis method.
+    	OpenBitSet missingFromZ = new OpenBitSet(context.nonMissingObs);
+
+        int nonMissingCount = 0;
+        for (int i = 0; i < context.totalObs; i++) {
+            if (!context.missing.fastGet(i)) {
+                if (missingObsForSite.fastGet(i)) {
+                	missingFromZ.fastSet(nonMissingCount);
+                }
+                nonMissingCount++;
+            }
+        }
+
+        //test for all missing
+        if (nonMissingCount == 0) {
+            myLogger.error("All values missing for " + myGenotype.siteName(markerData.site));
+            return null;
+        }
+
+        //adjust y for missing data
+        DoubleMatrix ymarker = AssociationUtils.getNonMissingValues(context.y, missingFromZ);
+
+        //adjust the fixed effects
+        DoubleMatrix fixed2 = AssociationUtils.getNonMissingValues(context.fixed, missingFromZ);
+
+        //add marker data to fixed effects
+        ArrayList<Byte> markerIds = new ArrayList<>();
+        int nAlleles = 0;
+        int markerdf = 0;
+        DoubleMatrix X;
+        int[] alleleCounts = null;
+
+        if (useGenotypeCalls) {
+        	byte[] genotypes = ModelEffectUtils.genotypesToUnphasedSorted(AssociationUtils.getNonMissingBytes(markerData.genotypes, missingObsForSite));
+            FactorModelEffect markerEffect = new FactorModelEffect(ModelEffectUtils.getIntegerLevels(genotypes, markerIds), true);
+            X = fixed2.concatenate(markerEffect.getX(), false);
+            nAlleles = markerEffect.getNumberOfLevels();
+            alleleCounts = markerEffect.getLevelCounts();
+            markerdf = nAlleles - 1;
+        } else if (useReferenceProbability) {
+            double[] genotypes = AssociationUtils.getNonMissingDoubles(markerData.probabilities, missingObsForSite);
+            int nrows = genotypes.length;
+            X = fixed2.concatenate(DoubleMatrixFactory.DEFAULT.make(nrows, 1, genotypes), false);
+            nAlleles = 1;
+            alleleCounts = new int[]{nrows};
+            markerdf = 1;
+        } else {
+        	X = null;
+        }
+
+        CompressedMLMResult result = new CompressedMLMResult();
+        //need to add marker information to result once Alignment is stable
+
+        if (useP3D) {
+            testMarkerUsingP3D(result, ymarker, X, context.inverse(missingFromZ), markerdf, markerIds);
+            result.genvar = context.genvar;
+            result.resvar = context.resvar;
+            result.lnlk = context.lnlk;
+        } else {
+        	DoubleMatrix Zsel = AssociationUtils.getNonMissingValues(context.zk[0], missingFromZ);
+            if (!testMarkerUsingEMMA(result, ymarker, X, context.zk[1], Zsel, nAlleles, markerIds)) return null;
+            markerdf = result.modeldf - context.baseModeldf;
+        }
+
+        result.markerdf = markerdf;
+        result.nAlleles = nAlleles;
+        result.alleleCounts = alleleCounts;
+        result.markerIds = markerIds;
+        result.errordf = (double) (ymarker.numberOfRows() - result.modeldf);
+        result.numberOfRowsKept = context.totalObs - (int) missingObsForSite.cardinality();
+        return result;
+    }
+
+    private CompressedMLMResult markerResult(Future<CompressedMLMResult> future) {
+    	try {
+    		return future.get();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new IllegalStateException("CompressedMLMusingDoubleMatrix: markerResult: interrupted while testing markers");
+    	} catch (ExecutionException e) {
+    		myLogger.debug(e.getMessage(), e);
+    		if (e.getCause() instanceof RuntimeException) {
+    			throw (RuntimeException) e.getCause();
+    		}
+    		throw new IllegalStateException("CompressedMLMusingDoubleMatrix: markerResult: problem testing marker: " + e.getCause().getMessage());
+    	}
+    }
+
+    /**
+     * Adds the result of a marker to the site and allele reports.
+     */
+    private void recordMarkerResult(String traitName, int m, CompressedMLMResult result, int totalObs) {
+
+        //if the results are to be filtered on pmax check for that condition
+        if (parentPlugin.isFilterOutput() && result.p > parentPlugin.getMaxp()) {
+            return;
+        }
+
+        //add result to main
+        //{"Trait","Marker","Chr","Pos","Locus","Site","df","F","p","errordf","MarkerR2","Genetic Var","Residual Var", "-2LnLikelihood"};
+    	//results with additive and dominance effects
+    	//{"Trait","Marker","Chr","Pos","Locus","Site","df","F","p","add_effect","add_F","add_p","dom_effect","dom_F","dom_p","errordf","MarkerR2","Genetic Var","Residual Var", "-2LnLikelihood"}
+
+        String markername = myGenotype.siteName(m);
+        String locus = myGenotype.chromosomeName(m);
+        String site = Integer.toString(myGenotype.chromosomalPosition(m));
+        int nAlleles = result.nAlleles;
+
+        Object[] tableRow = new Object[]{traitName,
+        		markername,
+        		locus,
+        		site,
+        		new Integer(result.markerdf),
+        		new Double(result.F),
+        		new Double(result.p),
+        		new Double(result.addEffect),
+        		new Double(result.Fadd),
+        		new Double(result.padd),
+        		new Double(result.domEffect),
+        		new Double(result.Fdom),
+        		new Double(result.pdom),
+        		new Double(result.errordf),
+        		new Double(result.r2),
+        		new Double(result.genvar),
+        		new Double(result.resvar),
+        		new Double(-2 * result.lnlk)};
+        siteReportBuilder.add(tableRow);
+
+        //add result to alleles
+        //"Trait","Marker","Chr","Pos","Allele","Effect", obs
+        if (useReferenceProbability) {
+        	tableRow = new Object[]{traitName,
+        			markername,
+        			locus,
+        			site,
+        			"",
+        			result.beta.get(result.beta.numberOfRows() - 1, 0),
+        			result.numberOfRowsKept
+        	};
+
+            //record the results
+        	alleleReportBuilder.add(tableRow);
+        } else if (nAlleles > 1) {
+            for (int a = 0; a < nAlleles; a++) {
+                Double estimate;
+                if (a < nAlleles - 1) {
+                    estimate = result.beta.get(result.beta.numberOfRows() - nAlleles + 1 + a, 0);
+                } else {
+                    estimate = 0.0;
+                }
+                tableRow = new Object[]{traitName,
+                		markername,
+                		locus,
+                		site,
+                		NucleotideAlignmentConstants.getNucleotideIUPAC(result.markerIds.get(a)),
+                		estimate,
+                		result.alleleCounts[a]
+                };
+
+                //record the results
+            	alleleReportBuilder.add(tableRow);
+            }
+        }
+
+    }
+
     private double[] doubleDataFromAttribute(PhenotypeAttribute attribute) {
     	float[] floatData = (float[]) ((NumericAttribute) attribute).allValues();
     	int n = floatData.length;
@@ -812,9 +889,9 @@ public class CompressedMLMusingDoubleMatrix {
         result.F = Fp[0];
         result.p = Fp[1];
         result.modeldf = emlm.getDfModel();
-        genvar = emlm.getVarRan();
-        resvar = emlm.getVarRes();
-        lnlk = emlm.getLnLikelihood();
+        result.genvar = emlm.getVarRan();
+        result.resvar = emlm.getVarRes();
+        result.lnlk = emlm.getLnLikelihood();
         
         calculateRsquare(X, y, emlm.getInvH(), result, nAlleles - 1);
         
@@ -1061,6 +1138,89 @@ public class CompressedMLMusingDoubleMatrix {
         int modeldf;
         int markerdf;
         int ngroups;
+        int nAlleles;
+        int[] alleleCounts;
+        ArrayList<Byte> markerIds;
+        double errordf;
+        int numberOfRowsKept;
+        double genvar = Double.NaN;
+        double resvar = Double.NaN;
+        double lnlk = Double.NaN;
+    }
+
+    /**
+     * Genotypes (useGenotypeCalls) or probabilities of a marker for all observations.
+     */
+    private static final class MarkerData {
+
+        final int site;
+        final byte[] genotypes;
+        final float[] probabilities;
+
+        MarkerData(int site, byte[] genotypes, float[] probabilities) {
+            this.site = site;
+            this.genotypes = genotypes;
+            this.probabilities = probabilities;
+        }
+    }
+
+    /**
+     * The data of one trait shared by the threads testing markers. With P3D, sub-inverses of V
+     * are cached by missing data pattern, since many markers have the same pattern (i.e. none missing).
+     */
+    private final class MarkerTestContext {
+
+        final DoubleMatrix y;
+        final DoubleMatrix fixed;
+        final DoubleMatrix[] zk;
+        final OpenBitSet missing;
+        final int totalObs;
+        final int nonMissingObs;
+        final int baseModeldf;
+        final double genvar;
+        final double resvar;
+        final double lnlk;
+        private final SymmetricMatrixInverterDM myInverter;
+        private final ThreadLocal<SweepFast> myWorkspaces = ThreadLocal.withInitial(SweepFast::new);
+        private final LoadingCache<OpenBitSet, DoubleMatrix> myInverseCache;
+
+        MarkerTestContext(DoubleMatrix y, DoubleMatrix fixed, DoubleMatrix[] zk, OpenBitSet missing, int totalObs, int nonMissingObs, int baseModeldf, int numThreads) {
+            this.y = y;
+            this.fixed = fixed;
+            this.zk = zk;
+            this.missing = missing;
+            this.totalObs = totalObs;
+            this.nonMissingObs = nonMissingObs;
+            this.baseModeldf = baseModeldf;
+            genvar = CompressedMLMusingDoubleMatrix.this.genvar;
+            resvar = CompressedMLMusingDoubleMatrix.this.resvar;
+            lnlk = CompressedMLMusingDoubleMatrix.this.lnlk;
+            myInverter = Vminus;
+
+            //cached inverses and the sweep workspace of each thread (upper triangle of V) use at most
+            //an eighth of the maximum heap. At least one inverse is cached. Weights are in kilobytes.
+            long kbPerInverse = 8L * nonMissingObs * nonMissingObs / 1024 + 1;
+            long kbPerWorkspace = 8L * nonMissingObs * (nonMissingObs + 1) / 2 / 1024 + 1;
+            long budget = Runtime.getRuntime().maxMemory() / 8 / 1024 - numThreads * kbPerWorkspace;
+            long maxWeight = Math.max(kbPerInverse, Math.min(MAX_CACHED_INVERSES * kbPerInverse, budget));
+            //each missing data pattern is inverted once, other threads wanting it wait for the result
+            myInverseCache = CacheBuilder.newBuilder()
+                    .maximumWeight(maxWeight)
+                    .weigher((OpenBitSet key, DoubleMatrix inverse) -> (int) Math.min(Integer.MAX_VALUE, 8L * inverse.numberOfRows() * inverse.numberOfColumns() / 1024 + 1))
+                    .build(new CacheLoader<OpenBitSet, DoubleMatrix>() {
+                        @Override
+                        public DoubleMatrix load(OpenBitSet missingFromZ) {
+                            return myInverter.getInverse(missingFromZ, nonMissingObs, myWorkspaces.get());
+                        }
+                    });
+        }
+
+        /**
+         * Returns inverse of V without the rows and columns in missingFromZ.
+         */
+        DoubleMatrix inverse(OpenBitSet missingFromZ) {
+            return myInverseCache.getUnchecked(missingFromZ);
+        }
     }
 
     public void setTestMarkers(boolean testMarkers) {
@@ -0,0 +1,104 @@
+/*
+ * AddSiteMajorGenotypesToHDF5Plugin
+ */
+package net.maizegenetics.analysis.data;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import net.maizegenetics.plugindef.AbstractPlugin;
+import net.maizegenetics.plugindef.DataSet;
+import net.maizegenetics.plugindef.PluginParameter;
+import net.maizegenetics.util.HDF5Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Adds the site-major copy of the genotypes to an existing (finished) TASSEL 5
+ * HDF5 genotype file. The per taxon genotype calls are unchanged. Reading whole
+ * sites (i.e. LD, association, or genotypeForAllTaxa()) then reads one tile of
+ * sites for all taxa, instead of one block from every taxon.
+ */
+public class AddSiteMajorGenotypesToHDF5Plugin extends AbstractPlugin {
+
+    private static final Logger myLogger = LogManager.getLogger(AddSiteMajorGenotypesToHDF5Plugin.class);
+
+    private PluginParameter<String> myInputGenotypes = new PluginParameter.Builder<>("i", null, String.class)
+            .guiName("Input HDF5 Genotype File")
+            .required(true)
+            .inFile()
+            .description("Input HDF5 genotype (*.h5) file to which site-major genotypes are added")
+            .build();
+
+    public AddSiteMajorGenotypesToHDF5Plugin() {
+        super(null, false);
+    }
+
+    public AddSiteMajorGenotypesToHDF5Plugin(Frame parentFrame, boolean isInteractive) {
+        super(parentFrame, isInteractive);
+    }
+
+    @Override
+    public DataSet processData(DataSet input) {
+        long time = System.nanoTime();
+        IHDF5Writer writer = HDF5Factory.open(inputHDF5GenotypeFile());
+        try {
+            if (!HDF5Utils.isHDF5GenotypeLocked(writer)) {
+                throw new IllegalStateException("AddSiteMajorGenotypesToHDF5Plugin: processData: genotypes of this file aren't finished (locked): " + inputHDF5GenotypeFile());
+            }
+            HDF5Utils.writeHDF5SiteMajorGenotypes(writer);
+        } finally {
+            writer.close();
+        }
+        myLogger.info("AddSiteMajorGenotypesToHDF5Plugin: added site-major genotypes to: " + inputHDF5GenotypeFile() + " in " + ((System.nanoTime() - time) / 1_000_000_000.0) + " sec");
+        fireProgress(100);
+        return null;
+    }
+
+    @Override
+    public ImageIcon getIcon() {
+        return null;
+    }
+
+    @Override
+    public String getButtonName() {
+        return "Add Site-Major Genotypes to HDF5";
+    }
+
+    @Override
+    public String getToolTipText() {
+        return "Add Site-Major Genotypes to HDF5";
+    }
+
+    // The following getters and setters were auto-generated.
+    // Please use this method to re-generate.
+    //
+    // public static void main(String[] args) {
+    //     GeneratePluginCode.generate(AddSiteMajorGenotypesToHDF5Plugin.class);
+    // }
+
+    /**
+     * Input HDF5 genotype (*.h5) file to which site-major genotypes are added
+     *
+     * @return Input HDF5 Genotype File
+     */
+    public String inputHDF5GenotypeFile() {
+        return myInputGenotypes.value();
+    }
+
+    /**
+     * Set Input HDF5 Genotype File. Input HDF5 genotype (*.h5) file to which
+     * site-major genotypes are added
+     *
+     * @param value Input HDF5 Genotype File
+     *
+     * @return this plugin
+     */
+    public AddSiteMajorGenotypesToHDF5Plugin inputHDF5GenotypeFile(String value) {
+        myInputGenotypes = new PluginParameter<>(myInputGenotypes, value);
+        return this;
+    }
+
+}
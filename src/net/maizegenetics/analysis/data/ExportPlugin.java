@@ -133,6 +133,7 @@ public class ExportPlugin extends AbstractPlugin {
                     Arrays.asList(new FileLoadPlugin.TasselFileType[]{
                             FileLoadPlugin.TasselFileType.SqrMatrix,
                             FileLoadPlugin.TasselFileType.SqrMatrixBin,
+                            FileLoadPlugin.TasselFileType.SqrMatrixTasselBin,
                             FileLoadPlugin.TasselFileType.SqrMatrixRaw,
                             FileLoadPlugin.TasselFileType.SqrMatrixDARwinDIS}));
         } else if (data instanceof TaxaList) {
@@ -224,6 +225,8 @@ public class ExportPlugin extends AbstractPlugin {
             String[] grmFiles = DistanceMatrixUtils.getGRMFilenames(saveFile());
             WriteDistanceMatrix.saveBinMultiBlupMatrix(input, grmFiles[0], grmFiles[1], grmFiles[2]);
             return grmFiles[1];
+        } else if (fileType() == FileLoadPlugin.TasselFileType.SqrMatrixTasselBin) {
+            return WriteDistanceMatrix.saveBinaryDistanceMatrix(input, saveFile());
         } else if (fileType() == FileLoadPlugin.TasselFileType.SqrMatrixDARwinDIS) {
             String filename = Utils.addSuffixIfNeeded(saveFile(), ".dis");
             WriteDistanceMatrix.saveDARwinMatrix(input, filename);
@@ -67,6 +67,11 @@ public class FileLoadPlugin extends AbstractPlugin {
             .dependentOnParameter(myFileType, new Object[]{TasselFileType.Unknown, TasselFileType.VCF})
             .build();
 
+    private PluginParameter<String> myRegion = new PluginParameter.Builder<>("region", null, String.class)
+            .description("Only load sites in this region (chromosome:start-end) of VCF files. Bgzipped VCF files with a .tbi or .csi index are read from the region, and genotypes are read when accessed unless keeping depth.")
+            .dependentOnParameter(myFileType, new Object[]{TasselFileType.Unknown, TasselFileType.VCF})
+            .build();
+
     private String[] myOpenFiles = null;
     private PlinkLoadPlugin myPlinkLoadPlugin = null;
     private ProjectionLoadPlugin myProjectionLoadPlugin = null;
@@ -78,7 +83,7 @@ public class FileLoadPlugin extends AbstractPlugin {
     public enum TasselFileType {
 
         SqrMatrix("Square Matrix"), Sequence("Sequence"), Unknown("Make Best Guess"),
-        Fasta("Fasta"), Hapmap("Hapmap"), HapmapLIX("Hapmap LIX"),
+        Fasta("Fasta"), Hapmap("Hapmap"), HapmapLIX("Hapmap LIX"), VCFLIX("VCF LIX"),
         Plink("Plink"), Phenotype("Phenotype"), ProjectionAlignment("Projection Genotype"),
         ProjectPCsandRunModelSelection("Project PCs"),
         Phylip_Seq("Phylip (Sequential)"), Phylip_Inter("Phylip (Interleaved)"), Table("Table"),
@@ -88,7 +93,7 @@ public class FileLoadPlugin extends AbstractPlugin {
         SqrMatrixRaw("Raw MultiBLUP Matrix"), SqrMatrixBin("Binary MultiBLUP Matrix"),
         GOBII("GOBII"), Depth("Depth"), ReferenceProbability("Numeric Genotype"), Report("Report"),
         PlinkPhenotype("Plink Phenotype"), SqrMatrixDARwinDIS("DARwin DIS"), Avro("Avro"),
-        Flapjack("Flapjack");
+        Flapjack("Flapjack"), SqrMatrixTasselBin("Binary Distance Matrix");
 
         private final String myText;
 
@@ -110,6 +115,7 @@ public class FileLoadPlugin extends AbstractPlugin {
     public static final String FILE_EXT_SERIAL_GZ = ".serial.gz";
     public static final String FILE_EXT_HDF5 = ".h5";
     public static final String FILE_EXT_VCF = ".vcf";
+    public static final String FILE_EXT_VCF_GZ_LIX = FILE_EXT_VCF + ".gz" + LineIndexBuilder.LINE_INDEX_FILE_EXTENSION;
     public static final String FILE_EXT_TOPM = ".topm";
     public static final String FILE_EXT_TOPM_H5 = ".topm.h5";
     public static final String FILE_EXT_TOPM_BIN = ".topm.bin";
@@ -285,6 +291,10 @@ public class FileLoadPlugin extends AbstractPlugin {
                     myLogger.info("guessAtUnknowns: type: " + TasselFileType.TOPM);
                     alreadyLoaded.add(myOpenFiles[i]);
                     tds = processDatum(myOpenFiles[i], TasselFileType.TOPM);
+                } else if (myOpenFiles[i].endsWith(DistanceMatrixUtils.BINARY_FILE_EXTENSION)) {
+                    myLogger.info("guessAtUnknowns: type: " + TasselFileType.SqrMatrixTasselBin);
+                    alreadyLoaded.add(myOpenFiles[i]);
+                    tds = processDatum(myOpenFiles[i], TasselFileType.SqrMatrixTasselBin);
                 } else if ((myOpenFiles[i].endsWith(".grm.N.bin")) || (myOpenFiles[i].endsWith(".grm.bin"))
                         || (myOpenFiles[i].endsWith(".grm.id"))) {
                     String[] grmFiles = DistanceMatrixUtils.getGRMFilenames(myOpenFiles[i]);
@@ -322,6 +332,25 @@ public class FileLoadPlugin extends AbstractPlugin {
                     myLogger.info("guessAtUnknowns: type: " + TasselFileType.HDF5);
                     alreadyLoaded.add(myOpenFiles[i]);
                     tds = processDatum(myOpenFiles[i], TasselFileType.HDF5);
+                } else if ((region() == null) && !keepDepth() && !sortPositions() && myOpenFiles[i].endsWith(FILE_EXT_VCF + ".gz") && new File(myOpenFiles[i] + LineIndexBuilder.LINE_INDEX_FILE_EXTENSION).isFile()) {
+                    // Lazy line indexed genotypes don't keep depth or sort positions
+                    String theIndex = myOpenFiles[i] + LineIndexBuilder.LINE_INDEX_FILE_EXTENSION;
+                    myLogger.info("guessAtUnknowns: type: " + TasselFileType.VCFLIX);
+                    alreadyLoaded.add(myOpenFiles[i]);
+                    alreadyLoaded.add(theIndex);
+                    GenotypeTable vcf = BuilderFromVCFLIX.build(myOpenFiles[i], theIndex);
+                    tds = new DataSet(new Datum(Utils.getFilename(myOpenFiles[i], FileLoadPlugin.FILE_EXT_VCF + ".gz"), vcf, null), this);
+                } else if (myOpenFiles[i].endsWith(FILE_EXT_VCF_GZ_LIX)) {
+                    String theVCF = myOpenFiles[i].substring(0, myOpenFiles[i].length() - LineIndexBuilder.LINE_INDEX_FILE_EXTENSION.length());
+                    if (new File(theVCF).isFile()) {
+                        myLogger.info("guessAtUnknowns: type: " + TasselFileType.VCFLIX);
+                        alreadyLoaded.add(myOpenFiles[i]);
+                        alreadyLoaded.add(theVCF);
+                        GenotypeTable vcf = BuilderFromVCFLIX.build(theVCF, myOpenFiles[i]);
+                        tds = new DataSet(new Datum(Utils.getFilename(theVCF, FileLoadPlugin.FILE_EXT_VCF + ".gz"), vcf, null), this);
+                    } else {
+                        throw new IllegalStateException("Can't find genotype file for index: " + myOpenFiles[i]);
+                    }
                 } else if (myOpenFiles[i].endsWith(FILE_EXT_VCF) || myOpenFiles[i].endsWith(FILE_EXT_VCF + ".gz")) {
                     myLogger.info("guessAtUnknowns: type: " + TasselFileType.VCF);
                     alreadyLoaded.add(myOpenFiles[i]);
@@ -539,7 +568,11 @@ public class FileLoadPlugin extends AbstractPlugin {
                     if (inFile.endsWith(".gz")) {
                         suffix = FILE_EXT_VCF + ".gz";
                     }
-                    result = ImportUtils.readFromVCF(inFile, this, keepDepth(), sortPositions());
+                    if (region() != null) {
+                        result = readVCFRegion(inFile);
+                    } else {
+                        result = ImportUtils.readFromVCF(inFile, this, keepDepth(), sortPositions());
+                    }
                     break;
                 }
                 case Sequence: {
@@ -558,6 +591,10 @@ public class FileLoadPlugin extends AbstractPlugin {
                     result = ReadDistanceMatrix.readBinMultiBlupMatrix(inFile);
                     break;
                 }
+                case SqrMatrixTasselBin: {
+                    result = ReadDistanceMatrix.readBinaryDistanceMatrix(inFile, true);
+                    break;
+                }
                 case Phenotype: {
                     List<Phenotype> phenotypes = new PhenotypeBuilder().fromFile(inFile).build();
                     if (phenotypes.size() != 1) {
@@ -734,6 +771,70 @@ public class FileLoadPlugin extends AbstractPlugin {
         return this;
     }
 
+    /**
+     * Only load sites in this region (chromosome:start-end) of VCF files.
+     * Bgzipped VCF files with a .tbi or .csi index are read from the region,
+     * and genotypes are read when accessed unless keeping depth.
+     *
+     * @return Region
+     */
+    public String region() {
+        return myRegion.value();
+    }
+
+    /**
+     * Set Region. Only load sites in this region (chromosome:start-end) of VCF
+     * files. Bgzipped VCF files with a .tbi or .csi index are read from the
+     * region, and genotypes are read when accessed unless keeping depth.
+     *
+     * @param value Region
+     *
+     * @return this plugin
+     */
+    public FileLoadPlugin region(String value) {
+        myRegion = new PluginParameter<>(myRegion, value);
+        return this;
+    }
+
+    /**
+     * Loads region() of given VCF file. Uses BuilderFromVCFLIX when the file
+     * has a tabix index and depth isn't kept. Otherwise, BuilderFromVCF.
+     */
+    private GenotypeTable readVCFRegion(String filename) {
+
+        String region = region().trim();
+        int colon = region.lastIndexOf(':');
+        int dash = region.indexOf('-', colon + 1);
+        if ((colon <= 0) || (dash < 0)) {
+            throw new IllegalArgumentException("FileLoadPlugin: readVCFRegion: region must be chromosome:start-end: " + region);
+        }
+        String chromosome = region.substring(0, colon);
+        int start;
+        int end;
+        try {
+            start = Integer.parseInt(region.substring(colon + 1, dash).trim());
+            end = Integer.parseInt(region.substring(dash + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("FileLoadPlugin: readVCFRegion: region start and end must be integers: " + region);
+        }
+
+        boolean tabixIndex = new File(filename + ".tbi").isFile() || new File(filename + ".csi").isFile();
+        if (filename.endsWith(".gz") && tabixIndex && !keepDepth()) {
+            return BuilderFromVCFLIX.build(filename, chromosome, start, end);
+        }
+
+        BuilderFromVCF builder = BuilderFromVCF.getBuilder(filename, this).region(chromosome, start, end);
+        if (keepDepth()) {
+            builder.keepDepth();
+        }
+        if (sortPositions()) {
+            return builder.buildAndSortInMemory();
+        } else {
+            return builder.build();
+        }
+
+    }
+
     /**
      * Icon for this plugin to be used in buttons, etc.
      *
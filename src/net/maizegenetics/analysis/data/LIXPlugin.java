@@ -32,7 +32,11 @@ public class LIXPlugin extends AbstractPlugin {
 
         String genotypeFilename = createIndex();
         if ((genotypeFilename != null) && (!genotypeFilename.isEmpty())) {
-            LineIndexBuilder.buildHapmapIndex(genotypeFilename);
+            if (genotypeFilename.endsWith(FileLoadPlugin.FILE_EXT_VCF) || genotypeFilename.endsWith(FileLoadPlugin.FILE_EXT_VCF + ".gz")) {
+                LineIndexBuilder.buildVCFIndex(genotypeFilename);
+            } else {
+                LineIndexBuilder.buildHapmapIndex(genotypeFilename);
+            }
         }
 
         return null;
@@ -6,9 +6,13 @@
 package net.maizegenetics.analysis.data;
 
 import java.awt.Frame;
+import java.util.Map;
 import javax.swing.ImageIcon;
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.genotypecall.GenotypeCallTableBuilder;
 import net.maizegenetics.plugindef.AbstractPlugin;
 import net.maizegenetics.plugindef.DataSet;
+import net.maizegenetics.plugindef.Datum;
 import net.maizegenetics.util.Sizeof;
 
 /**
@@ -24,6 +28,15 @@ public class MemoryUsagePlugin extends AbstractPlugin {
     @Override
     public DataSet processData(DataSet input) {
         Sizeof.printMemoryUse();
+        if (input != null) {
+            for (Datum current : input.getDataOfType(GenotypeTable.class)) {
+                GenotypeTable genotype = (GenotypeTable) current.getData();
+                Map<String, Long> stats = GenotypeCallTableBuilder.hdf5CacheStatistics(genotype.genotypeMatrix());
+                if (!stats.isEmpty()) {
+                    System.out.println("HDF5 Genotype Cache: " + current.getName() + ": " + stats);
+                }
+            }
+        }
         return input;
     }
 
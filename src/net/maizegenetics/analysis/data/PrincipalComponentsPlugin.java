@@ -34,6 +34,7 @@ import net.maizegenetics.plugindef.GeneratePluginCode;
 import net.maizegenetics.plugindef.PluginParameter;
 import net.maizegenetics.stats.PCA.PrinComp;
 import net.maizegenetics.stats.PCA.PrinComp.PC_TYPE;
+import net.maizegenetics.stats.PCA.RandomizedPrinComp;
 import net.maizegenetics.util.OpenBitSet;
 import net.maizegenetics.util.SimpleTableReport;
 
@@ -76,6 +77,20 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
     		.description("Returns the eigenvectors calculated from a Singular Value Decomposition of the data. The resulting table can be quite large if the number of variants and taxa are big.")
     		.guiName("Return Eigenvectors")
     		.build();
+    private PluginParameter<Boolean> randomized = new PluginParameter.Builder<>("randomized", false, Boolean.class)
+    		.description("For genotypes, only calculate the requested number of components using a randomized truncated Singular Value Decomposition. "
+    				+ "Sites are read in blocks in parallel, so the taxa by sites matrix is never held in memory. Recommended for large genotype tables. "
+    				+ "Missing genotypes are set to the mean of the taxon. Eigenvalues are only returned for the calculated components. "
+    				+ "When limited by total_variance or min_eigenvalue, the number of components starts at ncomponents and is doubled until the limit is met.")
+    		.guiName("Randomized (genotypes only)")
+    		.build();
+    private PluginParameter<Integer> powerIterations = new PluginParameter.Builder<>("powerIterations", 3, Integer.class)
+    		.description("The number of power iterations used by the randomized Singular Value Decomposition. Each iteration reads the genotypes once more "
+    				+ "and improves accuracy when the eigenvalues decrease slowly.")
+    		.range(Range.closed(0, 20))
+    		.guiName("Power iterations")
+    		.dependentOnParameter(randomized)
+    		.build();
     
 	public PrincipalComponentsPlugin(Frame parentFrame, boolean isInteractive) {
 		super(parentFrame, isInteractive);
@@ -119,7 +134,35 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
 				
 			} else {
 				GenotypeTable myGenotype = (GenotypeTable) aDatum.getData();
-				
+				PC_TYPE pctype;
+				if (useCovariance.value()) pctype = PC_TYPE.cov;
+				else pctype = PC_TYPE.corr;
+
+				if (randomized.value()) {
+					if (myGenotype.hasReferenceProbablity() && areAnyGenotypesMissingInReferenceProbability(myGenotype)) {
+						StringBuilder msgBuilder = new StringBuilder();
+						msgBuilder.append("There are missing values in ")
+							.append(aDatum.getName())
+							.append(". PCA will not be run.");
+						throw new IllegalArgumentException(msgBuilder.toString());
+					}
+
+					//run PCA reading blocks of sites, missing genotypes are imputed by taxon mean as they are read
+					//only the calculated eigenvalues are known, so components are doubled until the limit is met
+					int ncomponents = Math.max(1, numberOfComponents.value());
+					int maxComponents = Math.min(myGenotype.numberOfTaxa(), myGenotype.numberOfSites());
+					RandomizedPrinComp pca = new RandomizedPrinComp(myGenotype, pctype, ncomponents, powerIterations.value(), reportEigenvectors.value());
+					while (ncomponents < maxComponents && !isLimitMet(pca.getEigenValues(), pca.getTotalVariance())) {
+						ncomponents = Math.min(maxComponents, 2 * ncomponents);
+						myLogger.warn("PrincipalComponentsPlugin: processData: " + limitBy.value() + " not met by calculated components. Recalculating with " + ncomponents + " components.");
+						pca = new RandomizedPrinComp(myGenotype, pctype, ncomponents, powerIterations.value(), reportEigenvectors.value());
+					}
+
+					//get results
+					myResults.addAll(addResultsToDatumList(pca.getEigenValues(), pca.getTotalVariance(), pca.getPrincipalComponents(), pca.getEigenVectors(), myGenotype, aDatum.getName()));
+					continue;
+				}
+
 				//is there a reference probability? If not, create one and impute missing values
 				if (!myGenotype.hasReferenceProbablity()) {
 					myGenotype = NumericalGenotypePlugin.setAlternateMinorAllelesToMinor(myGenotype);
@@ -147,13 +190,13 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
 				}
 
 				//run PCA
-				PC_TYPE pctype;
-				if (useCovariance.value()) pctype = PC_TYPE.cov;
-				else pctype = PC_TYPE.corr;
 				PrinComp pca = new PrinComp(dataMatrix, pctype);
 
 				//get results
-				myResults.addAll(addResultsToDatumList(pca, myGenotype, aDatum.getName()));
+				double[] eigenvalues = pca.getEigenValues();
+				double totalVariance = 0;
+				for (double eigenvalue : eigenvalues) totalVariance += eigenvalue;
+				myResults.addAll(addResultsToDatumList(eigenvalues, totalVariance, pca.getPrincipalComponents(), pca.getEigenVectors(), myGenotype, aDatum.getName()));
 				
 			}
 		}
@@ -161,6 +204,21 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
 		return new DataSet(myResults, this);
 	}
 	
+	/**
+	 * Whether the calculated eigenvalues (high to low) include all the components selected by limitBy.
+	 */
+	private boolean isLimitMet(double[] eigenvalues, double totalVariance) {
+		if (eigenvalues.length == 0) return true;
+		if (limitBy.value() == PCA_LIMIT.total_variance) {
+			double sum = 0;
+			for (double eigenvalue : eigenvalues) sum += eigenvalue;
+			return sum >= totalVar.value() * totalVariance;
+		} else if (limitBy.value() == PCA_LIMIT.min_eigenvalue) {
+			return eigenvalues[eigenvalues.length - 1] < minEigenval.value();
+		}
+		return true;
+	}
+	
 	private boolean areAnyPhenotypesMissing(Stream<NumericAttribute> attributes) {
 		Optional<NumericAttribute> na = attributes.filter(a -> a.missing().cardinality() > 0).findAny();
 		return na.isPresent();
@@ -279,12 +337,14 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
 		return results;
 	}
 	
-	private List<Datum> addResultsToDatumList(PrinComp pca, GenotypeTable myGenotype, String datasetName) {
+	/**
+	 * Eigenvalues may only be the first ones calculated, so totalVariance is the sum of all eigenvalues.
+	 */
+	private List<Datum> addResultsToDatumList(double[] eigenvalues, double totalVariance, DoubleMatrix pcs, DoubleMatrix eigenvectors, GenotypeTable myGenotype, String datasetName) {
 		List<Datum> results = new ArrayList<>();
 		
 		//determine how many pc's to return
 		int numberOfPCs;
-		double[] eigenvalues = pca.getEigenValues();
 		int nvalues = eigenvalues.length;
 		double[] cumulativeEigenvalues = Arrays.copyOf(eigenvalues, nvalues);
 		for (int i = 1; i < nvalues; i++) {
@@ -294,7 +354,7 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
 		if (limitBy.value() == PCA_LIMIT.number_of_components) {
 			numberOfPCs = Math.min(numberOfComponents.value(), nvalues);
 		} else if (limitBy.value() == PCA_LIMIT.total_variance) {
-			double limit = totalVar.value() * cumulativeEigenvalues[nvalues - 1];
+			double limit = totalVar.value() * totalVariance;
 			int ndx = Arrays.binarySearch(cumulativeEigenvalues, limit);
 			if (ndx < -1) numberOfPCs = - ndx;
 			else numberOfPCs = ndx + 1;
@@ -307,7 +367,6 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
 		}
 		
 		//create a Phenotype with the requested number of PCs
-		DoubleMatrix pcs = pca.getPrincipalComponents();
 		List<PhenotypeAttribute> attributes = new ArrayList<>();
 		List<ATTRIBUTE_TYPE> types = new ArrayList<>();
 		attributes.add(new TaxaAttribute(myGenotype.taxa()));
@@ -337,7 +396,7 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
 			String[] columnNames = new String[]{"PC","eigenvalue","proportion of total","cumulative proportion"};
 			int nEigenvalues = eigenvalues.length;
 			Object[][] tableData = new Object[nEigenvalues][4];
-			double sumvalues = cumulativeEigenvalues[nEigenvalues - 1];
+			double sumvalues = totalVariance;
 			for (int i = 0; i < nEigenvalues; i++) {
 				tableData[i][0] = String.format("%d",i);
 				tableData[i][1] = new Double(eigenvalues[i]);
@@ -354,7 +413,6 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
 		}
 		
 		//create a tableReport with eigenvectors, if requested
-		DoubleMatrix eigenvectors = pca.getEigenVectors();
 		if (reportEigenvectors.value()) {
 			String name = "Eigenvectors";
 			int ncol = numberOfPCs + 1;
@@ -600,5 +658,71 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
         return this;
     }
 
+    /**
+     * For genotypes, only calculate the requested number
+     * of components using a randomized truncated Singular
+     * Value Decomposition. Sites are read in blocks in parallel,
+     * so the taxa by sites matrix is never held in memory.
+     * Recommended for large genotype tables. Missing genotypes
+     * are set to the mean of the taxon. Eigenvalues are only
+     * returned for the calculated components. When limited
+     * by total_variance or min_eigenvalue, the number of components
+     * starts at ncomponents and is doubled until the limit
+     * is met.
+     *
+     * @return Randomized (genotypes only)
+     */
+    public Boolean randomized() {
+        return randomized.value();
+    }
+
+    /**
+     * Set Randomized (genotypes only). For genotypes, only
+     * calculate the requested number of components using
+     * a randomized truncated Singular Value Decomposition.
+     * Sites are read in blocks in parallel, so the taxa by
+     * sites matrix is never held in memory. Recommended for
+     * large genotype tables. Missing genotypes are set to
+     * the mean of the taxon. Eigenvalues are only returned
+     * for the calculated components. When limited by total_variance
+     * or min_eigenvalue, the number of components starts
+     * at ncomponents and is doubled until the limit is met.
+     *
+     * @param value Randomized (genotypes only)
+     *
+     * @return this plugin
+     */
+    public PrincipalComponentsPlugin randomized(Boolean value) {
+        randomized = new PluginParameter<>(randomized, value);
+        return this;
+    }
+
+    /**
+     * The number of power iterations used by the randomized
+     * Singular Value Decomposition. Each iteration reads
+     * the genotypes once more and improves accuracy when
+     * the eigenvalues decrease slowly.
+     *
+     * @return Power iterations
+     */
+    public Integer powerIterations() {
+        return powerIterations.value();
+    }
+
+    /**
+     * Set Power iterations. The number of power iterations
+     * used by the randomized Singular Value Decomposition.
+     * Each iteration reads the genotypes once more and improves
+     * accuracy when the eigenvalues decrease slowly.
+     *
+     * @param value Power iterations
+     *
+     * @return this plugin
+     */
+    public PrincipalComponentsPlugin powerIterations(Integer value) {
+        powerIterations = new PluginParameter<>(powerIterations, value);
+        return this;
+    }
+
 
 }
@@ -81,7 +81,7 @@ public class EndelmanDistanceMatrix {
      * @return Endelman Kinship Matrix
      */
     public static DistanceMatrix getInstance(GenotypeTable genotype, ProgressListener listener) {
-        return computeEndelmanDistances(genotype, DEFAULT_MAX_ALLELES, listener);
+        return computeEndelmanDistances(genotype, DEFAULT_MAX_ALLELES, listener, false);
     }
 
     /**
@@ -95,10 +95,26 @@ public class EndelmanDistanceMatrix {
      * @return Endelman Kinship Matrix
      */
     public static DistanceMatrix getInstance(GenotypeTable genotype, int maxAlleles, ProgressListener listener) {
-        return computeEndelmanDistances(genotype, maxAlleles, listener);
+        return computeEndelmanDistances(genotype, maxAlleles, listener, false);
     }
 
-    private static DistanceMatrix computeEndelmanDistances(GenotypeTable genotype, int maxAlleles, ProgressListener listener) {
+    /**
+     * Compute Endelman Kinship Matrix
+     *
+     * @param genotype Genotype Table used to compute kinship
+     * @param maxAlleles maximum alleles per site to evaluate. i.e. Set to 3 to
+     * evaluate the three most frequent allele states.
+     * @param listener Progress listener
+     * @param matrixMultiply whether to compute with blocked matrix multiply
+     * (see KinshipMatrixMultiplier) instead of site by site
+     *
+     * @return Endelman Kinship Matrix
+     */
+    public static DistanceMatrix getInstance(GenotypeTable genotype, int maxAlleles, ProgressListener listener, boolean matrixMultiply) {
+        return computeEndelmanDistances(genotype, maxAlleles, listener, matrixMultiply);
+    }
+
+    private static DistanceMatrix computeEndelmanDistances(GenotypeTable genotype, int maxAlleles, ProgressListener listener, boolean matrixMultiply) {
 
         if ((maxAlleles < 2) || (maxAlleles > 6)) {
             throw new IllegalArgumentException("EndelmanDistanceMatrix: computeEndelmanDistances: max alleles must be between 2 and 6 inclusive.");
@@ -115,21 +131,29 @@ public class EndelmanDistanceMatrix {
 
         long time = System.currentTimeMillis();
 
-        //
-        // Sets up parellel stream to divide up sites for processing.
-        // Also reduces the distance sums and sum of frequencies into one instance.
-        //
-        Optional<CountersDistances> optional = stream(genotype, maxAlleles, listener).reduce((CountersDistances t, CountersDistances u) -> {
-            t.addAll(u);
-            return t;
-        });
+        double sumpk;
+        float[] distances;
+        if (matrixMultiply) {
+            KinshipMatrixMultiplier multiplier = KinshipMatrixMultiplier.compute(genotype, genotypes -> siteTerms(genotypes, maxAlleles), false, listener);
+            sumpk = multiplier.sum();
+            distances = multiplier.distances();
+        } else {
+            //
+            // Sets up parellel stream to divide up sites for processing.
+            // Also reduces the distance sums and sum of frequencies into one instance.
+            //
+            Optional<CountersDistances> optional = stream(genotype, maxAlleles, listener).reduce((CountersDistances t, CountersDistances u) -> {
+                t.addAll(u);
+                return t;
+            });
 
-        if (!optional.isPresent()) {
-            return null;
+            if (!optional.isPresent()) {
+                return null;
+            }
+            CountersDistances counters = optional.get();
+            sumpk = counters.mySumPi;
+            distances = counters.myDistances;
         }
-        CountersDistances counters = optional.get();
-        double sumpk = counters.mySumPi;
-        float[] distances = counters.myDistances;
 
         //
         // This does the final division of the frequency sum into
@@ -293,6 +317,35 @@ public class EndelmanDistanceMatrix {
 
     }
 
+    //
+    // Terms of the Endelman summation for each allele (except least
+    // frequent) at a site. Same as EndelmanSiteSpliterator.getBlockOfSites()
+    //
+    private static KinshipMatrixMultiplier.SiteTerms siteTerms(byte[] genotypes, int maxAlleles) {
+
+        int[][] alleles = AlleleFreqCache.allelesSortedByFrequencyNucleotide(genotypes);
+        int numAlleles = Math.min(alleles[0].length - 1, maxAlleles - 1);
+        KinshipMatrixMultiplier.SiteTerms result = new KinshipMatrixMultiplier.SiteTerms(Math.max(numAlleles, 0));
+
+        int totalAlleleCount = 0;
+        for (int i = 0; i < alleles[1].length; i++) {
+            totalAlleleCount += alleles[1][i];
+        }
+
+        for (int a = 0; a < numAlleles; a++) {
+            byte allele = (byte) alleles[0][a];
+            float alleleFreq = (float) alleles[1][a] / (float) totalAlleleCount;
+            float alleleFreqTimes2 = alleleFreq * 2.0f;
+            result.addToSum(alleleFreq * (1.0 - alleleFreq));
+            if (allele != GenotypeTable.UNKNOWN_ALLELE) {
+                result.add(allele, 0.0f - alleleFreqTimes2, 1.0f - alleleFreqTimes2, 2.0f - alleleFreqTimes2);
+            }
+        }
+
+        return result;
+
+    }
+
     protected static void fireProgress(int percent, ProgressListener listener) {
         if (listener != null) {
             if (percent > 100) {
@@ -60,29 +60,51 @@ public class GCTADistanceMatrix {
      * @return GCTA Kinship Matrix
      */
     public static DistanceMatrix getInstance(GenotypeTable genotype, ProgressListener listener) {
-        return computeGCTADistances(genotype, listener);
+        return computeGCTADistances(genotype, listener, false);
     }
 
-    private static DistanceMatrix computeGCTADistances(GenotypeTable genotype, ProgressListener listener) {
+    /**
+     * Same as other getInstance() but optionally computes with blocked matrix
+     * multiply (see KinshipMatrixMultiplier) instead of site by site.
+     *
+     * @param genotype Genotype Table used to compute kinship
+     * @param listener Progress listener
+     * @param matrixMultiply whether to use blocked matrix multiply
+     *
+     * @return GCTA Kinship Matrix
+     */
+    public static DistanceMatrix getInstance(GenotypeTable genotype, ProgressListener listener, boolean matrixMultiply) {
+        return computeGCTADistances(genotype, listener, matrixMultiply);
+    }
+
+    private static DistanceMatrix computeGCTADistances(GenotypeTable genotype, ProgressListener listener, boolean matrixMultiply) {
 
         int numTaxa = genotype.numberOfTaxa();
         long time = System.currentTimeMillis();
 
-        //
-        // Sets up parellel stream to divide up sites for processing.
-        // Also reduces the distance sums and site counters into one instance.
-        //
-        Optional<CountersDistances> optional = stream(genotype, listener).reduce((CountersDistances t, CountersDistances u) -> {
-            t.addAll(u);
-            return t;
-        });
+        int[] counts;
+        float[] distances;
+        if (matrixMultiply) {
+            KinshipMatrixMultiplier multiplier = KinshipMatrixMultiplier.compute(genotype, GCTADistanceMatrix::siteTerms, true, listener);
+            counts = multiplier.counts();
+            distances = multiplier.distances();
+        } else {
+            //
+            // Sets up parellel stream to divide up sites for processing.
+            // Also reduces the distance sums and site counters into one instance.
+            //
+            Optional<CountersDistances> optional = stream(genotype, listener).reduce((CountersDistances t, CountersDistances u) -> {
+                t.addAll(u);
+                return t;
+            });
 
-        if (!optional.isPresent()) {
-            return null;
+            if (!optional.isPresent()) {
+                return null;
+            }
+            CountersDistances counters = optional.get();
+            counts = counters.myCounters;
+            distances = counters.myDistances;
         }
-        CountersDistances counters = optional.get();
-        int[] counts = counters.myCounters;
-        float[] distances = counters.myDistances;
 
         //
         // This does the final division of the site counts into
@@ -239,6 +261,30 @@ public class GCTADistanceMatrix {
         }
     }
 
+    //
+    // Terms of the GCTA summation for the major allele at a site. The terms
+    // are divided by the square root of the denominator, so that the product
+    // of two terms is the same as GCTASiteSpliterator.getBlockOfSites()
+    //
+    private static KinshipMatrixMultiplier.SiteTerms siteTerms(byte[] genotypes) {
+
+        KinshipMatrixMultiplier.SiteTerms result = new KinshipMatrixMultiplier.SiteTerms(1);
+
+        int[][] alleleCounts = AlleleFreqCache.allelesSortedByFrequencyNucleotide(genotypes);
+        byte major = AlleleFreqCache.majorAllele(alleleCounts);
+        float majorFreq = (float) AlleleFreqCache.majorAlleleFrequency(alleleCounts);
+        float majorFreqTimes2 = majorFreq * 2.0f;
+        float denominatorTerm = majorFreqTimes2 * (1.0f - majorFreq);
+
+        if ((major != GenotypeTable.UNKNOWN_ALLELE) && (denominatorTerm != 0.0)) {
+            double sqrtDenominator = Math.sqrt(denominatorTerm);
+            result.add(major, (0.0f - majorFreqTimes2) / sqrtDenominator, (1.0f - majorFreqTimes2) / sqrtDenominator, (2.0f - majorFreqTimes2) / sqrtDenominator);
+        }
+
+        return result;
+
+    }
+
     //
     // Each CPU thread (process) creates an instance of this class
     // to acculate terms of the GCTA equation and the number of
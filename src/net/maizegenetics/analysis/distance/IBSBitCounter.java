@@ -0,0 +1,251 @@
+/*
+ *  IBSBitCounter
+ */
+package net.maizegenetics.analysis.distance;
+
+import java.util.stream.IntStream;
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.genotypecall.AlleleFreqCache;
+import net.maizegenetics.prefs.TasselPrefs;
+import net.maizegenetics.util.ProgressListener;
+
+/**
+ * Counts pair-wise IBS same, different, and het comparisons for all taxa
+ * from allele presence bits (the same 64 sites per long words as BitStorage
+ * and OpenBitSet). Each comparison of two taxa is three popcounts per word.
+ * The alleles at each site are sorted by frequency with
+ * AlleleFreqCache.allelesSortedByFrequencyNucleotide() from the genotypes,
+ * as the previous implementation did, rather than taken from the genotype
+ * table's BitStorage, whose major and minor alleles can differ (i.e. tables
+ * with other than the default maximum number of alleles).
+ * <p>
+ * </p>
+ * For each taxon and word, these are kept: known (any considered allele
+ * present), het (two or more considered alleles present), and presence of
+ * each of the considered alleles (major, minor, and for three alleles,
+ * second minor). For a pair of taxa, a site counts when both are known. If
+ * they share an allele, it is same, and if either is also het, it's same,
+ * different, and het. If they share no allele, it's different.
+ * <p>
+ * </p>
+ * Sites are processed in chunks limited by memory. Within a chunk, taxa are
+ * divided into tiles and pairs of tiles are processed in parallel, so the
+ * words for both tiles stay in cache while all pairs between them are
+ * counted.
+ */
+final class IBSBitCounter {
+
+    private static final int KNOWN = 0;
+    private static final int HET = 1;
+    private static final int FIRST_ALLELE = 2;
+
+    private static final int MAX_TAXA_PER_TILE = 64;
+    private static final int MIN_TAXA_PER_TILE = 8;
+    private static final int WORDS_PER_TILE = 128;
+    private static final long MAX_CHUNK_BYTES = 1L << 28;
+
+    private final GenotypeTable myGenotypes;
+    private final int myNumAlleles;
+    private final int myStride;
+    private final int myNumTaxa;
+    private final int myNumSites;
+    private final int myNumWords;
+    private final int myTaxaPerTile;
+    private final int myNumTiles;
+
+    /**
+     * Holds the same, different, and het count for each pair-wise
+     * comparison. Row i starts with the comparison of taxon i with itself.
+     */
+    private final int[][] myCounters;
+
+    private IBSBitCounter(GenotypeTable genotypes, int numAlleles) {
+        if ((numAlleles != 2) && (numAlleles != 3)) {
+            throw new IllegalArgumentException("IBSBitCounter: init: number of alleles must be 2 or 3: " + numAlleles);
+        }
+        myGenotypes = genotypes;
+        myNumAlleles = numAlleles;
+        myStride = FIRST_ALLELE + numAlleles;
+        myNumTaxa = genotypes.numberOfTaxa();
+        myNumSites = genotypes.numberOfSites();
+        myNumWords = (myNumSites + 63) >>> 6;
+        int numThreads = Math.max(1, TasselPrefs.getMaxThreads());
+        myTaxaPerTile = Math.max(MIN_TAXA_PER_TILE, Math.min(MAX_TAXA_PER_TILE, (myNumTaxa + 2 * numThreads - 1) / (2 * numThreads)));
+        myNumTiles = (myNumTaxa + myTaxaPerTile - 1) / myTaxaPerTile;
+        myCounters = new int[myNumTaxa][];
+        for (int i = 0; i < myNumTaxa; i++) {
+            myCounters[i] = new int[(myNumTaxa - i) * 3];
+        }
+    }
+
+    /**
+     * Returns same, different, and het counts for every pair of taxa
+     * (including each taxon with itself). Counts for taxa i and j (j >= i)
+     * are at result[i][(j - i) * 3], result[i][(j - i) * 3 + 1], and
+     * result[i][(j - i) * 3 + 2].
+     *
+     * @param genotypes genotypes
+     * @param numAlleles number of alleles considered at each site (2 or 3)
+     * @param listener progress listener
+     *
+     * @return counts
+     */
+    static int[][] counts(GenotypeTable genotypes, int numAlleles, ProgressListener listener) {
+        IBSBitCounter counter = new IBSBitCounter(genotypes, numAlleles);
+        counter.count(listener);
+        return counter.myCounters;
+    }
+
+    private void count(ProgressListener listener) {
+
+        long bytesPerWord = (long) myNumTaxa * (long) myStride * 8L;
+        int wordsPerChunk = (int) Math.min((long) myNumWords, Math.max(1L, MAX_CHUNK_BYTES / Math.max(1L, bytesPerWord)));
+        if (wordsPerChunk > WORDS_PER_TILE) {
+            wordsPerChunk -= wordsPerChunk % WORDS_PER_TILE;
+        }
+
+        int numTilePairs = myNumTiles * (myNumTiles + 1) / 2;
+        int[] firstTile = new int[numTilePairs];
+        int[] secondTile = new int[numTilePairs];
+        for (int i = 0, index = 0; i < myNumTiles; i++) {
+            for (int j = i; j < myNumTiles; j++, index++) {
+                firstTile[index] = i;
+                secondTile[index] = j;
+            }
+        }
+
+        for (int startWord = 0; startWord < myNumWords; startWord += wordsPerChunk) {
+            int endWord = Math.min(startWord + wordsPerChunk, myNumWords);
+            long[][] words = chunk(startWord, endWord);
+            int numWords = endWord - startWord;
+            IntStream.range(0, numTilePairs).parallel().forEach(p -> countTiles(words, numWords, firstTile[p], secondTile[p]));
+            if (listener != null) {
+                listener.progress((int) ((long) endWord * 100L / (long) myNumWords), null);
+            }
+        }
+
+    }
+
+    /**
+     * Returns words for each taxon, interleaved as known, het, and allele
+     * presence for each word.
+     */
+    private long[][] chunk(int startWord, int endWord) {
+
+        int numWords = endWord - startWord;
+        long[][] result = new long[myNumTaxa][numWords * myStride];
+
+        IntStream.range(startWord, endWord).parallel().forEach(w -> presenceFromGenotypes(result, w, (w - startWord) * myStride));
+
+        for (long[] current : result) {
+            for (int x = 0; x < current.length; x += myStride) {
+                long first = current[x + FIRST_ALLELE];
+                long second = current[x + FIRST_ALLELE + 1];
+                if (myNumAlleles == 2) {
+                    current[x + KNOWN] = first | second;
+                    current[x + HET] = first & second;
+                } else {
+                    long third = current[x + FIRST_ALLELE + 2];
+                    current[x + KNOWN] = first | second | third;
+                    current[x + HET] = (first & second) | (first & third) | (second & third);
+                }
+            }
+        }
+
+        return result;
+
+    }
+
+    /**
+     * Sets allele presence for the 64 sites of the given word from the
+     * genotypes, with alleles sorted by frequency at each site.
+     */
+    private void presenceFromGenotypes(long[][] result, int word, int offset) {
+        int startSite = word << 6;
+        int endSite = Math.min(startSite + 64, myNumSites);
+        for (int site = startSite; site < endSite; site++) {
+            byte[] genotype = myGenotypes.genotypeAllTaxa(site);
+            int[][] alleles = AlleleFreqCache.allelesSortedByFrequencyNucleotide(genotype);
+            int numAlleles = Math.min(myNumAlleles, alleles[0].length);
+            long bit = 1L << (site & 63);
+            for (int t = 0; t < myNumTaxa; t++) {
+                byte first = (byte) (genotype[t] & 0xf);
+                byte second = (byte) (genotype[t] >>> 4 & 0xf);
+                for (int a = 0; a < numAlleles; a++) {
+                    if ((alleles[0][a] == first) || (alleles[0][a] == second)) {
+                        result[t][offset + FIRST_ALLELE + a] |= bit;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts all pairs of taxa between two tiles. The words are processed
+     * WORDS_PER_TILE at a time.
+     */
+    private void countTiles(long[][] words, int numWords, int firstTile, int secondTile) {
+
+        int firstStart = firstTile * myTaxaPerTile;
+        int firstEnd = Math.min(firstStart + myTaxaPerTile, myNumTaxa);
+        int secondStart = secondTile * myTaxaPerTile;
+        int secondEnd = Math.min(secondStart + myTaxaPerTile, myNumTaxa);
+
+        for (int startWord = 0; startWord < numWords; startWord += WORDS_PER_TILE) {
+            int start = startWord * myStride;
+            int end = Math.min(startWord + WORDS_PER_TILE, numWords) * myStride;
+            for (int i = firstStart; i < firstEnd; i++) {
+                long[] first = words[i];
+                int[] counters = myCounters[i];
+                for (int j = Math.max(i, secondStart); j < secondEnd; j++) {
+                    if (myNumAlleles == 2) {
+                        countPair2(first, words[j], start, end, counters, (j - i) * 3);
+                    } else {
+                        countPair3(first, words[j], start, end, counters, (j - i) * 3);
+                    }
+                }
+            }
+        }
+
+    }
+
+    private static void countPair2(long[] first, long[] second, int start, int end, int[] counters, int index) {
+        int both = 0;
+        int shared = 0;
+        int het = 0;
+        for (int x = start; x < end; x += 4) {
+            long known = first[x] & second[x];
+            long share = (first[x + 2] & second[x + 2]) | (first[x + 3] & second[x + 3]);
+            both += Long.bitCount(known);
+            shared += Long.bitCount(share);
+            het += Long.bitCount(share & (first[x + 1] | second[x + 1]));
+        }
+        addCounts(counters, index, both, shared, het);
+    }
+
+    private static void countPair3(long[] first, long[] second, int start, int end, int[] counters, int index) {
+        int both = 0;
+        int shared = 0;
+        int het = 0;
+        for (int x = start; x < end; x += 5) {
+            long known = first[x] & second[x];
+            long share = (first[x + 2] & second[x + 2]) | (first[x + 3] & second[x + 3]) | (first[x + 4] & second[x + 4]);
+            both += Long.bitCount(known);
+            shared += Long.bitCount(share);
+            het += Long.bitCount(share & (first[x + 1] | second[x + 1]));
+        }
+        addCounts(counters, index, both, shared, het);
+    }
+
+    /**
+     * Sites where both taxa are known but share no allele are different.
+     * Sites with a shared allele where either is het are same, different,
+     * and het.
+     */
+    private static void addCounts(int[] counters, int index, int both, int shared, int het) {
+        counters[index] += shared;
+        counters[index + 1] += both - shared + het;
+        counters[index + 2] += het;
+    }
+
+}
@@ -0,0 +1,440 @@
+/*
+ *  KinshipMatrixMultiplier
+ */
+package net.maizegenetics.analysis.distance;
+
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrix;
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory;
+import net.maizegenetics.util.ProgressListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Computes kinship sums for all pairs of taxa as the matrix product ZZ',
+ * where Z has a row for each taxon and a column for each (pseudo-)site. The
+ * value of Z for a taxon is the term for the number of copies (0, 1, 2) of
+ * the column's allele, or zero if the taxon is unknown at the site.
+ * Optionally, the number of sites where both taxa are known is counted from
+ * bits set for known taxa.
+ * <p>
+ * </p>
+ * Columns are collected into dense blocks of a few thousand. For each block,
+ * taxa are divided into tiles and the products for all pairs of tiles are
+ * computed in parallel. When DoubleMatrixFactory.DEFAULT is native BLAS
+ * (TasselBlas library present), it multiplies the tiles. Otherwise, a
+ * register blocked Java multiply is used, as general purpose EJML multiply
+ * is slower than the site by site calculation. The sums are accumulated
+ * into the upper triangle (including diagonal) of the result.
+ */
+final class KinshipMatrixMultiplier {
+
+    private static final Logger myLogger = LogManager.getLogger(KinshipMatrixMultiplier.class);
+
+    private static final int TAXA_PER_TILE = 512;
+    private static final int MIN_COLUMNS_PER_BLOCK = 256;
+    private static final int MAX_COLUMNS_PER_BLOCK = 4096;
+    private static final long MAX_BLOCK_BYTES = 1L << 27;
+    private static final int COLUMNS_PER_PASS = 128;
+
+    private final GenotypeTable myGenotypes;
+    private final Function<byte[], SiteTerms> mySiteTerms;
+    private final boolean myCountSites;
+    private final int myNumTaxa;
+    private final int myNumSites;
+    private final int myNumTiles;
+    private final int myColumnsPerBlock;
+    private final int[] myFirstTile;
+    private final int[] mySecondTile;
+
+    /**
+     * Upper triangle (including diagonal) of sums. Row i starts with taxon i
+     * compared with itself.
+     */
+    private final float[] myDistances;
+    private final int[] myCounts;
+    private double mySum = 0.0;
+
+    //
+    // Columns waiting to be multiplied.
+    //
+    private final byte[][] myColumnGenotypes;
+    private final byte[] myColumnAlleles;
+    private final double[][] myColumnTerms;
+    private int myNumColumns = 0;
+
+    private KinshipMatrixMultiplier(GenotypeTable genotypes, Function<byte[], SiteTerms> siteTerms, boolean countSites) {
+        myGenotypes = genotypes;
+        mySiteTerms = siteTerms;
+        myCountSites = countSites;
+        myNumTaxa = genotypes.numberOfTaxa();
+        myNumSites = genotypes.numberOfSites();
+        myNumTiles = (myNumTaxa + TAXA_PER_TILE - 1) / TAXA_PER_TILE;
+
+        long bytesPerColumn = (long) myNumTaxa * 8L;
+        myColumnsPerBlock = (int) Math.max(MIN_COLUMNS_PER_BLOCK, Math.min(MAX_COLUMNS_PER_BLOCK, MAX_BLOCK_BYTES / Math.max(1L, bytesPerColumn)));
+
+        int numTilePairs = myNumTiles * (myNumTiles + 1) / 2;
+        myFirstTile = new int[numTilePairs];
+        mySecondTile = new int[numTilePairs];
+        for (int i = 0, index = 0; i < myNumTiles; i++) {
+            for (int j = i; j < myNumTiles; j++, index++) {
+                myFirstTile[index] = i;
+                mySecondTile[index] = j;
+            }
+        }
+
+        long triangleSize = (long) myNumTaxa * (long) (myNumTaxa + 1) / 2L;
+        if (triangleSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("KinshipMatrixMultiplier: init: too many taxa: " + myNumTaxa);
+        }
+        myDistances = new float[(int) triangleSize];
+        myCounts = countSites ? new int[(int) triangleSize] : null;
+
+        myColumnGenotypes = new byte[myColumnsPerBlock][];
+        myColumnAlleles = new byte[myColumnsPerBlock];
+        myColumnTerms = new double[myColumnsPerBlock][];
+    }
+
+    /**
+     * Computes kinship sums for all pairs of taxa.
+     *
+     * @param genotypes genotypes
+     * @param siteTerms returns the terms for a site given the genotypes for
+     * all taxa at the site
+     * @param countSites whether to count sites where both taxa are known
+     * @param listener progress listener
+     *
+     * @return kinship sums
+     */
+    static KinshipMatrixMultiplier compute(GenotypeTable genotypes, Function<byte[], SiteTerms> siteTerms, boolean countSites, ProgressListener listener) {
+        KinshipMatrixMultiplier result = new KinshipMatrixMultiplier(genotypes, siteTerms, countSites);
+        result.compute(listener);
+        return result;
+    }
+
+    /**
+     * Upper triangle (including diagonal) of the kinship sums. Taxa i and j
+     * (j >= i) are at index i * numTaxa - i * (i - 1) / 2 + j - i.
+     *
+     * @return sums
+     */
+    float[] distances() {
+        return myDistances;
+    }
+
+    /**
+     * Number of sites where both taxa are known. Same order as distances().
+     *
+     * @return counts or null if sites not counted
+     */
+    int[] counts() {
+        return myCounts;
+    }
+
+    /**
+     * Sum of the values returned by SiteTerms for all sites.
+     *
+     * @return sum
+     */
+    double sum() {
+        return mySum;
+    }
+
+    private void compute(ProgressListener listener) {
+
+        myLogger.info("compute: matrix multiply using: " + DoubleMatrixFactory.DEFAULT.getType() + " columns per block: " + myColumnsPerBlock);
+
+        for (int startSite = 0; startSite < myNumSites; startSite += myColumnsPerBlock) {
+
+            int start = startSite;
+            int numSites = Math.min(myColumnsPerBlock, myNumSites - start);
+            byte[][] genotypes = new byte[numSites][];
+            SiteTerms[] terms = new SiteTerms[numSites];
+            IntStream.range(0, numSites).parallel().forEach(s -> {
+                genotypes[s] = myGenotypes.genotypeAllTaxa(start + s);
+                terms[s] = mySiteTerms.apply(genotypes[s]);
+            });
+
+            for (int s = 0; s < numSites; s++) {
+                SiteTerms current = terms[s];
+                mySum += current.mySum;
+                for (int c = 0; c < current.myNumColumns; c++) {
+                    myColumnGenotypes[myNumColumns] = genotypes[s];
+                    myColumnAlleles[myNumColumns] = current.myAlleles[c];
+                    myColumnTerms[myNumColumns] = current.myTerms[c];
+                    myNumColumns++;
+                    if (myNumColumns == myColumnsPerBlock) {
+                        multiplyBlock();
+                    }
+                }
+            }
+
+            EndelmanDistanceMatrix.fireProgress((int) ((long) (start + numSites) * 100L / (long) myNumSites), listener);
+
+        }
+
+        if (myNumColumns != 0) {
+            multiplyBlock();
+        }
+
+    }
+
+    /**
+     * Multiplies the waiting columns and adds the products to the sums.
+     */
+    private void multiplyBlock() {
+
+        int numColumns = myNumColumns;
+        double[][] terms = new double[myNumTiles][];
+        int numWords = (numColumns + 63) >>> 6;
+        long[][] known = myCountSites ? new long[myNumTaxa][numWords] : null;
+        IntStream.range(0, myNumTiles).parallel().forEach(tile -> {
+            int start = tile * TAXA_PER_TILE;
+            int numRows = Math.min(TAXA_PER_TILE, myNumTaxa - start);
+            //
+            // Rows (taxa) padded with zeros to a multiple of four
+            // for multiplyTiles()
+            //
+            double[] values = new double[paddedRows(numRows) * numColumns];
+            for (int c = 0; c < numColumns; c++) {
+                byte[] genotypes = myColumnGenotypes[c];
+                int allele = myColumnAlleles[c] & 0x7;
+                double[] current = myColumnTerms[c];
+                for (int r = 0; r < numRows; r++) {
+                    int count = alleleCount(genotypes[start + r], allele);
+                    if (count >= 0) {
+                        values[r * numColumns + c] = current[count];
+                        if (known != null) {
+                            known[start + r][c >>> 6] |= 1L << (c & 63);
+                        }
+                    }
+                }
+            }
+            terms[tile] = values;
+        });
+
+        IntStream.range(0, myFirstTile.length).parallel().forEach(p -> {
+            int first = myFirstTile[p];
+            int second = mySecondTile[p];
+            addProduct(multiply(terms[first], terms[second], numColumns, first == second), first, second);
+            if (known != null) {
+                addCounts(known, first, second);
+            }
+        });
+
+        Arrays.fill(myColumnGenotypes, null);
+        Arrays.fill(myColumnTerms, null);
+        myNumColumns = 0;
+
+    }
+
+    private static int paddedRows(int numRows) {
+        return (numRows + 3) & ~3;
+    }
+
+    /**
+     * Returns product of first tile and transpose of second tile (row major).
+     * Uses DoubleMatrixFactory when the native BLAS library is loaded.
+     * Otherwise, multiplyTiles() is used.
+     */
+    private static double[] multiply(double[] first, double[] second, int numColumns, boolean diagonal) {
+        int firstRows = first.length / numColumns;
+        int secondRows = second.length / numColumns;
+        if (DoubleMatrixFactory.DEFAULT.getType() == DoubleMatrixFactory.FactoryType.blas) {
+            DoubleMatrix product = DoubleMatrixFactory.DEFAULT.make(firstRows, numColumns, first).tcrossproduct(DoubleMatrixFactory.DEFAULT.make(secondRows, numColumns, second));
+            double[] result = new double[firstRows * secondRows];
+            for (int i = 0; i < firstRows; i++) {
+                for (int j = 0; j < secondRows; j++) {
+                    result[i * secondRows + j] = product.get(i, j);
+                }
+            }
+            return result;
+        } else {
+            return multiplyTiles(first, firstRows, second, secondRows, numColumns, diagonal);
+        }
+    }
+
+    /**
+     * Java matrix multiply of first tile and transpose of second tile. Both
+     * are row major with the number of rows a multiple of four. Columns are
+     * processed COLUMNS_PER_PASS at a time so that the rows of the second
+     * tile stay in cache, and each four rows of the first tile are multiplied
+     * with four rows of the second tile in registers. If diagonal (same
+     * tile), only blocks on or above the diagonal are computed.
+     */
+    private static double[] multiplyTiles(double[] first, int firstRows, double[] second, int secondRows, int numColumns, boolean diagonal) {
+
+        double[] result = new double[firstRows * secondRows];
+
+        for (int startColumn = 0; startColumn < numColumns; startColumn += COLUMNS_PER_PASS) {
+            int endColumn = Math.min(startColumn + COLUMNS_PER_PASS, numColumns);
+            for (int i = 0; i < firstRows; i += 4) {
+                int a0 = i * numColumns;
+                int a1 = a0 + numColumns;
+                int a2 = a1 + numColumns;
+                int a3 = a2 + numColumns;
+                for (int j = diagonal ? i : 0; j < secondRows; j += 4) {
+                    int b0 = j * numColumns;
+                    int b1 = b0 + numColumns;
+                    int b2 = b1 + numColumns;
+                    int b3 = b2 + numColumns;
+                    double c00 = 0.0, c01 = 0.0, c02 = 0.0, c03 = 0.0;
+                    double c10 = 0.0, c11 = 0.0, c12 = 0.0, c13 = 0.0;
+                    double c20 = 0.0, c21 = 0.0, c22 = 0.0, c23 = 0.0;
+                    double c30 = 0.0, c31 = 0.0, c32 = 0.0, c33 = 0.0;
+                    for (int k = startColumn; k < endColumn; k++) {
+                        double x0 = first[a0 + k];
+                        double x1 = first[a1 + k];
+                        double x2 = first[a2 + k];
+                        double x3 = first[a3 + k];
+                        double y0 = second[b0 + k];
+                        double y1 = second[b1 + k];
+                        double y2 = second[b2 + k];
+                        double y3 = second[b3 + k];
+                        c00 += x0 * y0;
+                        c01 += x0 * y1;
+                        c02 += x0 * y2;
+                        c03 += x0 * y3;
+                        c10 += x1 * y0;
+                        c11 += x1 * y1;
+                        c12 += x1 * y2;
+                        c13 += x1 * y3;
+                        c20 += x2 * y0;
+                        c21 += x2 * y1;
+                        c22 += x2 * y2;
+                        c23 += x2 * y3;
+                        c30 += x3 * y0;
+                        c31 += x3 * y1;
+                        c32 += x3 * y2;
+                        c33 += x3 * y3;
+                    }
+                    int c = i * secondRows + j;
+                    result[c] += c00;
+                    result[c + 1] += c01;
+                    result[c + 2] += c02;
+                    result[c + 3] += c03;
+                    c += secondRows;
+                    result[c] += c10;
+                    result[c + 1] += c11;
+                    result[c + 2] += c12;
+                    result[c + 3] += c13;
+                    c += secondRows;
+                    result[c] += c20;
+                    result[c + 1] += c21;
+                    result[c + 2] += c22;
+                    result[c + 3] += c23;
+                    c += secondRows;
+                    result[c] += c30;
+                    result[c + 1] += c31;
+                    result[c + 2] += c32;
+                    result[c + 3] += c33;
+                }
+            }
+        }
+
+        return result;
+
+    }
+
+    /**
+     * Adds product of two tiles to the upper triangle. Different pairs of
+     * tiles never update the same entries.
+     */
+    private void addProduct(double[] product, int firstTile, int secondTile) {
+        int firstStart = firstTile * TAXA_PER_TILE;
+        int firstEnd = Math.min(firstStart + TAXA_PER_TILE, myNumTaxa);
+        int secondStart = secondTile * TAXA_PER_TILE;
+        int secondEnd = Math.min(secondStart + TAXA_PER_TILE, myNumTaxa);
+        int secondRows = paddedRows(secondEnd - secondStart);
+        for (int i = firstStart; i < firstEnd; i++) {
+            int rowStart = (int) ((long) i * (long) myNumTaxa - (long) i * (long) (i - 1) / 2L) - i;
+            int productStart = (i - firstStart) * secondRows - secondStart;
+            for (int j = Math.max(i, secondStart); j < secondEnd; j++) {
+                myDistances[rowStart + j] += (float) product[productStart + j];
+            }
+        }
+    }
+
+    /**
+     * Adds number of columns where both taxa are known (bits of known words)
+     * for all pairs of taxa between two tiles.
+     */
+    private void addCounts(long[][] known, int firstTile, int secondTile) {
+        int firstStart = firstTile * TAXA_PER_TILE;
+        int firstEnd = Math.min(firstStart + TAXA_PER_TILE, myNumTaxa);
+        int secondStart = secondTile * TAXA_PER_TILE;
+        int secondEnd = Math.min(secondStart + TAXA_PER_TILE, myNumTaxa);
+        for (int i = firstStart; i < firstEnd; i++) {
+            int rowStart = (int) ((long) i * (long) myNumTaxa - (long) i * (long) (i - 1) / 2L) - i;
+            long[] first = known[i];
+            for (int j = Math.max(i, secondStart); j < secondEnd; j++) {
+                long[] second = known[j];
+                int count = 0;
+                for (int w = 0; w < first.length; w++) {
+                    count += Long.bitCount(first[w] & second[w]);
+                }
+                myCounts[rowStart + j] += count;
+            }
+        }
+    }
+
+    /**
+     * Returns number of copies (0, 1, 2) of the allele in the diploid
+     * genotype or -1 if the genotype is unknown.
+     */
+    private static int alleleCount(byte genotype, int allele) {
+        int first = (genotype >>> 4) & 0x7;
+        int second = genotype & 0x7;
+        if ((first == 7) && (second == 7)) {
+            return -1;
+        }
+        int result = 0;
+        if (first == allele) {
+            result++;
+        }
+        if (second == allele) {
+            result++;
+        }
+        return result;
+    }
+
+    /**
+     * Terms of the kinship sum for the (pseudo-)sites of one site. Each
+     * (pseudo-)site is an allele with terms for zero, one, and two copies of
+     * that allele.
+     */
+    static final class SiteTerms {
+
+        private double mySum = 0.0;
+        private final byte[] myAlleles;
+        private final double[][] myTerms;
+        private int myNumColumns = 0;
+
+        /**
+         * @param maxColumns maximum number of (pseudo-)sites
+         */
+        SiteTerms(int maxColumns) {
+            myAlleles = new byte[maxColumns];
+            myTerms = new double[maxColumns][];
+        }
+
+        void add(byte allele, double zeroCopies, double oneCopy, double twoCopies) {
+            myAlleles[myNumColumns] = allele;
+            myTerms[myNumColumns] = new double[]{zeroCopies, oneCopy, twoCopies};
+            myNumColumns++;
+        }
+
+        /**
+         * Adds value to sum() for this site.
+         */
+        void addToSum(double value) {
+            mySum += value;
+        }
+
+    }
+
+}
@@ -63,6 +63,14 @@ public class KinshipPlugin extends AbstractPlugin {
             .dependentOnParameter(myMethod, new Object[]{KINSHIP_METHOD.Dominance_Centered_IBS})
             .build();
 
+    private PluginParameter<Boolean> myMatrixMultiply = new PluginParameter.Builder<>("matrixMultiply", false, Boolean.class)
+            .guiName("Blocked Matrix Multiply")
+            .description("Compute kinship as the product of blocks of standardized genotypes. "
+                    + "Uses native BLAS when the TasselBlas library is available, otherwise a multi-threaded Java matrix multiply. "
+                    + "Recommended for large numbers of taxa when native BLAS is available.")
+            .dependentOnParameter(myMethod, new Object[]{KINSHIP_METHOD.Centered_IBS, KINSHIP_METHOD.Normalized_IBS})
+            .build();
+
     public KinshipPlugin(Frame parentFrame, boolean isInteractive) {
         super(parentFrame, isInteractive);
     }
@@ -116,9 +124,9 @@ public class KinshipPlugin extends AbstractPlugin {
             if (current.getData() instanceof GenotypeTable) {
                 GenotypeTable myGenotype = (GenotypeTable) current.getData();
                 if (kinshipMethod() == KINSHIP_METHOD.Centered_IBS) {
-                    kin = EndelmanDistanceMatrix.getInstance(myGenotype, maxAlleles(), this);
+                    kin = EndelmanDistanceMatrix.getInstance(myGenotype, maxAlleles(), this, matrixMultiply());
                 } else if (kinshipMethod() == KINSHIP_METHOD.Normalized_IBS) {
-                    kin = GCTADistanceMatrix.getInstance(myGenotype, this);
+                    kin = GCTADistanceMatrix.getInstance(myGenotype, this, matrixMultiply());
                 } else if (kinshipMethod() == KINSHIP_METHOD.Dominance_Centered_IBS) {
                     kin = DominanceRelationshipMatrix.getInstance(myGenotype, maxAlleles(), algorithmVariation(), this);
                 } else if (kinshipMethod() == KINSHIP_METHOD.Dominance_Normalized_IBS) {
@@ -261,4 +269,26 @@ public class KinshipPlugin extends AbstractPlugin {
         myAlgorithmVariation = new PluginParameter<>(myAlgorithmVariation, value);
         return this;
     }
+
+    /**
+     * Blocked Matrix Multiply
+     *
+     * @return Blocked Matrix Multiply
+     */
+    public Boolean matrixMultiply() {
+        return myMatrixMultiply.value();
+    }
+
+    /**
+     * Set Blocked Matrix Multiply. Compute kinship as the product of blocks
+     * of standardized genotypes.
+     *
+     * @param value Blocked Matrix Multiply
+     *
+     * @return this plugin
+     */
+    public KinshipPlugin matrixMultiply(Boolean value) {
+        myMatrixMultiply = new PluginParameter<>(myMatrixMultiply, value);
+        return this;
+    }
 }
@@ -29,6 +29,7 @@ public class BarcodeTrie{
             root.addWord(word.toUpperCase());
             String bcode = word;
             barcodeInformation.put(bcode, barcode);
+            setBarcode(word.toUpperCase());
         }
     }
     
@@ -41,9 +42,24 @@ public class BarcodeTrie{
         root.addWord(barcodeAlone.toUpperCase());
         String bcode = barcodeAlone;
         barcodeInformation.put(bcode, barcode);
+        setBarcode(barcodeAlone.toUpperCase());
  
     }
 
+    /**
+     * Records on the node for the (uppercase) word the Barcode that
+     * longestPrefix(String) returns for that word, so that
+     * longestPrefix(byte[], int, int) can return it without building a
+     * String.
+     */
+    private void setBarcode(String word) {
+        TrieNode node = root;
+        for (int i = 0; i < word.length(); i++) {
+            node = node.getNode(word.charAt(i));
+        }
+        node.barcode = barcodeInformation.get(word);
+    }
+
     /**
      * Add a collection of barcodes to the trie.
      * @param barcodes
@@ -133,6 +149,32 @@ public class BarcodeTrie{
         return barcodeInformation.get(result);
     }
 
+    /**
+     * Find the Barcode for the longest prefix of the sequence (ASCII bases)
+     * in bytes offset to offset + length. Same as longestPrefix(String)
+     * without creating a String for each read.
+     *
+     * @param input bytes containing sequence
+     * @param offset index of first base
+     * @param length number of bases
+     */
+    public Barcode longestPrefix(byte[] input, int offset, int length) {
+        TrieNode crawl = root;
+        TrieNode match = null;
+        for (int level = 0; level < length - 1; level++) {
+            int ch = input[offset + level];
+            if (ch < 'A' || ch > 'T') {
+                if (ch >= 'a' && ch <= 'z') ch -= 'a' - 'A';
+                if (ch < 'A' || ch > 'T') return null;
+            }
+            TrieNode child = crawl.children[ch - 'A'];
+            if (child == null) break;
+            crawl = child;
+            if (crawl.isWord) match = crawl;
+        }
+        return match == null ? null : match.barcode;
+    }
+
 
     public static void main(String args[]){
     }
@@ -143,6 +185,7 @@ public class BarcodeTrie{
         public boolean isLeaf; // Quick way to check if any children exist
         public boolean isWord; // does this node represent teh last character
         public char character; //character the node represents
+        public Barcode barcode; // Barcode for the word ending at this node
 
 
         /**
@@ -209,14 +252,8 @@ public class BarcodeTrie{
          * @return true if c is a children
          */
         public boolean containsKey(char c){
-            List followers = new ArrayList();
-            for (TrieNode x : children) {
-                if (x != null) {
-                    char y = x.character;
-                    followers.add(y);
-                }
-            }
-            return (followers.contains(c));
+            int charPos = c - 'A';
+            return (charPos >= 0) && (charPos < children.length) && (children[charPos] != null);
         }
 
 
@@ -0,0 +1,262 @@
+/*
+ *  FastqReader
+ */
+package net.maizegenetics.analysis.gbs.v2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.maizegenetics.util.Utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads FastQ four line records as bytes. The file is read in large blocks
+ * into one reusable buffer and each record is located in place, so no
+ * Strings or arrays are created per read. The sequence and quality of the
+ * current record are given as offset and length into buffer() and are only
+ * valid until the next call to next().
+ * <p>
+ * </p>
+ * Usage:
+ * <pre>
+ * try (FastqReader reader = FastqReader.getInstance(filename)) {
+ *     while (reader.next()) {
+ *         byte[] buffer = reader.buffer();
+ *         ... buffer[reader.sequenceOffset()] ...
+ *     }
+ * }
+ * </pre>
+ */
+public final class FastqReader implements Closeable {
+
+    private static final Logger myLogger = LogManager.getLogger(FastqReader.class);
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 22;
+
+    private final InputStream myInput;
+    private byte[] myBuffer;
+
+    // unparsed bytes are myBuffer[myStart] to myBuffer[myEnd - 1]
+    private int myStart = 0;
+    private int myEnd = 0;
+    private boolean myEndOfInput = false;
+
+    private long myNumRecords = 0;
+    private int myHeaderOffset;
+    private int myHeaderLength;
+    private int mySequenceOffset;
+    private int mySequenceLength;
+    private int myQualityOffset;
+    private int myQualityLength;
+
+    // line starts and ends (exclusive) of current record
+    private final int[] myLineStarts = new int[4];
+    private final int[] myLineEnds = new int[4];
+
+    private FastqReader(InputStream input, int bufferSize) {
+        if (bufferSize < 1024) {
+            throw new IllegalArgumentException("FastqReader: init: buffer size must be at least 1024: " + bufferSize);
+        }
+        myInput = input;
+        myBuffer = new byte[bufferSize];
+    }
+
+    private FastqReader(byte[] data, int length) {
+        myInput = null;
+        myBuffer = data;
+        myEnd = length;
+        myEndOfInput = true;
+    }
+
+    /**
+     * Opens the given FastQ file (plain or gzipped).
+     *
+     * @param filename file name
+     *
+     * @return reader
+     */
+    public static FastqReader getInstance(String filename) {
+        return getInstance(Utils.getInputStream(filename), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Reads FastQ records from the given input stream.
+     *
+     * @param input input stream
+     * @param bufferSize initial size of buffer in bytes (grows if a record
+     * is larger)
+     *
+     * @return reader
+     */
+    public static FastqReader getInstance(InputStream input, int bufferSize) {
+        if (input == null) {
+            throw new IllegalArgumentException("FastqReader: getInstance: input stream can't be null.");
+        }
+        return new FastqReader(input, bufferSize);
+    }
+
+    /**
+     * Reads FastQ records from bytes already in memory (data[0] to
+     * data[length - 1]). The bytes are not copied.
+     *
+     * @param data bytes of whole records
+     * @param length number of bytes
+     *
+     * @return reader
+     */
+    public static FastqReader getInstance(byte[] data, int length) {
+        if ((length < 0) || (length > data.length)) {
+            throw new IllegalArgumentException("FastqReader: getInstance: invalid length: " + length);
+        }
+        return new FastqReader(data, length);
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @return false if no more records
+     *
+     * @throws IOException if problem reading input
+     */
+    public boolean next() throws IOException {
+
+        while (true) {
+
+            if (parseRecord()) {
+                myNumRecords++;
+                return true;
+            }
+
+            if (myEndOfInput) {
+                for (int i = myStart; i < myEnd; i++) {
+                    if (!Character.isWhitespace(myBuffer[i])) {
+                        myLogger.warn("next: ignoring incomplete record at end of input after record: " + myNumRecords);
+                        break;
+                    }
+                }
+                myStart = myEnd;
+                return false;
+            }
+
+            fill();
+
+        }
+
+    }
+
+    /**
+     * Finds the four lines of the record starting at myStart. A last line
+     * without a line end is accepted at the end of input.
+     */
+    private boolean parseRecord() {
+
+        int pos = myStart;
+        for (int line = 0; line < 4; line++) {
+            int lineEnd = -1;
+            for (int i = pos; i < myEnd; i++) {
+                if (myBuffer[i] == '\n') {
+                    lineEnd = i;
+                    break;
+                }
+            }
+            if (lineEnd == -1) {
+                if (myEndOfInput && (line == 3) && (pos < myEnd)) {
+                    lineEnd = myEnd;
+                } else {
+                    return false;
+                }
+            }
+            myLineStarts[line] = pos;
+            myLineEnds[line] = (lineEnd > pos) && (myBuffer[lineEnd - 1] == '\r') ? lineEnd - 1 : lineEnd;
+            pos = Math.min(lineEnd + 1, myEnd);
+        }
+
+        myHeaderOffset = myLineStarts[0];
+        myHeaderLength = myLineEnds[0] - myLineStarts[0];
+        mySequenceOffset = myLineStarts[1];
+        mySequenceLength = myLineEnds[1] - myLineStarts[1];
+        myQualityOffset = myLineStarts[3];
+        myQualityLength = myLineEnds[3] - myLineStarts[3];
+        myStart = pos;
+        return true;
+
+    }
+
+    /**
+     * Moves unparsed bytes to the beginning of the buffer (growing it if
+     * it's already full) and reads more input after them.
+     */
+    private void fill() throws IOException {
+
+        int remaining = myEnd - myStart;
+        if (remaining == myBuffer.length) {
+            byte[] temp = new byte[myBuffer.length * 2];
+            System.arraycopy(myBuffer, myStart, temp, 0, remaining);
+            myBuffer = temp;
+        } else if (myStart != 0) {
+            System.arraycopy(myBuffer, myStart, myBuffer, 0, remaining);
+        }
+        myStart = 0;
+        myEnd = remaining;
+
+        while (myEnd < myBuffer.length) {
+            int numRead = myInput.read(myBuffer, myEnd, myBuffer.length - myEnd);
+            if (numRead < 0) {
+                myEndOfInput = true;
+                return;
+            }
+            myEnd += numRead;
+        }
+
+    }
+
+    /**
+     * Buffer containing current record. This can change after calling
+     * next().
+     */
+    public byte[] buffer() {
+        return myBuffer;
+    }
+
+    /**
+     * Number of records read so far.
+     */
+    public long numRecords() {
+        return myNumRecords;
+    }
+
+    public int headerOffset() {
+        return myHeaderOffset;
+    }
+
+    public int headerLength() {
+        return myHeaderLength;
+    }
+
+    public int sequenceOffset() {
+        return mySequenceOffset;
+    }
+
+    public int sequenceLength() {
+        return mySequenceLength;
+    }
+
+    public int qualityOffset() {
+        return myQualityOffset;
+    }
+
+    public int qualityLength() {
+        return myQualityLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (myInput != null) {
+            myInput.close();
+        }
+    }
+
+}
@@ -1,7 +1,6 @@
 package net.maizegenetics.analysis.gbs.v2;
 
 import java.awt.Frame;
-import java.io.BufferedReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -10,9 +9,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.LongAdder;
-import java.util.stream.IntStream;
 
 import javax.swing.ImageIcon;
 
@@ -23,20 +20,20 @@ import org.apache.logging.log4j.Logger;
 import net.maizegenetics.analysis.gbs.Barcode;
 import net.maizegenetics.dna.BaseEncoder;
 import net.maizegenetics.dna.tag.Tag;
-import net.maizegenetics.dna.tag.TagBuilder;
 import net.maizegenetics.dna.tag.TagDataSQLite;
 import net.maizegenetics.dna.tag.TagDataWriter;
+import net.maizegenetics.dna.tag.TagDistributionStore;
 import net.maizegenetics.dna.tag.TaxaDistBuilder;
 import net.maizegenetics.dna.tag.TaxaDistribution;
 import net.maizegenetics.plugindef.AbstractPlugin;
 import net.maizegenetics.plugindef.DataSet;
 import net.maizegenetics.plugindef.Datum;
 import net.maizegenetics.plugindef.PluginParameter;
+import net.maizegenetics.prefs.TasselPrefs;
 import net.maizegenetics.taxa.TaxaList;
 import net.maizegenetics.taxa.TaxaListIOUtils;
 import net.maizegenetics.taxa.Taxon;
 import net.maizegenetics.util.DirectoryCrawler;
-import net.maizegenetics.util.Utils;
 
 /**
  * Develops a discovery TBT file from a set of GBS sequence files.
@@ -78,13 +75,21 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
             .description("Number of flow cells being processed simultaneously").build();
     private PluginParameter<Boolean> myDeleteOldData = new PluginParameter.Builder<Boolean>("deleteOldData",true,Boolean.class).guiName("Delete Old Data")
             .description("Delete existing SNP quality data from db tables").build();
+    private PluginParameter<Integer> myMemoryBudget = new PluginParameter.Builder<>("memBudget", 0, Integer.class).guiName("Kmer Memory Budget (MB)").required(false)
+            .description("Memory (MB) used for kmer counts before they are spilled to disk. 0 uses half the maximum heap.").build();
+    private PluginParameter<String> mySpillDir = new PluginParameter.Builder<>("spillDir", null, String.class).guiName("Spill Directory").required(false).outDir()
+            .description("Directory for kmer counts spilled to disk. Default is the directory of the output database.").build();
     LongAdder roughTagCnt = new LongAdder();
 
-    private TagDistributionMap tagCntMap;
+    // tags counted by a thread before merging into tagCntMap
+    private static final int MAX_THREAD_TAGS = 1 << 16;
+
+    private TagDistributionStore tagCntMap;
     private boolean taglenException;
     protected static int readEndCutSiteRemnantLength;
     private Trie ahoCorasickTrie; // import from ahocorasick-0.2.1.jar
     String[] likelyReadEndStrings;
+    byte[][] likelyReadEnds;
     
     public GBSSeqToTagDBPlugin() {
         super(null, false);
@@ -127,18 +132,11 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
         return np;
     }
     
-    private long[] calcTagMapStats(TagDistributionMap tagCntMap) {
-        long totalDepth=0, memory=0;
-        int cnt=0;
-        for (Map.Entry<Tag, TaxaDistribution> entry : tagCntMap.entrySet()) {       	
-            memory+=entry.getValue().memorySize();
-            memory+=25;
-            totalDepth+=entry.getValue().totalDepth();
-            cnt++;
-        }
-        int currentSize = tagCntMap.size();
-        memory+=tagCntMap.size()*2*16;  //estimate for the map size
-        long[] stats={currentSize,memory, totalDepth,totalDepth/cnt};
+    private long[] calcTagMapStats(TagDistributionStore tagCntMap) {
+        long totalDepth=tagCntMap.totalDepth();
+        long currentSize = tagCntMap.size();
+        long memory=tagCntMap.memoryUsed();
+        long[] stats={currentSize,memory, totalDepth,totalDepth/currentSize};
         System.out.printf("Map Tags:%,d  Memory:%,d  TotalDepth:%,d  AvgDepthPerTag:%d%n",stats[0],stats[1],stats[2],stats[3]);
         return stats;
     }
@@ -149,6 +147,7 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
             // Add likelyReadEnds for later processing
             EnzymeList.Enzyme enzyme = EnzymeList.defaultCache.getEnzyme(enzyme()); 
             likelyReadEndStrings = enzyme.likelyReadEnd; // for removeSecondCutSiteIndexOf()
+            likelyReadEnds = GBSUtils.likelyReadEndBytes(likelyReadEndStrings);
             readEndCutSiteRemnantLength = enzyme.readEndCutSiteRemnantLength;
         }
         
@@ -156,8 +155,6 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
     @Override
     public DataSet processData(DataSet input) {
         int batchSize = myBatchSize.value();
-        float loadFactor = 0.95f;
-        tagCntMap = new TagDistributionMap (myMaxKmerNumber.value(),loadFactor, 128, this.minKmerCount());        
         try {
             //Get the list of fastq files
             Path keyPath= Paths.get(keyFile()).toAbsolutePath();
@@ -182,6 +179,7 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
             
             // Check if user wants to clear existing db. 
             TagDataWriter tdw = null;
+            Map<Tag, TaxaDistribution> existingTDM = null;
             if (Files.exists(Paths.get(myOutputDB.value()))) {
                 if (deleteOldData()) {
                     try {
@@ -211,12 +209,12 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
                         return null;
                     }
                     // Grab existing data from db, append to empty tagCntMap
-                    Map<Tag, TaxaDistribution> existingTDM = tdw.getAllTagsTaxaMap(); 
-                    tagCntMap.putAll(existingTDM);
+                    existingTDM = tdw.getAllTagsTaxaMap(); 
                     tdw.clearTagTaxaDistributionData(); // clear old data - it will be re-added at the end.
                 }
             } 
             if (tdw == null) tdw=new TagDataSQLite(myOutputDB.value());
+            tagCntMap = createTagStore(masterTaxaList.numberOfTaxa(), existingTDM);
             taglenException = false;
             for (int i = 0; i < inputSeqFiles.size(); i+=batchSize) {
                 int end = i+batchSize;
@@ -224,11 +222,13 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
                 ArrayList<Path> sub = new ArrayList();
                 for (int j = i; j < end; j++) sub.add(inputSeqFiles.get(j));
                 System.out.println("\nStart processing batch " + String.valueOf(i/batchSize+1));
+                // threads are divided among the files, so a batch with few large files still uses all of them
+                int threadsPerFile = Math.max(1, TasselPrefs.getMaxThreads() / sub.size());
                 sub.parallelStream()
                 .forEach(inputSeqFile -> {
                     try {
                         processFastQFile(masterTaxaList,keyPath, inputSeqFile, enzyme(),
-                                minimumQualityScore(), tagCntMap, kmerLength());
+                                minimumQualityScore(), tagCntMap, kmerLength(), threadsPerFile);
                     } catch (StringIndexOutOfBoundsException oobe) {
                         oobe.printStackTrace();
                         myLogger.error(oobe.getMessage());
@@ -239,7 +239,7 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
                 if (taglenException == true) return null; // Tag length failure from processFastQ - halt processing
 
                 System.out.println("\nKmers are added from batch "+String.valueOf(i/batchSize+1) + ". Total batch number: " + batchNum);
-                int currentSize = tagCntMap.size();
+                long currentSize = tagCntMap.size();
                 System.out.println("Current number: " + String.valueOf(currentSize) + ". Max kmer number: " + String.valueOf(myMaxKmerNumber.value()));
                 System.out.println(String.valueOf((float)currentSize/(float)myMaxKmerNumber.value()) + " of max tag number");
 
@@ -270,86 +270,122 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
                 System.out.println("\n");
             }
             System.out.println("\nAll the batch are processed");
-            tagCntMap.removeTagByCount(myMinKmerCount.value());
+            int minCount = myMinKmerCount.value();
+            tagCntMap.removeIf((totalDepth, taxa, depths, numTaxa) -> totalDepth < minCount);
             System.out.println("By removing kmers with minCount of " + myMinKmerCount.value() + "Kmer number is reduced to " + tagCntMap.size()+"\n");
             
             // now done in processFastQ
             //removeSecondCutSitesFromMap(new GBSEnzyme(enzyme()));
 
             tdw.putTaxaList(masterTaxaList);
-            tdw.putAllTag(tagCntMap.keySet());
-            tdw.putTaxaDistribution(tagCntMap);
-            ((TagDataSQLite)tdw).close();  //todo autocloseable should do this but it is not working.
+            Map<Tag, TaxaDistribution> tagMap = tagCntMap.asMap();
+            ((TagDataSQLite)tdw).beginBulkLoad();
+            try {
+                tdw.putAllTag(tagMap.keySet());
+                tdw.putTaxaDistribution(tagMap);
+            } finally {
+                // indexes dropped by beginBulkLoad() must be recreated even if the writes fail
+                try {
+                    ((TagDataSQLite)tdw).endBulkLoad();
+                } finally {
+                    ((TagDataSQLite)tdw).close();  //todo autocloseable should do this but it is not working.
+                }
+            }
         } catch(Exception e) {
             e.printStackTrace();
+        } finally {
+            // deletes run files spilled to -spillDir, the tags are in the database
+            if (tagCntMap != null) {
+                tagCntMap.close();
+            }
         }
         return new DataSet(new Datum("TagMap",tagCntMap,""),this);
     }
     
     private void processFastQFile(TaxaList masterTaxaList, Path keyPath, Path fastQPath, String enzymeName,
-                     int minQuality, TagDistributionMap masterTagTaxaMap, int preferredTagLength) throws StringIndexOutOfBoundsException {
+                     int minQuality, TagDistributionStore masterTagTaxaMap, int preferredTagLength, int numThreads) throws StringIndexOutOfBoundsException {
     	ArrayList<Taxon> tl=GBSUtils.getLaneAnnotatedTaxaList(keyPath, fastQPath);
     	if (tl.size() == 0) return; 
         BarcodeTrie barcodeTrie=GBSUtils.initializeBarcodeTrie(tl, masterTaxaList, EnzymeList.defaultCache.getEnzyme(enzymeName));
         try {
-        	processFastQ(fastQPath,barcodeTrie,masterTaxaList,masterTagTaxaMap,preferredTagLength,minQuality);
+        	processFastQ(fastQPath,barcodeTrie,masterTaxaList,masterTagTaxaMap,preferredTagLength,minQuality,numThreads);
         } catch (StringIndexOutOfBoundsException oobe) {
         	throw oobe; // Let processData() handle it - we want to stop processing on this error
         }        
     }
 
     private void processFastQ(Path fastqFile, BarcodeTrie barcodeTrie, TaxaList masterTaxaList,
-                              TagDistributionMap masterTagTaxaMap, int preferredTagLength, int minQual) throws StringIndexOutOfBoundsException{
-        int allReads=0, goodBarcodedReads = 0, lowQualityReads = 0;
+                              TagDistributionStore masterTagTaxaMap, int preferredTagLength, int minQual, int numThreads) throws StringIndexOutOfBoundsException{
+        LongAdder goodBarcodedReads = new LongAdder(), lowQualityReads = new LongAdder();
         int maxTaxaNumber=masterTaxaList.size();
         int checkSize = 10000000;
-        myLogger.info("processing file " + fastqFile.toString());
+        myLogger.info("processing file " + fastqFile.toString() + " with " + numThreads + " threads");
         try {
             int qualityScoreBase=GBSUtils.determineQualityScoreBase(fastqFile);
-            BufferedReader br = Utils.getBufferedReader(fastqFile.toString(), 1 << 22);
+            boolean apeKI = enzyme().equalsIgnoreCase("ApeKI");
             long time=System.nanoTime();
-            String[] seqAndQual;
- 
-            while ((seqAndQual=GBSUtils.readFastQBlock(br,allReads)) != null) {
-                allReads++;
-                //After quality score is read, decode barcode using the current sequence & quality  score
-                Barcode barcode=barcodeTrie.longestPrefix(seqAndQual[0]);
-                if(barcode==null) continue;
-                if(minQual>0) {
-                    //todo move getFirstLowQualityPos into this class?
-                    if(BaseEncoder.getFirstLowQualityPos(seqAndQual[1],minQual, qualityScoreBase)<(barcode.getBarLength()+preferredTagLength)){
-                    	lowQualityReads++;
-                    	continue;
+
+            // Each thread counts tags in its own map, which is merged into masterTagTaxaMap now and then
+            long allReads = ParallelFastqProcessor.process(fastqFile.toString(), numThreads, () -> new ParallelFastqProcessor.RecordDecoder() {
+
+                private final Map<Tag, TaxaDistribution> tagCounts = new HashMap<>();
+
+                @Override
+                public void decode(FastqReader reader, long readNumber) {
+                    byte[] buffer = reader.buffer();
+                    int seqOffset = reader.sequenceOffset();
+                    int seqLength = reader.sequenceLength();
+                    if (readNumber % checkSize == 0) {
+                        myLogger.info("Total Reads:" + readNumber + " Reads with barcode and cut site overhang:" + goodBarcodedReads
+                                + " rate:" + (System.nanoTime()-time)/readNumber +" ns/read. Current tag count:" + roughTagCnt);
+                    }
+                    //After quality score is read, decode barcode using the current sequence & quality  score
+                    Barcode barcode=barcodeTrie.longestPrefix(buffer, seqOffset, seqLength);
+                    if(barcode==null) return;
+                    if(minQual>0) {
+                        //todo move getFirstLowQualityPos into this class?
+                        if(BaseEncoder.getFirstLowQualityPos(buffer, reader.qualityOffset(), reader.qualityLength(), minQual, qualityScoreBase)<(barcode.getBarLength()+preferredTagLength)){
+                            lowQualityReads.increment();
+                            return;
+                        }
                     }
-                }
 
-                int barcodeLen = barcode.getBarLength();               
-                if (seqAndQual[0].length() - barcodeLen < preferredTagLength) {
-                	String errMsg = "\n\nERROR processing " + fastqFile.toString() + "\n" +
-                			"Reading entry number " + allReads + " fails the length test.\n" +
-                			"Sequence length " + seqAndQual[0].length() + " minus barcode length "+ barcodeLen +
-                			" is less than kmerLength " + preferredTagLength + ".\n" +
-                			"Re-run your files with either a shorter kmerLength value or a higher minimum quality score.\n";
-                	throw new StringIndexOutOfBoundsException(errMsg);
+                    int barcodeLen = barcode.getBarLength();
+                    if (seqLength - barcodeLen < preferredTagLength) {
+                        String errMsg = "\n\nERROR processing " + fastqFile.toString() + "\n" +
+                                "Reading entry number " + readNumber + " fails the length test.\n" +
+                                "Sequence length " + seqLength + " minus barcode length "+ barcodeLen +
+                                " is less than kmerLength " + preferredTagLength + ".\n" +
+                                "Re-run your files with either a shorter kmerLength value or a higher minimum quality score.\n";
+                        throw new StringIndexOutOfBoundsException(errMsg);
+                    }
+                    // This one has best performance
+                    Tag tag = GBSUtils.removeSecondCutSiteIndexOf(buffer, seqOffset + barcodeLen, seqOffset + seqLength, preferredTagLength,
+                            apeKI, likelyReadEnds, readEndCutSiteRemnantLength, minimumKmerLength());
+                    if(tag==null) return;   //null occurs when any base was not A, C, G, T
+                    goodBarcodedReads.increment();
+                    TaxaDistribution taxaDistribution=tagCounts.get(tag);
+                    if(taxaDistribution==null) {
+                        tagCounts.put(tag,TaxaDistBuilder.create(maxTaxaNumber,barcode.getTaxaIndex()));
+                    } else {
+                        taxaDistribution.increment(barcode.getTaxaIndex());
+                    }
                 }
-                // This one has best performance
-                Tag tag = removeSecondCutSiteIndexOf(seqAndQual[0].substring(barcodeLen),preferredTagLength);
-                
-                //Tag tag=TagBuilder.instance(seqAndQual[0].substring(barcodeLen, barcodeLen + preferredTagLength)).build();
-                if(tag==null) continue;   //null occurs when any base was not A, C, G, T
-                goodBarcodedReads++;
-                TaxaDistribution taxaDistribution=masterTagTaxaMap.get(tag);
-                if(taxaDistribution==null) {
-                    masterTagTaxaMap.put(tag,TaxaDistBuilder.create(maxTaxaNumber,barcode.getTaxaIndex()));
-                    this.roughTagCnt.increment();
-                } else {
-                    taxaDistribution.increment(barcode.getTaxaIndex());
+
+                @Override
+                public void endOfChunk() {
+                    if (tagCounts.size() >= MAX_THREAD_TAGS) {
+                        mergeTagCounts(tagCounts, masterTagTaxaMap);
+                    }
                 }
-                if (allReads % checkSize == 0) {
-                    myLogger.info("Total Reads:" + allReads + " Reads with barcode and cut site overhang:" + goodBarcodedReads
-                            + " rate:" + (System.nanoTime()-time)/allReads +" ns/read. Current tag count:" + this.roughTagCnt);
+
+                @Override
+                public void finish() {
+                    mergeTagCounts(tagCounts, masterTagTaxaMap);
                 }
-            }
+
+            });
+
             myLogger.info("Summary for "+fastqFile.toString()+"\n"+
                     "Total number of reads in lane=" + allReads +"\n"+
                     "Total number of good barcoded reads=" + goodBarcodedReads+"\n"+
@@ -357,7 +393,6 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
                     "Timing process (sorting, collapsing, and writing TagCount to file)."+"\n"+
                     "Process took " + (System.nanoTime() - time)/1e6 + " milliseconds.");
             System.out.println("tagCntMap size: "+masterTagTaxaMap.size());
-            br.close();
         } catch (StringIndexOutOfBoundsException oobe) {
         	throw oobe; // pass it up to print error and stop processing
         } catch (Exception e) {
@@ -366,111 +401,61 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
             e.printStackTrace();
         }
     }
-
-    // This should be moved to GBSUtils as it is used in Production as well
-    private Tag removeSecondCutSiteIndexOf(String seq, int preferredLength) {
-        Tag tag = null;
-        
-        // handle overlapping cutsite for ApeKI enzyme
-        if (enzyme().equalsIgnoreCase("ApeKI")) {
-            if (seq.startsWith("CAGCTGC") || seq.startsWith("CTGCAGC")) {
-                seq = seq.substring(3,seq.length());
-            }             
-        }
-        int indexOfReadEnd = -1;
-        String shortSeq = seq.substring(20);
-        for (String readEnd: likelyReadEndStrings){
-            int indx = shortSeq.indexOf(readEnd);
-            if (indx > 0 ) {
-                if (indexOfReadEnd < 0 || indx < indexOfReadEnd) {
-                    indexOfReadEnd = indx;
-                } 
-            }
-        }
-        
-        int tagLen = indexOfReadEnd + 20 + readEndCutSiteRemnantLength;
-        if (indexOfReadEnd > 0 &&
-                (tagLen < preferredLength)) {            
-            if (tagLen < minimumKmerLength()) { // Tag is shorter than user specified minimum length - toss it
-                return null;
+    
+    /**
+     * Merges tag counts from one thread into the shared store and clears
+     * them.
+     */
+    private void mergeTagCounts(Map<Tag, TaxaDistribution> tagCounts, TagDistributionStore masterTagTaxaMap) {
+        for (Map.Entry<Tag, TaxaDistribution> entry : tagCounts.entrySet()) {
+            if (masterTagTaxaMap.add(entry.getKey(), entry.getValue())) {
+                roughTagCnt.increment();
             }
-            // trim tag to sequence up to & including the cut site
-            tag = TagBuilder.instance(seq.substring(0, tagLen)).build();
-        } else {
-            int seqEnd = (byte) Math.min(seq.length(), preferredLength);
-            return TagBuilder.instance(seq.substring(0,seqEnd)).build();
         }
-        return tag;
+        tagCounts.clear();
     }
-    
-    // THis method now obsolete, replaced with removeSecondCutSiteAhoC
-    private void removeSecondCutSitesFromMap(EnzymeList.Enzyme enzyme) {
-        //this is a little tricky as you cannot add entries at the same time as removing entries to a map
-        System.out.println("GBSSeqToTagDBPlugin.removeSecondCutSitesFromMap started Initial Size:"+tagCntMap.size());
-        String[] likelyReadEnd=enzyme.likelyReadEnd;
-        long time=System.nanoTime();
-
-        Map<Tag,TaxaDistribution> shortTags=new HashMap<>(tagCntMap.size()/5);
-        int belowMinSize=0, shortExisting=0;
-        for (Tag origTag : tagCntMap.keySet()) {
-            int minCutSite=Integer.MAX_VALUE;
-            String origTagSequence = origTag.sequence();
-            for (String potentialCutSite : likelyReadEnd) {
-            	int p = origTagSequence.indexOf(potentialCutSite, 1);
-                if(p>0) minCutSite=Math.min(minCutSite,p);
+
+    /**
+     * Creates store for kmer counts, with the given existing counts from
+     * the database.
+     */
+    private TagDistributionStore createTagStore(int numTaxa, Map<Tag, TaxaDistribution> existingTDM) {
+        int maxTagLength = kmerLength();
+        if (existingTDM != null) {
+            for (Tag tag : existingTDM.keySet()) {
+                maxTagLength = Math.max(maxTagLength, tag.seqLength());
             }
-            if (minCutSite!=Integer.MAX_VALUE && minCutSite > 1) {
-                if(minCutSite<minimumKmerLength()) {
-                    tagCntMap.remove(origTag);
-                    belowMinSize++;
-                    continue;
-                }
-                TaxaDistribution currentTaxaDist=tagCntMap.remove(origTag);
-                Tag t = TagBuilder.instance(origTagSequence.substring(0, minCutSite + enzyme.readEndCutSiteRemnantLength())).build();
-                TaxaDistribution existingTD=shortTags.get(t);
-                if(existingTD!=null) {
-                    if(currentTaxaDist==null || existingTD==null) {
-                        System.out.println("We have a problem");
-                    }
-                    currentTaxaDist=TaxaDistBuilder.combine(currentTaxaDist,existingTD);
-                    shortExisting++; //System.out.println("existingTD="+t);
-                }
-                shortTags.put(t, currentTaxaDist);
-                //if(ttemp!=null) shortExisting++;
-               // System.out.println(origTag+" -> "+t);
+        }
+        long memoryBudget = memoryBudget() == 0 ? Runtime.getRuntime().maxMemory() / 2 : memoryBudget() * 1024L * 1024L;
+        Path spillDir = spillDirectory() == null ? Paths.get(myOutputDB.value()).toAbsolutePath().getParent() : Paths.get(spillDirectory());
+        myLogger.info("createTagStore: memory budget: " + memoryBudget + " bytes  spill directory: " + spillDir);
+        TagDistributionStore result = TagDistributionStore.getInstance(numTaxa, maxTagLength, 0, memoryBudget, spillDir);
+        if (existingTDM != null) {
+            for (Map.Entry<Tag, TaxaDistribution> entry : existingTDM.entrySet()) {
+                result.add(entry.getKey(), entry.getValue());
             }
         }
-        System.out.println("After removal tagCntMap.size() = " + tagCntMap.size());
-        System.out.println("After removal shortTags.size() = " + shortTags.size());
-        System.out.println("belowMinSize = " + belowMinSize);
-        System.out.println("shortExisting = " + shortExisting);
-        System.out.println("removeSecondCutSite: Process took " + (System.nanoTime() - time)/1e6 + " milliseconds.");
-        tagCntMap.putAll(shortTags);
-        System.out.println("After combining again tagCntMap.size() = " + tagCntMap.size());
+        return result;
     }
-    
+
     /**
      * This method removes all tags are are never repeated in a single sample (taxa).  The concept is that
      * all biologically real tag should show up twice somewhere.  This could be called at the end of every
      * flowcell to test all the novel tags.
      */
-    private static void removeTagsWithoutReplication (TagDistributionMap masterTagTaxaMap) {
-        int currentSize = masterTagTaxaMap.size();
+    private static void removeTagsWithoutReplication (TagDistributionStore masterTagTaxaMap) {
+        long currentSize = masterTagTaxaMap.size();
         int minTaxa=2;
         System.out.println("Starting removeTagsWithoutReplication. Current tag number: " + currentSize);
-        LongAdder tagsRemoved=new LongAdder();
-        masterTagTaxaMap.entrySet().parallelStream().forEach(t -> {
-            TaxaDistribution td = t.getValue();
-            if(td.totalDepth()<2*minTaxa) {
-                masterTagTaxaMap.remove(t.getKey());
-                tagsRemoved.increment();
-            } 
-            else if(IntStream.of(td.depths()).filter(depth -> depth>1).count()<minTaxa) {
-                masterTagTaxaMap.remove(t.getKey());
-                tagsRemoved.increment();
+        long tagsRemoved = masterTagTaxaMap.removeIf((totalDepth, taxa, depths, numTaxa) -> {
+            if (totalDepth < 2 * minTaxa) return true;
+            int replicated = 0;
+            for (int i = 0; i < numTaxa; i++) {
+                if (depths[i] > 1) replicated++;
             }
+            return replicated < minTaxa;
         });
-        System.out.println("Finished removeTagsWithoutReplication.  tagsRemoved = " + tagsRemoved + ". Current tag number: " + String.valueOf(currentSize-tagsRemoved.intValue()));
+        System.out.println("Finished removeTagsWithoutReplication.  tagsRemoved = " + tagsRemoved + ". Current tag number: " + String.valueOf(currentSize-tagsRemoved));
     }
     
     public void setTagLenException() {
@@ -713,6 +698,51 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
         myDeleteOldData = new PluginParameter<>(myDeleteOldData, value);
         return this;
     }
+
+    /**
+     * Memory (MB) used for kmer counts before they are
+     * spilled to disk. 0 uses half the maximum heap.
+     *
+     * @return Kmer Memory Budget (MB)
+     */
+    public Integer memoryBudget() {
+        return myMemoryBudget.value();
+    }
+
+    /**
+     * Set Kmer Memory Budget (MB).
+     *
+     * @param value Kmer Memory Budget (MB)
+     *
+     * @return this plugin
+     */
+    public GBSSeqToTagDBPlugin memoryBudget(Integer value) {
+        myMemoryBudget = new PluginParameter<>(myMemoryBudget, value);
+        return this;
+    }
+
+    /**
+     * Directory for kmer counts spilled to disk. Default
+     * is the directory of the output database.
+     *
+     * @return Spill Directory
+     */
+    public String spillDirectory() {
+        return mySpillDir.value();
+    }
+
+    /**
+     * Set Spill Directory.
+     *
+     * @param value Spill Directory
+     *
+     * @return this plugin
+     */
+    public GBSSeqToTagDBPlugin spillDirectory(String value) {
+        mySpillDir = new PluginParameter<>(mySpillDir, value);
+        return this;
+    }
+
     @Override
     public ImageIcon getIcon() {
         return null;
@@ -727,59 +757,4 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
     public String getToolTipText() {
         return "Input GBS Sequence to Tag/Taxa tables in DB";
     }
-
-    /**
-     * This ConcurrentHashMap constrain the size of the map, and purges low distribution count tags when the size needs
-     * to be reduced.
-     */
-    static class TagDistributionMap extends ConcurrentHashMap<Tag,TaxaDistribution> {
-        private final int maxTagNum;
-        private int minDepthToRetainInMap=2;
-        private final int minCount;
-        
-        TagDistributionMap (int maxTagNumber, float loadFactor, int concurrencyLevel, int minCount) {
-            super((maxTagNumber*2), loadFactor, concurrencyLevel);
-            maxTagNum = maxTagNumber;
-            this.minCount = minCount;
-        }
-        
-        @Override
-        public TaxaDistribution put(Tag key, TaxaDistribution value) {
-            return super.put(key, value);
-        }
-
-        public synchronized void removeTagByCount(int minCnt) {
-            entrySet().parallelStream()
-                    .filter(e -> e.getValue().totalDepth()<minCnt)
-                    .forEach(e -> remove(e.getKey()));
-        }
-        
-            
-        public long estimateMapMemorySize() {
-            long size=0;
-            int cnt=0;
-            for (Map.Entry<Tag, TaxaDistribution> entry : entrySet()) {
-                size+=8+16+1; //Tag size
-                size+=16; //Map references
-                size+=entry.getValue().memorySize();
-                cnt++;
-                if(cnt>10000) break;
-        }
-            long estSize=(size()/cnt)*size;
-            return estSize;
-        }
-
-        public long[] depthDistribution() {
-            long[] base2bins=new long[34];
-            int cnt=0;
-            for (Map.Entry<Tag, TaxaDistribution> entry : entrySet()) {
-                base2bins[31-Integer.numberOfLeadingZeros(entry.getValue().totalDepth())]++;
-                cnt++;
-               // if(cnt>100000) break;
-            }
-            return base2bins;
-        }
-    }
 }
-
-
@@ -5,11 +5,14 @@ package net.maizegenetics.analysis.gbs.v2;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
 import net.maizegenetics.analysis.gbs.Barcode;
+import net.maizegenetics.dna.tag.Tag;
+import net.maizegenetics.dna.tag.TagBuilder;
 import net.maizegenetics.taxa.TaxaList;
 import net.maizegenetics.taxa.TaxaListIOUtils;
 import net.maizegenetics.taxa.Taxon;
@@ -40,6 +43,10 @@ public class GBSUtils {
     public static final String barcodeField="Barcode";
     public static final String tissueNameField = "Tissue";
     public static final String fileNameField = "FileName";
+
+    // overlapping cut site for ApeKI enzyme
+    private static final byte[] APEKI_OVERLAP_1 = "CAGCTGC".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] APEKI_OVERLAP_2 = "CTGCAGC".getBytes(StandardCharsets.US_ASCII);
     
     private GBSUtils() {
     }
@@ -95,6 +102,109 @@ public class GBSUtils {
             return null;
         }
     }
+    /**
+     * Converts likely read end strings (ASCII) to bytes for use with
+     * removeSecondCutSiteIndexOf(byte[], ...)
+     */
+    public static byte[][] likelyReadEndBytes(String[] likelyReadEnds) {
+        byte[][] result = new byte[likelyReadEnds.length][];
+        for (int i = 0; i < likelyReadEnds.length; i++) {
+            result[i] = likelyReadEnds[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the Tag for a read (ASCII bases in bytes start to end, after the
+     * barcode) trimmed at the second cut site when it is found before the
+     * preferred length. Otherwise the first preferredLength bases are used.
+     * The first 20 bases are not searched for the cut site. Using indexOf()
+     * is much faster than using Aho-C trie to find the second cut site.
+     *
+     * @param read bytes containing read
+     * @param start index of first base after the barcode
+     * @param end index after last base
+     * @param preferredLength preferred tag length
+     * @param apeKI whether enzyme is ApeKI (overlapping cut site handled)
+     * @param likelyReadEnds likely read ends of the enzyme
+     * @param readEndCutSiteRemnantLength cut site remnant length of the enzyme
+     * @param minimumLength trimmed tags shorter than this are tossed (null returned)
+     *
+     * @return tag or null if any base not A, C, G, T
+     */
+    public static Tag removeSecondCutSiteIndexOf(byte[] read, int start, int end, int preferredLength, boolean apeKI,
+            byte[][] likelyReadEnds, int readEndCutSiteRemnantLength, int minimumLength) {
+
+        // handle overlapping cutsite for ApeKI enzyme
+        if (apeKI) {
+            if (startsWith(read, start, end, APEKI_OVERLAP_1) || startsWith(read, start, end, APEKI_OVERLAP_2)) {
+                start += 3;
+            }
+        }
+        if (end - start < 20) {
+            throw new StringIndexOutOfBoundsException("GBSUtils: removeSecondCutSiteIndexOf: read shorter than 20 bases after barcode: " + (end - start));
+        }
+        int indexOfReadEnd = -1;
+        for (byte[] readEnd : likelyReadEnds) {
+            int indx = indexOf(read, start + 20, end, readEnd);
+            if (indx > 0) {
+                if (indexOfReadEnd < 0 || indx < indexOfReadEnd) {
+                    indexOfReadEnd = indx;
+                }
+            }
+        }
+
+        int tagLen = indexOfReadEnd + 20 + readEndCutSiteRemnantLength;
+        if (indexOfReadEnd > 0 && tagLen < preferredLength) {
+            if (tagLen < minimumLength) { // Tag is shorter than user specified minimum length - toss it
+                return null;
+            }
+            // trim tag to sequence up to & including the cut site
+            return TagBuilder.instanceFromASCII(read, start, tagLen).build();
+        } else {
+            int seqEnd = (byte) Math.min(end - start, preferredLength);
+            return TagBuilder.instanceFromASCII(read, start, seqEnd).build();
+        }
+
+    }
+
+    private static boolean startsWith(byte[] seq, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (seq[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as String.indexOf() for bytes start to end. Returns index
+     * relative to start or -1 if not found.
+     */
+    private static int indexOf(byte[] seq, int start, int end, byte[] target) {
+        if (target.length == 0) {
+            return 0;
+        }
+        byte first = target[0];
+        int last = end - target.length;
+        outer:
+        for (int i = start; i <= last; i++) {
+            if (seq[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < target.length; j++) {
+                if (seq[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i - start;
+        }
+        return -1;
+    }
+
     /**
      * Method for reading FastQ four line structure, and returning a string array with [sequence, qualityScore]
      */
@@ -0,0 +1,251 @@
+/*
+ *  ParallelFastqProcessor
+ */
+package net.maizegenetics.analysis.gbs.v2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import net.maizegenetics.util.Utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Processes the records of one FastQ file (plain or gzipped) with several
+ * decoder threads. The calling thread reads the file and splits it into
+ * chunks of whole four line records, which are put on a queue. Each decoder
+ * thread takes chunks from the queue and passes every record to its own
+ * RecordDecoder. So decoders can keep thread local results (i.e. tag counts)
+ * and merge them into shared results now and then. Each chunk owns its byte
+ * array, so nothing is copied after it's read.
+ */
+public final class ParallelFastqProcessor {
+
+    private static final Logger myLogger = LogManager.getLogger(ParallelFastqProcessor.class);
+
+    private static final int CHUNK_SIZE = 1 << 22;
+    private static final int MAX_CHUNK_SIZE = 1 << 30;
+
+    /**
+     * Decodes records in one thread. An instance is only used by the thread
+     * it's created for.
+     */
+    public interface RecordDecoder {
+
+        /**
+         * Decodes current record of the reader.
+         *
+         * @param reader reader positioned at record
+         * @param recordNumber number of record in file (first is 1)
+         */
+        void decode(FastqReader reader, long recordNumber);
+
+        /**
+         * Called after each chunk of records.
+         */
+        default void endOfChunk() {
+        }
+
+        /**
+         * Called once after the last chunk. This is where thread local
+         * results should be merged.
+         */
+        void finish();
+
+    }
+
+    private ParallelFastqProcessor() {
+    }
+
+    /**
+     * Processes all records of the given file.
+     *
+     * @param filename FastQ file name
+     * @param numThreads number of decoder threads
+     * @param decoders creates a decoder for each thread
+     *
+     * @return number of records
+     *
+     * @throws IOException if problem reading file
+     */
+    public static long process(String filename, int numThreads, Supplier<RecordDecoder> decoders) throws IOException {
+
+        int numDecoders = Math.max(1, numThreads);
+        BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(numDecoders * 2);
+        ExecutorService pool = Executors.newFixedThreadPool(numDecoders);
+        try {
+
+            List<Future<Long>> workers = new ArrayList<>();
+            for (int i = 0; i < numDecoders; i++) {
+                workers.add(pool.submit(new Decoder(queue, decoders)));
+            }
+
+            try (InputStream input = Utils.getInputStream(filename)) {
+                if (input == null) {
+                    throw new IllegalStateException("ParallelFastqProcessor: process: unable to open: " + filename);
+                }
+                readChunks(input, queue, workers);
+            }
+            for (int i = 0; i < numDecoders; i++) {
+                enqueue(queue, Chunk.END, workers);
+            }
+
+            long result = 0;
+            for (Future<Long> worker : workers) {
+                result += worker.get();
+            }
+            return result;
+
+        } catch (ExecutionException e) {
+            myLogger.debug(e.getMessage(), e);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("ParallelFastqProcessor: process: problem processing: " + filename + ": " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("ParallelFastqProcessor: process: interrupted while reading: " + filename);
+        } finally {
+            pool.shutdownNow();
+        }
+
+    }
+
+    /**
+     * Reads input into chunks ending at a record boundary (every fourth new
+     * line) and puts them on the queue. The last chunk is whatever remains,
+     * since the last record may not end with a new line.
+     */
+    private static void readChunks(InputStream input, BlockingQueue<Chunk> queue, List<Future<Long>> workers)
+            throws IOException, InterruptedException, ExecutionException {
+
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int numBytes = 0;
+        int scanned = 0;
+        int numLines = 0;
+        int recordsEnd = 0;
+        int numRecords = 0;
+        long firstRecord = 0;
+        int read;
+        while ((read = input.read(buffer, numBytes, buffer.length - numBytes)) >= 0) {
+
+            numBytes += read;
+            for (; scanned < numBytes; scanned++) {
+                if ((buffer[scanned] == '\n') && (++numLines == 4)) {
+                    numLines = 0;
+                    recordsEnd = scanned + 1;
+                    numRecords++;
+                }
+            }
+
+            if (numBytes == buffer.length) {
+                if (numRecords > 0) {
+                    enqueue(queue, new Chunk(buffer, recordsEnd, firstRecord), workers);
+                    firstRecord += numRecords;
+                    int remaining = numBytes - recordsEnd;
+                    byte[] next = new byte[Math.max(CHUNK_SIZE, remaining * 2)];
+                    System.arraycopy(buffer, recordsEnd, next, 0, remaining);
+                    buffer = next;
+                    numBytes = remaining;
+                    scanned = remaining;
+                    recordsEnd = 0;
+                    numRecords = 0;
+                } else {
+                    if (buffer.length == MAX_CHUNK_SIZE) {
+                        throw new IllegalStateException("ParallelFastqProcessor: readChunks: record too long near record: " + (firstRecord + 1));
+                    }
+                    buffer = Arrays.copyOf(buffer, (int) Math.min((long) buffer.length * 2L, (long) MAX_CHUNK_SIZE));
+                }
+            }
+
+        }
+
+        if (numBytes > 0) {
+            enqueue(queue, new Chunk(buffer, numBytes, firstRecord), workers);
+        }
+
+    }
+
+    /**
+     * Puts chunk on the queue. While waiting for space, checks whether any
+     * decoder has failed, so that an error doesn't leave this thread blocked.
+     */
+    private static void enqueue(BlockingQueue<Chunk> queue, Chunk chunk, List<Future<Long>> workers)
+            throws InterruptedException, ExecutionException {
+        while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+            for (Future<Long> worker : workers) {
+                if (worker.isDone()) {
+                    worker.get();
+                    throw new IllegalStateException("ParallelFastqProcessor: enqueue: FastQ decoder stopped early");
+                }
+            }
+        }
+    }
+
+    private static final class Chunk {
+
+        static final Chunk END = new Chunk(new byte[0], 0, -1);
+
+        final byte[] data;
+        final int length;
+        final long firstRecord;
+
+        Chunk(byte[] data, int length, long firstRecord) {
+            this.data = data;
+            this.length = length;
+            this.firstRecord = firstRecord;
+        }
+
+    }
+
+    /**
+     * Takes chunks from the queue until Chunk.END and passes each record to
+     * this thread's RecordDecoder. Returns number of records decoded.
+     */
+    private static final class Decoder implements Callable<Long> {
+
+        private final BlockingQueue<Chunk> myQueue;
+        private final Supplier<RecordDecoder> myDecoders;
+
+        private Decoder(BlockingQueue<Chunk> queue, Supplier<RecordDecoder> decoders) {
+            myQueue = queue;
+            myDecoders = decoders;
+        }
+
+        @Override
+        public Long call() throws Exception {
+            RecordDecoder decoder = myDecoders.get();
+            long result = 0;
+            while (true) {
+                Chunk chunk = myQueue.take();
+                if (chunk == Chunk.END) {
+                    decoder.finish();
+                    return result;
+                }
+                FastqReader reader = FastqReader.getInstance(chunk.data, chunk.length);
+                long recordNumber = chunk.firstRecord;
+                while (reader.next()) {
+                    recordNumber++;
+                    decoder.decode(reader, recordNumber);
+                }
+                decoder.endOfChunk();
+                result += reader.numRecords();
+            }
+        }
+
+    }
+
+}
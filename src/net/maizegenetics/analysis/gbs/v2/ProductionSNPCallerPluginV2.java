@@ -4,7 +4,6 @@
 package net.maizegenetics.analysis.gbs.v2;
 
 import java.awt.Frame;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -13,14 +12,18 @@ import java.io.OutputStreamWriter;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.LongAdder;
 
 import javax.swing.ImageIcon;
@@ -33,7 +36,6 @@ import net.maizegenetics.dna.snp.ExportUtils;
 import net.maizegenetics.dna.snp.GenotypeTable;
 import net.maizegenetics.dna.snp.GenotypeTableBuilder;
 import net.maizegenetics.dna.snp.NucleotideAlignmentConstants;
-import net.maizegenetics.dna.snp.SimpleAllele;
 import net.maizegenetics.dna.snp.score.AlleleDepthUtil;
 import net.maizegenetics.dna.snp.genotypecall.BasicGenotypeMergeRule;
 import net.maizegenetics.dna.snp.genotypecall.GenotypeMergeRule;
@@ -44,20 +46,21 @@ import net.maizegenetics.dna.tag.TagDataSQLite;
 import net.maizegenetics.plugindef.AbstractPlugin;
 import net.maizegenetics.plugindef.DataSet;
 import net.maizegenetics.plugindef.PluginParameter;
+import net.maizegenetics.prefs.TasselPrefs;
 import net.maizegenetics.taxa.TaxaList;
 import net.maizegenetics.taxa.TaxaListIOUtils;
 import net.maizegenetics.taxa.Taxon;
 import net.maizegenetics.util.DirectoryCrawler;
-import net.maizegenetics.util.Utils;
 
 import org.ahocorasick.trie.Emit;
 import org.ahocorasick.trie.Trie;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Multimaps;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 
 /**
  * This plugin converts all of the fastq (and/or qseq) files in the input folder
@@ -130,12 +133,16 @@ public class ProductionSNPCallerPluginV2 extends AbstractPlugin {
     private String myOutputDir = null;
     private static boolean isHDF5 = false; // default is VCF
     private TagData tagDataReader = null;
-    Multimap<Taxon,Tag> tagCntMap=Multimaps.synchronizedMultimap(ArrayListMultimap.create(384, 500_000));
+    // tag indices of the reads for each taxon. Threads add blocks of indices without locking.
+    private final Map<Taxon,ConcurrentLinkedQueue<int[]>> taxonReads=new ConcurrentHashMap<>(384);
+    // reads collected by a thread before adding to taxonReads
+    private static final int MAX_THREAD_TAGS = 1 << 16;
     private Set<String> seqFilesInKeyAndDir = new TreeSet<>(); // fastq (or qseq) file names present in input directory that have a "Flowcell_Lane" in the key file
  
     protected static int readEndCutSiteRemnantLength;
     private Trie ahoCorasickTrie; // import from ahocorasick-0.2.1.jar
     private String[] likelyReadEndStrings;
+    private byte[][] likelyReadEnds;
 
     //Documentation of read depth per sample (one recorded per replicate)
     // Treemap is synchronized as multiple threads may increment values.
@@ -174,6 +181,7 @@ public class ProductionSNPCallerPluginV2 extends AbstractPlugin {
             EnzymeList.Enzyme enzyme = EnzymeList.defaultCache.getEnzyme(enzyme()); 
  
             likelyReadEndStrings = enzyme.likelyReadEnd; // for removeSecondCutSiteIndexOf()
+            likelyReadEnds = GBSUtils.likelyReadEndBytes(likelyReadEndStrings);
             readEndCutSiteRemnantLength = enzyme.readEndCutSiteRemnantLength;
 //            // the junit test runs about a second faster average 15.5 vs 16.5) without Trie().removeOverlaps();
 //            String[] likelyReadEnd = enzyme.likelyReadEnd();
@@ -211,8 +219,9 @@ public class ProductionSNPCallerPluginV2 extends AbstractPlugin {
         TaxaList masterTaxaList= TaxaListIOUtils.readTaxaAnnotationFile(keyFile(), GBSUtils.sampleNameField, new HashMap<>(), true);
         writeInitialTaxaReadCounts(masterTaxaList); // initialize synchronized maps
         //todo perhaps subset the masterTaxaList based on the files in there, but it seems like it will all be figure out.
-        Map<Tag,Tag> canonicalTag=new HashMap<>();  //canonicalize them OR eventually we will use a Trie
-        tagDataReader.getTags().stream().forEach(t -> canonicalTag.put(t,t));
+        Object2IntOpenHashMap<Tag> tagIndices=new Object2IntOpenHashMap<>();  //index of each tag OR eventually we will use a Trie
+        tagIndices.defaultReturnValue(-1);
+        tagDataReader.getTags().stream().forEach(t -> tagIndices.putIfAbsent(t,tagIndices.size()));
         int batchNum = inputSeqFiles.size()/batchSize;
        
         if (inputSeqFiles.size() % batchSize !=0) batchNum++;
@@ -228,29 +237,25 @@ public class ProductionSNPCallerPluginV2 extends AbstractPlugin {
         }
                
         GenotypeTableBuilder gtb=setUpGenotypeTableBuilder(outputGenotypesFile(), positionList, genoMergeRule);
-        final Multimap<Tag,AlleleWithPosIndex> tagsToIndex=ArrayListMultimap.create();
-        tagDataReader.getAlleleMap().entries().stream()
-                .forEach(e -> {
-                	// indexOf returns -1 if the list doesn't contain the element, which it won't
-                	// if there are snpposition entries with a quality score less than minimumQualityScore 
-                    int posIndex=positionList.indexOf(e.getValue().position());
-                    if (posIndex >= 0) {
-                    	tagsToIndex.put(e.getKey(),new AlleleWithPosIndex(e.getValue(),posIndex));
-                    }                   
-                });
+        final TagAlleleIndex tagsToIndex=new TagAlleleIndex(tagDataReader.getAlleleMap(), tagIndices, positionList);
+        // depth matrices reused for calling taxa, at most one per concurrently calling thread.
+        // Cleared after the batches, so they aren't kept by common pool threads.
+        final Queue<int[][]> depthBuffers=new ConcurrentLinkedQueue<>();
         
         taglenException = false;
         for (int idx = 0; idx < inputSeqFiles.size(); idx+=batchSize) {
-        	tagCntMap.clear(); // start fresh with each new batch
+        	taxonReads.clear(); // start fresh with each new batch
             int end = idx+batchSize;
             if (end > inputSeqFiles.size()) end = inputSeqFiles.size();
             ArrayList<Path> sub = new ArrayList<Path>();
             for (int jdx = idx; jdx < end; jdx++) sub.add(inputSeqFiles.get(jdx));
             System.out.println("\nStart processing batch " + String.valueOf(idx/batchSize+1));
+            // threads are divided among the files, so a batch with few large files still uses all of them
+            int threadsPerFile = Math.max(1, TasselPrefs.getMaxThreads() / sub.size());
             sub.parallelStream()
             .forEach(inputSeqFile -> {
                 try {
-                    processFastQFile(masterTaxaList,keyPath, inputSeqFile, enzyme(),canonicalTag,kmerLength(), minimumQualityScore());
+                    processFastQFile(masterTaxaList,keyPath, inputSeqFile, enzyme(),tagIndices,kmerLength(), minimumQualityScore(), threadsPerFile);
                 } catch (StringIndexOutOfBoundsException oobe) {
                     oobe.printStackTrace();
                     myLogger.error(oobe.getMessage());
@@ -260,13 +265,22 @@ public class ProductionSNPCallerPluginV2 extends AbstractPlugin {
             });
             if (taglenException == true) return null; // Tag length failure from processFastQ - halt processing
          
-            tagCntMap.asMap().entrySet().stream()
+            // taxa are called in parallel, each thread with its own depth matrix
+            new ArrayList<>(taxonReads.entrySet()).parallelStream()
             .forEach(e -> {
-                callGenotypes(e.getKey(), e.getValue(), tagsToIndex, positionList, genoMergeRule,gtb,depthToOutput());
-                //System.out.println(e.x.getName()+ Arrays.toString(Arrays.copyOfRange(e.y,0,10)))); 
+                int[][] depths=depthBuffers.poll();
+                if (depths == null) {
+                    depths=new int[NucleotideAlignmentConstants.NUMBER_NUCLEOTIDE_ALLELES][positionList.numberOfSites()];
+                }
+                try {
+                    callGenotypes(e.getKey(), e.getValue(), tagsToIndex, depths, genoMergeRule,gtb,depthToOutput());
+                } finally {
+                    depthBuffers.offer(depths);
+                }
             });
             System.out.println("\nFinished processing batch " + String.valueOf(idx/batchSize+1));
         }
+        depthBuffers.clear();
  
         if (isHDF5) { // build hdf5 output
             if (keepGenotypesOpen()) {
@@ -285,30 +299,82 @@ public class ProductionSNPCallerPluginV2 extends AbstractPlugin {
         return null;
     }
 
-    private static void callGenotypes(Taxon taxon, Collection<Tag> tags, Multimap<Tag,AlleleWithPosIndex> tagsToIndex,
-                   PositionList positionList, GenotypeMergeRule genoMergeRule, GenotypeTableBuilder gtb, boolean outputDepths) {
-        int[][] alleleDepths = new int[NucleotideAlignmentConstants.NUMBER_NUCLEOTIDE_ALLELES][positionList.numberOfSites()];
-        tags.stream().map(t -> tagsToIndex.get(t)).flatMap(c -> c.stream())
-                .forEach(a -> alleleDepths[a.allele()][a.positionIndex()]++);
+    /**
+     * Calls genotypes of one taxon from the tag indices of its reads.
+     * alleleDepths is a reusable buffer used by one thread at a time.  It is cleared
+     * here, and nothing added to the GenotypeTableBuilder refers to it.
+     */
+    private static void callGenotypes(Taxon taxon, Collection<int[]> reads, TagAlleleIndex tagsToIndex,
+                   int[][] alleleDepths, GenotypeMergeRule genoMergeRule, GenotypeTableBuilder gtb, boolean outputDepths) {
+        for (int[] allele : alleleDepths) {
+            Arrays.fill(allele, 0);
+        }
+        for (int[] tagIndices : reads) {
+            for (int tagIndex : tagIndices) {
+                tagsToIndex.addDepths(tagIndex, alleleDepths);
+            }
+        }
+        byte[] genos = resolveGenosForTaxon(alleleDepths, genoMergeRule);
+        byte[][] byteDepths = outputDepths ? AlleleDepthUtil.depthIntToByte(alleleDepths) : null;
+        // the builder synchronizes writing taxa. Don't synchronize on it here, since
+        // its asynchronous HDF5 writer thread needs it while addTaxon() waits on a full queue
         if (outputDepths) {
-            byte[][] byteDepths = AlleleDepthUtil.depthIntToByte(alleleDepths);
-            gtb.addTaxon(taxon, resolveGenosForTaxon(alleleDepths, genoMergeRule),byteDepths);
+            gtb.addTaxon(taxon, genos, byteDepths);
         } else {
-        	gtb.addTaxon(taxon, resolveGenosForTaxon(alleleDepths, genoMergeRule));
+            gtb.addTaxon(taxon, genos);
         }
     }
 
-    private class AlleleWithPosIndex extends SimpleAllele {
-        private int positionIndex;
-
-        private AlleleWithPosIndex(Allele myAllele, int positionIndex) {
-            super(myAllele.allele(), myAllele.position());
-            this.positionIndex=positionIndex;
+    /**
+     * Alleles and position indices of each tag, stored in primitive arrays.
+     * The alleles of tag index i are myAlleles[myStarts[i]] to
+     * myAlleles[myStarts[i + 1] - 1], at the matching entries of
+     * myPositionIndices.
+     */
+    private static final class TagAlleleIndex {
+
+        private final int[] myStarts;
+        private final byte[] myAlleles;
+        private final int[] myPositionIndices;
+
+        private TagAlleleIndex(Multimap<Tag,Allele> alleleMap, Object2IntOpenHashMap<Tag> tagIndices, PositionList positionList) {
+            int numTags = tagIndices.size();
+            int[] tagIndexOfEntry = new int[alleleMap.size()];
+            int[] posIndexOfEntry = new int[alleleMap.size()];
+            byte[] alleleOfEntry = new byte[alleleMap.size()];
+            myStarts = new int[numTags + 1];
+            int numEntries = 0;
+            for (Map.Entry<Tag,Allele> entry : alleleMap.entries()) {
+                int tagIndex = tagIndices.getInt(entry.getKey());
+                // indexOf returns -1 if the list doesn't contain the element, which it won't
+                // if there are snpposition entries with a quality score less than minimumQualityScore
+                int posIndex = positionList.indexOf(entry.getValue().position());
+                if (tagIndex < 0 || posIndex < 0) continue;
+                tagIndexOfEntry[numEntries] = tagIndex;
+                posIndexOfEntry[numEntries] = posIndex;
+                alleleOfEntry[numEntries] = entry.getValue().allele();
+                numEntries++;
+                myStarts[tagIndex + 1]++;
+            }
+            for (int i = 0; i < numTags; i++) {
+                myStarts[i + 1] += myStarts[i];
+            }
+            myAlleles = new byte[numEntries];
+            myPositionIndices = new int[numEntries];
+            int[] next = Arrays.copyOf(myStarts, numTags);
+            for (int e = 0; e < numEntries; e++) {
+                int index = next[tagIndexOfEntry[e]]++;
+                myAlleles[index] = alleleOfEntry[e];
+                myPositionIndices[index] = posIndexOfEntry[e];
+            }
         }
 
-        public int positionIndex() {
-            return positionIndex;
+        private void addDepths(int tagIndex, int[][] alleleDepths) {
+            for (int i = myStarts[tagIndex], end = myStarts[tagIndex + 1]; i < end; i++) {
+                alleleDepths[myAlleles[i]][myPositionIndices[i]]++;
+            }
         }
+
     }
 
     private class CountOfReadQuality {
@@ -321,109 +387,118 @@ public class ProductionSNPCallerPluginV2 extends AbstractPlugin {
     }
 
     private void processFastQFile(TaxaList masterTaxaList, Path keyPath, Path fastQPath, String enzymeName,
-            Map<Tag,Tag> canonicalTags, int preferredTagLength, int minQual) throws StringIndexOutOfBoundsException{
+            Object2IntOpenHashMap<Tag> tagIndices, int preferredTagLength, int minQual, int numThreads) throws StringIndexOutOfBoundsException{
         ArrayList<Taxon> tl=GBSUtils.getLaneAnnotatedTaxaList(keyPath, fastQPath);
         BarcodeTrie barcodeTrie=GBSUtils.initializeBarcodeTrie(tl, masterTaxaList, EnzymeList.defaultCache.getEnzyme(enzymeName));
         try {
-            processFastQ(fastQPath,barcodeTrie,canonicalTags,preferredTagLength, minQual);
+            processFastQ(fastQPath,barcodeTrie,tagIndices,preferredTagLength, minQual, numThreads);
         } catch (StringIndexOutOfBoundsException oobe) {
             throw oobe; // let processData() handle it
         }
 
     }
 
-    private void processFastQ(Path fastqFile, BarcodeTrie barcodeTrie, Map<Tag,Tag> canonicalTags, 
-            int preferredTagLength, int minQual) throws StringIndexOutOfBoundsException {
-        int allReads=0, goodBarcodedReads = 0, lowQualityReads = 0;
+    private void processFastQ(Path fastqFile, BarcodeTrie barcodeTrie, Object2IntOpenHashMap<Tag> tagIndices, 
+            int preferredTagLength, int minQual, int numThreads) throws StringIndexOutOfBoundsException {
+        LongAdder goodBarcodedReads = new LongAdder(), lowQualityReads = new LongAdder();
         try {
             int qualityScoreBase=GBSUtils.determineQualityScoreBase(fastqFile);
-            BufferedReader br = Utils.getBufferedReader(fastqFile.toString(), 1 << 22);
+            boolean apeKI = enzyme().equalsIgnoreCase("ApeKI");
             long time=System.nanoTime();
-            String[] seqAndQual;
-            while ((seqAndQual=GBSUtils.readFastQBlock(br, allReads)) != null) {
-                allReads++;
-                // Decode barcode using the current sequence & quality  score
-                Barcode barcode=barcodeTrie.longestPrefix(seqAndQual[0]);               
-                if(barcode==null) continue;
-                if(minQual>0) {
-                    //todo move getFirstLowQualityPos into this class?
-                    if(BaseEncoder.getFirstLowQualityPos(seqAndQual[1],minQual, qualityScoreBase)<(barcode.getBarLength()+preferredTagLength)){
-                        lowQualityReads++;
-                        continue;
+
+            // Each thread collects tags and read counts on its own, which are merged now and then
+            long allReads = ParallelFastqProcessor.process(fastqFile.toString(), numThreads, () -> new ParallelFastqProcessor.RecordDecoder() {
+
+                private final Map<Taxon,IntArrayList> taxonTags = new HashMap<>();
+                private int numTaxonTags = 0;
+                private final Map<String, Integer> rawReadCounts = new HashMap<>();
+                private final Map<String, Integer> matchedReadCounts = new HashMap<>();
+
+                @Override
+                public void decode(FastqReader reader, long readNumber) {
+                    byte[] buffer = reader.buffer();
+                    int seqOffset = reader.sequenceOffset();
+                    int seqLength = reader.sequenceLength();
+                    if (readNumber % 1000000 == 0) {
+                        myLogger.info("Total Reads:" + readNumber + " Reads with barcode and cut site overhang:" + goodBarcodedReads
+                                + " rate:" + (System.nanoTime()-time)/readNumber +" ns/read");
+                    }
+                    // Decode barcode using the current sequence & quality  score
+                    Barcode barcode=barcodeTrie.longestPrefix(buffer, seqOffset, seqLength);
+                    if(barcode==null) return;
+                    if(minQual>0) {
+                        //todo move getFirstLowQualityPos into this class?
+                        if(BaseEncoder.getFirstLowQualityPos(buffer, reader.qualityOffset(), reader.qualityLength(), minQual, qualityScoreBase)<(barcode.getBarLength()+preferredTagLength)){
+                            lowQualityReads.increment();
+                            return;
+                        }
+                    }
+                    rawReadCounts.merge(barcode.getTaxaName(), 1, Integer::sum);
+                    int barcodeLen = barcode.getBarLength();
+                    if (seqLength - barcodeLen < preferredTagLength) {
+                        String errMsg = "\n\nERROR processing " + fastqFile.toString() + "\n" +
+                                "Reading entry number " + readNumber + " fails the length test.\n" +
+                                "Sequence length " + seqLength + " minus barcode length "+ barcodeLen +
+                                " is less than kmerLength " + preferredTagLength + ".\n" +
+                                "Re-run your files with either a shorter kmerLength value or a higher minimum quality score.\n";
+                        throw new StringIndexOutOfBoundsException(errMsg);
+                    }
+
+                    Tag tag = GBSUtils.removeSecondCutSiteIndexOf(buffer, seqOffset + barcodeLen, seqOffset + seqLength, preferredTagLength,
+                            apeKI, likelyReadEnds, readEndCutSiteRemnantLength, 0);
+                    if(tag==null) return;   //null occurs when any base was not A, C, G, T
+                    goodBarcodedReads.increment();
+                    int tagIndex=tagIndices.getInt(tag);
+                    if(tagIndex>=0) {
+                        taxonTags.computeIfAbsent(barcode.getTaxon(), t -> new IntArrayList()).add(tagIndex);
+                        numTaxonTags++;
+                        matchedReadCounts.merge(barcode.getTaxaName(), 1, Integer::sum);
                     }
                 }
-                rawReadCountsForFullSampleName.put(barcode.getTaxaName(), rawReadCountsForFullSampleName.get(barcode.getTaxaName()) + 1);
-                int barcodeLen = barcode.getBarLength();
-                if (seqAndQual[0].length() - barcodeLen < preferredTagLength) {
-                    String errMsg = "\n\nERROR processing " + fastqFile.toString() + "\n" +
-                            "Reading entry number " + allReads + " fails the length test.\n" +
-                            "Sequence length " + seqAndQual[0].length() + " minus barcode length "+ barcodeLen +
-                            " is less than kmerLength " + preferredTagLength + ".\n" +
-                            "Re-run your files with either a shorter kmerLength value or a higher minimum quality score.\n";
-                    throw new StringIndexOutOfBoundsException(errMsg);
-                }
- 
-                Tag tag = removeSecondCutSiteIndexOf(seqAndQual[0].substring(barcodeLen),preferredTagLength);
-                //Tag tag = removeSecondCutSiteAhoC(seqAndQual[0].substring(barcodeLen),preferredTagLength);
-                //Tag tag= TagBuilder.instance(seqAndQual[0].substring(barcode.getBarLength(), barcode.getBarLength() + preferredTagLength)).build();
-                if(tag==null) continue;   //null occurs when any base was not A, C, G, T
-                goodBarcodedReads++;
-                Tag canonicalTag=canonicalTags.get(tag);
-                if(canonicalTag!=null) {
-                    tagCntMap.put(barcode.getTaxon(),canonicalTag);
-                    matchedReadCountsForFullSampleName.put(barcode.getTaxaName(), matchedReadCountsForFullSampleName.get(barcode.getTaxaName()) + 1);
+
+                @Override
+                public void endOfChunk() {
+                    if (numTaxonTags >= MAX_THREAD_TAGS) {
+                        finish();
+                    }
                 }
-                if (allReads % 1000000 == 0) {
-                    myLogger.info("Total Reads:" + allReads + " Reads with barcode and cut site overhang:" + goodBarcodedReads
-                            + " rate:" + (System.nanoTime()-time)/allReads +" ns/read");
+
+                @Override
+                public void finish() {
+                    for (Map.Entry<Taxon,IntArrayList> entry : taxonTags.entrySet()) {
+                        taxonReads.computeIfAbsent(entry.getKey(), t -> new ConcurrentLinkedQueue<>()).add(entry.getValue().toIntArray());
+                    }
+                    taxonTags.clear();
+                    numTaxonTags = 0;
+                    addReadCounts(rawReadCounts, rawReadCountsForFullSampleName);
+                    addReadCounts(matchedReadCounts, matchedReadCountsForFullSampleName);
                 }
-            }
+
+            });
+
             myLogger.info("Total number of reads in lane=" + allReads);
             myLogger.info("Total number of good barcoded reads=" + goodBarcodedReads);
             myLogger.info("Total number of low quality reads=" + lowQualityReads);
             myLogger.info("Timing process (sorting, collapsing, and writing TagCount to file).");
             myLogger.info("Process took " + (System.nanoTime() - time)/1e6 + " milliseconds for file " + fastqFile.toString());
-            br.close();
         } catch (Exception e) {
             myLogger.error("Good Barcodes Read: " + goodBarcodedReads);
             e.printStackTrace();
         }
     }
 
-
-    // Using indexOf() is much faster than using Aho-C trie to find
-    // the second cut site.  (junits ran on average of 15.81281 seconds
-    // for aho-c after 5 runs, vs 13.53204 for 5 runs using indexOf method)
-    private Tag removeSecondCutSiteIndexOf(String seq, int preferredLength) {
-        Tag tag = null;
-        
-        // handle overlapping cutsite for ApeKI enzyme
-        if (enzyme().equalsIgnoreCase("ApeKI")) {
-            if (seq.startsWith("CAGCTGC") || seq.startsWith("CTGCAGC")) {
-                seq = seq.substring(3,seq.length());
-            }             
-        }
-        int indexOfReadEnd = -1;
-        String shortSeq = seq.substring(20);
-        for (String readEnd: likelyReadEndStrings){
-            int indx = shortSeq.indexOf(readEnd);
-            if (indx > 0 ) {
-                if (indexOfReadEnd < 0 || indx < indexOfReadEnd) {
-                    indexOfReadEnd = indx;
-                } 
+    /**
+     * Adds read counts from one thread to the shared counts and clears them.
+     */
+    private static void addReadCounts(Map<String, Integer> counts, Map<String, Integer> sharedCounts) {
+        synchronized (sharedCounts) {
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                sharedCounts.merge(entry.getKey(), entry.getValue(), Integer::sum);
             }
         }
-        if (indexOfReadEnd > 0 &&
-                (indexOfReadEnd + 20 + readEndCutSiteRemnantLength < preferredLength)) {
-            // trim tag to sequence up to & including the cut site
-            tag = TagBuilder.instance(seq.substring(0, indexOfReadEnd + 20 + readEndCutSiteRemnantLength)).build();
- 
-        } else {
-            int seqEnd = (byte) Math.min(seq.length(), preferredLength);
-            return TagBuilder.instance(seq.substring(0,seqEnd)).build();
-        }
-        return tag;
+        counts.clear();
     }
+
     private Tag removeSecondCutSiteAhoC(String seq, int preferredLength) {
         // Removes the second cut site BEFORE we trim the tag.
         // this preserves the cut site incase it shows up in the middle       
@@ -493,11 +568,13 @@ public class ProductionSNPCallerPluginV2 extends AbstractPlugin {
             File hdf5File = new File(anOutputFile);
             if (hdf5File.exists()) {
                 myLogger.info("\nGenotypes will be added to existing HDF5 file:\n  " + anOutputFile + "\n");
-                return GenotypeTableBuilder.mergeTaxaIncremental(anOutputFile, mergeRule);
+                return GenotypeTableBuilder.mergeTaxaIncremental(anOutputFile, mergeRule)
+                        .asyncHDF5TaxaWrites(Runtime.getRuntime().availableProcessors());
             } else {
                 myLogger.info("\nThe target HDF5 file:\n  " + anOutputFile
                         + "\ndoes not exist. A new HDF5 file of that name will be created \nto hold the genotypes from this run.");
-                return GenotypeTableBuilder.getTaxaIncrementalWithMerging(anOutputFile, positionList, mergeRule);
+                return GenotypeTableBuilder.getTaxaIncrementalWithMerging(anOutputFile, positionList, mergeRule)
+                        .asyncHDF5TaxaWrites(Runtime.getRuntime().availableProcessors());
             }
         } else { // create genotype table for VCF
             GenotypeTableBuilder gtb = GenotypeTableBuilder.getTaxaIncremental(positionList, mergeRule);
@@ -0,0 +1,140 @@
+package net.maizegenetics.analysis.imputation;
+
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.util.BitSet;
+import net.maizegenetics.util.BitUtil;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import static net.maizegenetics.dna.WHICH_ALLELE.Major;
+import static net.maizegenetics.dna.WHICH_ALLELE.Minor;
+
+/**
+ * Index of the donor haplotypes in one donor genotypeTable that quickly finds the donors most likely to match a target.
+ * The index keeps the major and minor presence bits of every SAMPLE_STRIDE-th 64 site block of each donor together
+ * in one array (bit sampling).  Donors are ranked by the Mendelian error rate over these sampled blocks, both for the
+ * whole region and for each of NUM_SEGMENTS segments, so that donors which only match part of the region (i.e. because
+ * of recombination in the target) are kept.  The exhaustive distance calculations and donor hypotheses of FILLIN are then
+ * only done on these candidates.
+ */
+public class FILLINDonorCandidateIndex {
+
+    //every SAMPLE_STRIDE-th block is kept, as long as there are MIN_SAMPLED_BLOCKS
+    private static final int SAMPLE_STRIDE = 4;
+    private static final int MIN_SAMPLED_BLOCKS = 16;
+    private static final int NUM_SEGMENTS = 4;
+
+    private final int myNumDonors;
+    private final int[] mySampledBlocks;
+    //major and minor bits of each sampled block, [(donor * number sampled + sampled block) * 2 + (0=major, 1=minor)]
+    private final long[] myBits;
+
+    private FILLINDonorCandidateIndex(GenotypeTable donorAlign) {
+        myNumDonors = donorAlign.numberOfTaxa();
+        int blocks = donorAlign.allelePresenceForAllSites(0, Major).getNumWords();
+        int stride = Math.max(1, Math.min(SAMPLE_STRIDE, blocks / MIN_SAMPLED_BLOCKS));
+        mySampledBlocks = IntStream.range(0, blocks).filter(b -> b % stride == 0).toArray();
+        int numSampled = mySampledBlocks.length;
+        myBits = new long[myNumDonors * numSampled * 2];
+        IntStream.range(0, myNumDonors).parallel().forEach(d -> {
+            long[] mj = donorAlign.allelePresenceForAllSites(d, Major).getBits();
+            long[] mn = donorAlign.allelePresenceForAllSites(d, Minor).getBits();
+            int index = d * numSampled * 2;
+            for (int b : mySampledBlocks) {
+                myBits[index++] = mj[b];
+                myBits[index++] = mn[b];
+            }
+        });
+    }
+
+    /**
+     * Creates index for the donors of one donor genotypeTable.
+     * @param donorAlign genotypeTable with potential donor genotypes
+     * @return index
+     */
+    public static FILLINDonorCandidateIndex getInstance(GenotypeTable donorAlign) {
+        return new FILLINDonorCandidateIndex(donorAlign);
+    }
+
+    public int numberOfDonors() {
+        return myNumDonors;
+    }
+
+    /**
+     * Finds the donors most likely to match the target.  Half of the candidates are the best donors over the
+     * whole region, the others are the best donors of each segment.
+     * @param modBitsOfTarget major and minor presence bits for target genotype (must be aligned same as donor)
+     * @param donorIndices donors that may be returned
+     * @param numCandidates maximum number of donors to return
+     * @return sorted donor indices (subset of donorIndices), or donorIndices if there are no more than numCandidates
+     */
+    public int[] candidates(BitSet[] modBitsOfTarget, int[] donorIndices, int numCandidates) {
+        if (donorIndices.length <= numCandidates) return donorIndices;
+        long[] iMj = modBitsOfTarget[0].getBits();
+        long[] iMn = modBitsOfTarget[1].getBits();
+        int numSampled = mySampledBlocks.length;
+        int segmentSize = (numSampled + NUM_SEGMENTS - 1) / NUM_SEGMENTS;
+
+        //[0] is whole region, [1..NUM_SEGMENTS] are segments.  Keys sort by error rate then position in donorIndices
+        long[][] keys = new long[NUM_SEGMENTS + 1][donorIndices.length];
+        int[] sites = new int[NUM_SEGMENTS + 1];
+        int[] errors = new int[NUM_SEGMENTS + 1];
+        for (int i = 0; i < donorIndices.length; i++) {
+            Arrays.fill(sites, 0);
+            Arrays.fill(errors, 0);
+            int index = donorIndices[i] * numSampled * 2;
+            for (int k = 0; k < numSampled; k++) {
+                int b = mySampledBlocks[k];
+                long jMj = myBits[index++];
+                long jMn = myBits[index++];
+                long same = (iMj[b] & jMj) | (iMn[b] & jMn);
+                long diff = (iMj[b] & jMn) | (iMn[b] & jMj);
+                int diffCnt = BitUtil.pop(diff);
+                int hetCnt = BitUtil.pop(same & diff);
+                int segment = 1 + k / segmentSize;
+                sites[segment] += BitUtil.pop(same) + diffCnt - hetCnt;
+                errors[segment] += diffCnt - (hetCnt / 2);
+            }
+            for (int s = 1; s <= NUM_SEGMENTS; s++) {
+                sites[0] += sites[s];
+                errors[0] += errors[s];
+            }
+            for (int s = 0; s <= NUM_SEGMENTS; s++) {
+                //like DonorHypoth, 0.5 error keeps zero error rates apart and favors more sites
+                float errorRate = (float) ((errors[s] + 0.5) / (sites[s] + 1.0));
+                keys[s][i] = ((long) Float.floatToIntBits(errorRate) << 32) | i;
+            }
+        }
+
+        boolean[] selected = new boolean[donorIndices.length];
+        int numSelected = 0;
+        int perSegment = Math.max(1, numCandidates / (2 * NUM_SEGMENTS));
+        for (int s = 1; s <= NUM_SEGMENTS; s++) {
+            Arrays.sort(keys[s]);
+            for (int c = 0; c < perSegment && numSelected < numCandidates; c++) {
+                int i = (int) keys[s][c];
+                if (!selected[i]) {
+                    selected[i] = true;
+                    numSelected++;
+                }
+            }
+        }
+        Arrays.sort(keys[0]);
+        for (int c = 0; c < keys[0].length && numSelected < numCandidates; c++) {
+            int i = (int) keys[0][c];
+            if (!selected[i]) {
+                selected[i] = true;
+                numSelected++;
+            }
+        }
+
+        int[] result = new int[numSelected];
+        int count = 0;
+        for (int i = 0; i < donorIndices.length; i++) {
+            if (selected[i]) result[count++] = donorIndices[i];
+        }
+        return result;
+    }
+
+}
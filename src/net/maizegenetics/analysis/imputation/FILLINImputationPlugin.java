@@ -99,6 +99,10 @@ public class FILLINImputationPlugin extends AbstractPlugin {
             .description("Maximum number of donor hypotheses to be explored. (Note: For heterozygous samples you may want to set this number higher, but the computation load goes up quickly.)").build();
     private PluginParameter<Boolean> imputeAllHets= new PluginParameter.Builder<>("impAllHets",false,Boolean.class).guiName("Impute all het calls")
             .description("Write all imputed heterozygous calls as such, even if the original file has a homozygous call. (Not recommended for inbred lines.)").build();
+    private PluginParameter<Integer> maxDonorCandidates= new PluginParameter.Builder<>("mxDonCand",400,Integer.class).guiName("Max donor candidates")
+            .description("Donor files with more haplotypes than this are first narrowed to this many likely donors for each target using an index of sampled sites. Only these candidates are compared exhaustively.").build();
+    private PluginParameter<Boolean> exhaustiveDonorSearch= new PluginParameter.Builder<>("exhaustive",false,Boolean.class).guiName("Exhaustive donor search")
+            .description("Compare every donor haplotype to each target instead of only the donor candidates. Slower, but useful for validating the candidate index.").build();
 
 
         //if true, uses combination mode in focus block, else set don't impute (default is true)
@@ -166,6 +170,7 @@ public class FILLINImputationPlugin extends AbstractPlugin {
                     {.001,.001,.998}
     };
     FILLINImputationAccuracy acc= null; //holds the accuracy information if accuracy flagged
+    private FILLINDonorCandidateIndex[] donorCandidateIndex= null; //for each donor file, null if all donors are compared
 
 
     private static final Logger myLogger = LogManager.getLogger(FILLINImputationPlugin.class);
@@ -227,6 +232,12 @@ public class FILLINImputationPlugin extends AbstractPlugin {
         }
         OpenBitSet[][] conflictMasks=FILLINDonorGenotypeUtils.createMaskForAlignmentConflicts(unimpAlign, donorAlign,
                 verboseOutput);
+        donorCandidateIndex=new FILLINDonorCandidateIndex[donorAlign.length];
+        if (!exhaustiveDonorSearch.value()) {
+            for (int da = 0; da < donorAlign.length; da++) {
+                if (donorAlign[da].numberOfTaxa()>maxDonorCandidates.value()) donorCandidateIndex[da]=FILLINDonorCandidateIndex.getInstance(donorAlign[da]);
+            }
+        }
 
         System.out.printf("Unimputed taxa:%d sites:%d %n",unimpAlign.numberOfTaxa(),unimpAlign.numberOfSites());
         System.out.println("Creating Export GenotypeTable:"+outFileBase.value());
@@ -235,7 +246,8 @@ public class FILLINImputationPlugin extends AbstractPlugin {
             mna=new ProjectionBuilder(ImportUtils.readGuessFormat(donorFile.value()));
         } else {
             if(outFileBase.value().contains(".h5")) {
-                mna= GenotypeTableBuilder.getTaxaIncremental(this.unimpAlign.positions(),outFileBase.value());
+                mna= GenotypeTableBuilder.getTaxaIncremental(this.unimpAlign.positions(),outFileBase.value())
+                        .asyncHDF5TaxaWrites(Runtime.getRuntime().availableProcessors());
             }else {
                 mna= GenotypeTableBuilder.getTaxaIncremental(this.unimpAlign.positions());
             }
@@ -351,10 +363,21 @@ public class FILLINImputationPlugin extends AbstractPlugin {
                     for (int i = 0; i < donorIndices.length; i++) {donorIndices[i]=i;}
                 }
 
+                //for large donor files, only the likely donors from the index are compared
+                int[] candidateIndices=null;
+                byte[][][] targetToDonorDistances;
+                if(donorCandidateIndex[da]!=null) {
+                    candidateIndices=donorCandidateIndex[da].candidates(maskedTargetBits, donorIndices, maxDonorCandidates.value());
+                    donorIndices=candidateIndices;
+                    targetToDonorDistances=FILLINImputationUtils.calcAllelePresenceCountsBtwTargetAndDonors(maskedTargetBits,
+                            donorAlign[da], candidateIndices);
+                } else {
+                    targetToDonorDistances=FILLINImputationUtils.calcAllelePresenceCountsBtwTargetAndDonors(maskedTargetBits,
+                            donorAlign[da]);
+                }
+
                 //Finds the best haplotype donors for each focus block within a donorGenotypeTable
                 DonorHypoth[][] regionHypthInbred=new DonorHypoth[blocks][maxDonorHypotheses.value()];
-                byte[][][] targetToDonorDistances=FILLINImputationUtils.calcAllelePresenceCountsBtwTargetAndDonors(maskedTargetBits,
-                        donorAlign[da]);
                 for (int focusBlock = 0; focusBlock < blocks; focusBlock++) {
                     int[] resultRange=FILLINImputationUtils.getBlockWithMinMinorCount(maskedTargetBits[0].getBits(), maskedTargetBits[1].getBits(), focusBlock, minMinorCnt.value(), minMinorCnt.value()*minMajorRatioToMinorCnt);
                     if(resultRange==null) continue; //no data in the focus Block
@@ -365,7 +388,7 @@ public class FILLINImputationPlugin extends AbstractPlugin {
                 impTaxon.setSegmentSolved(false);
 
                 //tries to solve the entire donorAlign region by Virterbi or Inbred
-                impTaxon=solveEntireDonorRegion(taxon, donorAlign[da], donorOffset, regionHypthInbred, impTaxon, maskedTargetBits, maxHybridErrorRate.value(), targetToDonorDistances);
+                impTaxon=solveEntireDonorRegion(taxon, donorAlign[da], donorOffset, regionHypthInbred, impTaxon, maskedTargetBits, maxHybridErrorRate.value(), targetToDonorDistances, candidateIndices);
                 if(impTaxon.isSegmentSolved()) {countFullLength++; continue;}
 
                 //resorts to solving block by block, first by inbred, then by viterbi, and then by hybrid
@@ -404,10 +427,12 @@ public class FILLINImputationPlugin extends AbstractPlugin {
      * @param impT
      * @param maskedTargetBits
      * @param maxHybridErrorRate
+     * @param candidateIndices donors to test, or null to test all donors
      * @return
      */
     private ImputedTaxon solveEntireDonorRegion(int taxon, GenotypeTable donorAlign, int donorOffset,
-                DonorHypoth[][] regionHypoth, ImputedTaxon impT, BitSet[] maskedTargetBits, double maxHybridErrorRate, byte[][][] targetToDonorDistances) {
+                DonorHypoth[][] regionHypoth, ImputedTaxon impT, BitSet[] maskedTargetBits, double maxHybridErrorRate, byte[][][] targetToDonorDistances,
+                int[] candidateIndices) {
 
         int blocks=maskedTargetBits[0].getNumWords();
         if(testing==1) System.out.println("Starting complete hybrid search");
@@ -416,8 +441,15 @@ public class FILLINImputationPlugin extends AbstractPlugin {
         //todo consider whether to use this approach
 //        int[] d=FILLINImputationUtils.mostFrequentDonorsAcrossFocusBlocks(regionHypoth, maxDonorHypotheses);
         //Alternative test is find best donors
-       int[] d=FILLINImputationUtils.bestDonorsAcrossEntireRegion(targetToDonorDistances, minTestSites.value(),maxDonorHypotheses.value());
-        int[] testList=FILLINImputationUtils.fillInc(0,donorAlign.numberOfTaxa()-1);
+        int[] d;
+        int[] testList;
+        if(candidateIndices==null) {
+            d=FILLINImputationUtils.bestDonorsAcrossEntireRegion(targetToDonorDistances, minTestSites.value(),maxDonorHypotheses.value());
+            testList=FILLINImputationUtils.fillInc(0,donorAlign.numberOfTaxa()-1);
+        } else {
+            d=FILLINImputationUtils.bestDonorsAcrossEntireRegion(targetToDonorDistances, candidateIndices, minTestSites.value(),maxDonorHypotheses.value());
+            testList=candidateIndices;
+        }
         int[] bestDonorList=Arrays.copyOfRange(d,0,Math.min(d.length,5));
         DonorHypoth[] bestDBasedOnBest=FILLINImputationUtils.findHeterozygousDonorHypoth(taxon, maskedTargetBits[0].getBits(),
                 maskedTargetBits[1].getBits(), 0, blocks-1, blocks/2, donorAlign, bestDonorList, testList, maxDonorHypotheses.value(), minTestSites.value());
@@ -1082,6 +1114,58 @@ public class FILLINImputationPlugin extends AbstractPlugin {
         return this;
     }
 
+    /**
+     * Donor files with more haplotypes than this are first
+     * narrowed to this many likely donors for each target
+     * using an index of sampled sites. Only these candidates
+     * are compared exhaustively.
+     *
+     * @return Max donor candidates
+     */
+    public Integer maxDonorCandidates() {
+        return maxDonorCandidates.value();
+    }
+
+    /**
+     * Set Max donor candidates. Donor files with more haplotypes
+     * than this are first narrowed to this many likely donors
+     * for each target using an index of sampled sites. Only
+     * these candidates are compared exhaustively.
+     *
+     * @param value Max donor candidates
+     *
+     * @return this plugin
+     */
+    public FILLINImputationPlugin maxDonorCandidates(Integer value) {
+        maxDonorCandidates = new PluginParameter<>(maxDonorCandidates, value);
+        return this;
+    }
+
+    /**
+     * Compare every donor haplotype to each target instead
+     * of only the donor candidates. Slower, but useful for
+     * validating the candidate index.
+     *
+     * @return Exhaustive donor search
+     */
+    public Boolean exhaustiveDonorSearch() {
+        return exhaustiveDonorSearch.value();
+    }
+
+    /**
+     * Set Exhaustive donor search. Compare every donor haplotype
+     * to each target instead of only the donor candidates.
+     * Slower, but useful for validating the candidate index.
+     *
+     * @param value Exhaustive donor search
+     *
+     * @return this plugin
+     */
+    public FILLINImputationPlugin exhaustiveDonorSearch(Boolean value) {
+        exhaustiveDonorSearch = new PluginParameter<>(exhaustiveDonorSearch, value);
+        return this;
+    }
+
     /**
      * Write all imputed heterozygous calls as such, even
      * if the original file has a homozygous call. (Not recommended
@@ -38,25 +38,55 @@ public class FILLINImputationUtils {
         long[] iMj=modBitsOfTarget[0].getBits();
         long[] iMn=modBitsOfTarget[1].getBits();
         for (int donor1 = 0; donor1 < allDist.length; donor1++) {
-            long[] jMj=donorAlign.allelePresenceForAllSites(donor1, Major).getBits();
-            long[] jMn=donorAlign.allelePresenceForAllSites(donor1, Minor).getBits();
-            for (int i = 0; i <blocks; i++) {
-                long same = (iMj[i] & jMj[i]) | (iMn[i] & jMn[i]);
-                long diff = (iMj[i] & jMn[i]) | (iMn[i] & jMj[i]);
-                long hets = same & diff;
-                int sameCnt = BitUtil.pop(same);
-                int diffCnt = BitUtil.pop(diff);
-                int hetCnt = BitUtil.pop(hets);
-                int sites = sameCnt + diffCnt - hetCnt;
-                allDist[donor1][2][i]=(byte)diffCnt;
-                allDist[donor1][3][i]=(byte)hetCnt;
-                allDist[donor1][0][i]=(byte)sites;
-                allDist[donor1][1][i]=(byte)sameCnt;
-            }
+            calcAllelePresenceCounts(iMj, iMn, donorAlign, donor1, allDist[donor1]);
+        }
+        return allDist;
+    }
+
+    /**
+     * Counts union and intersection of major and minor alleles between the target genotype and only the listed
+     * donors (i.e. candidates from FILLINDonorCandidateIndex).  All other donors share one array of zero counts,
+     * so they never have enough sites to be tested.
+     * @param modBitsOfTarget major and minor presence bits for target genotype (must be aligned same as donor)
+     * @param donorAlign genotypeTable with potential donor genotypes
+     * @param donorIndices donors to count
+     * @return array with [donor index][sites, same count, diff count, het count index][block index]
+     */
+    public static byte[][][] calcAllelePresenceCountsBtwTargetAndDonors(BitSet[] modBitsOfTarget, GenotypeTable donorAlign,
+                                                                        int[] donorIndices) {
+        int blocks=modBitsOfTarget[0].getNumWords();
+        byte[][][] allDist=new byte[donorAlign.numberOfTaxa()][][];
+        long[] iMj=modBitsOfTarget[0].getBits();
+        long[] iMn=modBitsOfTarget[1].getBits();
+        for (int donor1 : donorIndices) {
+            allDist[donor1]=new byte[4][blocks];
+            calcAllelePresenceCounts(iMj, iMn, donorAlign, donor1, allDist[donor1]);
+        }
+        byte[][] noCounts=new byte[4][blocks];
+        for (int donor1 = 0; donor1 < allDist.length; donor1++) {
+            if(allDist[donor1]==null) allDist[donor1]=noCounts;
         }
         return allDist;
     }
 
+    private static void calcAllelePresenceCounts(long[] iMj, long[] iMn, GenotypeTable donorAlign, int donor1, byte[][] dist) {
+        long[] jMj=donorAlign.allelePresenceForAllSites(donor1, Major).getBits();
+        long[] jMn=donorAlign.allelePresenceForAllSites(donor1, Minor).getBits();
+        for (int i = 0; i <dist[0].length; i++) {
+            long same = (iMj[i] & jMj[i]) | (iMn[i] & jMn[i]);
+            long diff = (iMj[i] & jMn[i]) | (iMn[i] & jMj[i]);
+            long hets = same & diff;
+            int sameCnt = BitUtil.pop(same);
+            int diffCnt = BitUtil.pop(diff);
+            int hetCnt = BitUtil.pop(hets);
+            int sites = sameCnt + diffCnt - hetCnt;
+            dist[2][i]=(byte)diffCnt;
+            dist[3][i]=(byte)hetCnt;
+            dist[0][i]=(byte)sites;
+            dist[1][i]=(byte)sameCnt;
+        }
+    }
+
     /**
      *Simple algorithm that tests every possible haplotype as a homozygous donor to minimize
      * the number of unmatched informative alleles.  Currently, there is little tie
@@ -143,6 +173,19 @@ public class FILLINImputationUtils {
     public static int[] bestDonorsAcrossEntireRegion(byte[][][] targetToDonorDistances,
                                                      int minTestSites, int maxDonorHypotheses) {
         int[] donor1indices=fillInc(0,targetToDonorDistances.length-1);
+        return bestDonorsAcrossEntireRegion(targetToDonorDistances, donor1indices, minTestSites, maxDonorHypotheses);
+    }
+
+    /**
+     * Same as bestDonorsAcrossEntireRegion but only tests the listed donors.
+     * @param targetToDonorDistances precomputed block distances
+     * @param donor1indices  array of donor indices to tests
+     * @param minTestSites minimum number of comparable sites to be included the analysis
+     * @param maxDonorHypotheses maximum number of donor hypotheses to retain
+     * @return array of indices of the best donors
+     */
+    public static int[] bestDonorsAcrossEntireRegion(byte[][][] targetToDonorDistances, int[] donor1indices,
+                                                     int minTestSites, int maxDonorHypotheses) {
         DonorHypoth[] bestDH=findHomozygousDonorHypoth(-1,0,targetToDonorDistances[0][0].length-1,0,donor1indices,
                 targetToDonorDistances,minTestSites,maxDonorHypotheses);
         int resultSize=(bestDH.length<maxDonorHypotheses)?bestDH.length:maxDonorHypotheses;
@@ -0,0 +1,76 @@
+/*
+ *  LDResultColumns
+ */
+package net.maizegenetics.analysis.popgen;
+
+import java.io.Serializable;
+
+/**
+ * Linkage disequilibrium results (r^2, D', p-value, and sample size) stored
+ * as primitive columns indexed by test number. Columns are divided into
+ * segments so that more than Integer.MAX_VALUE tests can be held. Each test
+ * number is written by exactly one thread, so no synchronization is needed.
+ */
+final class LDResultColumns implements Serializable {
+
+    private static final long serialVersionUID = 2938472389472384L;
+
+    private static final int SEGMENT_SHIFT = 24;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final long myNumTests;
+    private final float[][] myRSqr;
+    private final float[][] myDPrime;
+    private final float[][] myPValue;
+    private final int[][] mySampleSize;
+
+    LDResultColumns(long numTests) {
+        if (numTests < 0) {
+            throw new IllegalArgumentException("LDResultColumns: init: number of tests can't be negative: " + numTests);
+        }
+        myNumTests = numTests;
+        int numSegments = (int) ((numTests + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        myRSqr = new float[numSegments][];
+        myDPrime = new float[numSegments][];
+        myPValue = new float[numSegments][];
+        mySampleSize = new int[numSegments][];
+        for (int s = 0; s < numSegments; s++) {
+            int size = (int) Math.min(SEGMENT_SIZE, numTests - ((long) s << SEGMENT_SHIFT));
+            myRSqr[s] = new float[size];
+            myDPrime[s] = new float[size];
+            myPValue[s] = new float[size];
+            mySampleSize[s] = new int[size];
+        }
+    }
+
+    long numTests() {
+        return myNumTests;
+    }
+
+    void set(long test, float rSqr, float dPrime, float pValue, int sampleSize) {
+        int segment = (int) (test >>> SEGMENT_SHIFT);
+        int offset = (int) (test & SEGMENT_MASK);
+        myRSqr[segment][offset] = rSqr;
+        myDPrime[segment][offset] = dPrime;
+        myPValue[segment][offset] = pValue;
+        mySampleSize[segment][offset] = sampleSize;
+    }
+
+    float rSqr(long test) {
+        return myRSqr[(int) (test >>> SEGMENT_SHIFT)][(int) (test & SEGMENT_MASK)];
+    }
+
+    float dPrime(long test) {
+        return myDPrime[(int) (test >>> SEGMENT_SHIFT)][(int) (test & SEGMENT_MASK)];
+    }
+
+    float pValue(long test) {
+        return myPValue[(int) (test >>> SEGMENT_SHIFT)][(int) (test & SEGMENT_MASK)];
+    }
+
+    int sampleSize(long test) {
+        return mySampleSize[(int) (test >>> SEGMENT_SHIFT)][(int) (test & SEGMENT_MASK)];
+    }
+
+}
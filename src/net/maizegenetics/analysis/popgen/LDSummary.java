@@ -0,0 +1,417 @@
+/*
+ *  LDSummary
+ */
+package net.maizegenetics.analysis.popgen;
+
+import net.maizegenetics.dna.map.Chromosome;
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.util.AbstractTableReport;
+import net.maizegenetics.util.TableReport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Summarizes linkage disequilibrium as the site pairs are calculated, so
+ * that pair-wise results are never stored. Three summaries are kept.
+ * <p>
+ * Decay: r^2 histogram by physical distance. Pairs on the same chromosome
+ * are binned by distance (distanceBinSize bp per bin, numDistanceBins bins)
+ * and r^2 (numR2Bins bins between 0 and 1). Pairs further apart than the
+ * last bin are not included.
+ * <p>
+ * Windows: mean r^2 of pairs in physical windows (windowSize bp) of each
+ * chromosome. A pair belongs to the window of site 1 (the higher site) if
+ * site 2 is on the same chromosome.
+ * <p>
+ * Sites: maximum r^2 of each site with any other site tested.
+ * <p>
+ * Memory depends on the number of bins, windows, and sites, but not the
+ * number of pairs. LinkageDisequilibrium accumulates pairs into a sketch
+ * (see newSketch()) for each thread, which are merged at the end. Pairs
+ * with r^2 of NaN are not included.
+ */
+public class LDSummary {
+
+    private final GenotypeTable myGenotypes;
+    private final int myDistanceBinSize;
+    private final int myNumDistanceBins;
+    private final int myNumR2Bins;
+    private final int myWindowSize;
+
+    // per site
+    private final int[] myPositions;
+    private final int[] myChromosomeIndex;
+    private final int[] myWindowIndex;
+
+    // per window
+    private final Chromosome[] myWindowChromosome;
+    private final int[] myWindowStart;
+
+    // decay: numDistanceBins x numR2Bins
+    private final long[] myDecayCounts;
+    private final double[] myDecaySums;
+
+    private final long[] myWindowCounts;
+    private final double[] myWindowSums;
+
+    // only in merged summary (not sketches)
+    private final float[] mySiteMaxR2;
+    private final int[] mySiteMaxPartner;
+
+    private LDSummary(GenotypeTable genotypes, int distanceBinSize, int numDistanceBins, int numR2Bins, int windowSize) {
+
+        if (distanceBinSize < 1) {
+            throw new IllegalArgumentException("LDSummary: init: distance bin size must be at least 1: " + distanceBinSize);
+        }
+        if (numDistanceBins < 1) {
+            throw new IllegalArgumentException("LDSummary: init: number of distance bins must be at least 1: " + numDistanceBins);
+        }
+        if (numR2Bins < 1) {
+            throw new IllegalArgumentException("LDSummary: init: number of r^2 bins must be at least 1: " + numR2Bins);
+        }
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("LDSummary: init: window size must be at least 1: " + windowSize);
+        }
+
+        myGenotypes = genotypes;
+        myDistanceBinSize = distanceBinSize;
+        myNumDistanceBins = numDistanceBins;
+        myNumR2Bins = numR2Bins;
+        myWindowSize = windowSize;
+
+        int numSites = genotypes.numberOfSites();
+        myPositions = genotypes.physicalPositions();
+        myChromosomeIndex = new int[numSites];
+        myWindowIndex = new int[numSites];
+
+        List<Chromosome> windowChromosome = new ArrayList<>();
+        List<Integer> windowStart = new ArrayList<>();
+        Chromosome[] chromosomes = genotypes.chromosomes();
+        for (int c = 0; c < chromosomes.length; c++) {
+            int[] firstLast = genotypes.firstLastSiteOfChromosome(chromosomes[c]);
+            int firstWindow = myPositions[firstLast[0]] / windowSize;
+            int lastWindow = myPositions[firstLast[1]] / windowSize;
+            int base = windowChromosome.size();
+            for (int w = firstWindow; w <= lastWindow; w++) {
+                windowChromosome.add(chromosomes[c]);
+                windowStart.add(w * windowSize);
+            }
+            for (int site = firstLast[0]; site <= firstLast[1]; site++) {
+                myChromosomeIndex[site] = c;
+                myWindowIndex[site] = base + myPositions[site] / windowSize - firstWindow;
+            }
+        }
+        myWindowChromosome = windowChromosome.toArray(new Chromosome[windowChromosome.size()]);
+        myWindowStart = windowStart.stream().mapToInt(Integer::intValue).toArray();
+
+        myDecayCounts = new long[numDistanceBins * numR2Bins];
+        myDecaySums = new double[numDistanceBins];
+        myWindowCounts = new long[myWindowStart.length];
+        myWindowSums = new double[myWindowStart.length];
+
+        mySiteMaxR2 = new float[numSites];
+        Arrays.fill(mySiteMaxR2, Float.NaN);
+        mySiteMaxPartner = new int[numSites];
+        Arrays.fill(mySiteMaxPartner, -1);
+
+    }
+
+    private LDSummary(LDSummary summary) {
+        myGenotypes = summary.myGenotypes;
+        myDistanceBinSize = summary.myDistanceBinSize;
+        myNumDistanceBins = summary.myNumDistanceBins;
+        myNumR2Bins = summary.myNumR2Bins;
+        myWindowSize = summary.myWindowSize;
+        myPositions = summary.myPositions;
+        myChromosomeIndex = summary.myChromosomeIndex;
+        myWindowIndex = summary.myWindowIndex;
+        myWindowChromosome = summary.myWindowChromosome;
+        myWindowStart = summary.myWindowStart;
+        myDecayCounts = new long[summary.myDecayCounts.length];
+        myDecaySums = new double[summary.myDecaySums.length];
+        myWindowCounts = new long[summary.myWindowCounts.length];
+        myWindowSums = new double[summary.myWindowSums.length];
+        mySiteMaxR2 = null;
+        mySiteMaxPartner = null;
+    }
+
+    /**
+     * Creates summary for the given genotypes.
+     *
+     * @param genotypes genotypes (sites sorted by position)
+     * @param distanceBinSize size (bp) of distance bins for decay
+     * @param numDistanceBins number of distance bins for decay
+     * @param numR2Bins number of r^2 bins for decay
+     * @param windowSize size (bp) of windows for mean r^2
+     *
+     * @return summary
+     */
+    public static LDSummary getInstance(GenotypeTable genotypes, int distanceBinSize, int numDistanceBins, int numR2Bins, int windowSize) {
+        return new LDSummary(genotypes, distanceBinSize, numDistanceBins, numR2Bins, windowSize);
+    }
+
+    /**
+     * Creates empty sketch with the same bins and windows as this summary,
+     * which can be accumulated by one thread and merged into this summary.
+     *
+     * @return sketch
+     */
+    LDSummary newSketch() {
+        return new LDSummary(this);
+    }
+
+    /**
+     * Adds pair to decay and window accumulations.
+     *
+     * @param site1 higher site
+     * @param site2 lower site
+     * @param r2 r^2
+     */
+    void add(int site1, int site2, float r2) {
+
+        if (Float.isNaN(r2) || (myChromosomeIndex[site1] != myChromosomeIndex[site2])) {
+            return;
+        }
+
+        int window = myWindowIndex[site1];
+        myWindowCounts[window]++;
+        myWindowSums[window] += r2;
+
+        int distanceBin = Math.abs(myPositions[site1] - myPositions[site2]) / myDistanceBinSize;
+        if (distanceBin < myNumDistanceBins) {
+            int r2Bin = Math.min((int) (r2 * myNumR2Bins), myNumR2Bins - 1);
+            myDecayCounts[distanceBin * myNumR2Bins + r2Bin]++;
+            myDecaySums[distanceBin] += r2;
+        }
+
+    }
+
+    /**
+     * Merges sketch into this summary.
+     *
+     * @param sketch sketch
+     */
+    synchronized void merge(LDSummary sketch) {
+        for (int i = 0; i < myDecayCounts.length; i++) {
+            myDecayCounts[i] += sketch.myDecayCounts[i];
+        }
+        for (int i = 0; i < myDecaySums.length; i++) {
+            myDecaySums[i] += sketch.myDecaySums[i];
+        }
+        for (int i = 0; i < myWindowCounts.length; i++) {
+            myWindowCounts[i] += sketch.myWindowCounts[i];
+            myWindowSums[i] += sketch.myWindowSums[i];
+        }
+    }
+
+    /**
+     * Updates maximum r^2 of the given sites. Ties keep the lower partner
+     * site, so results don't depend on the order tiles are calculated.
+     *
+     * @param sites sites
+     * @param maxR2 maximum r^2 of each site (NaN if none)
+     * @param partners site with maximum r^2
+     * @param numSites number of sites to update
+     */
+    synchronized void updateMaxR2(int[] sites, float[] maxR2, int[] partners, int numSites) {
+        for (int i = 0; i < numSites; i++) {
+            if (Float.isNaN(maxR2[i])) {
+                continue;
+            }
+            int site = sites[i];
+            float current = mySiteMaxR2[site];
+            if (Float.isNaN(current) || (maxR2[i] > current) || ((maxR2[i] == current) && (partners[i] < mySiteMaxPartner[site]))) {
+                mySiteMaxR2[site] = maxR2[i];
+                mySiteMaxPartner[site] = partners[i];
+            }
+        }
+    }
+
+    /**
+     * Returns r^2 decay report. One row per distance bin with number of
+     * pairs, mean r^2, and number of pairs in each r^2 bin.
+     *
+     * @return decay report
+     */
+    public TableReport decayReport() {
+        return new DecayReport();
+    }
+
+    /**
+     * Returns report with mean r^2 for each window.
+     *
+     * @return window report
+     */
+    public TableReport windowReport() {
+        return new WindowReport();
+    }
+
+    /**
+     * Returns report with maximum r^2 for each site.
+     *
+     * @return site report
+     */
+    public TableReport siteReport() {
+        return new SiteReport();
+    }
+
+    private class DecayReport extends AbstractTableReport {
+
+        private final Object[] myColumnNames;
+
+        private DecayReport() {
+            myColumnNames = new Object[myNumR2Bins + 4];
+            myColumnNames[0] = "Dist_bp_Min";
+            myColumnNames[1] = "Dist_bp_Max";
+            myColumnNames[2] = "NumPairs";
+            myColumnNames[3] = "MeanR2";
+            for (int b = 0; b < myNumR2Bins; b++) {
+                myColumnNames[b + 4] = "R2_" + ((float) b / (float) myNumR2Bins) + "-" + ((float) (b + 1) / (float) myNumR2Bins);
+            }
+        }
+
+        @Override
+        public Object[] getTableColumnNames() {
+            return myColumnNames;
+        }
+
+        @Override
+        public String getTableTitle() {
+            return "Linkage Disequilibrium Decay";
+        }
+
+        @Override
+        public int getColumnCount() {
+            return myColumnNames.length;
+        }
+
+        @Override
+        public long getRowCount() {
+            return myNumDistanceBins;
+        }
+
+        @Override
+        public long getElementCount() {
+            return getRowCount() * getColumnCount();
+        }
+
+        @Override
+        public Object[] getRow(long row) {
+            int bin = (int) row;
+            Object[] result = new Object[myColumnNames.length];
+            result[0] = Long.valueOf((long) bin * myDistanceBinSize);
+            result[1] = Long.valueOf((long) (bin + 1) * myDistanceBinSize - 1L);
+            long numPairs = 0;
+            for (int b = 0; b < myNumR2Bins; b++) {
+                long count = myDecayCounts[bin * myNumR2Bins + b];
+                numPairs += count;
+                result[b + 4] = Long.valueOf(count);
+            }
+            result[2] = Long.valueOf(numPairs);
+            result[3] = numPairs == 0 ? Double.NaN : myDecaySums[bin] / (double) numPairs;
+            return result;
+        }
+
+    }
+
+    private class WindowReport extends AbstractTableReport {
+
+        private final Object[] myColumnNames = new Object[]{"Chr", "Window_Start", "Window_End", "NumPairs", "MeanR2"};
+
+        @Override
+        public Object[] getTableColumnNames() {
+            return myColumnNames;
+        }
+
+        @Override
+        public String getTableTitle() {
+            return "Linkage Disequilibrium Mean R2 by Window";
+        }
+
+        @Override
+        public int getColumnCount() {
+            return myColumnNames.length;
+        }
+
+        @Override
+        public long getRowCount() {
+            return myWindowStart.length;
+        }
+
+        @Override
+        public long getElementCount() {
+            return getRowCount() * getColumnCount();
+        }
+
+        @Override
+        public Object[] getRow(long row) {
+            int window = (int) row;
+            long count = myWindowCounts[window];
+            return new Object[]{myWindowChromosome[window].getName(),
+                    Integer.valueOf(myWindowStart[window]),
+                    Long.valueOf((long) myWindowStart[window] + myWindowSize - 1L),
+                    Long.valueOf(count),
+                    count == 0 ? Double.NaN : myWindowSums[window] / (double) count};
+        }
+
+    }
+
+    private class SiteReport extends AbstractTableReport {
+
+        private final Object[] myColumnNames = new Object[]{"Locus", "Position", "Site", "MaxR2", "MaxR2_Site", "MaxR2_Position", "Dist_bp"};
+
+        @Override
+        public Object[] getTableColumnNames() {
+            return myColumnNames;
+        }
+
+        @Override
+        public String getTableTitle() {
+            return "Linkage Disequilibrium Maximum R2 by Site";
+        }
+
+        @Override
+        public int getColumnCount() {
+            return myColumnNames.length;
+        }
+
+        @Override
+        public long getRowCount() {
+            return mySiteMaxR2.length;
+        }
+
+        @Override
+        public long getElementCount() {
+            return getRowCount() * getColumnCount();
+        }
+
+        @Override
+        public Object[] getRow(long row) {
+            int site = (int) row;
+            int partner = mySiteMaxPartner[site];
+            Object[] result = new Object[myColumnNames.length];
+            result[0] = myGenotypes.chromosomeName(site);
+            result[1] = Integer.valueOf(myPositions[site]);
+            result[2] = Integer.valueOf(site);
+            result[3] = mySiteMaxR2[site];
+            if (partner < 0) {
+                result[4] = "N/A";
+                result[5] = "N/A";
+                result[6] = "N/A";
+            } else {
+                result[4] = Integer.valueOf(partner);
+                result[5] = Integer.valueOf(myPositions[partner]);
+                if (myChromosomeIndex[site] == myChromosomeIndex[partner]) {
+                    result[6] = Integer.valueOf(Math.abs(myPositions[site] - myPositions[partner]));
+                } else {
+                    result[6] = "N/A";
+                }
+            }
+            return result;
+        }
+
+    }
+
+}
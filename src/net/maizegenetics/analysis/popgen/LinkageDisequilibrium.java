@@ -6,7 +6,6 @@
 // terms of the Lesser GNU General Public License (LGPL)
 package net.maizegenetics.analysis.popgen;
 
-import cern.colt.map.OpenLongObjectHashMap;
 import net.maizegenetics.dna.WHICH_ALLELE;
 import net.maizegenetics.dna.snp.GenotypeTable;
 import net.maizegenetics.dna.snp.GenotypeTableBuilder;
@@ -20,7 +19,11 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 /**
  * This class calculates D' and r^2 estimates of linkage disequilibrium. It also
@@ -46,6 +49,11 @@ import java.util.Arrays;
  * from SSR to SNPs these methods are less relevant. Researchers should convert
  * to biallelic - either by ignoring rarer classes or collapsing rarer states.
  * <p>
+ * Site pairs are divided into tiles of up to TILE_SITES by TILE_SITES sites,
+ * which are calculated in parallel. The allele bit sets of each site are
+ * retrieved once per tile rather than once per pair. Results are stored in
+ * primitive columns indexed by test number (see {@link LDResultColumns}).
+ * <p>
  * TODO: Add 3x3 (genotype) mode.
  *
  * @version $Id: LinkageDisequilibrium.java,v 2
@@ -90,6 +98,7 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
         Haplotype, Homozygous, Genotype
     };
     private static final Logger myLogger = LogManager.getLogger(LinkageDisequilibrium.class);
+    private static final int TILE_SITES = 256;
     private GenotypeTable myAlignment;
 //    private Alignment mySBitAlignment;
     private int myMinTaxaForEstimate = 20;
@@ -98,10 +107,9 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
     private long myTotalTests = 0;
     private testDesign myCurrDesign = testDesign.SlidingWindow;
     /**
-     * HashMap of results Key = (site1*siteNum + site2), Value = float[rsqr,d',
-     * pvalue, sampleSize]
+     * Results indexed by test number (i.e. row of this report)
      */
-    private OpenLongObjectHashMap myMapResults;
+    private LDResultColumns myResults;
     private ProgressListener myListener = null;
     private FisherExact myFisherExact;
     private boolean myIsAccumulativeReport = false;
@@ -113,6 +121,7 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
     private static String NA = "N/A";
     private static Integer IntegerTwo = Integer.valueOf(2);
     private HetTreatment myHetTreatment = HetTreatment.Homozygous;
+    private LDSummary mySummary = null;
 
     /**
      * Constructor for doing LD analysis
@@ -130,6 +139,28 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
     public LinkageDisequilibrium(GenotypeTable alignment, int windowSize, testDesign LDType, int testSite,
                                  ProgressListener listener, boolean isAccumulativeReport, int numAccumulateIntervals,
                                  int[] sitesList, HetTreatment hetTreatment) {
+        this(alignment, windowSize, LDType, testSite, listener, isAccumulativeReport, numAccumulateIntervals, sitesList, hetTreatment, null);
+    }
+
+    /**
+     * Constructor for doing LD analysis. If summary is specified, the site
+     * pairs are only accumulated into the summary and not stored. In that
+     * case, this has no rows as a TableReport.
+     *
+     * @param alignment Input alignment with segregating sites
+     * @param windowSize Size of sliding window
+     * @param LDType
+     * @param testSite
+     * @param listener
+     * @param isAccumulativeReport
+     * @param numAccumulateIntervals
+     * @param sitesList
+     * @param hetTreatment
+     * @param summary summary to accumulate or null
+     */
+    public LinkageDisequilibrium(GenotypeTable alignment, int windowSize, testDesign LDType, int testSite,
+                                 ProgressListener listener, boolean isAccumulativeReport, int numAccumulateIntervals,
+                                 int[] sitesList, HetTreatment hetTreatment, LDSummary summary) {
         myAlignment = alignment;
         myFisherExact = FisherExact.getInstance((2 * myAlignment.numberOfTaxa()) + 10);
         myWindowSize = windowSize;
@@ -145,6 +176,10 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
             Arrays.sort(mySiteList);
         }
         myHetTreatment = hetTreatment;
+        mySummary = summary;
+        if ((mySummary != null) && myIsAccumulativeReport) {
+            throw new IllegalArgumentException("LinkageDisequilibrium: init: summary and accumulative report can't both be specified.");
+        }
     }
 
     /**
@@ -184,14 +219,71 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
         if (myIsAccumulativeReport) {
             myAccumulativeInterval = 1.0f / (float) myNumAccumulativeBins;
             myAccumulativeRValueBins = new int[myNumAccumulativeBins + 1];
-        } else {
-            myMapResults = new OpenLongObjectHashMap((int)numSites);
+        } else if (mySummary == null) {
+            myResults = new LDResultColumns(myTotalTests);
         }
 
     }
-    
-    private long getMapKey(int r, int c) {
-        return (c < r) ? (((long) c * myAlignment.numberOfSites()) + r) : (((long) r * myAlignment.numberOfSites()) + c);
+
+    /**
+     * Returns test number (i.e. row of this report) for the given pair of
+     * sites. This is the inverse of getRowFromIndex() and getColFromIndex().
+     *
+     * @param site1 site 1
+     * @param site2 site 2
+     *
+     * @return test number or -1 if pair not tested
+     */
+    private long getTestIndex(int site1, int site2) {
+
+        if (site1 == site2) {
+            return -1;
+        }
+        int r = Math.max(site1, site2);
+        int c = Math.min(site1, site2);
+
+        switch (myCurrDesign) {
+            case All:
+                return (long) r * (long) (r - 1) / 2L + c;
+            case SlidingWindow:
+                if (r - c > myWindowSize) {
+                    return -1;
+                } else if (r <= myWindowSize) {
+                    return (long) r * (long) (r - 1) / 2L + c;
+                } else {
+                    long w = myWindowSize;
+                    return w * (w + 1L) / 2L + (r - w - 1L) * w + c - (r - w);
+                }
+            case SiteByAll:
+                if (r == myTestSite) {
+                    return c;
+                } else if (c == myTestSite) {
+                    return r - 1;
+                } else {
+                    return -1;
+                }
+            case SiteList:
+                int k = Arrays.binarySearch(mySiteList, c);
+                int other = r;
+                if (k < 0) {
+                    k = Arrays.binarySearch(mySiteList, r);
+                    other = c;
+                    if (k < 0) {
+                        return -1;
+                    }
+                }
+                long n = myAlignment.numberOfSites();
+                long start = (long) k * (n - 1L) - (long) k * (long) (k - 1) / 2L;
+                int site = mySiteList[k];
+                if (other > site) {
+                    return start + (site - k) + (other - site - 1);
+                } else {
+                    return start + other + (Arrays.binarySearch(mySiteList, other) + 1);
+                }
+            default:
+                return -1;
+        }
+
     }
 
     public static LDResult calculateBitLDForHaplotype(boolean ignoreHets, int minTaxaForEstimate, GenotypeTable alignment, int site1, int site2) {
@@ -220,32 +312,212 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
         } else {
             workingAlignment = myAlignment;
         }
-        for (long currTest = 0; currTest < myTotalTests; currTest++) {
-            int r = getRowFromIndex(currTest);
-            int c = getColFromIndex(currTest);
-            int currentProgress = (int) (100.0 * ((double) currTest / (double) myTotalTests));
-            fireProgress(currentProgress);
-            BitSet rMj = workingAlignment.allelePresenceForAllTaxa(r, WHICH_ALLELE.Major);
-            BitSet rMn = workingAlignment.allelePresenceForAllTaxa(r, WHICH_ALLELE.Minor);
-            BitSet cMj = workingAlignment.allelePresenceForAllTaxa(c, WHICH_ALLELE.Major);
-            BitSet cMn = workingAlignment.allelePresenceForAllTaxa(c, WHICH_ALLELE.Minor);
-            LDResult ldr = getLDForSitePair(rMj, rMn, cMj, cMn, 2, myMinTaxaForEstimate, -1.0f, myFisherExact,r,c);
-            if (myIsAccumulativeReport) {
-                if (Float.isNaN(ldr.r2())) {
-                    myAccumulativeRValueBins[myNumAccumulativeBins]++;
-                } else if (ldr.r2() == 1.0f) {
-                    myAccumulativeRValueBins[myNumAccumulativeBins - 1]++;
+
+        // bit storage is created lazily, so create before starting threads
+        workingAlignment.bitStorage(WHICH_ALLELE.Major);
+        workingAlignment.bitStorage(WHICH_ALLELE.Minor);
+
+        // het taxa can be counted in all four cells of the table.
+        // Size now, so it's not resized by multiple threads
+        myFisherExact = FisherExact.getInstance((4 * myAlignment.numberOfTaxa()) + 10);
+
+        List<int[]> tiles = getTiles();
+        AtomicLong numCalculated = new AtomicLong();
+        if (mySummary == null) {
+            IntStream.range(0, tiles.size()).parallel().forEach(t -> {
+                int[] tile = tiles.get(t);
+                long numTests = calculateTile(workingAlignment, tile[0], tile[1], tile[2], tile[3], null);
+                fireProgress((int) (100.0 * ((double) numCalculated.addAndGet(numTests) / (double) myTotalTests)));
+            });
+        } else {
+            // each thread accumulates its own sketch, which are merged
+            LDSummary sketch = IntStream.range(0, tiles.size()).parallel().collect(mySummary::newSketch, (current, t) -> {
+                int[] tile = tiles.get(t);
+                long numTests = calculateTile(workingAlignment, tile[0], tile[1], tile[2], tile[3], current);
+                fireProgress((int) (100.0 * ((double) numCalculated.addAndGet(numTests) / (double) myTotalTests)));
+            }, LDSummary::merge);
+            mySummary.merge(sketch);
+        }
+
+        if (numCalculated.get() != myTotalTests) {
+            throw new IllegalStateException("LinkageDisequilibrium: calculateBitLDForHaplotype: number of tests calculated: " + numCalculated.get() + " should be: " + myTotalTests);
+        }
+    }
+
+    /**
+     * Sites that start tests. Tile rows are indices into these sites. All
+     * and SlidingWindow use all sites (returns null).
+     */
+    private int[] getRowSites() {
+        if (myCurrDesign == testDesign.SiteByAll) {
+            return new int[]{myTestSite};
+        } else if (myCurrDesign == testDesign.SiteList) {
+            return mySiteList;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Divides tests into tiles. Each tile is {first row, last row
+     * (exclusive), first column site, last column site (exclusive)}.
+     */
+    private List<int[]> getTiles() {
+
+        int numSites = myAlignment.numberOfSites();
+        int[] rowSites = getRowSites();
+        int numRows = rowSites == null ? numSites : rowSites.length;
+
+        List<int[]> result = new ArrayList<>();
+        for (int rowStart = 0; rowStart < numRows; rowStart += TILE_SITES) {
+            int rowEnd = Math.min(rowStart + TILE_SITES, numRows);
+            int colStart = 0;
+            int colEnd = numSites;
+            if (myCurrDesign == testDesign.All) {
+                colStart = rowStart + 1;
+            } else if (myCurrDesign == testDesign.SlidingWindow) {
+                colStart = rowStart + 1;
+                colEnd = (int) Math.min((long) numSites, (long) rowEnd + (long) myWindowSize);
+            }
+            for (int start = colStart; start < colEnd; start += TILE_SITES) {
+                result.add(new int[]{rowStart, rowEnd, start, Math.min(start + TILE_SITES, colEnd)});
+            }
+        }
+        return result;
+
+    }
+
+    /**
+     * Whether site (at given tile row) is tested against other. Each pair is
+     * only tested from one row: for All and SlidingWindow, the lower site.
+     * For SiteList, the site earliest in the list.
+     */
+    private boolean isTested(int row, int site, int other) {
+        if (site == other) {
+            return false;
+        }
+        switch (myCurrDesign) {
+            case All:
+                return other > site;
+            case SlidingWindow:
+                return (other > site) && (other - site <= myWindowSize);
+            case SiteByAll:
+                return true;
+            case SiteList:
+                int index = Arrays.binarySearch(mySiteList, other);
+                return (index < 0) || (index > row);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Calculates all tests in one tile. If sketch is specified, tests are
+     * accumulated into it (and maximum r^2 of each site into the summary)
+     * rather than stored.
+     *
+     * @return number of tests calculated
+     */
+    private long calculateTile(GenotypeTable genotypes, int rowStart, int rowEnd, int colStart, int colEnd, LDSummary sketch) {
+
+        int[] rowSites = getRowSites();
+        int numRows = rowEnd - rowStart;
+        int numCols = colEnd - colStart;
+
+        int[] sites = new int[numRows];
+        BitSet[] rowMj = new BitSet[numRows];
+        BitSet[] rowMn = new BitSet[numRows];
+        for (int i = 0; i < numRows; i++) {
+            sites[i] = rowSites == null ? rowStart + i : rowSites[rowStart + i];
+            rowMj[i] = genotypes.allelePresenceForAllTaxa(sites[i], WHICH_ALLELE.Major);
+            rowMn[i] = genotypes.allelePresenceForAllTaxa(sites[i], WHICH_ALLELE.Minor);
+        }
+
+        BitSet[] colMj = new BitSet[numCols];
+        BitSet[] colMn = new BitSet[numCols];
+        for (int j = 0; j < numCols; j++) {
+            colMj[j] = genotypes.allelePresenceForAllTaxa(colStart + j, WHICH_ALLELE.Major);
+            colMn[j] = genotypes.allelePresenceForAllTaxa(colStart + j, WHICH_ALLELE.Minor);
+        }
+
+        int[] bins = myIsAccumulativeReport ? new int[myNumAccumulativeBins + 1] : null;
+        float[] rowMaxR2 = null;
+        int[] rowPartner = null;
+        float[] colMaxR2 = null;
+        int[] colPartner = null;
+        if (sketch != null) {
+            rowMaxR2 = new float[numRows];
+            Arrays.fill(rowMaxR2, Float.NaN);
+            rowPartner = new int[numRows];
+            colMaxR2 = new float[numCols];
+            Arrays.fill(colMaxR2, Float.NaN);
+            colPartner = new int[numCols];
+        }
+        float[] values = new float[3];
+        long numTests = 0;
+        for (int i = 0; i < numRows; i++) {
+            int site = sites[i];
+            for (int j = 0; j < numCols; j++) {
+                int other = colStart + j;
+                if (!isTested(rowStart + i, site, other)) {
+                    continue;
+                }
+                // higher site is always site 1 (same as report rows)
+                int n;
+                if (other > site) {
+                    n = getLDForSitePair(colMj[j], colMn[j], rowMj[i], rowMn[i], 2, myMinTaxaForEstimate, -1.0f, myFisherExact, values);
                 } else {
-                    int index = (int) Math.floor(ldr.r2() / myAccumulativeInterval);
-                    myAccumulativeRValueBins[index]++;
+                    n = getLDForSitePair(rowMj[i], rowMn[i], colMj[j], colMn[j], 2, myMinTaxaForEstimate, -1.0f, myFisherExact, values);
                 }
-            } else {
-                long key = getMapKey(r, c);
-                myMapResults.put(key, ldr);
+                if (sketch != null) {
+                    sketch.add(Math.max(site, other), Math.min(site, other), values[0]);
+                    updateMaxR2(rowMaxR2, rowPartner, i, values[0], other);
+                    updateMaxR2(colMaxR2, colPartner, j, values[0], site);
+                } else if (bins != null) {
+                    if (Float.isNaN(values[0])) {
+                        bins[myNumAccumulativeBins]++;
+                    } else if (values[0] == 1.0f) {
+                        bins[myNumAccumulativeBins - 1]++;
+                    } else {
+                        int index = (int) Math.floor(values[0] / myAccumulativeInterval);
+                        bins[index]++;
+                    }
+                } else {
+                    myResults.set(getTestIndex(site, other), values[0], values[1], values[2], n);
+                }
+                numTests++;
             }
+        }
+
+        if (bins != null) {
+            synchronized (myAccumulativeRValueBins) {
+                for (int b = 0; b < bins.length; b++) {
+                    myAccumulativeRValueBins[b] += bins[b];
+                }
+            }
+        }
+
+        if (sketch != null) {
+            mySummary.updateMaxR2(sites, rowMaxR2, rowPartner, numRows);
+            int[] colSites = new int[numCols];
+            for (int j = 0; j < numCols; j++) {
+                colSites[j] = colStart + j;
+            }
+            mySummary.updateMaxR2(colSites, colMaxR2, colPartner, numCols);
+        }
+
+        return numTests;
 
-        } //end of currTest
-        if (myMapResults != null) myMapResults.trimToSize();
+    }
+
+    private static void updateMaxR2(float[] maxR2, int[] partners, int index, float r2, int partner) {
+        if (Float.isNaN(r2)) {
+            return;
+        }
+        if (Float.isNaN(maxR2[index]) || (r2 > maxR2[index]) || ((r2 == maxR2[index]) && (partner < partners[index]))) {
+            maxR2[index] = r2;
+            partners[index] = partner;
+        }
     }
 
     private void calculateBitLDWithHets() {
@@ -317,37 +589,50 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
      */
     public static LDResult getLDForSitePair(BitSet rMj, BitSet rMn, BitSet cMj, BitSet cMn,
             int minMinorCnt, int minCnt, float minR2, FisherExact myFisherExact, int site1Index, int site2Index) {
-        // float[] results = {Float.NaN, Float.NaN, Float.NaN, Float.NaN};
+        float[] values = new float[3];
+        int n = getLDForSitePair(rMj, rMn, cMj, cMn, minMinorCnt, minCnt, minR2, myFisherExact, values);
+        return new LDResult(site1Index, site2Index, values[0], values[1], values[2], n);
+    }
+
+    /**
+     * Same as above, but sets r^2, D', and p-value in the given array rather
+     * than creating LDResult.
+     *
+     * @return sample size
+     */
+    private static int getLDForSitePair(BitSet rMj, BitSet rMn, BitSet cMj, BitSet cMn,
+            int minMinorCnt, int minCnt, float minR2, FisherExact myFisherExact, float[] values) {
+        values[0] = Float.NaN;
+        values[1] = Float.NaN;
+        values[2] = Float.NaN;
         if(myFisherExact==null) myFisherExact=FisherExact.getInstance((2 * (int)rMj.size()) + 10);
-        LDResult.Builder results = new LDResult.Builder(site1Index,site2Index);
         int n = 0;
-        int[][] contig = new int[2][2];
-        n += contig[1][1] = (int) OpenBitSet.intersectionCount(rMn, cMn);
-        n += contig[1][0] = (int) OpenBitSet.intersectionCount(rMn, cMj);
-        if (contig[1][0] + contig[1][1] < minMinorCnt) {
-            return results.build();
-        }
-        n += contig[0][1] = (int) OpenBitSet.intersectionCount(rMj, cMn);
-        if (contig[0][1] + contig[1][1] < minMinorCnt) {
-            return results.build();
-        }
-        n += contig[0][0] = (int) OpenBitSet.intersectionCount(rMj, cMj);
-        results.n(n);
+        int contig00, contig01, contig10, contig11;
+        n += contig11 = (int) OpenBitSet.intersectionCount(rMn, cMn);
+        n += contig10 = (int) OpenBitSet.intersectionCount(rMn, cMj);
+        if (contig10 + contig11 < minMinorCnt) {
+            return 0;
+        }
+        n += contig01 = (int) OpenBitSet.intersectionCount(rMj, cMn);
+        if (contig01 + contig11 < minMinorCnt) {
+            return 0;
+        }
+        n += contig00 = (int) OpenBitSet.intersectionCount(rMj, cMj);
         if (n < minCnt) {
-            return results.build();
+            return n;
         }
-        double rValue = LinkageDisequilibrium.calculateRSqr(contig[0][0], contig[1][0], contig[0][1], contig[1][1], minCnt);
-        results.r2((float)rValue);
+        double rValue = LinkageDisequilibrium.calculateRSqr(contig00, contig10, contig01, contig11, minCnt);
+        values[0] = (float) rValue;
         if (Double.isNaN(rValue)) {
-            return results.build();
+            return n;
         }
-        results.dprime((float) LinkageDisequilibrium.calculateDPrime(contig[0][0], contig[1][0], contig[0][1], contig[1][1], minCnt));
+        values[1] = (float) LinkageDisequilibrium.calculateDPrime(contig00, contig10, contig01, contig11, minCnt);
         if (rValue < minR2) {
-            return results.build();
+            return n;
         }
-        double pValue = myFisherExact.getTwoTailedP(contig[0][0], contig[1][0], contig[0][1], contig[1][1]);
-        results.p((float) pValue);
-        return results.build();
+        double pValue = myFisherExact.getTwoTailedP(contig00, contig10, contig01, contig11);
+        values[2] = (float) pValue;
+        return n;
     }
 
     private int getRowFromIndex(long index) {
@@ -389,7 +674,7 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
         int w = myWindowSize;
 
         if (myCurrDesign == testDesign.SlidingWindow && n > w + 1 && index >= w * (w + 1) / (double) 2) {
-            col = (int) ((row - 1 - (double) w * (w + 1) / 2 - w * (row - w) + 1 + index));
+            col = (int) (row - (long) w * (w + 1) / 2 - (long) w * (row - w) + index);
         } else if (myCurrDesign == testDesign.SiteByAll) {
             if (index < myTestSite) {
                 col = (int) index;
@@ -418,7 +703,7 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
                 }
             }
         } else {
-            col = row - (row * (row + 1) / 2 - (int) index);
+            col = (int) (index - (long) row * (row - 1) / 2);
         }
 
         return col;
@@ -434,12 +719,11 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
      * @return P-value
      */
     public double getPVal(int r, int c) {
-        long key = getMapKey(r, c);
-        LDResult result = (LDResult) myMapResults.get(key);
-        if (result == null) {
+        long test = getTestIndex(r, c);
+        if ((test < 0) || (myResults == null)) {
             return Float.NaN;
         }
-        return result.p();
+        return myResults.pValue(test);
     }
 
     /**
@@ -451,12 +735,11 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
      * @return number of gametes
      */
     public int getSampleSize(int r, int c) {
-        long key = getMapKey(r, c);
-        LDResult result = (LDResult) myMapResults.get(key);
-        if (result == null) {
+        long test = getTestIndex(r, c);
+        if ((test < 0) || (myResults == null)) {
             return 0;
         }
-        return result.n();
+        return myResults.sampleSize(test);
     }
 
     /**
@@ -467,12 +750,11 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
      * @return D'
      */
     public float getDPrime(int r, int c) {
-        long key = getMapKey(r, c);
-        LDResult result = (LDResult) myMapResults.get(key);
-        if (result == null) {
+        long test = getTestIndex(r, c);
+        if ((test < 0) || (myResults == null)) {
             return Float.NaN;
         }
-        return result.dPrime();
+        return myResults.dPrime(test);
     }
 
     /**
@@ -483,12 +765,11 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
      * @return r^2
      */
     public float getRSqr(int r, int c) {
-        long key = getMapKey(r, c);
-        LDResult result = (LDResult) myMapResults.get(key);
-        if (result == null) {
+        long test = getTestIndex(r, c);
+        if ((test < 0) || (myResults == null)) {
             return Float.NaN;
         }
-        return result.r2();
+        return myResults.rSqr(test);
     }
 
     public int getX(int row) {
@@ -527,7 +808,7 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
         }
         sw.write("\n");
 
-        for (long r = 0; r < myTotalTests; r++) {
+        for (long r = 0, n = getRowCount(); r < n; r++) {
             Object[] theRow = getRow(r);
             for (int i = 0; i < theRow.length; i++) {
                 sw.write(theRow[i].toString());
@@ -598,10 +879,10 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
             } else {
                 data[labelOffset++] = NA;
             }
-            data[labelOffset++] = getRSqr(r, c);
-            data[labelOffset++] = getDPrime(r, c);
-            data[labelOffset++] = getPVal(r, c);
-            data[labelOffset++] = getSampleSize(r, c);
+            data[labelOffset++] = myResults.rSqr(row);
+            data[labelOffset++] = myResults.dPrime(row);
+            data[labelOffset++] = (double) myResults.pValue(row);
+            data[labelOffset++] = myResults.sampleSize(row);
 
             return data;
         }
@@ -622,6 +903,8 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
     public long getRowCount() {
         if (myIsAccumulativeReport) {
             return myNumAccumulativeBins + 1;
+        } else if (myResults == null) {
+            return 0;
         } else {
             return myTotalTests;
         }
@@ -42,6 +42,11 @@ public class LinkageDisequilibriumPlugin extends AbstractPlugin {
     private String myPossibleAlignmentName;
     private int[] myPossibleSiteList;
     private LinkageDisequilibrium.HetTreatment myHetTreatment = LinkageDisequilibrium.HetTreatment.Homozygous;
+    private boolean myIsSummary = false;
+    private int myDecayBinSize = 1000;
+    private int myNumDecayBins = 100;
+    private int myNumR2Bins = 10;
+    private int mySummaryWindowSize = 100000;
 
     /**
      * Creates a new instance of LinkageDisequilibriumPlugin
@@ -131,6 +136,16 @@ public class LinkageDisequilibriumPlugin extends AbstractPlugin {
             if (myTestSiteName != null) {
                 setTestSiteFromName(aa);
             }
+            if (myIsSummary) {
+                LDSummary summary = LDSummary.getInstance(aa, myDecayBinSize, myNumDecayBins, myNumR2Bins, mySummaryWindowSize);
+                LinkageDisequilibrium theLD = new LinkageDisequilibrium(aa, myWindowSize, myLDType, myTestSite, this, false, myNumAccumulateIntervals, myPossibleSiteList, myHetTreatment, summary);
+                theLD.run();
+                List<Datum> summaries = new ArrayList<>();
+                summaries.add(new Datum("LD Decay:" + input.getName(), summary.decayReport(), "LD Decay"));
+                summaries.add(new Datum("LD Windows:" + input.getName(), summary.windowReport(), "LD Mean R2 by Window"));
+                summaries.add(new Datum("LD Site Max:" + input.getName(), summary.siteReport(), "LD Maximum R2 by Site"));
+                return new DataSet(summaries, this);
+            }
             LinkageDisequilibrium theLD = new LinkageDisequilibrium(aa, myWindowSize, myLDType, myTestSite, this, myIsAccumulateResults, myNumAccumulateIntervals, myPossibleSiteList, myHetTreatment);
             theLD.run();
             Datum td = new Datum("LD:" + input.getName(), theLD, "LD Analysis");
@@ -223,6 +238,53 @@ public class LinkageDisequilibriumPlugin extends AbstractPlugin {
         return myHetTreatment;
     }
 
+    /**
+     * Sets whether to only summarize LD (decay, mean r^2 by window, and
+     * maximum r^2 by site) rather than reporting every site pair. See
+     * LDSummary.
+     *
+     * @param summary whether to summarize
+     */
+    public void setIsSummary(boolean summary) {
+        myIsSummary = summary;
+    }
+
+    public boolean getIsSummary() {
+        return myIsSummary;
+    }
+
+    public void setDecayBinSize(int binSize) {
+        myDecayBinSize = binSize;
+    }
+
+    public int getDecayBinSize() {
+        return myDecayBinSize;
+    }
+
+    public void setNumDecayBins(int numBins) {
+        myNumDecayBins = numBins;
+    }
+
+    public int getNumDecayBins() {
+        return myNumDecayBins;
+    }
+
+    public void setNumR2Bins(int numBins) {
+        myNumR2Bins = numBins;
+    }
+
+    public int getNumR2Bins() {
+        return myNumR2Bins;
+    }
+
+    public void setSummaryWindowSize(int windowSize) {
+        mySummaryWindowSize = windowSize;
+    }
+
+    public int getSummaryWindowSize() {
+        return mySummaryWindowSize;
+    }
+
     private void setTestSiteFromName(GenotypeTable aa) {
         //Find index of any sites with the given names
         int[] matches = IntStream.range(0, aa.numberOfSites())
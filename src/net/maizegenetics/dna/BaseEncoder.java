@@ -65,6 +65,50 @@ public class BaseEncoder {
         return v;
     }
 
+    /**
+     * Returns a long for the sequence (ASCII bases) in bytes offset to
+     * offset + length. Same as {@link #getLongFromSeq(String)} without
+     * creating a String.
+     *
+     * @param seq bytes containing sequence
+     * @param offset index of first base
+     * @param length number of bases
+     * @return 2-bit encode sequence (-1 if an invalid sequence state is provided e.g. N)
+     */
+    public static long getLongFromSeq(byte[] seq, int offset, int length) {
+        if (length > chunkSize) {
+            return -1;
+        }
+        long v = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            switch (seq[i]) {
+                case 'A':
+                case 'a':
+                    v = v << 2;
+                    break;
+                case 'C':
+                case 'c':
+                    v = (v << 2) + (byte) 1;
+                    break;
+                case 'G':
+                case 'g':
+                    v = (v << 2) + (byte) 2;
+                    break;
+                case 'T':
+                case 't':
+                    v = (v << 2) + (byte) 3;
+                    break;
+                default:
+                    return -1;
+            }
+        }
+        if (length == chunkSize) {
+            return v;
+        }
+        v = (v << (2 * (chunkSize - length))); //if shorter fill with AAAA
+        return v;
+    }
+
     /**
      * @param seq A String containing a DNA sequence.
      * @return result A array of Long containing the binary representation of the sequence.
@@ -441,6 +485,29 @@ public class BaseEncoder {
         return quality.length();
     }
 
+    /**
+     * Returns the position (relative to offset) of the first low quality
+     * position in the quality scores (ASCII) in bytes offset to offset +
+     * length. Same as {@link #getFirstLowQualityPos(String, int, int)}
+     * without creating a String.
+     *
+     * @param quality bytes containing quality scores
+     * @param offset index of first quality score
+     * @param length number of quality scores
+     * @param minQual minimum quality score
+     * @param qualBase base quality score (33 or 64)
+     * @return position of first low quality score or length if none
+     */
+    public static int getFirstLowQualityPos(byte[] quality, int offset, int length, int minQual, int qualBase) {
+        int minChar = minQual + qualBase;
+        for (int i = 0; i < length; i++) {
+            if (quality[offset + i] < minChar) {
+                return i;
+            }
+        }
+        return length;
+    }
+
 
     /**
      * Return a string representation of the 2-bit encoded long.
@@ -22,10 +22,19 @@ import net.maizegenetics.util.GeneralAnnotation;
 import net.maizegenetics.util.GeneralAnnotationStorage;
 import net.maizegenetics.util.HDF5Utils;
 import net.maizegenetics.util.Tassel5HDF5Constants;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Builder for GenotypeTables. New genotypeTables are built from a minimum of
@@ -77,6 +86,11 @@ import java.util.HashMap;
  */
 public class GenotypeTableBuilder {
 
+    private static final Logger myLogger = LogManager.getLogger(GenotypeTableBuilder.class);
+
+    //marks end of taxa queued for the asynchronous HDF5 writer
+    private static final TaxonToWrite FINISHED_WRITING = new TaxonToWrite(null, null, null);
+
     //Fields for incremental taxa
     private PositionList positionList = null;
     private TaxaListBuilder taxaListBuilder = null;
@@ -96,6 +110,8 @@ public class GenotypeTableBuilder {
     private boolean isHDF5 = false;
     private IHDF5Writer writer = null;
     private BuildType myBuildType;
+    private AsyncTaxaWriter myAsyncWriter = null;
+    private boolean myWriteSiteMajor = false;
     private final GeneralAnnotationStorage.Builder myAnnotationBuilder = GeneralAnnotationStorage.getBuilder();
 
     /**
@@ -154,6 +170,8 @@ public class GenotypeTableBuilder {
         if (mergeRule != null) {
             this.isTaxaMerge = true;
         }
+        // an existing site-major copy is rewritten by build(), since merged taxa change the calls
+        myWriteSiteMajor = writer.exists(Tassel5HDF5Constants.GENOTYPES_SITE_MAJOR_CALLS);
         this.myBuildType = BuildType.TAXA_INC;
         isHDF5 = true;
         this.taxaList = null;
@@ -558,12 +576,10 @@ public class GenotypeTableBuilder {
         if (genos.length != positionList.numberOfSites()) {
             throw new IndexOutOfBoundsException("Number of sites and genotypes do not agree");
         }
-        if (isHDF5) {
-            if (isTaxaMerge && HDF5Utils.doTaxonCallsExist(writer, taxon)) {
-                mergeTaxonInHDF5(writer, taxon, genos, depth);
-            } else {
-                addTaxon(writer, taxon, genos, depth);
-            }
+        if (myAsyncWriter != null) {
+            myAsyncWriter.add(taxon, genos, depth);
+        } else if (isHDF5) {
+            addOrMergeTaxonInHDF5(taxon, genos, depth);
         } else {
             synchronized (taxaListBuilder) {
                 if (isTaxaMerge && incTaxonIndex.containsKey(taxon)) {
@@ -609,10 +625,65 @@ public class GenotypeTableBuilder {
         }
     }
 
+    /**
+     * Synchronized, since the HDF5 writer can only be used by one thread at a
+     * time. Callers of addTaxon() shouldn't synchronize on this builder, since
+     * with asyncHDF5TaxaWrites() the writer thread calls this while addTaxon()
+     * waits on a full queue.
+     */
+    private synchronized void addOrMergeTaxonInHDF5(Taxon taxon, byte[] genos, byte[][] depth) {
+        if (isTaxaMerge && HDF5Utils.doTaxonCallsExist(writer, taxon)) {
+            mergeTaxonInHDF5(writer, taxon, genos, depth);
+        } else {
+            addTaxon(writer, taxon, genos, depth);
+        }
+    }
+
     public boolean isHDF5() {
         return isHDF5;
     }
 
+    /**
+     * Sets the builder so that taxa are written to the HDF5 file by a separate
+     * thread. addTaxon() only queues the taxon, waiting when maxQueuedTaxa are
+     * already queued, and the taxa are added (or merged) in the order queued.
+     * build() and closeUnfinished() wait until all queued taxa are written.
+     * Errors from writing are thrown by the next addTaxon(), build(), or
+     * closeUnfinished(). Adding taxa after build() or closeUnfinished() throws
+     * an IllegalStateException.
+     *
+     * @param maxQueuedTaxa maximum number of taxa waiting to be written
+     *
+     * @return this builder
+     */
+    public GenotypeTableBuilder asyncHDF5TaxaWrites(int maxQueuedTaxa) {
+        if ((myBuildType != BuildType.TAXA_INC) || (isHDF5 == false)) {
+            throw new IllegalArgumentException("GenotypeTableBuilder: asyncHDF5TaxaWrites: can only be used with HDF5 getTaxaIncremental");
+        }
+        if (maxQueuedTaxa < 1) {
+            throw new IllegalArgumentException("GenotypeTableBuilder: asyncHDF5TaxaWrites: max queued taxa must be at least 1: " + maxQueuedTaxa);
+        }
+        if (myAsyncWriter == null) {
+            myAsyncWriter = new AsyncTaxaWriter(maxQueuedTaxa);
+        }
+        return this;
+    }
+
+    /**
+     * Returns statistics of the asynchronous HDF5 writer: taxa queued now,
+     * maximum queued, taxa and bytes written, milliseconds spent writing, and
+     * milliseconds addTaxon() waited on a full queue (backpressure). Empty if
+     * asyncHDF5TaxaWrites() wasn't used.
+     *
+     * @return writer statistics
+     */
+    public Map<String, Long> asyncWriteStatistics() {
+        if (myAsyncWriter == null) {
+            return new LinkedHashMap<>();
+        }
+        return myAsyncWriter.statistics();
+    }
+
     /**
      * Set the builder so that when built it will sort the taxa
      */
@@ -624,6 +695,19 @@ public class GenotypeTableBuilder {
         return this;
     }
 
+    /**
+     * Set the builder so that when an HDF5 file is built, a site-major copy of
+     * the genotypes is also written. This makes reading whole sites (i.e.
+     * genotypeForAllTaxa()) much faster for files with many taxa.
+     */
+    public GenotypeTableBuilder siteMajorGenotypes() {
+        if (isHDF5 == false) {
+            throw new IllegalArgumentException("GenotypeTableBuilder: siteMajorGenotypes: can only be used with HDF5");
+        }
+        myWriteSiteMajor = true;
+        return this;
+    }
+
     /**
      * Finishes building the GenotypeTable. For HDF5 files it locks the taxa and
      * genotype modules so that cannot be modified again.
@@ -631,6 +715,9 @@ public class GenotypeTableBuilder {
      * @return a genotype table
      */
     public GenotypeTable build() {
+        if (myAsyncWriter != null) {
+            myAsyncWriter.finish();
+        }
         if (isHDF5) {
             switch (myBuildType) {
                 case TAXA_INC: {
@@ -645,6 +732,9 @@ public class GenotypeTableBuilder {
             HDF5Utils.lockHDF5TaxaModule(writer);
             String name = writer.file().getFile().getAbsolutePath();
             annotateHDF5File(writer);
+            if (myWriteSiteMajor) {
+                HDF5Utils.writeHDF5SiteMajorGenotypes(writer);
+            }
             HDF5Utils.writeHDF5Annotation(writer, Tassel5HDF5Constants.ROOT, myAnnotationBuilder.build());
             HDF5Utils.lockHDF5GenotypeModule(writer);
             writer.close();
@@ -708,6 +798,9 @@ public class GenotypeTableBuilder {
         if (isHDF5 == false) {
             throw new UnsupportedOperationException("Only a HDF5 GenotypeTableBuilder can be closed");
         }
+        if (myAsyncWriter != null) {
+            myAsyncWriter.finish();
+        }
         taxaListBuilder = null;
         writer.close();
     }
@@ -899,6 +992,139 @@ public class GenotypeTableBuilder {
     public static void annotateHDF5FileWithRefAllele(IHDF5Writer writer, byte[] refAlleles) {
     }
 
+    private static final class TaxonToWrite {
+
+        private final Taxon myTaxon;
+        private final byte[] myGenotypes;
+        private final byte[][] myDepth;
+
+        private TaxonToWrite(Taxon taxon, byte[] genotypes, byte[][] depth) {
+            myTaxon = taxon;
+            myGenotypes = genotypes;
+            myDepth = depth;
+        }
+
+        private long numBytes() {
+            long result = myGenotypes.length;
+            if (myDepth != null) {
+                for (byte[] current : myDepth) {
+                    result += current.length;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Single thread that writes queued taxa to the HDF5 file, since the HDF5
+     * writer can only be used by one thread at a time. Compression happens in
+     * the HDF5 library as the data is written.
+     */
+    private class AsyncTaxaWriter {
+
+        private final BlockingQueue<TaxonToWrite> myQueue;
+        private final Thread myThread;
+        private volatile Throwable myError = null;
+        private volatile boolean myFinished = false;
+        private final AtomicInteger myMaxQueueDepth = new AtomicInteger();
+        private final AtomicLong myNumTaxaWritten = new AtomicLong();
+        private final AtomicLong myNumBytesWritten = new AtomicLong();
+        private final AtomicLong myWriteNanos = new AtomicLong();
+        private final AtomicLong myWaitNanos = new AtomicLong();
+
+        private AsyncTaxaWriter(int maxQueuedTaxa) {
+            myQueue = new ArrayBlockingQueue<>(maxQueuedTaxa);
+            myThread = new Thread(this::writeTaxa, "GenotypeTableBuilder HDF5 Writer");
+            myThread.setDaemon(true);
+            myThread.start();
+        }
+
+        private void add(Taxon taxon, byte[] genos, byte[][] depth) {
+            checkFinished(taxon);
+            checkError();
+            TaxonToWrite current = new TaxonToWrite(taxon, genos, depth);
+            if (!myQueue.offer(current)) {
+                long start = System.nanoTime();
+                try {
+                    while (!myQueue.offer(current, 1, TimeUnit.SECONDS)) {
+                        checkError();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("GenotypeTableBuilder: addTaxon: interrupted waiting to queue taxon: " + taxon.getName());
+                } finally {
+                    myWaitNanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+            myMaxQueueDepth.accumulateAndGet(myQueue.size(), Math::max);
+            // finish() may have been called while queuing. If so, this taxon won't be written.
+            if (myFinished && myQueue.remove(current)) {
+                checkFinished(taxon);
+            }
+        }
+
+        private void checkFinished(Taxon taxon) {
+            if (myFinished) {
+                throw new IllegalStateException("GenotypeTableBuilder: addTaxon: can't add taxon: " + taxon.getName() + " after build() or closeUnfinished()");
+            }
+        }
+
+        private void writeTaxa() {
+            try {
+                while (true) {
+                    TaxonToWrite current = myQueue.take();
+                    if (current == FINISHED_WRITING) {
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    addOrMergeTaxonInHDF5(current.myTaxon, current.myGenotypes, current.myDepth);
+                    myWriteNanos.addAndGet(System.nanoTime() - start);
+                    myNumTaxaWritten.incrementAndGet();
+                    myNumBytesWritten.addAndGet(current.numBytes());
+                }
+            } catch (Throwable e) {
+                myLogger.error(e.getMessage(), e);
+                myError = e;
+                myQueue.clear();
+            }
+        }
+
+        private void checkError() {
+            if (myError != null) {
+                throw new IllegalStateException("GenotypeTableBuilder: problem writing taxa to HDF5: " + myError.getMessage(), myError);
+            }
+        }
+
+        /**
+         * Waits until all queued taxa are written.
+         */
+        private void finish() {
+            myFinished = true;
+            try {
+                while (myThread.isAlive() && !myQueue.offer(FINISHED_WRITING, 1, TimeUnit.SECONDS)) {
+                    // writer thread still busy
+                }
+                myThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("GenotypeTableBuilder: finish: interrupted waiting for taxa to be written");
+            }
+            checkError();
+            myLogger.info("GenotypeTableBuilder: HDF5 writer statistics: " + statistics());
+        }
+
+        private Map<String, Long> statistics() {
+            Map<String, Long> result = new LinkedHashMap<>();
+            result.put("queueDepth", (long) myQueue.size());
+            result.put("maxQueueDepth", (long) myMaxQueueDepth.get());
+            result.put("taxaWritten", myNumTaxaWritten.get());
+            result.put("bytesWritten", myNumBytesWritten.get());
+            result.put("writeMillis", TimeUnit.NANOSECONDS.toMillis(myWriteNanos.get()));
+            result.put("waitMillis", TimeUnit.NANOSECONDS.toMillis(myWaitNanos.get()));
+            return result;
+        }
+    }
+
     private static enum BuildType {
 
         TAXA_INC, SITE_INC
@@ -98,9 +98,7 @@ public class Byte2DBuilder {
         if (myIsHDF5) {
             throw new UnsupportedOperationException();
         } else {
-            for (int s = 0; s < values.length; s++) {
-                myValues.set(taxon, s + siteOffset, values[s]);
-            }
+            myValues.arraycopy(taxon, values, siteOffset);
         }
 
         return this;
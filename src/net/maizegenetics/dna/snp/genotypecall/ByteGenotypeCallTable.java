@@ -79,7 +79,8 @@ class ByteGenotypeCallTable extends AbstractGenotypeCallTable {
             myGenotype = mySiteInnerLoop;
         } else {
             if (myTaxonInnerLoop == null) {
-                myTaxonInnerLoop = SuperByteMatrixBuilder.getInstanceTranspose(mySiteInnerLoop);
+                // Transposed lazily, as only some sites may be accessed
+                myTaxonInnerLoop = SuperByteMatrixBuilder.getInstanceTransposeLazy(mySiteInnerLoop);
             }
             myGenotype = myTaxonInnerLoop;
         }
@@ -7,18 +7,22 @@ import ch.systemsx.cisd.hdf5.HDF5Factory;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
 import net.maizegenetics.dna.snp.GenotypeTable;
 import net.maizegenetics.dna.snp.GenotypeTableUtils;
 import net.maizegenetics.dna.snp.NucleotideAlignmentConstants;
 import net.maizegenetics.dna.snp.Translate;
 import net.maizegenetics.dna.snp.TranslateBuilder;
+import net.maizegenetics.prefs.TasselPrefs;
 import net.maizegenetics.util.SuperByteMatrix;
 import net.maizegenetics.util.SuperByteMatrixBuilder;
 import net.maizegenetics.util.Tuple;
@@ -36,12 +40,61 @@ public class GenotypeCallTableBuilder {
 
     private static Logger myLogger = LogManager.getLogger(GenotypeCallTableBuilder.class);
 
+    private static volatile long myHDF5CacheSizeInBytes = TasselPrefs.getAlignmentHDF5CacheSize();
+    private static volatile int myHDF5NumBlocksToPrefetch = Math.max(0, TasselPrefs.getAlignmentHDF5PrefetchBlocks());
+
+    // Only one of myGenotype and myPackedGenotype is non-null
     private SuperByteMatrix myGenotype;
+    private PackedNucleotideGenotypeCallTable.Builder myPackedGenotype;
+    private final boolean myTranspose;
     private boolean myIsPhased = false;
     private String[][] myAlleleEncodings = NucleotideAlignmentConstants.NUCLEOTIDE_ALLELES;
+    private boolean myPackGenotypes = true;
 
     private GenotypeCallTableBuilder(SuperByteMatrix genotype) {
         myGenotype = genotype;
+        myTranspose = false;
+    }
+
+    private GenotypeCallTableBuilder(int numTaxa, int numSites, boolean transpose) {
+        myTranspose = transpose;
+        if (PackedNucleotideGenotypeCallTable.canPack(numTaxa, numSites)) {
+            myPackedGenotype = new PackedNucleotideGenotypeCallTable.Builder(numTaxa, numSites);
+        } else {
+            myGenotype = createMatrix(numTaxa, numSites, transpose);
+        }
+    }
+
+    private static SuperByteMatrix createMatrix(int numTaxa, int numSites, boolean transpose) {
+        SuperByteMatrix matrix;
+        if (transpose) {
+            matrix = SuperByteMatrixBuilder.getInstanceTranspose(numTaxa, numSites);
+        } else {
+            matrix = SuperByteMatrixBuilder.getInstance(numTaxa, numSites);
+        }
+        matrix.setAll(GenotypeTable.UNKNOWN_DIPLOID_ALLELE);
+        return matrix;
+    }
+
+    /**
+     * Moves genotypes set so far from the packed store to a SuperByteMatrix.
+     * Used when genotypes won't be built as a
+     * PackedNucleotideGenotypeCallTable.
+     */
+    private void unpack() {
+        if (myPackedGenotype == null) {
+            return;
+        }
+        PackedNucleotideGenotypeCallTable.Builder packed = myPackedGenotype;
+        SuperByteMatrix matrix = createMatrix(packed.numTaxa(), packed.numSites(), myTranspose);
+        int numSites = packed.numSites();
+        IntStream.range(0, packed.numTaxa()).parallel().forEach(t -> {
+            for (int s = 0; s < numSites; s++) {
+                matrix.set(t, s, packed.get(t, s));
+            }
+        });
+        myGenotype = matrix;
+        myPackedGenotype = null;
     }
 
     /**
@@ -69,9 +122,7 @@ public class GenotypeCallTableBuilder {
      * @return Genotype Builder
      */
     public static GenotypeCallTableBuilder getInstanceTranspose(int numTaxa, int numSites) {
-        SuperByteMatrix matrix = SuperByteMatrixBuilder.getInstanceTranspose(numTaxa, numSites);
-        matrix.setAll(GenotypeTable.UNKNOWN_DIPLOID_ALLELE);
-        return new GenotypeCallTableBuilder(matrix);
+        return new GenotypeCallTableBuilder(numTaxa, numSites, true);
     }
 
     /**
@@ -85,9 +136,7 @@ public class GenotypeCallTableBuilder {
      * @return Genotype Builder
      */
     public static GenotypeCallTableBuilder getUnphasedNucleotideGenotypeBuilder(int numTaxa, int numSites) {
-        SuperByteMatrix matrix = SuperByteMatrixBuilder.getInstance(numTaxa, numSites);
-        matrix.setAll(GenotypeTable.UNKNOWN_DIPLOID_ALLELE);
-        return new GenotypeCallTableBuilder(matrix);
+        return new GenotypeCallTableBuilder(numTaxa, numSites, false);
     }
 
     public static Tuple<GenotypeCallTable, Translate> getFilteredInstance(GenotypeCallTable genotype, Translate translate) {
@@ -161,12 +210,20 @@ public class GenotypeCallTableBuilder {
     }
 
     public GenotypeCallTableBuilder setBase(int taxon, int site, byte value) {
-        myGenotype.set(taxon, site, value);
+        if (myPackedGenotype != null) {
+            myPackedGenotype.set(taxon, site, value);
+        } else {
+            myGenotype.set(taxon, site, value);
+        }
         return this;
     }
 
     public GenotypeCallTableBuilder setBaseRangeForTaxon(int taxon, int startSite, byte[] value) {
-        myGenotype.arraycopy(taxon, value, startSite);
+        if (myPackedGenotype != null) {
+            myPackedGenotype.setRange(taxon, startSite, value);
+        } else {
+            myGenotype.arraycopy(taxon, value, startSite);
+        }
         return this;
     }
 
@@ -232,29 +289,82 @@ public class GenotypeCallTableBuilder {
 
     public GenotypeCallTableBuilder alleleEncodings(String[][] alleleEncodings) {
         myAlleleEncodings = alleleEncodings;
+        if (!NucleotideAlignmentConstants.isNucleotideEncodings(alleleEncodings)) {
+            unpack();
+        }
+        return this;
+    }
+
+    /**
+     * Whether to store nucleotide genotypes in 2 bits per call when sites have
+     * no more than three distinct diploid values (see
+     * PackedNucleotideGenotypeCallTable). Default is true.
+     *
+     * @param packGenotypes true to pack genotypes when possible
+     *
+     * @return this builder
+     */
+    public GenotypeCallTableBuilder packGenotypes(boolean packGenotypes) {
+        myPackGenotypes = packGenotypes;
+        if (!packGenotypes) {
+            unpack();
+        }
         return this;
     }
 
     public int getTaxaCount() {
+        if (myPackedGenotype != null) {
+            return myPackedGenotype.numTaxa();
+        }
         return myGenotype.getNumRows();
     }
 
     public int getSiteCount() {
+        if (myPackedGenotype != null) {
+            return myPackedGenotype.numSites();
+        }
         return myGenotype.getNumColumns();
     }
 
     public void reorderTaxa(int[] newIndices) {
-        myGenotype.reorderRows(newIndices);
+        if (myPackedGenotype != null) {
+            myPackedGenotype.reorderTaxa(newIndices);
+        } else {
+            myGenotype.reorderRows(newIndices);
+        }
     }
 
     public void reorderPositions(int[] newIndices) {
-        myGenotype.reorderColumns(newIndices);
+        if (myPackedGenotype != null) {
+            myPackedGenotype.reorderSites(newIndices);
+        } else {
+            myGenotype.reorderColumns(newIndices);
+        }
     }
 
     public GenotypeCallTable build() {
+        if (myPackedGenotype != null) {
+            // Only nucleotide encodings with packing are still packed
+            GenotypeCallTable packed = myPackedGenotype.build(myIsPhased);
+            if (packed != null) {
+                myPackedGenotype = null;
+                return packed;
+            }
+            unpack();
+            SuperByteMatrix temp = myGenotype;
+            myGenotype = null;
+            return new NucleotideGenotypeCallTable(temp, myIsPhased);
+        }
         SuperByteMatrix temp = myGenotype;
         myGenotype = null;
         if (NucleotideAlignmentConstants.isNucleotideEncodings(myAlleleEncodings)) {
+            if (myPackGenotypes) {
+                GenotypeCallTable packed = PackedNucleotideGenotypeCallTable.getInstance(temp, myIsPhased);
+                if (packed != null) {
+                    SuperByteMatrixBuilder.release(temp);
+                    return packed;
+                }
+            }
             return new NucleotideGenotypeCallTable(temp, myIsPhased);
         } else {
             return new ByteGenotypeCallTable(temp, myIsPhased, myAlleleEncodings);
@@ -262,10 +372,55 @@ public class GenotypeCallTableBuilder {
     }
 
     public static GenotypeCallTable buildHDF5(String filename) {
-        return HDF5ByteGenotypeCallTable.getInstance(HDF5Factory.openForReading(filename));
+        return buildHDF5(HDF5Factory.openForReading(filename));
     }
 
     public static GenotypeCallTable buildHDF5(IHDF5Reader reader) {
-        return HDF5ByteGenotypeCallTable.getInstance(reader);
+        return HDF5ByteGenotypeCallTable.getInstance(reader, myHDF5CacheSizeInBytes, myHDF5NumBlocksToPrefetch);
+    }
+
+    /**
+     * Sets maximum bytes of genotypes cached by HDF5 genotype call tables
+     * built after this call. Zero or less uses the default (the smaller of a
+     * third of max memory or one site block for all taxa per processor). The
+     * value is also stored in TasselPrefs.
+     *
+     * @param cacheSizeInBytes cache size in bytes
+     */
+    public static void setHDF5CacheSize(long cacheSizeInBytes) {
+        myHDF5CacheSizeInBytes = cacheSizeInBytes;
+        TasselPrefs.putAlignmentHDF5CacheSize(cacheSizeInBytes);
+    }
+
+    /**
+     * Sets number of site blocks (65536 sites) that HDF5 genotype call tables
+     * built after this call read ahead when sequential access is detected.
+     * Zero disables read ahead. The value is also stored in TasselPrefs.
+     *
+     * @param numBlocks number of site blocks
+     */
+    public static void setHDF5NumBlocksToPrefetch(int numBlocks) {
+        if (numBlocks < 0) {
+            throw new IllegalArgumentException("GenotypeCallTableBuilder: setHDF5NumBlocksToPrefetch: can't be negative: " + numBlocks);
+        }
+        myHDF5NumBlocksToPrefetch = numBlocks;
+        TasselPrefs.putAlignmentHDF5PrefetchBlocks(numBlocks);
+    }
+
+    /**
+     * Returns genotype cache statistics (hits, misses, prefetched,
+     * cachedBlocks, and the same for site-major tiles) for HDF5 genotype call
+     * tables. Returns empty map for other genotype call tables.
+     *
+     * @param genotype genotype call table
+     *
+     * @return cache statistics
+     */
+    public static Map<String, Long> hdf5CacheStatistics(GenotypeCallTable genotype) {
+        if (genotype instanceof HDF5ByteGenotypeCallTable) {
+            return ((HDF5ByteGenotypeCallTable) genotype).cacheStatistics();
+        } else {
+            return Collections.emptyMap();
+        }
     }
 }
@@ -6,6 +6,7 @@ package net.maizegenetics.dna.snp.genotypecall;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 
 import net.maizegenetics.dna.snp.GenotypeTable;
@@ -15,7 +16,14 @@ import net.maizegenetics.taxa.TaxaListBuilder;
 import net.maizegenetics.util.Tassel5HDF5Constants;
 import net.maizegenetics.util.HDF5Utils;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.Spliterator;
 import java.util.stream.Stream;
@@ -28,6 +36,16 @@ import org.apache.logging.log4j.Logger;
  * HDF5 implementation of GenotypeTable. Uses caching of GenotypeTable,
  * alleleCounts, MAF, and siteCoverage
  *
+ * Genotypes are cached in blocks of 65536 sites per taxon. When a thread reads
+ * consecutive site blocks (through genotypeForAllTaxa() or the spliterator),
+ * the next blocks are read ahead on a background thread, so the scan doesn't
+ * wait on HDF5 reads.
+ *
+ * If the file has the site-major copy of the genotypes (see
+ * HDF5Utils.writeHDF5SiteMajorGenotypes()), whole sites are read from it in
+ * tiles of 256 sites for all taxa. genotypeForAllTaxa() always uses it, and
+ * genotype() uses it after transposeData(false) (taxa inner loop).
+ *
  * @author Ed Buckler
  * @author Terry Casstevens
  */
@@ -45,6 +63,41 @@ class HDF5ByteGenotypeCallTable extends AbstractGenotypeCallTable {
     public static final int SITE_BLOCK_MASK = ~(HDF5_GENOTYPE_BLOCK_SIZE - 1);
     private final IHDF5Reader myHDF5Reader;
 
+    /**
+     * Default number of site blocks to read ahead when sequential access is
+     * detected.
+     */
+    static final int DEFAULT_NUM_BLOCKS_TO_PREFETCH = 2;
+
+    private static final ExecutorService PREFETCH_POOL = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "HDF5ByteGenotypeCallTable prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int myNumBlocksToPrefetch;
+    private final Set<Long> myScheduledPrefetches = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<int[]> myLastSiteBlock = ThreadLocal.withInitial(() -> new int[]{Integer.MIN_VALUE});
+    private final LongAdder myNumPrefetched = new LongAdder();
+    private final LongAdder myNumSiteTilesPrefetched = new LongAdder();
+
+    private static final int SITE_TILE_SHIFT = 8;
+    private static final int SITE_TILE_SIZE = 1 << SITE_TILE_SHIFT;
+    private final boolean myHasSiteMajor;
+    private volatile boolean myUseSiteMajor = false;
+    private final ThreadLocal<int[]> myLastSiteTile = ThreadLocal.withInitial(() -> new int[]{Integer.MIN_VALUE});
+    private final LoadingCache<Integer, byte[][]> mySiteTileCache; //key = site >>> SITE_TILE_SHIFT, value = [site][taxon]
+    private final CacheLoader<Integer, byte[][]> mySiteTileLoader = new CacheLoader<Integer, byte[][]>() {
+        @Override
+        public byte[][] load(Integer key) {
+            long startSite = (long) key << SITE_TILE_SHIFT;
+            int numSites = (int) Math.min(SITE_TILE_SIZE, mySiteCount - startSite);
+            synchronized (myHDF5Reader) {
+                return myHDF5Reader.int8().readMatrixBlockWithOffset(Tassel5HDF5Constants.GENOTYPES_SITE_MAJOR_CALLS, numSites, myTaxaCount, startSite, 0L);
+            }
+        }
+    };
+
     private final LoadingCache<Long, byte[]> myGenoCache;
     private final CacheLoader<Long, byte[]> myGenoLoader = new CacheLoader<Long, byte[]>() {
         @Override
@@ -144,7 +197,7 @@ class HDF5ByteGenotypeCallTable extends AbstractGenotypeCallTable {
         return genotypePaths[taxon];
     }
 
-    private HDF5ByteGenotypeCallTable(IHDF5Reader reader, int numTaxa, int numSites, boolean phased, String[][] alleleEncodings) {
+    private HDF5ByteGenotypeCallTable(IHDF5Reader reader, int numTaxa, int numSites, boolean phased, String[][] alleleEncodings, long cacheSizeInBytes, int numBlocksToPrefetch) {
         super(numTaxa, numSites, phased, alleleEncodings);
         genotypePaths = new String[numTaxa];
         TaxaList tL = new TaxaListBuilder().buildFromHDF5Genotypes(reader);  //not the most efficient thing to do, but ensures sort is the same.
@@ -152,37 +205,209 @@ class HDF5ByteGenotypeCallTable extends AbstractGenotypeCallTable {
             genotypePaths[i] = Tassel5HDF5Constants.getGenotypesCallsPath(tL.taxaName(i));
         }
         myHDF5Reader = reader;
-        long oneThirdMemory = Runtime.getRuntime().maxMemory() / 196608l;
-        long oneColumnBlockForEachProcess = numTaxa * Runtime.getRuntime().availableProcessors();
+        long blockForAllTaxa = (long) numTaxa * (long) HDF5_GENOTYPE_BLOCK_SIZE;
+        if (cacheSizeInBytes <= 0) {
+            long oneThirdMemory = Runtime.getRuntime().maxMemory() / 3l;
+            long oneColumnBlockForEachProcess = blockForAllTaxa * (Runtime.getRuntime().availableProcessors() + Math.max(0, numBlocksToPrefetch));
+            cacheSizeInBytes = Math.min(oneThirdMemory, oneColumnBlockForEachProcess);
+        }
+        //
+        // Read ahead only as many site blocks (for all taxa) as fit in the
+        // cache along with the block currently used.
+        //
+        myNumBlocksToPrefetch = (int) Math.max(0, Math.min(numBlocksToPrefetch, cacheSizeInBytes / Math.max(1, blockForAllTaxa) - 1));
         myGenoCache = CacheBuilder.newBuilder()
-                .maximumSize(Math.min(oneThirdMemory, oneColumnBlockForEachProcess))
+                .maximumWeight(cacheSizeInBytes)
+                .weigher((Long key, byte[] value) -> value.length)
+                .recordStats()
                 .build(myGenoLoader);
         mySiteAnnoCache = CacheBuilder.newBuilder()
                 .maximumSize(150)
                 .build(siteAnnotLoader);
+        myHasSiteMajor = HDF5Utils.doesHDF5SiteMajorGenotypesExist(reader, numTaxa, numSites);
+        long tileForAllTaxa = (long) numTaxa * (long) SITE_TILE_SIZE;
+        mySiteTileCache = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(tileForAllTaxa, Math.min(Runtime.getRuntime().maxMemory() / 8L, tileForAllTaxa * 64L)))
+                .weigher((Integer key, byte[][] value) -> value.length * myTaxaCount)
+                .recordStats()
+                .build(mySiteTileLoader);
+        myLogger.debug("HDF5ByteGenotypeCallTable: cache size (bytes): " + cacheSizeInBytes + "  num blocks to prefetch: " + myNumBlocksToPrefetch);
     }
 
     static HDF5ByteGenotypeCallTable getInstance(IHDF5Reader reader) {
+        return getInstance(reader, -1, DEFAULT_NUM_BLOCKS_TO_PREFETCH);
+    }
+
+    /**
+     * @param reader HDF5 reader
+     * @param cacheSizeInBytes maximum bytes of genotypes to cache (zero or
+     * less for default)
+     * @param numBlocksToPrefetch number of site blocks to read ahead when
+     * sequential access is detected (zero to disable)
+     *
+     * @return genotype call table
+     */
+    static HDF5ByteGenotypeCallTable getInstance(IHDF5Reader reader, long cacheSizeInBytes, int numBlocksToPrefetch) {
         if (!HDF5Utils.isHDF5GenotypeLocked(reader)) {
             throw new IllegalStateException("The Genotype module of this HDF5 file hasn't been locked, and therefore can't be opened for reading. This could occur if the file was created using the -ko (keep open) option when running the plugin ProductionSNPCallerPluginV2. Please check your file, close if appropriate, and try again.");
         }
         int numTaxa = reader.int32().getAttr(Tassel5HDF5Constants.GENOTYPES_ATTRIBUTES_PATH, Tassel5HDF5Constants.GENOTYPES_NUM_TAXA);
         int numSites = reader.int32().getAttr(Tassel5HDF5Constants.POSITION_ATTRIBUTES_PATH, Tassel5HDF5Constants.POSITION_NUM_SITES);
         String[][] alleleEncodings = NucleotideAlignmentConstants.NUCLEOTIDE_ALLELES;
-        return new HDF5ByteGenotypeCallTable(reader, numTaxa, numSites, false, alleleEncodings);
+        return new HDF5ByteGenotypeCallTable(reader, numTaxa, numSites, false, alleleEncodings, cacheSizeInBytes, numBlocksToPrefetch);
     }
 
     @Override
     public byte genotype(int taxon, int site) {
+        if (myUseSiteMajor) {
+            return siteTile(site)[site & (SITE_TILE_SIZE - 1)][taxon];
+        }
+        return genotypeBlock(taxon, site)[site % HDF5_GENOTYPE_BLOCK_SIZE];
+    }
+
+    private byte[][] siteTile(int site) {
+        int tile = site >>> SITE_TILE_SHIFT;
+        int[] lastSiteTile = myLastSiteTile.get();
+        if (lastSiteTile[0] != tile) {
+            if (lastSiteTile[0] == tile - 1) {
+                for (int b = tile + 1; b <= tile + myNumBlocksToPrefetch; b++) {
+                    prefetchSiteTile(b);
+                }
+            }
+            lastSiteTile[0] = tile;
+        }
+        try {
+            return mySiteTileCache.get(tile);
+        } catch (ExecutionException ex) {
+            myLogger.error(ex.getMessage(), ex);
+            throw new IllegalStateException("HDF5ByteGenotypeCallTable: siteTile: Error getting site tile from cache: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Schedules reading given site tile of the site-major genotypes on the
+     * prefetch thread.
+     */
+    private void prefetchSiteTile(int tile) {
+
+        if (((long) tile << SITE_TILE_SHIFT) >= mySiteCount) {
+            return;
+        }
+
+        long scheduledKey = -1L - tile;
+        if (!myScheduledPrefetches.add(scheduledKey)) {
+            return;
+        }
+
+        PREFETCH_POOL.execute(() -> {
+            try {
+                if (!mySiteTileCache.asMap().containsKey(tile)) {
+                    mySiteTileCache.asMap().putIfAbsent(tile, mySiteTileLoader.load(tile));
+                    myNumSiteTilesPrefetched.increment();
+                }
+            } catch (Exception e) {
+                myLogger.debug(e.getMessage(), e);
+            } finally {
+                myScheduledPrefetches.remove(scheduledKey);
+            }
+        });
+
+    }
+
+    private byte[] genotypeBlock(int taxon, int site) {
+        long key = getCacheKey(taxon, site);
         try {
-            byte[] data = myGenoCache.get(getCacheKey(taxon, site));
-            return data[site % HDF5_GENOTYPE_BLOCK_SIZE];
+            return myGenoCache.get(key);
         } catch (ExecutionException ex) {
             myLogger.error(ex.getMessage(), ex);
             throw new IllegalStateException("HDF5ByteGenotyeCallTable: getBase: Error getting base from cache: " + ex.getMessage());
         }
     }
 
+    @Override
+    public byte[] genotypeForAllTaxa(int site) {
+        if (myHasSiteMajor) {
+            return siteTile(site)[site & (SITE_TILE_SIZE - 1)].clone();
+        }
+        int siteBlock = site >>> SHIFT_AMOUNT;
+        int[] lastSiteBlock = myLastSiteBlock.get();
+        if (lastSiteBlock[0] != siteBlock) {
+            if (lastSiteBlock[0] == siteBlock - 1) {
+                for (int b = siteBlock + 1; b <= siteBlock + myNumBlocksToPrefetch; b++) {
+                    prefetch(-1, b);
+                }
+            }
+            lastSiteBlock[0] = siteBlock;
+        }
+        int index = site % HDF5_GENOTYPE_BLOCK_SIZE;
+        byte[] result = new byte[myTaxaCount];
+        for (int t = 0; t < myTaxaCount; t++) {
+            result[t] = genotypeBlock(t, site)[index];
+        }
+        return result;
+    }
+
+    /**
+     * Schedules reading given site block on the prefetch thread.
+     *
+     * @param taxon taxon or -1 for all taxa
+     * @param siteBlock site block
+     */
+    private void prefetch(int taxon, int siteBlock) {
+
+        if ((myNumBlocksToPrefetch == 0) || (siteBlock < 0) || ((long) siteBlock << SHIFT_AMOUNT) >= mySiteCount) {
+            return;
+        }
+
+        long scheduledKey = ((long) (taxon + 1) << 33) + siteBlock;
+        if (!myScheduledPrefetches.add(scheduledKey)) {
+            return;
+        }
+
+        int startSite = siteBlock << SHIFT_AMOUNT;
+        int startTaxon = (taxon == -1) ? 0 : taxon;
+        int endTaxon = (taxon == -1) ? myTaxaCount : taxon + 1;
+        PREFETCH_POOL.execute(() -> {
+            try {
+                for (int t = startTaxon; t < endTaxon; t++) {
+                    long key = getCacheKey(t, startSite);
+                    if (!myGenoCache.asMap().containsKey(key)) {
+                        myGenoCache.asMap().putIfAbsent(key, myGenoLoader.load(key));
+                        myNumPrefetched.increment();
+                    }
+                }
+            } catch (Exception e) {
+                myLogger.debug(e.getMessage(), e);
+            } finally {
+                myScheduledPrefetches.remove(scheduledKey);
+            }
+        });
+
+    }
+
+    /**
+     * Returns genotype cache statistics: hits, misses, and blocks read ahead
+     * by the prefetch thread. Reads of the site-major genotypes have their
+     * own statistics (siteTile...). Read ahead isn't counted as hits or
+     * misses.
+     *
+     * @return cache statistics
+     */
+    Map<String, Long> cacheStatistics() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        CacheStats blockStats = myGenoCache.stats();
+        result.put("hits", blockStats.hitCount());
+        result.put("misses", blockStats.missCount());
+        result.put("prefetched", myNumPrefetched.sum());
+        result.put("cachedBlocks", myGenoCache.size());
+        CacheStats tileStats = mySiteTileCache.stats();
+        result.put("siteTileHits", tileStats.hitCount());
+        result.put("siteTileMisses", tileStats.missCount());
+        result.put("siteTilesPrefetched", myNumSiteTilesPrefetched.sum());
+        result.put("cachedSiteTiles", mySiteTileCache.size());
+        return result;
+    }
+
     @Override
     public String genotypeAsString(int taxon, int site) {
         return NucleotideAlignmentConstants.getNucleotideIUPAC(genotype(taxon, site));
@@ -215,14 +440,18 @@ class HDF5ByteGenotypeCallTable extends AbstractGenotypeCallTable {
         }
     }
 
+    /**
+     * Genotypes are read from the per taxon calls when siteInnerLoop is true,
+     * and from the site-major copy (if the file has one) when it's false.
+     */
     @Override
     public void transposeData(boolean siteInnerLoop) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        myUseSiteMajor = myHasSiteMajor && !siteInnerLoop;
     }
 
     @Override
     public boolean isSiteOptimized() {
-        return false;
+        return myUseSiteMajor;
     }
 
     @Override
@@ -251,35 +480,37 @@ class HDF5ByteGenotypeCallTable extends AbstractGenotypeCallTable {
 
             for (; myTaxaOrigin < myTaxaFence; myTaxaOrigin++) {
                 while (mySiteOrigin < myNumSites) {
-                    try {
-                        byte[] data = myGenoCache.get(getCacheKey(myTaxaOrigin, mySiteOrigin));
-                        int startIndex = mySiteOrigin % HDF5_GENOTYPE_BLOCK_SIZE;
-                        int endIndex = data.length;
-                        for (int i = startIndex; i < endIndex; i++) {
-                            action.accept(data[i]);
-                        }
-                        mySiteOrigin += endIndex - startIndex;
-                    } catch (ExecutionException ex) {
-                        myLogger.error(ex.getMessage(), ex);
-                        throw new IllegalStateException("HDF5ByteGenotyeCallTable: HDF5ByteGenotypeCallTableSpliterator: forEachRemaining: Error getting base from cache: " + ex.getMessage());
-                    }
-                }
-                mySiteOrigin = 0;
-            }
-            while (mySiteOrigin < mySiteFence) {
-                try {
-                    byte[] data = myGenoCache.get(getCacheKey(myTaxaOrigin, mySiteOrigin));
+                    byte[] data = nextBlock(myTaxaOrigin, myNumSites);
                     int startIndex = mySiteOrigin % HDF5_GENOTYPE_BLOCK_SIZE;
-                    int endIndex = Math.min(data.length, mySiteFence - mySiteOrigin);
+                    int endIndex = data.length;
                     for (int i = startIndex; i < endIndex; i++) {
                         action.accept(data[i]);
                     }
                     mySiteOrigin += endIndex - startIndex;
-                } catch (ExecutionException ex) {
-                    myLogger.error(ex.getMessage(), ex);
-                    throw new IllegalStateException("HDF5ByteGenotyeCallTable: HDF5ByteGenotypeCallTableSpliterator: forEachRemaining: Error getting base from cache: " + ex.getMessage());
                 }
+                mySiteOrigin = 0;
+            }
+            while (mySiteOrigin < mySiteFence) {
+                byte[] data = nextBlock(myTaxaOrigin, mySiteFence);
+                int startIndex = mySiteOrigin % HDF5_GENOTYPE_BLOCK_SIZE;
+                int endIndex = Math.min(data.length, mySiteFence - mySiteOrigin);
+                for (int i = startIndex; i < endIndex; i++) {
+                    action.accept(data[i]);
+                }
+                mySiteOrigin += endIndex - startIndex;
+            }
+        }
+
+        /**
+         * Returns block containing current site for given taxon, and reads
+         * ahead the following blocks of this taxon up to the site fence.
+         */
+        private byte[] nextBlock(int taxon, int siteFence) {
+            int siteBlock = mySiteOrigin >>> SHIFT_AMOUNT;
+            for (int b = siteBlock + 1; (b <= siteBlock + myNumBlocksToPrefetch) && ((long) b << SHIFT_AMOUNT) < siteFence; b++) {
+                prefetch(taxon, b);
             }
+            return genotypeBlock(taxon, mySiteOrigin);
         }
 
         @Override
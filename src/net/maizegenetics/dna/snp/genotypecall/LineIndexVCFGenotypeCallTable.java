@@ -0,0 +1,316 @@
+/*
+ *  LineIndexVCFGenotypeCallTable
+ */
+package net.maizegenetics.dna.snp.genotypecall;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.GenotypeTableUtils;
+import net.maizegenetics.dna.snp.NucleotideAlignmentConstants;
+import net.maizegenetics.dna.snp.io.LineIndex;
+import net.maizegenetics.dna.snp.io.VCFUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Genotype calls read on demand from a bgzipped VCF file using a LineIndex.
+ * Only the sites that are accessed are parsed. Sites are decoded in blocks
+ * of NUM_INTERVALS_PER_BLOCK index intervals, and decoded blocks are kept in
+ * a cache limited by size in bytes. Open readers are pooled (at most one per
+ * processor) until close().
+ */
+public class LineIndexVCFGenotypeCallTable extends AbstractGenotypeCallTable implements AutoCloseable {
+
+    private static final Logger myLogger = LogManager.getLogger(LineIndexVCFGenotypeCallTable.class);
+    private static final int NUM_VCF_NON_TAXA_HEADERS = 9;
+    private static final int REF_INDEX = 3;
+    private static final int ALT_INDEX = 4;
+    private static final int NUM_INTERVALS_PER_BLOCK = 64;
+    private static final int MAX_POOLED_READERS = Runtime.getRuntime().availableProcessors();
+
+    private final String myFilename;
+    private final LineIndex myIndex;
+    private final int myNumLinesPerInterval;
+    private final int mySitesPerBlock;
+    private final ConcurrentLinkedQueue<BlockCompressedInputStream> myReaders = new ConcurrentLinkedQueue<>();
+    private final LoadingCache<Integer, byte[][]> myBlockCache;
+    private volatile boolean myIsClosed = false;
+
+    private LineIndexVCFGenotypeCallTable(int numTaxa, int numSites, boolean phased, LineIndex index, String filename, long maxCacheBytes) {
+        super(numTaxa, numSites, phased, NucleotideAlignmentConstants.NUCLEOTIDE_ALLELES);
+        myIndex = index;
+        myNumLinesPerInterval = index.numLinesPerInterval();
+        mySitesPerBlock = myNumLinesPerInterval * NUM_INTERVALS_PER_BLOCK;
+        myFilename = filename;
+
+        myBlockCache = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(maxCacheBytes, 1L))
+                .weigher((Integer block, byte[][] genotypes) -> (int) Math.min(Integer.MAX_VALUE, (long) genotypes.length * (long) myTaxaCount))
+                .build(new CacheLoader<Integer, byte[][]>() {
+                    @Override
+                    public byte[][] load(Integer block) {
+                        return readBlock(block);
+                    }
+                });
+    }
+
+    /**
+     * Creates genotype call table with cache size of one fourth of the
+     * maximum memory.
+     *
+     * @param numTaxa number of taxa
+     * @param numSites number of sites (data lines in the index)
+     * @param phased whether phased
+     * @param index line index for the file
+     * @param filename bgzipped VCF file
+     *
+     * @return genotype call table
+     */
+    public static LineIndexVCFGenotypeCallTable getInstance(int numTaxa, int numSites, boolean phased, LineIndex index, String filename) {
+        return getInstance(numTaxa, numSites, phased, index, filename, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Creates genotype call table.
+     *
+     * @param numTaxa number of taxa
+     * @param numSites number of sites (data lines in the index)
+     * @param phased whether phased
+     * @param index line index for the file
+     * @param filename bgzipped VCF file
+     * @param maxCacheBytes maximum bytes of decoded genotypes to cache
+     *
+     * @return genotype call table
+     */
+    public static LineIndexVCFGenotypeCallTable getInstance(int numTaxa, int numSites, boolean phased, LineIndex index, String filename, long maxCacheBytes) {
+        if ((long) (numSites + index.numLinesPerInterval() - 1) / index.numLinesPerInterval() > index.numVirtualOffsets()) {
+            throw new IllegalArgumentException("LineIndexVCFGenotypeCallTable: getInstance: index has too few offsets for number of sites: " + numSites);
+        }
+        return new LineIndexVCFGenotypeCallTable(numTaxa, numSites, phased, index, filename, maxCacheBytes);
+    }
+
+    private byte[] site(int site) {
+        if ((site < 0) || (site >= mySiteCount)) {
+            throw new IndexOutOfBoundsException("LineIndexVCFGenotypeCallTable: site: " + site + " out of range: 0 to " + (mySiteCount - 1));
+        }
+        try {
+            return myBlockCache.getUnchecked(site / mySitesPerBlock)[site % mySitesPerBlock];
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof IllegalStateException) {
+                throw (IllegalStateException) e.getCause();
+            }
+            throw new IllegalStateException("LineIndexVCFGenotypeCallTable: site: problem reading site: " + site + ": " + e.getCause().getMessage());
+        }
+    }
+
+    private byte[][] readBlock(int block) {
+
+        int startSite = block * mySitesPerBlock;
+        int numSites = Math.min(mySitesPerBlock, mySiteCount - startSite);
+
+        BlockCompressedInputStream reader = getReader();
+        try {
+            reader.seek(myIndex.virtualOffset(startSite / myNumLinesPerInterval));
+            byte[][] result = new byte[numSites][];
+            for (int i = 0; i < numSites; i++) {
+                String line = reader.readLine();
+                if (line == null) {
+                    throw new IllegalStateException("LineIndexVCFGenotypeCallTable: readBlock: unexpected end of file: " + myFilename + " at site: " + (startSite + i));
+                }
+                result[i] = parseLine(line, myTaxaCount, startSite + i);
+            }
+            return result;
+        } catch (IOException e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("LineIndexVCFGenotypeCallTable: readBlock: problem reading: " + myFilename + ": " + e.getMessage());
+        } finally {
+            releaseReader(reader);
+        }
+
+    }
+
+    private BlockCompressedInputStream getReader() {
+        if (myIsClosed) {
+            throw new IllegalStateException("LineIndexVCFGenotypeCallTable: getReader: already closed: " + myFilename);
+        }
+        BlockCompressedInputStream reader = myReaders.poll();
+        if (reader == null) {
+            try {
+                reader = new BlockCompressedInputStream(new File(myFilename));
+            } catch (Exception e) {
+                myLogger.debug(e.getMessage(), e);
+                throw new IllegalStateException("LineIndexVCFGenotypeCallTable: getReader: problem opening: " + myFilename + ": " + e.getMessage());
+            }
+        }
+        return reader;
+    }
+
+    private void releaseReader(BlockCompressedInputStream reader) {
+        if (myIsClosed || (myReaders.size() >= MAX_POOLED_READERS)) {
+            closeReader(reader);
+        } else {
+            myReaders.add(reader);
+            // close() may have drained the pool before this was added
+            if (myIsClosed) {
+                closeReaders();
+            }
+        }
+    }
+
+    private void closeReaders() {
+        BlockCompressedInputStream reader;
+        while ((reader = myReaders.poll()) != null) {
+            closeReader(reader);
+        }
+    }
+
+    private void closeReader(BlockCompressedInputStream reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            myLogger.debug("closeReader: problem closing: " + myFilename + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Closes the pooled readers. Sites already cached can still be read, but
+     * reading other sites throws IllegalStateException.
+     */
+    @Override
+    public void close() {
+        myIsClosed = true;
+        closeReaders();
+    }
+
+    @Override
+    public byte genotype(int taxon, int site) {
+        return site(site)[taxon];
+    }
+
+    @Override
+    public byte[] genotypeForAllTaxa(int site) {
+        byte[] result = new byte[myTaxaCount];
+        System.arraycopy(site(site), 0, result, 0, myTaxaCount);
+        return result;
+    }
+
+    @Override
+    public String genotypeAsString(int taxon, int site) {
+        return NucleotideAlignmentConstants.getNucleotideIUPAC(genotype(taxon, site));
+    }
+
+    @Override
+    public String diploidAsString(int site, byte value) {
+        return NucleotideAlignmentConstants.getNucleotideIUPAC(value);
+    }
+
+    @Override
+    public void transposeData(boolean siteInnerLoop) {
+        // sites are always read together
+    }
+
+    @Override
+    public boolean isSiteOptimized() {
+        return true;
+    }
+
+    /**
+     * Parse line from VCF file to genotypes for a site. GT must be the first
+     * FORMAT field, as required by the VCF specification.
+     *
+     * @param input input line
+     * @param numTaxa number of taxa
+     * @param site site
+     *
+     * @return genotypes
+     */
+    private static byte[] parseLine(String input, int numTaxa, int site) {
+
+        int len = input.length();
+        int tabIndex = 0;
+        int offset = len + 1;
+        int refStart = 0;
+        int altStart = 0;
+        int altEnd = 0;
+        for (int i = 0; (tabIndex < NUM_VCF_NON_TAXA_HEADERS) && (i < len); i++) {
+            if (input.charAt(i) == '\t') {
+                tabIndex++;
+                if (tabIndex == REF_INDEX) {
+                    refStart = i + 1;
+                } else if (tabIndex == ALT_INDEX) {
+                    altStart = i + 1;
+                } else if (tabIndex == ALT_INDEX + 1) {
+                    altEnd = i;
+                }
+                offset = i + 1;
+            }
+        }
+        if (tabIndex < ALT_INDEX + 1) {
+            throw new IllegalStateException("LineIndexVCFGenotypeCallTable: Site: " + site + " has too few columns.");
+        }
+
+        byte[] alleles = VCFUtil.alleles(VCFUtil.knownVariants(input.substring(refStart, altStart - 1), input.substring(altStart, altEnd)));
+
+        byte[] data = new byte[numTaxa];
+        int p = (tabIndex == NUM_VCF_NON_TAXA_HEADERS) ? offset : len + 1;
+        for (int t = 0; t < numTaxa; t++) {
+
+            if (p > len) {
+                data[t] = GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+                continue;
+            }
+
+            int fieldEnd = input.indexOf('\t', p);
+            if (fieldEnd < 0) {
+                fieldEnd = len;
+            }
+
+            if ((fieldEnd == p) || (input.charAt(p) == '.')) {
+                data[t] = GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+                p = fieldEnd + 1;
+                continue;
+            }
+
+            int gtEnd = p;
+            while ((gtEnd < fieldEnd) && (input.charAt(gtEnd) != ':')) {
+                gtEnd++;
+            }
+            int a1;
+            int a2;
+            if (gtEnd - p == 1) {
+                a1 = input.charAt(p) - '0';
+                a2 = a1;
+            } else if (gtEnd - p >= 3) {
+                a1 = input.charAt(p) - '0';
+                a2 = input.charAt(p + 2) - '0';
+            } else {
+                throw new IllegalStateException("LineIndexVCFGenotypeCallTable: Site: " + site + " has unexpected genotype: " + input.substring(p, gtEnd));
+            }
+            if ((a1 >= alleles.length) || (a2 >= alleles.length)) {
+                throw new IllegalStateException("LineIndexVCFGenotypeCallTable: Site: " + site + " has allele ID larger than number of alleles: " + input.substring(p, gtEnd));
+            }
+            if ((a1 < 0) || (a2 < 0)) {
+                data[t] = GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+            } else {
+                data[t] = GenotypeTableUtils.getDiploidValue(alleles[a1], alleles[a2]);
+            }
+            p = fieldEnd + 1;
+
+        }
+
+        if (p <= len) {
+            throw new IllegalStateException("LineIndexVCFGenotypeCallTable: Site: " + site + " has too many values.");
+        }
+
+        return data;
+    }
+
+}
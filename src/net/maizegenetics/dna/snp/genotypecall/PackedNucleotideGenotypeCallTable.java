@@ -0,0 +1,585 @@
+/*
+ *  PackedNucleotideGenotypeCallTable
+ */
+package net.maizegenetics.dna.snp.genotypecall;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.GenotypeTableUtils;
+import net.maizegenetics.dna.snp.NucleotideAlignmentConstants;
+import net.maizegenetics.util.SuperByteMatrix;
+import net.maizegenetics.util.SuperByteMatrixBuilder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * In memory GenotypeCallTable for nucleotide data that stores each genotype in
+ * 2 bits. Each site has its own table of up to three diploid values (i.e. the
+ * two homozygous and the heterozygous call of a biallelic site) and the code 3
+ * always means unknown (N/N). Sites with more distinct diploid values are kept
+ * one byte per genotype in a SuperByteMatrix.
+ * <p>
+ * Heterozygous values are counted without regard to allele order (i.e. A/C and
+ * C/A are one value of the site table). Genotypes stored in the other order
+ * have a bit set in a separate per taxon array, which is only allocated for
+ * taxa that have such genotypes.
+ * </p>
+ * Genotypes are packed as they are set through a Builder, so the full byte
+ * matrix is never created.
+ */
+class PackedNucleotideGenotypeCallTable extends AbstractGenotypeCallTable {
+
+    private static final Logger myLogger = LogManager.getLogger(PackedNucleotideGenotypeCallTable.class);
+
+    private static final int GENOTYPES_PER_WORD = 32;
+    private static final int WORD_SHIFT = 5;
+    private static final int WORD_MASK = GENOTYPES_PER_WORD - 1;
+    private static final int CODE_MASK = 0x3;
+    private static final int UNKNOWN_CODE = 3;
+    private static final int CODES_PER_SITE = 4;
+
+    /**
+     * Diploid values for each site. Index is (site << 2) | code.
+     */
+    private final byte[] myCodeToGenotype;
+
+    /**
+     * Index into myFallbackGenotype for each site. Null if no site required
+     * fallback, otherwise -1 for packed sites.
+     */
+    private final int[] mySiteToFallback;
+    private final SuperByteMatrix myFallbackGenotype;
+
+    /**
+     * Packed codes with taxa as rows (site inner loop).
+     */
+    private long[][] myTaxonRows;
+
+    /**
+     * Packed codes with sites as rows (taxon inner loop).
+     */
+    private long[][] mySiteRows;
+
+    /**
+     * Bit set for genotypes whose alleles are in the opposite order of the
+     * site table value. Null if there are none, and rows are null for taxa
+     * without any.
+     */
+    private final long[][] myTaxonFlips;
+
+    private boolean mySiteInnerLoop = true;
+
+    private PackedNucleotideGenotypeCallTable(int numTaxa, int numSites, boolean phased, byte[] codeToGenotype, int[] siteToFallback, SuperByteMatrix fallback, long[][] taxonRows, long[][] taxonFlips) {
+        super(numTaxa, numSites, phased, NucleotideAlignmentConstants.NUCLEOTIDE_ALLELES);
+        myCodeToGenotype = codeToGenotype;
+        mySiteToFallback = siteToFallback;
+        myFallbackGenotype = fallback;
+        myTaxonRows = taxonRows;
+        myTaxonFlips = taxonFlips;
+    }
+
+    /**
+     * Returns packed version of given genotype matrix (taxa are rows and sites
+     * are columns). Returns null if the matrix can't be packed or packing
+     * wouldn't save memory (i.e. more than half the sites have more than three
+     * distinct diploid values).
+     *
+     * @param genotype genotype matrix
+     * @param phased whether genotypes are phased
+     *
+     * @return packed genotype call table or null
+     */
+    static PackedNucleotideGenotypeCallTable getInstance(SuperByteMatrix genotype, boolean phased) {
+        int numTaxa = genotype.getNumRows();
+        int numSites = genotype.getNumColumns();
+        if ((numTaxa == 0) || (numSites == 0) || (numSites > Integer.MAX_VALUE / CODES_PER_SITE)) {
+            return null;
+        }
+        Builder builder = new Builder(numTaxa, numSites);
+        IntStream.range(0, numTaxa).parallel().forEach(t -> {
+            for (int s = 0; s < numSites; s++) {
+                builder.set(t, s, genotype.get(t, s));
+            }
+        });
+        return builder.build(phased);
+    }
+
+    /**
+     * Returns whether a packed Builder can be used for the given dimensions.
+     */
+    static boolean canPack(int numTaxa, int numSites) {
+        return (numTaxa > 0) && (numSites > 0) && (numSites <= Integer.MAX_VALUE / CODES_PER_SITE);
+    }
+
+    private static int encode(byte[] codeToGenotype, int site, byte value) {
+        int base = site * CODES_PER_SITE;
+        for (int i = 0; i < UNKNOWN_CODE; i++) {
+            if (codeToGenotype[base + i] == value) {
+                return i;
+            }
+        }
+        return UNKNOWN_CODE;
+    }
+
+    private static int numWords(int numGenotypes) {
+        return (numGenotypes + GENOTYPES_PER_WORD - 1) >>> WORD_SHIFT;
+    }
+
+    private static int code(long[] words, int index) {
+        return (int) (words[index >>> WORD_SHIFT] >>> ((index & WORD_MASK) << 1)) & CODE_MASK;
+    }
+
+    private boolean isFallback(int site) {
+        return (mySiteToFallback != null) && (mySiteToFallback[site] != -1);
+    }
+
+    private static boolean isBitSet(long[] bits, int index) {
+        return ((bits[index >>> 6] >>> (index & 63)) & 1L) != 0;
+    }
+
+    private static byte swapAlleles(byte value) {
+        return (byte) (((value & 0xF) << 4) | ((value >>> 4) & 0xF));
+    }
+
+    private byte unflip(int taxon, int site, byte value) {
+        if ((myTaxonFlips != null) && (myTaxonFlips[taxon] != null) && isBitSet(myTaxonFlips[taxon], site)) {
+            return swapAlleles(value);
+        }
+        return value;
+    }
+
+    @Override
+    public byte genotype(int taxon, int site) {
+        if (isFallback(site)) {
+            return myFallbackGenotype.get(taxon, mySiteToFallback[site]);
+        }
+        int code;
+        if (mySiteInnerLoop) {
+            code = code(myTaxonRows[taxon], site);
+        } else {
+            code = code(mySiteRows[site], taxon);
+        }
+        return unflip(taxon, site, myCodeToGenotype[site * CODES_PER_SITE + code]);
+    }
+
+    @Override
+    public byte[] genotypeForAllSites(int taxon) {
+        return genotypeForSiteRange(taxon, 0, mySiteCount);
+    }
+
+    @Override
+    public byte[] genotypeForSiteRange(int taxon, int start, int end) {
+        byte[] result = new byte[end - start];
+        if (mySiteInnerLoop) {
+            long[] words = myTaxonRows[taxon];
+            for (int s = start; s < end; s++) {
+                if (isFallback(s)) {
+                    result[s - start] = myFallbackGenotype.get(taxon, mySiteToFallback[s]);
+                } else {
+                    result[s - start] = unflip(taxon, s, myCodeToGenotype[s * CODES_PER_SITE + code(words, s)]);
+                }
+            }
+        } else {
+            for (int s = start; s < end; s++) {
+                result[s - start] = genotype(taxon, s);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public byte[] genotypeForAllTaxa(int site) {
+        if (isFallback(site)) {
+            return myFallbackGenotype.getAllRows(mySiteToFallback[site]);
+        }
+        byte[] result = new byte[myTaxaCount];
+        int base = site * CODES_PER_SITE;
+        if (mySiteInnerLoop) {
+            int word = site >>> WORD_SHIFT;
+            int shift = (site & WORD_MASK) << 1;
+            for (int t = 0; t < myTaxaCount; t++) {
+                result[t] = unflip(t, site, myCodeToGenotype[base + ((int) (myTaxonRows[t][word] >>> shift) & CODE_MASK)]);
+            }
+        } else {
+            long[] words = mySiteRows[site];
+            for (int t = 0; t < myTaxaCount; t++) {
+                result[t] = unflip(t, site, myCodeToGenotype[base + code(words, t)]);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void transposeData(boolean siteInnerLoop) {
+
+        if (siteInnerLoop) {
+            if (myTaxonRows == null) {
+                myTaxonRows = transpose(mySiteRows, mySiteCount, myTaxaCount);
+            }
+        } else {
+            if (mySiteRows == null) {
+                mySiteRows = transpose(myTaxonRows, myTaxaCount, mySiteCount);
+            }
+        }
+        mySiteInnerLoop = siteInnerLoop;
+
+    }
+
+    /**
+     * Transposes packed rows a word (32 columns) at a time, so that each
+     * source word is read once.
+     */
+    private static long[][] transpose(long[][] src, int numRows, int numColumns) {
+        int numDestWords = numWords(numRows);
+        long[][] result = new long[numColumns][];
+        IntStream.range(0, numWords(numColumns)).parallel().forEach(w -> {
+            int startColumn = w << WORD_SHIFT;
+            int endColumn = Math.min(startColumn + GENOTYPES_PER_WORD, numColumns);
+            for (int c = startColumn; c < endColumn; c++) {
+                result[c] = new long[numDestWords];
+            }
+            for (int r = 0; r < numRows; r++) {
+                long word = src[r][w];
+                long destBit = (long) (r & WORD_MASK) << 1;
+                int destWord = r >>> WORD_SHIFT;
+                for (int c = startColumn; c < endColumn; c++) {
+                    result[c][destWord] |= (word & CODE_MASK) << destBit;
+                    word >>>= 2;
+                }
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public boolean isSiteOptimized() {
+        return mySiteRows != null;
+    }
+
+    @Override
+    public String genotypeAsString(int taxon, int site) {
+        return NucleotideAlignmentConstants.getNucleotideIUPAC(genotype(taxon, site));
+    }
+
+    @Override
+    public String genotypeAsStringRange(int taxon, int startSite, int endSite) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = startSite; i < endSite; i++) {
+            builder.append(genotypeAsString(taxon, i));
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String diploidAsString(int site, byte value) {
+        return NucleotideAlignmentConstants.getNucleotideIUPAC(value);
+    }
+
+    @Override
+    public int maxNumAlleles() {
+        return NucleotideAlignmentConstants.NUMBER_NUCLEOTIDE_ALLELES;
+    }
+
+    @Override
+    public boolean retainsRareAlleles() {
+        return false;
+    }
+
+    /**
+     * Packs genotypes as they are set. Setting genotypes is thread safe, as
+     * long as different threads don't set the same taxon and site. Each site
+     * records up to three diploid values. When a site gets a fourth, values
+     * set afterwards go in a byte column for that site, which is combined with
+     * the packed codes by build(). Values that are later overwritten still
+     * count toward the three.
+     */
+    static final class Builder {
+
+        private static final int NUM_LOCKS = 256;
+
+        private final int myNumTaxa;
+        private final int myNumSites;
+        private final byte[] myCodeToGenotype;
+        private final byte[] myNumValues;
+        private final AtomicLongArray[] myCodes;
+        private final AtomicReferenceArray<AtomicLongArray> myFlips;
+        //values set after site had too many values, UNKNOWN_DIPLOID_ALLELE means use packed code
+        private final AtomicReferenceArray<byte[]> myOverflow;
+        private final Object[] myLocks = new Object[NUM_LOCKS];
+
+        Builder(int numTaxa, int numSites) {
+            if (!canPack(numTaxa, numSites)) {
+                throw new IllegalArgumentException("PackedNucleotideGenotypeCallTable: Builder: can't pack taxa: " + numTaxa + " sites: " + numSites);
+            }
+            myNumTaxa = numTaxa;
+            myNumSites = numSites;
+            myCodeToGenotype = new byte[numSites * CODES_PER_SITE];
+            Arrays.fill(myCodeToGenotype, GenotypeTable.UNKNOWN_DIPLOID_ALLELE);
+            myNumValues = new byte[numSites];
+            myCodes = new AtomicLongArray[numTaxa];
+            long[] unknown = new long[numWords(numSites)];
+            Arrays.fill(unknown, -1L);
+            for (int t = 0; t < numTaxa; t++) {
+                myCodes[t] = new AtomicLongArray(unknown);
+            }
+            myFlips = new AtomicReferenceArray<>(numTaxa);
+            myOverflow = new AtomicReferenceArray<>(numSites);
+            for (int i = 0; i < NUM_LOCKS; i++) {
+                myLocks[i] = new Object();
+            }
+        }
+
+        int numTaxa() {
+            return myNumTaxa;
+        }
+
+        int numSites() {
+            return myNumSites;
+        }
+
+        void set(int taxon, int site, byte value) {
+            byte[] column = myOverflow.get(site);
+            if (column != null) {
+                column[taxon] = value;
+                setCode(taxon, site, UNKNOWN_CODE, false);
+                return;
+            }
+            if (value == GenotypeTable.UNKNOWN_DIPLOID_ALLELE) {
+                setCode(taxon, site, UNKNOWN_CODE, false);
+                return;
+            }
+            byte sorted = GenotypeTableUtils.getUnphasedSortedDiploidValue(value);
+            int code = encode(myCodeToGenotype, site, sorted);
+            if (code == UNKNOWN_CODE) {
+                synchronized (myLocks[site & (NUM_LOCKS - 1)]) {
+                    column = myOverflow.get(site);
+                    if (column == null) {
+                        code = encode(myCodeToGenotype, site, sorted);
+                        if (code == UNKNOWN_CODE) {
+                            int num = myNumValues[site];
+                            if (num < UNKNOWN_CODE) {
+                                myCodeToGenotype[site * CODES_PER_SITE + num] = sorted;
+                                myNumValues[site] = (byte) (num + 1);
+                                code = num;
+                            } else {
+                                column = new byte[myNumTaxa];
+                                Arrays.fill(column, GenotypeTable.UNKNOWN_DIPLOID_ALLELE);
+                                myOverflow.set(site, column);
+                            }
+                        }
+                    }
+                }
+                if (column != null) {
+                    column[taxon] = value;
+                    setCode(taxon, site, UNKNOWN_CODE, false);
+                    return;
+                }
+            }
+            setCode(taxon, site, code, sorted != value);
+        }
+
+        void setRange(int taxon, int startSite, byte[] values) {
+            for (int i = 0; i < values.length; i++) {
+                set(taxon, startSite + i, values[i]);
+            }
+        }
+
+        private void setCode(int taxon, int site, int code, boolean flip) {
+            AtomicLongArray words = myCodes[taxon];
+            int word = site >>> WORD_SHIFT;
+            int shift = (site & WORD_MASK) << 1;
+            long mask = (long) CODE_MASK << shift;
+            long bits = (long) code << shift;
+            long old;
+            do {
+                old = words.get(word);
+                if ((old & mask) == bits) {
+                    break;
+                }
+            } while (!words.compareAndSet(word, old, (old & ~mask) | bits));
+
+            AtomicLongArray flips = myFlips.get(taxon);
+            if (flip) {
+                if (flips == null) {
+                    flips = new AtomicLongArray((myNumSites + 63) >>> 6);
+                    if (!myFlips.compareAndSet(taxon, null, flips)) {
+                        flips = myFlips.get(taxon);
+                    }
+                }
+                setBit(flips, site, true);
+            } else if (flips != null) {
+                setBit(flips, site, false);
+            }
+        }
+
+        private static void setBit(AtomicLongArray bits, int index, boolean value) {
+            int word = index >>> 6;
+            long mask = 1L << (index & 63);
+            long old;
+            do {
+                old = bits.get(word);
+                if (((old & mask) != 0) == value) {
+                    return;
+                }
+            } while (!bits.compareAndSet(word, old, old ^ mask));
+        }
+
+        byte get(int taxon, int site) {
+            byte[] column = myOverflow.get(site);
+            if ((column != null) && (column[taxon] != GenotypeTable.UNKNOWN_DIPLOID_ALLELE)) {
+                return column[taxon];
+            }
+            AtomicLongArray words = myCodes[taxon];
+            int code = (int) (words.get(site >>> WORD_SHIFT) >>> ((site & WORD_MASK) << 1)) & CODE_MASK;
+            if (code == UNKNOWN_CODE) {
+                return GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+            }
+            byte result = myCodeToGenotype[site * CODES_PER_SITE + code];
+            AtomicLongArray flips = myFlips.get(taxon);
+            if ((flips != null) && ((flips.get(site >>> 6) >>> (site & 63)) & 1L) != 0) {
+                return swapAlleles(result);
+            }
+            return result;
+        }
+
+        /**
+         * Reorders taxa, so that new taxon i is the old taxon newIndices[i].
+         */
+        void reorderTaxa(int[] newIndices) {
+            if (newIndices.length != myNumTaxa) {
+                throw new IllegalArgumentException("PackedNucleotideGenotypeCallTable: Builder: reorderTaxa: index array size: " + newIndices.length + " doesn't equal num taxa: " + myNumTaxa);
+            }
+            AtomicLongArray[] codes = myCodes.clone();
+            AtomicLongArray[] flips = new AtomicLongArray[myNumTaxa];
+            for (int t = 0; t < myNumTaxa; t++) {
+                flips[t] = myFlips.get(t);
+            }
+            for (int t = 0; t < myNumTaxa; t++) {
+                myCodes[t] = codes[newIndices[t]];
+                myFlips.set(t, flips[newIndices[t]]);
+            }
+            for (int s = 0; s < myNumSites; s++) {
+                byte[] column = myOverflow.get(s);
+                if (column != null) {
+                    byte[] temp = column.clone();
+                    for (int t = 0; t < myNumTaxa; t++) {
+                        column[t] = temp[newIndices[t]];
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reorders sites, so that new site i is the old site newIndices[i].
+         */
+        void reorderSites(int[] newIndices) {
+            if (newIndices.length != myNumSites) {
+                throw new IllegalArgumentException("PackedNucleotideGenotypeCallTable: Builder: reorderSites: index array size: " + newIndices.length + " doesn't equal num sites: " + myNumSites);
+            }
+            byte[] codeToGenotype = myCodeToGenotype.clone();
+            byte[] numValues = myNumValues.clone();
+            byte[][] overflow = new byte[myNumSites][];
+            for (int s = 0; s < myNumSites; s++) {
+                overflow[s] = myOverflow.get(s);
+            }
+            for (int s = 0; s < myNumSites; s++) {
+                int old = newIndices[s];
+                System.arraycopy(codeToGenotype, old * CODES_PER_SITE, myCodeToGenotype, s * CODES_PER_SITE, CODES_PER_SITE);
+                myNumValues[s] = numValues[old];
+                myOverflow.set(s, overflow[old]);
+            }
+            IntStream.range(0, myNumTaxa).parallel().forEach(t -> {
+                AtomicLongArray oldCodes = myCodes[t];
+                long[] words = new long[oldCodes.length()];
+                for (int s = 0; s < myNumSites; s++) {
+                    int old = newIndices[s];
+                    long code = (oldCodes.get(old >>> WORD_SHIFT) >>> ((old & WORD_MASK) << 1)) & CODE_MASK;
+                    words[s >>> WORD_SHIFT] |= code << ((s & WORD_MASK) << 1);
+                }
+                myCodes[t] = new AtomicLongArray(words);
+                AtomicLongArray oldFlips = myFlips.get(t);
+                if (oldFlips != null) {
+                    long[] bits = new long[oldFlips.length()];
+                    for (int s = 0; s < myNumSites; s++) {
+                        int old = newIndices[s];
+                        if (((oldFlips.get(old >>> 6) >>> (old & 63)) & 1L) != 0) {
+                            bits[s >>> 6] |= 1L << (s & 63);
+                        }
+                    }
+                    myFlips.set(t, new AtomicLongArray(bits));
+                }
+            });
+        }
+
+        /**
+         * Returns packed genotype call table, or null if more than half the
+         * sites have more than three distinct diploid values. This builder
+         * shouldn't be used after a table is returned.
+         */
+        PackedNucleotideGenotypeCallTable build(boolean phased) {
+
+            int numFallback = 0;
+            for (int s = 0; s < myNumSites; s++) {
+                if (myOverflow.get(s) != null) {
+                    numFallback++;
+                }
+            }
+
+            if (numFallback > myNumSites / 2) {
+                myLogger.debug("build: not packing: " + numFallback + " of " + myNumSites + " sites have more than three diploid values");
+                return null;
+            }
+
+            int[] siteToFallback = null;
+            SuperByteMatrix fallback = null;
+            if (numFallback != 0) {
+                siteToFallback = new int[myNumSites];
+                int count = 0;
+                for (int s = 0; s < myNumSites; s++) {
+                    siteToFallback[s] = (myOverflow.get(s) != null) ? count++ : -1;
+                }
+                fallback = SuperByteMatrixBuilder.getInstance(myNumTaxa, numFallback);
+                for (int s = 0; s < myNumSites; s++) {
+                    if (siteToFallback[s] != -1) {
+                        for (int t = 0; t < myNumTaxa; t++) {
+                            fallback.set(t, siteToFallback[s], get(t, s));
+                        }
+                        myOverflow.set(s, null);
+                    }
+                }
+            }
+
+            long[][] taxonRows = new long[myNumTaxa][];
+            long[][] taxonFlips = new long[myNumTaxa][];
+            boolean anyFlips = false;
+            for (int t = 0; t < myNumTaxa; t++) {
+                AtomicLongArray codes = myCodes[t];
+                long[] words = new long[codes.length()];
+                for (int w = 0; w < words.length; w++) {
+                    words[w] = codes.get(w);
+                }
+                taxonRows[t] = words;
+                myCodes[t] = null;
+                AtomicLongArray flips = myFlips.get(t);
+                if (flips != null) {
+                    long[] bits = new long[flips.length()];
+                    for (int w = 0; w < bits.length; w++) {
+                        bits[w] = flips.get(w);
+                    }
+                    taxonFlips[t] = bits;
+                    anyFlips = true;
+                }
+            }
+
+            return new PackedNucleotideGenotypeCallTable(myNumTaxa, myNumSites, phased, myCodeToGenotype, siteToFallback, fallback, taxonRows, anyFlips ? taxonFlips : null);
+
+        }
+
+    }
+
+}
@@ -1,5 +1,8 @@
 package net.maizegenetics.dna.snp.genotypecall;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.BoundType;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeMap;
@@ -9,25 +12,33 @@ import net.maizegenetics.dna.snp.GenotypeTableUtils;
 import net.maizegenetics.dna.snp.NucleotideAlignmentConstants;
 import net.maizegenetics.dna.map.DonorHaplotypes;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
 import java.util.NavigableSet;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Projection genotype use defined haplotypes and breakpoints that point to a high
  * density genotypes (base GenotypeTable). These are used to efficiently store and
  * connect low density maps with imputed high density genotypes.
  * <p>
- * </p>
  * The alignment built by this builder is a CoreGenotypeTable with a
  * ProjectionGenotypeCallTable. The taxa indices come from the projection alignment file,
  * while the site indices are the same as the base GenotypeTable. TODO this
  * implement a projection interface with the getDonorHaplotypes method
+ * <p>
+ * The breakpoints of each taxon are stored as flat arrays of start sites, end
+ * sites, and parents. Projected genotypes are decoded a block of sites at a
+ * time into a bounded cache that can be shared by multiple threads.
  *
  * @author Ed Buckler
  */
 public class ProjectionGenotypeCallTable extends AbstractGenotypeCallTable {
 
+    private static final int SHIFT_AMOUNT = 12;
+    private static final int SITE_BLOCK_SIZE = 1 << SHIFT_AMOUNT;
+    private static final int SITE_BLOCK_MASK = SITE_BLOCK_SIZE - 1;
+
     private final GenotypeTable myBaseGenoTable;  //high density marker alignment that is being projected. It was suggested that this
     //just have a pointer to a genotype, which would work, excepting for saving the file, when the base taxa names are needed.
     private ImmutableList<NavigableSet<DonorHaplotypes>> allBreakPoints;
@@ -36,31 +47,63 @@ public class ProjectionGenotypeCallTable extends AbstractGenotypeCallTable {
 
         General, Site, Taxa
     };
-    private BaseMode currMode = BaseMode.Taxa;
-    private ArrayList<RangeMap<Integer, DonorSiteHaps>> breakMaps;
-    private byte[] donorForCachedSite;
-    private byte[] projForCachedTaxon;
-    private int cachedSite = -1;
-    private int cachedTaxon = -1;
-    int[] primDSH; //startSite,endSite,parent1,parent2 array for the
-
-  public ProjectionGenotypeCallTable(GenotypeTable hdAlign, ImmutableList<NavigableSet<DonorHaplotypes>> allBreakPoints) {
+    private volatile BaseMode currMode = BaseMode.Taxa;
+
+    //breakpoints of each taxon sorted by start site. Sites are inclusive.
+    private final int[][] myStartSites;
+    private final int[][] myEndSites;
+    private final int[][] myParent1;
+    private final int[][] myParent2;
+
+    //key = (taxon << 33) + site block. value = projected genotypes of that site block
+    private final Cache<Long, byte[]> myGenoCache;
+
+    public ProjectionGenotypeCallTable(GenotypeTable hdAlign, ImmutableList<NavigableSet<DonorHaplotypes>> allBreakPoints) {
         super(allBreakPoints.size(), hdAlign.numberOfSites(), false, NucleotideAlignmentConstants.NUCLEOTIDE_ALLELES);
-        myBaseGenoTable= hdAlign;
+        myBaseGenoTable = hdAlign;
         this.allBreakPoints = allBreakPoints;
-        breakMaps = new ArrayList<>(numberOfTaxa());
-        for (NavigableSet<DonorHaplotypes> allBreakPoint : allBreakPoints) {
-            RangeMap<Integer, DonorSiteHaps> tRM = TreeRangeMap.create();
-            for (DonorHaplotypes dh : allBreakPoint) {
+        myStartSites = new int[myTaxaCount][];
+        myEndSites = new int[myTaxaCount][];
+        myParent1 = new int[myTaxaCount][];
+        myParent2 = new int[myTaxaCount][];
+        for (int t = 0; t < myTaxaCount; t++) {
+            //range map resolves overlapping donor haplotypes (later ones win) before flattening
+            RangeMap<Integer, int[]> tRM = TreeRangeMap.create();
+            for (DonorHaplotypes dh : allBreakPoints.get(t)) {
                 int[] siteRange = siteRangeForDonor(dh);
-                DonorSiteHaps dsh = new DonorSiteHaps(siteRange[0], siteRange[1], dh.getParent1index(), dh.getParent2index());
-                tRM.put(Range.closed(siteRange[0], siteRange[1]), dsh);
-                //TODO consider putting in blank range maps
+                tRM.put(Range.closed(siteRange[0], siteRange[1]), new int[]{dh.getParent1index(), dh.getParent2index()});
+            }
+            Map<Range<Integer>, int[]> ranges = tRM.asMapOfRanges();
+            int[] starts = new int[ranges.size()];
+            int[] ends = new int[ranges.size()];
+            int[] parent1 = new int[ranges.size()];
+            int[] parent2 = new int[ranges.size()];
+            int count = 0;
+            for (Map.Entry<Range<Integer>, int[]> entry : ranges.entrySet()) {
+                Range<Integer> range = entry.getKey();
+                int start = range.lowerBoundType() == BoundType.CLOSED ? range.lowerEndpoint() : range.lowerEndpoint() + 1;
+                int end = range.upperBoundType() == BoundType.CLOSED ? range.upperEndpoint() : range.upperEndpoint() - 1;
+                if (start > end) {
+                    continue;
+                }
+                starts[count] = start;
+                ends[count] = end;
+                parent1[count] = entry.getValue()[0];
+                parent2[count] = entry.getValue()[1];
+                count++;
             }
-            breakMaps.add(tRM);
+            myStartSites[t] = Arrays.copyOf(starts, count);
+            myEndSites[t] = Arrays.copyOf(ends, count);
+            myParent1[t] = Arrays.copyOf(parent1, count);
+            myParent2[t] = Arrays.copyOf(parent2, count);
         }
-        primDSH = new int[myTaxaCount * 4];
-        Arrays.fill(primDSH, Integer.MIN_VALUE);
+        long blockForAllTaxa = (long) myTaxaCount * (long) SITE_BLOCK_SIZE;
+        long cacheSizeInBytes = Math.min(Runtime.getRuntime().maxMemory() / 8L, blockForAllTaxa * (Runtime.getRuntime().availableProcessors() + 1));
+        myGenoCache = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(cacheSizeInBytes, SITE_BLOCK_SIZE))
+                .weigher((Long key, byte[] value) -> value.length)
+                .concurrencyLevel(Math.max(4, Runtime.getRuntime().availableProcessors()))
+                .build();
     }
 
     public NavigableSet<DonorHaplotypes> getDonorHaplotypes(int taxon) {
@@ -79,28 +122,43 @@ public class ProjectionGenotypeCallTable extends AbstractGenotypeCallTable {
         return new int[]{start, end};
     }
 
+    /**
+     * Returns index of the breakpoint of the given taxon that contains site, or
+     * -1 if the site isn't covered by a donor haplotype.
+     */
+    private int breakpointIndex(int taxon, int site) {
+        int[] starts = myStartSites[taxon];
+        int index = Arrays.binarySearch(starts, site);
+        if (index < 0) {
+            index = -(index + 1) - 1;
+        }
+        if ((index < 0) || (site > myEndSites[taxon][index])) {
+            return -1;
+        }
+        return index;
+    }
+
     @Override
     public byte genotype(int taxon, int site) {
-        if (currMode == BaseMode.Site) {
-            return getBaseSite(taxon, site);
-        }
-//        if(currMode==BaseMode.Taxa) {return getBaseTaxon(taxon, site);}
-        return getBaseGeneral(taxon, site);
+        return genotypeBlock(taxon, site)[site & SITE_BLOCK_MASK];
     }
-    
+
+    /**
+     * Returns parent 1 and parent 2 indices (base genotype table taxa) of the
+     * given taxon at site, or null if the site isn't covered by a donor
+     * haplotype.
+     *
+     * @param taxon taxon
+     * @param site site
+     *
+     * @return parent indices
+     */
     public int[] taxonDonors(int taxon, int site) {
-        int primPos = taxon << 2;
-        if ((site < primDSH[primPos++]) || (site > primDSH[primPos++])) {
-            DonorSiteHaps currentDSH = breakMaps.get(taxon).get(site);
-            primPos = taxon << 2;
-            primDSH[primPos++] = currentDSH.getStartSite(); //NOTE:-used to be currentDSH.getStartSite(), but it threw an exception
-            primDSH[primPos++] = currentDSH.getStartSite(); //NOTE:-used to be currentDSH.getEndSite(), but it threw an exception
-            primDSH[primPos++] = currentDSH.getParent1index();
-            primDSH[primPos++] = currentDSH.getParent2index();
-            primPos = (taxon << 2) + 2;
-            //TODO consider null
+        int index = breakpointIndex(taxon, site);
+        if (index < 0) {
+            return null;
         }
-        return new int[]{primDSH[primPos], primDSH[primPos + 1]};
+        return new int[]{myParent1[taxon][index], myParent2[taxon][index]};
     }
 
     /**
@@ -112,52 +170,95 @@ public class ProjectionGenotypeCallTable extends AbstractGenotypeCallTable {
         return myBaseGenoTable;
     }
 
-    private byte getBaseGeneral(int taxon, int site) {
-        DonorSiteHaps currentDSH = breakMaps.get(taxon).get(site);
-        if (currentDSH == null) {
-            return GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+    private static long getCacheKey(int taxon, int site) {
+        return ((long) taxon << 33) + (site >>> SHIFT_AMOUNT);
+    }
+
+    private byte[] genotypeBlock(int taxon, int site) {
+        long key = getCacheKey(taxon, site);
+        byte[] result = myGenoCache.getIfPresent(key);
+        if (result == null) {
+            try {
+                result = myGenoCache.get(key, () -> decodeBlock(taxon, site & ~SITE_BLOCK_MASK));
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("ProjectionGenotypeCallTable: genotypeBlock: problem decoding taxon: " + taxon + " site: " + site, e.getCause());
+            }
         }
-        byte p1 = myBaseGenoTable.genotype(currentDSH.getParent1index(), site);
-        byte p2 = myBaseGenoTable.genotype(currentDSH.getParent2index(), site);
-        return GenotypeTableUtils.getUnphasedDiploidValueNoHets(p1, p2);
+        return result;
     }
 
-    //Currently this is no faster than general genotype.  it should be possible to make this faster.
-    private byte getBaseTaxon(int taxon, int site) {
-        if (taxon != cachedTaxon) {
-            projForCachedTaxon = new byte[mySiteCount];
-            Arrays.fill(projForCachedTaxon, GenotypeTable.RARE_DIPLOID_ALLELE);
-            cachedTaxon = taxon;
+    /**
+     * Decodes projected genotypes of taxon from startSite to the end of that
+     * site block. Each breakpoint in the block reads both parents from the base
+     * genotype table once.
+     */
+    private byte[] decodeBlock(int taxon, int startSite) {
+        int endSite = Math.min(startSite + SITE_BLOCK_SIZE, mySiteCount);
+        byte[] result = new byte[endSite - startSite];
+        Arrays.fill(result, GenotypeTable.UNKNOWN_DIPLOID_ALLELE);
+        int[] starts = myStartSites[taxon];
+        int[] ends = myEndSites[taxon];
+        int index = breakpointIndex(taxon, startSite);
+        if (index < 0) {
+            index = -(Arrays.binarySearch(starts, startSite) + 1);
         }
-        byte result = projForCachedTaxon[site];
-        if (result == GenotypeTable.RARE_DIPLOID_ALLELE) {
-            DonorSiteHaps currentDSH = breakMaps.get(taxon).get(site);
-            byte[] r = myBaseGenoTable.genotypeRange(currentDSH.getParent1index(), currentDSH.getStartSite(), currentDSH.getEndSite() + 1);
-            System.arraycopy(r, 0, projForCachedTaxon, currentDSH.getStartSite(), r.length);
-            result = projForCachedTaxon[site];
+        for (; (index < starts.length) && (starts[index] < endSite); index++) {
+            int first = Math.max(starts[index], startSite);
+            int last = Math.min(ends[index] + 1, endSite);
+            byte[] p1 = myBaseGenoTable.genotypeRange(myParent1[taxon][index], first, last);
+            byte[] p2 = myParent1[taxon][index] == myParent2[taxon][index] ? p1 : myBaseGenoTable.genotypeRange(myParent2[taxon][index], first, last);
+            for (int s = 0; s < p1.length; s++) {
+                result[first - startSite + s] = GenotypeTableUtils.getUnphasedDiploidValueNoHets(p1[s], p2[s]);
+            }
         }
         return result;
     }
 
-    private byte getBaseSite(int taxon, int site) {
-        //test transpose problems
-        if (site != cachedSite) {
-            donorForCachedSite = myBaseGenoTable.genotypeMatrix().genotypeForAllTaxa(site);
-            cachedSite = site;
+    @Override
+    public byte[] genotypeRange(int taxon, int startSite, int endSite) {
+        byte[] result = new byte[endSite - startSite];
+        int site = startSite;
+        while (site < endSite) {
+            byte[] block = genotypeBlock(taxon, site);
+            int offset = site & SITE_BLOCK_MASK;
+            int length = Math.min(block.length - offset, endSite - site);
+            System.arraycopy(block, offset, result, site - startSite, length);
+            site += length;
         }
-        int primPos = taxon << 2;
-        if ((site < primDSH[primPos++]) || (site > primDSH[primPos++])) {
-            DonorSiteHaps currentDSH = breakMaps.get(taxon).get(site);
-            primPos = taxon << 2;
-            primDSH[primPos++] = currentDSH.getStartSite();
-            primDSH[primPos++] = currentDSH.getEndSite();
-            primDSH[primPos++] = currentDSH.getParent1index();
-            primDSH[primPos] = currentDSH.getParent2index();
-            primPos = (taxon << 2) + 2;
-            //TODO consider null
+        return result;
+    }
+
+    @Override
+    public byte[] genotypeAllSites(int taxon) {
+        return genotypeRange(taxon, 0, mySiteCount);
+    }
+
+    @Override
+    public byte[] genotypeForAllSites(int taxon) {
+        return genotypeRange(taxon, 0, mySiteCount);
+    }
+
+    /**
+     * Returns projected genotypes of all taxa at site. The base genotypes for
+     * the site are read once and each taxon only looks up its breakpoint.
+     *
+     * @param site site
+     *
+     * @return genotypes
+     */
+    @Override
+    public byte[] genotypeForAllTaxa(int site) {
+        byte[] donors = myBaseGenoTable.genotypeMatrix().genotypeForAllTaxa(site);
+        byte[] result = new byte[myTaxaCount];
+        for (int t = 0; t < myTaxaCount; t++) {
+            int index = breakpointIndex(t, site);
+            if (index < 0) {
+                result[t] = GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+            } else {
+                result[t] = GenotypeTableUtils.getUnphasedDiploidValueNoHets(donors[myParent1[t][index]], donors[myParent2[t][index]]);
+            }
         }
-        //       if(primDSH[primPos]==primDSH[primPos+1]) return donorForCachedSite[primDSH[primPos]];
-        return GenotypeTableUtils.getUnphasedDiploidValueNoHets(donorForCachedSite[primDSH[primPos]], donorForCachedSite[primDSH[primPos + 1]]);
+        return result;
     }
 
     @Override
@@ -190,42 +291,4 @@ public class ProjectionGenotypeCallTable extends AbstractGenotypeCallTable {
         }
     }
 
-    private class DonorSiteHaps {
-
-        private final int startSite;
-        private final int endSite;
-        private final int parent1index;
-        private final int parent2index;
-
-        private DonorSiteHaps(int startSite, int endSite, int parent1index, int parent2index) {
-            this.startSite = startSite;
-            this.endSite = endSite;
-            this.parent1index = parent1index;
-            this.parent2index = parent2index;
-        }
-
-        private int getStartSite() {
-            return startSite;
-        }
-
-        private int getEndSite() {
-            return endSite;
-        }
-
-        private int getParent1index() {
-            return parent1index;
-        }
-
-        private int getParent2index() {
-            return parent2index;
-        }
-
-        private boolean containsSite(int site) {
-            if ((site < startSite) || (site > endSite)) {
-                return false;
-            }
-            return true;
-        }
-    }
-
 }
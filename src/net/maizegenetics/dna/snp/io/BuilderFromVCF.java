@@ -26,15 +26,23 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 /**
@@ -53,10 +61,21 @@ public class BuilderFromVCF {
     private static final Logger myLogger=LogManager.getLogger(BuilderFromVCF.class);
     private static final Pattern WHITESPACE_PATTERN=Pattern.compile("[\\s]+");
     private static final Pattern TAB_PATTERN = Pattern.compile("[\\t]+");
+    private static final int READ_BUFFER_SIZE=1<<20;
+    private static final int MAX_CHUNK_BYTES=1<<26;
+    private static final int MAX_BUFFER_SIZE=Integer.MAX_VALUE-8;
+    private static final int SKIP=0;
+    private static final int SITE=1;
+    private static final int END_OF_REGION=2;
     private HeaderPositions hp=null;
     private final String infile;
     private boolean includeDepth=false;
     private boolean inMemory=true;
+    private String regionChromosome=null;
+    private byte[] regionChromosomeBytes=null;
+    private int regionStart=0;
+    private int regionEnd=Integer.MAX_VALUE;
+    private boolean regionIndexed=false;
     private String hdf5Outfile=null;
     private GenotypeTableBuilder hdf5GenoTableBuilder=null;
     private final ProgressListener myProgressListener;
@@ -102,6 +121,26 @@ public class BuilderFromVCF {
 
 
 
+    /**
+     * Only load sites within a region. If the VCF is bgzip compressed and
+     * has a .tbi or .csi index, reading starts at the region instead of the
+     * beginning of the file.
+     * @param chromosome chromosome name as it appears in the VCF
+     * @param startPosition first position (inclusive)
+     * @param endPosition last position (inclusive)
+     * @return this builder
+     */
+    public BuilderFromVCF region(String chromosome, int startPosition, int endPosition) {
+        if (endPosition<startPosition) {
+            throw new IllegalArgumentException("BuilderFromVCF: region: end position: "+endPosition+" less than start position: "+startPosition);
+        }
+        regionChromosome=chromosome;
+        regionChromosomeBytes=chromosome.getBytes(StandardCharsets.UTF_8);
+        regionStart=startPosition;
+        regionEnd=endPosition;
+        return this;
+    }
+
     public BuilderFromVCF keepDepth() {
         includeDepth=true;
         return this;
@@ -116,193 +155,368 @@ public class BuilderFromVCF {
     }
 
     //TODO provide options on caching to use, read only some sites, etc.
+    /**
+     * Reads the VCF as a pipeline. This thread reads raw bytes and queues
+     * chunks of whole lines (limited to MAX_CHUNK_BYTES) on a bounded queue.
+     * ProcessVCFBlock workers parse the chunks in any order. The sites are
+     * counted first, so the builders (or HDF5 file) are sized up front. In
+     * memory, parsed chunks are copied into the builders in site order and
+     * released, so only chunks that finish ahead of an earlier one are held.
+     * For HDF5, chunks are assembled into whole HDF5 blocks, which are
+     * written when complete.
+     */
     private GenotypeTable buildEngine(boolean fullSort) {
         long time=System.nanoTime();
         GenotypeTable result=null;
-        int totalSites=-1;//unknown
-        GenotypeTableBuilder gtbDiskBuild=null;
         ExecutorService pool = null;
         try {
 
             int numThreads=Runtime.getRuntime().availableProcessors();
-            pool=Executors.newFixedThreadPool(numThreads);
-            
-            BufferedReader r=Utils.getBufferedReader(infile, -1);
+
             //Read the ## annotation rows
-            String currLine;
-            Map<String,String> infoMap=new HashMap<>();
-            Map<String,String> formatMap=new HashMap<>();
-            Map<String,SetMultimap<String,String>> sampAnnoBuild=new TreeMap<>();
-            currLine=parseVCFHeadersIntoMaps(infoMap,formatMap,sampAnnoBuild,r);
-
-            TaxaList taxaList=processTaxa(currLine,sampAnnoBuild);
-            if(inMemory==false) {
-                totalSites=Utils.getNumberLinesNotHashOrBlank(infile);
-                System.out.println("TotalSite count:"+totalSites);
+            TaxaList taxaList;
+            try (BufferedReader r=Utils.getBufferedReader(infile, -1)) {
+                Map<String,String> infoMap=new HashMap<>();
+                Map<String,String> formatMap=new HashMap<>();
+                Map<String,SetMultimap<String,String>> sampAnnoBuild=new TreeMap<>();
+                String currLine=parseVCFHeadersIntoMaps(infoMap,formatMap,sampAnnoBuild,r);
+                taxaList=processTaxa(currLine,sampAnnoBuild);
+            }
+            int numTaxa=taxaList.numberOfTaxa();
+
+            int totalSites=countSites();
+            myLogger.info("buildEngine: number of sites: "+totalSites);
+            GenotypeTableBuilder gtbDiskBuild=null;
+            ProcessVCFBlock.HDF5SiteBlocks hdf5Blocks=null;
+            ProcessVCFBlock.InMemorySites inMemorySites=null;
+            if(inMemory) {
+                inMemorySites=new ProcessVCFBlock.InMemorySites(taxaList, totalSites, includeDepth);
+            } else {
                 gtbDiskBuild=GenotypeTableBuilder.getSiteIncremental(taxaList,totalSites,hdf5Outfile);
+                hdf5Blocks=new ProcessVCFBlock.HDF5SiteBlocks(gtbDiskBuild, numTaxa, totalSites, includeDepth);
+            }
+
+            BlockingQueue<VCFChunk> queue=new ArrayBlockingQueue<>(numThreads);
+            pool=Executors.newFixedThreadPool(numThreads);
+            List<Future<Integer>> workers=new ArrayList<>();
+            for (int i=0; i<numThreads; i++) {
+                ProcessVCFBlock pb;
+                if(inMemory) {
+                    pb=ProcessVCFBlock.getInstance(queue, numTaxa, hp, inMemorySites, includeDepth);
+                } else {
+                    pb=ProcessVCFBlock.getInstance(queue, numTaxa, hp, hdf5Blocks, includeDepth);
+                }
+                workers.add(pool.submit(pb));
+            }
+
+            //this is a critical lines with 20% or more swings.  Chunks don't cross HDF5 blocks
+            int linesAtTime=1<<12;
+            int sitesRead=readChunks(queue, workers, linesAtTime, totalSites);
+            for (int i=0; i<numThreads; i++) {
+                enqueue(queue, VCFChunk.END, workers);
+            }
+
+            int sitesProcessed=0;
+            for(Future<Integer> future : workers) {
+                sitesProcessed+=future.get();
+            }
+            pool.shutdown();
+
+            if((sitesRead!=totalSites) || (sitesProcessed!=sitesRead)) {
+                throw new IllegalStateException("BuilderFromVCF: buildEngine: number of sites counted: "+totalSites+" read: "+sitesRead+" processed: "+sitesProcessed);
+            }
+
+            if(inMemory) {
+                result=completeInMemoryBuilding(inMemorySites, taxaList, fullSort);
+            } else {
+                gtbDiskBuild.build();
+            }
+
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            myLogger.debug(e.getMessage(), e);
+            if (e.getCause() instanceof IllegalStateException) {
+                throw (IllegalStateException) e.getCause();
+            }
+            throw new IllegalStateException("BuilderFromVCF: buildEngine: problem processing: "+infile+": "+e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("BuilderFromVCF: buildEngine: interrupted while reading: "+infile);
+        } catch (IOException e) {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("BuilderFromVCF: buildEngine: problem reading: "+infile+": "+e.getMessage());
+        } catch(IllegalStateException e) {
+            if (pool != null) {
+                pool.shutdownNow();
             }
-            int linesAtTime=(inMemory)?1<<12:Tassel5HDF5Constants.BLOCK_SIZE;  //this is a critical lines with 20% or more swings.  Needs to be optimized with transposing
-            //  int linesAtTime=1<<8;  //better for with lots of taxa.
-            ArrayList<String> txtLines=new ArrayList<>(linesAtTime);
-            ArrayList<ProcessVCFBlock> pbs=new ArrayList<>();
-            List<Future<ProcessVCFBlock>> futures = new ArrayList<>();
-            int sitesRead=0;
-            while ((currLine=r.readLine())!=null) {
-                if(currLine.startsWith("#")) continue;
-                txtLines.add(currLine);
-                sitesRead++;
-               if (sitesRead%linesAtTime==0) {
-                    ProcessVCFBlock pb;
-                    if(inMemory) {
-                        pb=ProcessVCFBlock.getInstance(taxaList.numberOfTaxa(), hp, txtLines,includeDepth);}
-                    else{
-                        pb=ProcessVCFBlock.getInstance(taxaList.numberOfTaxa(), hp, txtLines, sitesRead-txtLines.size(),gtbDiskBuild, includeDepth);
+            throw e;
+        }
+        long totalTime=System.nanoTime()-time;
+        System.out.printf("BuilderFromVCF data timing %gs %n", totalTime/1e9);
+        return result;
+    }
+
+    /**
+     * Reads the sites (lines not starting with # or blank) into chunks of at
+     * most linesAtTime lines and MAX_CHUNK_BYTES bytes, and puts them on the
+     * queue. When building HDF5, chunks also end at HDF5 block boundaries.
+     * Each chunk owns its byte array, so nothing is copied after a line is
+     * read.
+     *
+     * @param totalSites number of sites counted or -1 if unknown
+     *
+     * @return number of sites read
+     */
+    private int readChunks(BlockingQueue<VCFChunk> queue, List<Future<Integer>> workers, int linesAtTime, int totalSites)
+            throws IOException, InterruptedException, ExecutionException {
+
+        int blockSize=(inMemory)?Integer.MAX_VALUE:Tassel5HDF5Constants.BLOCK_SIZE;
+        int sitesRead=0;
+        try (InputStream input=openSites()) {
+
+            byte[] buffer=new byte[READ_BUFFER_SIZE];
+            int[] starts=new int[linesAtTime];
+            int[] ends=new int[linesAtTime];
+            int numLines=0;
+            int numBytes=0;
+            int lineStart=0;
+            boolean endOfRegion=false;
+            int read;
+            while (!endOfRegion && ((read=input.read(buffer, numBytes, buffer.length-numBytes))>=0)) {
+
+                numBytes+=read;
+                for (int i=numBytes-read; i<numBytes; i++) {
+                    if (buffer[i]!='\n') continue;
+                    int lineEnd=((i>lineStart) && (buffer[i-1]=='\r'))?i-1:i;
+                    int status=lineStatus(buffer, lineStart, lineEnd);
+                    if (status==END_OF_REGION) {
+                        endOfRegion=true;
+                        break;
+                    } else if (status==SITE) {
+                        starts[numLines]=lineStart;
+                        ends[numLines]=lineEnd;
+                        numLines++;
                     }
-                    //pbs.add(pb);
-                        //     pb.run(); //used for testing
-                    try {
-                        if(inMemory) {
-                            futures.add(pool.submit(pb));
+                    lineStart=i+1;
+                    if ((numLines==linesAtTime) || ((numLines>0) && ((lineStart>=MAX_CHUNK_BYTES) || ((sitesRead+numLines)%blockSize==0)))) {
+                        if ((totalSites>=0) && (sitesRead+numLines>totalSites)) {
+                            throw new IllegalStateException("BuilderFromVCF: readChunks: more sites than counted: "+totalSites+". File changed while reading?");
                         }
-                        else {
-                            //Put a future on the queue
-                            futures.add(pool.submit(pb));
-                            //If We are streaming to HDF5, we need to block temporarily and clean out the queue.
-                            if(futures.size()>=numThreads) {
-                            //if(futures.size()>0) {
-                                for(Future<ProcessVCFBlock> future : futures) {
-                                    pbs.add(future.get());
-                                }
-                                futures = new ArrayList<>();
-                            }
-                           
+                        enqueue(queue, new VCFChunk(buffer, starts, ends, numLines, sitesRead), workers);
+                        sitesRead+=numLines;
+                        if((myProgressListener != null) && (totalSites>0)) {
+                            myProgressListener.progress((int)((long)sitesRead*100L/totalSites),null);
                         }
+                        int remaining=numBytes-lineStart;
+                        byte[] next=new byte[Math.max(READ_BUFFER_SIZE, remaining*2)];
+                        System.arraycopy(buffer, lineStart, next, 0, remaining);
+                        buffer=next;
+                        starts=new int[linesAtTime];
+                        ends=new int[linesAtTime];
+                        numLines=0;
+                        i-=lineStart;
+                        numBytes=remaining;
+                        lineStart=0;
                     }
-                    catch(Exception e) {
-                        myLogger.debug(e.getMessage(), e);
-                        throw new IllegalStateException(e.getMessage());
+                }
+
+                if (numBytes==buffer.length) {
+                    if (buffer.length==MAX_BUFFER_SIZE) {
+                        throw new IllegalStateException("BuilderFromVCF: readChunks: lines too long near site: "+(sitesRead+numLines));
                     }
-                    txtLines=new ArrayList<>(linesAtTime);
+                    buffer=Arrays.copyOf(buffer, (int)Math.min((long)buffer.length*2L, (long)MAX_BUFFER_SIZE));
                 }
+
             }
-            r.close();
-            //Handle whatever is left over in the file
-            if (txtLines.size()>0) {
-                ProcessVCFBlock pb;//=ProcessVCFBlock.getInstance(taxaList.numberOfTaxa(), hp, txtLines);
-                if(inMemory) {
-                    pb=ProcessVCFBlock.getInstance(taxaList.numberOfTaxa(), hp, txtLines, includeDepth);}
-                else{
-                    pb=ProcessVCFBlock.getInstance(taxaList.numberOfTaxa(), hp, txtLines, sitesRead-txtLines.size(),gtbDiskBuild, includeDepth);
-                }
-                //pbs.add(pb);
-                    //  pb.run(); //used for testing
-                
-                try {
-                    futures.add(pool.submit(pb));
-                }
-                catch(Exception e) {
-                    myLogger.debug(e.getMessage(), e);
-                throw new IllegalStateException(e.getMessage());
-                }
+
+            //last line may not end with new line
+            int lineEnd=((numBytes>lineStart) && (buffer[numBytes-1]=='\r'))?numBytes-1:numBytes;
+            if (!endOfRegion && (lineStatus(buffer, lineStart, lineEnd)==SITE)) {
+                starts[numLines]=lineStart;
+                ends[numLines]=lineEnd;
+                numLines++;
             }
-            int numFutures = futures.size();
-            int count = 0;
-            for(Future<ProcessVCFBlock> future : futures) {
-                try {
-                    pbs.add(future.get());
+            if (numLines>0) {
+                if ((totalSites>=0) && (sitesRead+numLines>totalSites)) {
+                    throw new IllegalStateException("BuilderFromVCF: readChunks: more sites than counted: "+totalSites+". File changed while reading?");
                 }
-                catch(Exception e) {
-                    myLogger.debug(e.getMessage(),e);
-                    throw new IllegalStateException(e.getMessage());
+                enqueue(queue, new VCFChunk(buffer, starts, ends, numLines, sitesRead), workers);
+                sitesRead+=numLines;
+            }
+
+        }
+        return sitesRead;
+
+    }
+
+    /**
+     * Puts chunk on the queue. While waiting for space, checks whether any
+     * worker has failed, so that a parse error doesn't leave this thread
+     * blocked.
+     */
+    private static void enqueue(BlockingQueue<VCFChunk> queue, VCFChunk chunk, List<Future<Integer>> workers)
+            throws InterruptedException, ExecutionException {
+        while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+            for (Future<Integer> worker : workers) {
+                if (worker.isDone()) {
+                    worker.get();
+                    throw new IllegalStateException("BuilderFromVCF: enqueue: VCF block processor stopped early");
                 }
-                if(myProgressListener != null) {
-                    count++;
-                    myProgressListener.progress(count * 100 / numFutures,null);
+            }
+        }
+    }
+
+    private static boolean isSite(byte[] buffer, int start, int end) {
+        return (end>start) && (buffer[start]!='#') && (buffer[start]!='\r');
+    }
+
+    /**
+     * Returns SITE if the line is a site to load, SKIP if it should be
+     * skipped (header, blank, or outside the region), or END_OF_REGION when
+     * reading from an index and the line is past the region.
+     */
+    private int lineStatus(byte[] buffer, int start, int end) {
+
+        if (!isSite(buffer, start, end)) {
+            return SKIP;
+        } else if (regionChromosome==null) {
+            return SITE;
+        }
+
+        int chrStart=-1;
+        int chrEnd=-1;
+        int posStart=-1;
+        int posEnd=-1;
+        int field=0;
+        int fieldStart=start;
+        for (int i=start; (i<=end) && ((chrEnd<0) || (posEnd<0)); i++) {
+            if ((i==end) || (buffer[i]=='\t')) {
+                if (field==hp.CHROMOSOME_INDEX) {
+                    chrStart=fieldStart;
+                    chrEnd=i;
+                } else if (field==hp.POSITION_INDEX) {
+                    posStart=fieldStart;
+                    posEnd=i;
                 }
+                field++;
+                fieldStart=i+1;
             }
-            pool.shutdown();
-            
-            if(inMemory) {
-                //result=completeInMemoryBuilding(futures, taxaList, sitesRead, includeDepth, fullSort);
-                result=completeInMemoryBuilding(pbs, taxaList, sitesRead, includeDepth, fullSort);
-            } else {
-                gtbDiskBuild.build();
+        }
+        if ((chrEnd<0) || (posEnd<0)) {
+            //let ProcessVCFBlock report the badly formatted line
+            return SITE;
+        }
+
+        boolean sameChromosome=chrEnd-chrStart==regionChromosomeBytes.length;
+        for (int i=0; sameChromosome && (i<regionChromosomeBytes.length); i++) {
+            sameChromosome=buffer[chrStart+i]==regionChromosomeBytes[i];
+        }
+        if (!sameChromosome) {
+            //reading from an index starts with the region chromosome
+            return (regionIndexed)?END_OF_REGION:SKIP;
+        }
+
+        long position=0;
+        for (int i=posStart; i<posEnd; i++) {
+            int digit=buffer[i]-'0';
+            if ((digit<0) || (digit>9)) {
+                return SITE;
             }
-            
-//            int currentSite=0;
-//            PositionListBuilder posBuild=new PositionListBuilder();
-//            GenotypeCallTableBuilder gb=GenotypeCallTableBuilder.getUnphasedNucleotideGenotypeBuilder(taxaList.numberOfTaxa(), lines);
-//            AlleleDepthBuilder db=null;
-//            if(includeDepth) db=AlleleDepthBuilder.getInstance(taxaList.numberOfTaxa(),lines,6);
-//            for (ProcessVCFBlock pb : pbs) {
-//                posBuild.addAll(pb.getBlkPosList());
-//                byte[][] bgTS=pb.getGenoTS();
-//                for (int t=0; t<bgTS.length; t++) {
-//                    gb.setBaseRangeForTaxon(t, currentSite, bgTS[t]);
-//                }
-//                if(includeDepth) {
-//                    byte[][][] bdTS=pb.getDepthTS();
-//                    for (int t=0; t<bgTS.length; t++) {
-//                        db.setDepthRangeForTaxon(t, currentSite, bdTS[t]);
-//                    }
-//                }
-//                currentSite+=pb.getSiteNumber();
-//            }
-//            if (posBuild.validateOrdering()==false) {
-//                throw new IllegalStateException("BuilderFromVCF: Ordering incorrect HapMap must be ordered by position");
-//            }
-//            GenotypeCallTable g=gb.build();
-//            if(includeDepth) {result=GenotypeTableBuilder.getInstance(g, posBuild.build(), taxaList, null, db.build());}
-//            else {result=GenotypeTableBuilder.getInstance(g, posBuild.build(), taxaList);}
-        } 
-        
-        catch (IOException e) {  
-            e.printStackTrace();
-        }
-        catch(IllegalStateException e) {
-        	if (pool != null) {
-                pool.shutdown();
-            }
-        	//e.printStackTrace();
-        	throw e;
+            position=position*10+digit;
+        }
+        if (position<regionStart) {
+            return SKIP;
+        } else if (position>regionEnd) {
+            return (regionIndexed)?END_OF_REGION:SKIP;
+        } else {
+            return SITE;
+        }
+
+    }
+
+    /**
+     * Opens the file to read sites. When a region is set and the file has a
+     * .tbi or .csi index, the stream starts at the region.
+     */
+    private InputStream openSites() throws IOException {
+        if (regionChromosome!=null) {
+            InputStream result=VCFUtil.getRegionInputStream(infile, regionChromosome, regionStart, regionEnd);
+            regionIndexed=result!=null;
+            if (regionIndexed) {
+                return result;
+            }
+        }
+        InputStream result=Utils.getInputStream(infile);
+        if (result==null) {
+            throw new IllegalStateException("BuilderFromVCF: openSites: problem opening: "+infile);
         }
-        long totalTime=System.nanoTime()-time;
-        System.out.printf("BuilderFromVCF data timing %gs %n", totalTime/1e9);
         return result;
     }
 
-    private static GenotypeTable completeInMemoryBuilding(List<ProcessVCFBlock> pbs, TaxaList taxaList, int numberOfSites, boolean includeDepth, boolean fullSort) {
-        int currentSite=0;
-        PositionListBuilder posBuild=new PositionListBuilder();
-        GenotypeCallTableBuilder gb=GenotypeCallTableBuilder.getUnphasedNucleotideGenotypeBuilder(taxaList.numberOfTaxa(), numberOfSites);
-        AlleleDepthBuilder db=null;
-       
-        if(includeDepth) db=AlleleDepthBuilder.getInstance(taxaList.numberOfTaxa(),numberOfSites,taxaList);
-     
-        
-        for (ProcessVCFBlock pb: pbs) {
-            posBuild.addAll(pb.getBlkPosList());
-            byte[][] bgTS=pb.getGenoTS();
-            for (int t=0; t<bgTS.length; t++) {
-                gb.setBaseRangeForTaxon(t, currentSite, bgTS[t]);
-            }
-            if(includeDepth) {
-                byte[][][] bdTS=pb.getDepthTS();
-                for (int t=0; t<bgTS.length; t++) {
-                    db.setDepthRangeForTaxon(t, currentSite, bdTS[t]);
+    /**
+     * Counts the lines that readChunks() will treat as sites.
+     */
+    private int countSites() throws IOException {
+        int result=0;
+        try (InputStream input=openSites()) {
+            byte[] buffer=new byte[READ_BUFFER_SIZE];
+            int numBytes=0;
+            int lineStart=0;
+            boolean endOfRegion=false;
+            int read;
+            while (!endOfRegion && ((read=input.read(buffer, numBytes, buffer.length-numBytes))>=0)) {
+                numBytes+=read;
+                for (int i=numBytes-read; i<numBytes; i++) {
+                    if (buffer[i]!='\n') continue;
+                    int lineEnd=((i>lineStart) && (buffer[i-1]=='\r'))?i-1:i;
+                    int status=lineStatus(buffer, lineStart, lineEnd);
+                    if (status==END_OF_REGION) {
+                        endOfRegion=true;
+                        break;
+                    } else if (status==SITE) {
+                        result++;
+                    }
+                    lineStart=i+1;
+                }
+                //keep partial line
+                numBytes-=lineStart;
+                System.arraycopy(buffer, lineStart, buffer, 0, numBytes);
+                lineStart=0;
+                if (numBytes==buffer.length) {
+                    if (buffer.length==MAX_BUFFER_SIZE) {
+                        throw new IllegalStateException("BuilderFromVCF: countSites: lines too long");
+                    }
+                    buffer=Arrays.copyOf(buffer, (int)Math.min((long)buffer.length*2L, (long)MAX_BUFFER_SIZE));
                 }
-                
             }
-            currentSite+=pb.getSiteNumber();
+            int lineEnd=((numBytes>0) && (buffer[numBytes-1]=='\r'))?numBytes-1:numBytes;
+            if (!endOfRegion && (lineStatus(buffer, 0, lineEnd)==SITE)) result++;
         }
-       
+        return result;
+    }
+
+    /**
+     * Sorts (if requested and needed) and builds the genotype table from the
+     * sites copied into the in memory builders.
+     */
+    private GenotypeTable completeInMemoryBuilding(ProcessVCFBlock.InMemorySites inMemorySites,
+                                                   TaxaList taxaList, boolean fullSort) {
+        GenotypeCallTableBuilder gb=inMemorySites.genotypeBuilder();
+        AlleleDepthBuilder db=inMemorySites.depthBuilder();
+
+        PositionListBuilder posBuild=new PositionListBuilder();
+        posBuild.addAll(Arrays.asList(inMemorySites.positions()));
 
         //Check that result is in correct order. If not, either try to sort or just throw an error (determined by what was passed to fullSort)
         if (posBuild.validateOrdering()==false) {
             if(fullSort) {
                 int[] siteRedirect = posBuild.sort();
                 gb.reorderPositions(siteRedirect);
-                if (includeDepth) {
+                if (db!=null) {
                     db.reorderPositions(siteRedirect);
                 }
                 if (posBuild.validateOrdering()==false) {   //Double-check post-sort ordering. Should never happen, but just to be safe
@@ -313,12 +527,12 @@ public class BuilderFromVCF {
             }
         }
         GenotypeCallTable g=gb.build();
-        if(includeDepth) {return GenotypeTableBuilder.getInstance(g, posBuild.build(), taxaList, db.build());}
+        if(db!=null) {return GenotypeTableBuilder.getInstance(g, posBuild.build(), taxaList, db.build());}
         else {return GenotypeTableBuilder.getInstance(g, posBuild.build(), taxaList);}
 
     }
 
-    private static String parseVCFHeadersIntoMaps(Map<String,String> infoMap, Map<String,String> formatMap,
+    static String parseVCFHeadersIntoMaps(Map<String,String> infoMap, Map<String,String> formatMap,
         Map<String,SetMultimap<String,String>> sampAnnoBuild, BufferedReader r) throws IOException {
         String currLine;
         while (((currLine=r.readLine())!=null)&&(currLine.startsWith("##"))) {
@@ -361,6 +575,10 @@ public class BuilderFromVCF {
     private TaxaList processTaxa(String readLn, Map<String,SetMultimap<String,String>> taxaAnnotation) {
         String[] header = TAB_PATTERN.split(readLn);
         hp=new HeaderPositions(header);
+        return processTaxa(header, hp, taxaAnnotation);
+    }
+
+    static TaxaList processTaxa(String[] header, HeaderPositions hp, Map<String,SetMultimap<String,String>> taxaAnnotation) {
         int numTaxa=header.length-hp.NUM_HAPMAP_NON_TAXA_HEADERS;
         TaxaListBuilder tlb=new TaxaListBuilder();
         for (int i=0; i<numTaxa; i++) {
@@ -384,342 +602,502 @@ public class BuilderFromVCF {
 
 }
 
-class HeaderPositions {
-    final int NUM_HAPMAP_NON_TAXA_HEADERS;
-    final int GENOIDX;
-    final int SNPID_INDEX;
-  //  final int VARIANT_INDEX;
-    final int FILTER_INDEX;
-    final int QUAL_INDEX;
-    final int CHROMOSOME_INDEX;
-    final int POSITION_INDEX;
-    final int REF_INDEX;
-    final int ALT_INDEX;
-    final int INFO_INDEX;
-    final int FORMAT_INDEX;
-
-    public HeaderPositions(String[] header){
-        int chrIdx=firstEqualIndex(header,"#CHROM");
-        if(chrIdx<0) chrIdx=firstEqualIndex(header,"#CHR");
-        CHROMOSOME_INDEX=chrIdx;
-        POSITION_INDEX=firstEqualIndex(header,"POS");
-        SNPID_INDEX=firstEqualIndex(header,"ID");
-        REF_INDEX=firstEqualIndex(header,"REF");
-        ALT_INDEX=firstEqualIndex(header,"ALT");
-        QUAL_INDEX=firstEqualIndex(header,"QUAL");
-        FILTER_INDEX=firstEqualIndex(header,"FILTER");
-        INFO_INDEX=firstEqualIndex(header,"INFO");
-        FORMAT_INDEX=firstEqualIndex(header,"FORMAT");
-
-        NUM_HAPMAP_NON_TAXA_HEADERS=Math.max(INFO_INDEX,FORMAT_INDEX)+1;
-        GENOIDX=NUM_HAPMAP_NON_TAXA_HEADERS;
-    }
-
-    private static int firstEqualIndex(String[] sa, String match) {
-        for (int i=0; i<sa.length; i++) {
-            if(sa[i].equals(match)) return i;
-        }
-        return -1;
+/**
+ * Whole VCF data lines read into one byte array. Line i is from starts[i]
+ * (inclusive) to ends[i] (exclusive, without line terminator) and is site
+ * startSite + i.
+ */
+final class VCFChunk {
+
+    static final VCFChunk END = new VCFChunk(new byte[0], new int[0], new int[0], 0, -1);
+
+    final byte[] data;
+    final int[] starts;
+    final int[] ends;
+    final int numSites;
+    final int startSite;
+
+    VCFChunk(byte[] data, int[] starts, int[] ends, int numSites, int startSite) {
+        this.data=data;
+        this.starts=starts;
+        this.ends=ends;
+        this.numSites=numSites;
+        this.startSite=startSite;
     }
 
 }
 
-//class ProcessVCFBlock implements Runnable {
-class ProcessVCFBlock implements Callable<ProcessVCFBlock> {
+/**
+ * Takes VCFChunks from the queue until VCFChunk.END, and parses the bytes
+ * directly (only site level fields become Strings). In memory, parsed chunks
+ * are copied into the builders in site order. For HDF5, parsed chunks are
+ * added to their HDF5 block. Returns number of sites processed.
+ */
+class ProcessVCFBlock implements Callable<Integer> {
 
-    private static final Pattern WHITESPACE_PATTERN=Pattern.compile("\\s");
-    private static final Pattern SLASH_PATTERN=Pattern.compile("/");
+    private static final Logger myLogger=LogManager.getLogger(ProcessVCFBlock.class);
+    private static final int MAX_ERROR_LINE_LENGTH=200;
+
+    private final BlockingQueue<VCFChunk> queue;
     private final HeaderPositions hp;
     private final int taxaN;
-    private final int siteN;
-    private final int startSite; //if unknown Int.Mini
-    private final GenotypeTableBuilder hdf5Builder; //null is building in memory
-    private ArrayList<String> txtL;
+    private final boolean keepDepth;
+    private final InMemorySites inMemorySites; //null is building HDF5
+    private final HDF5SiteBlocks hdf5Blocks; //null is building in memory
+    private final int[] tabPos;
+    private final Map<String, Chromosome> chromosomeLookup=new HashMap<>();
+    private byte[] lastChrName=new byte[0];
+    private Chromosome lastChr=null;
     private byte[][] gTS;  //genotypes
     private byte[][][] dTS; //depth
-    private final ArrayList<Position> blkPosList;
-    private final boolean keepDepth;
-    
+    private final ArrayList<Position> blkPosList=new ArrayList<>();
 
-    private ProcessVCFBlock(int taxaN, HeaderPositions hp, ArrayList<String> txtL, int startSite,
-                            GenotypeTableBuilder hdf5Builder, boolean keepDepth) {
+    private ProcessVCFBlock(BlockingQueue<VCFChunk> queue, int taxaN, HeaderPositions hp, InMemorySites inMemorySites,
+                            HDF5SiteBlocks hdf5Blocks, boolean keepDepth) {
+        this.queue=queue;
         this.taxaN=taxaN;
-        this.siteN=txtL.size();
-        this.txtL=txtL;
         this.hp=hp;
-        blkPosList=new ArrayList<>(siteN);
-        this.startSite=startSite;
-        this.hdf5Builder=hdf5Builder;
+        this.inMemorySites=inMemorySites;
+        this.hdf5Blocks=hdf5Blocks;
         this.keepDepth=keepDepth;
+        tabPos=new int[hp.NUM_HAPMAP_NON_TAXA_HEADERS];
     }
-    /*Used to process VCF blocks and return the result for a in memory GenotypeTable*/
-    static ProcessVCFBlock getInstance(int taxaN, HeaderPositions hp, ArrayList<String> txtL,boolean keepDepth) {
-        return new ProcessVCFBlock(taxaN, hp, txtL, Integer.MIN_VALUE, null,keepDepth);
+
+    /*Used to process VCF blocks for a in memory GenotypeTable*/
+    static ProcessVCFBlock getInstance(BlockingQueue<VCFChunk> queue, int taxaN, HeaderPositions hp, InMemorySites inMemorySites, boolean keepDepth) {
+        return new ProcessVCFBlock(queue, taxaN, hp, inMemorySites, null, keepDepth);
     }
 
-    /*Used to process VCF blocks and return the result for on disk HDF5 GenotypeTable*/
-    static ProcessVCFBlock getInstance(int taxaN, HeaderPositions hp, ArrayList<String> txtL, int startSite, GenotypeTableBuilder hdf5Builder, boolean keepDepth) {
-        return new ProcessVCFBlock(taxaN, hp, txtL, startSite, hdf5Builder,keepDepth);
+    /*Used to process VCF blocks into on disk HDF5 GenotypeTable*/
+    static ProcessVCFBlock getInstance(BlockingQueue<VCFChunk> queue, int taxaN, HeaderPositions hp, HDF5SiteBlocks hdf5Blocks, boolean keepDepth) {
+        return new ProcessVCFBlock(queue, taxaN, hp, null, hdf5Blocks, keepDepth);
     }
 
     @Override
-    public ProcessVCFBlock call() throws Exception{
-        Map<String, Chromosome> chromosomeLookup=new HashMap<>();
-        gTS=new byte[taxaN][siteN];
-        if(keepDepth==true) dTS=new byte[taxaN][6][siteN];
-        for (int s=0; s<siteN; s++) {
-            //really needs to use a Splitter iterator to make this cleaner if it is performant
-            String input=txtL.get(s);
-            try{
-                int[] tabPos=new int[hp.NUM_HAPMAP_NON_TAXA_HEADERS+taxaN];
-                int tabIndex=0;
-                int len=input.length();
-                for (int i=0; (tabIndex<hp.NUM_HAPMAP_NON_TAXA_HEADERS+taxaN)&&(i<len); i++) {
-                    if (input.charAt(i)=='\t') {
-                        tabPos[tabIndex++]=i;
-                    }
-                }
-                String chrName=input.substring(0, tabPos[hp.CHROMOSOME_INDEX]);
-                Chromosome currChr=chromosomeLookup.get(chrName);
-                if (currChr==null) {
-                    currChr=new Chromosome(new String(chrName));
-                    chromosomeLookup.put(chrName, currChr);
-                }
-                String snpID=null;
-                if(hp.SNPID_INDEX>0) snpID=input.substring(tabPos[hp.SNPID_INDEX-1]+1, tabPos[hp.SNPID_INDEX]);
-                String refS=input.substring(tabPos[hp.REF_INDEX-1]+1, tabPos[hp.REF_INDEX]);
-                String alt=input.substring(tabPos[hp.ALT_INDEX-1]+1, tabPos[hp.ALT_INDEX]);
-                String variants;
-                if(alt.equals(".")) {variants=refS;}
-                else {variants=(refS+"/"+alt).replace(',','/')
-                        .replace("<INS>", "+").replace('I', '+')
-                        .replace("<DEL>", "-").replace('D', '-')
-                        .replace("*", "N");}
-            
-                //GeneralPosition.Builder apb=new GeneralPosition.Builder(currChr, currentPosition)
-                //                                               .knownVariants(variants); //TODO strand, variants,
-                //ZRM 8_26
-                GeneralPosition.Builder apb=new GeneralPosition.Builder(currChr, Integer.parseInt(input.substring(tabPos[hp.POSITION_INDEX-1]+1, tabPos[hp.POSITION_INDEX])))
-                        .knownVariants(variants) //TODO strand, variants,
-                        ;
-                if(snpID!=null && !snpID.equals(".")) {
-                    apb.snpName(snpID);
-                }
-                //byte[] alleles=new byte[(variants.length()+1)/2];
-                byte[] alleles = new byte[variants.split("/").length];
-                for (int i = 0, varInd=0; i < alleles.length; i++, varInd+=2) {
-                    alleles[i]=NucleotideAlignmentConstants.getNucleotideAlleleByte(variants.charAt(varInd));
+    public Integer call() throws Exception {
+        int result=0;
+        while (true) {
+            VCFChunk chunk=queue.take();
+            if (chunk==VCFChunk.END) {
+                return result;
+            }
+            processChunk(chunk);
+            result+=chunk.numSites;
+        }
+    }
+
+    private void processChunk(VCFChunk chunk) {
+
+        int siteN=chunk.numSites;
+        //parsed chunks may be held until earlier chunks finish when in memory, so not reused
+        if ((inMemorySites!=null) || (gTS==null) || (gTS.length==0) || (gTS[0].length!=siteN)) {
+            gTS=new byte[taxaN][siteN];
+            if(keepDepth) dTS=new byte[taxaN][6][siteN];
+        } else if(keepDepth) {
+            for (byte[][] taxonDepths : dTS) {
+                for (byte[] alleleDepths : taxonDepths) {
+                    Arrays.fill(alleleDepths, (byte) 0);
                 }
-                /***ZRM 8_27 New code ***/
-                String[] variantList = variants.split("/");
-                if(variantList[0].length()>1) {
-                    String[] parsedVariantList = new String[variantList.length];
-                    //alt deletion
-                    for(int i = 0; i < variantList.length; i++) {
-                        //Pull off the first character if it exists
-                        if(variantList[i].length()>1) {
-                            parsedVariantList[i] = variantList[i].substring(1);
-                            if(parsedVariantList[i].length()==0) {
-                                parsedVariantList[i] = "-";
-                            }
-                        }
-                        else {
-                            //Mark as deletion
-                            parsedVariantList[i] = "-";
-                        }
-                    }
-                    for(int i = 0; i<parsedVariantList.length; i++) {
-                        alleles[i] = NucleotideAlignmentConstants.getNucleotideAlleleByte(parsedVariantList[i].charAt(0));
-                    }
+            }
+        }
+
+        for (int s=0; s<siteN; s++) {
+            int start=chunk.starts[s];
+            int end=chunk.ends[s];
+            try {
+                processSite(chunk.data, start, end, s);
+            } catch(IllegalStateException e) {
+                throw e;
+            } catch(Exception e) {
+                myLogger.debug(e.getMessage(), e);
+                String line=new String(chunk.data, start, Math.min(end-start, MAX_ERROR_LINE_LENGTH), StandardCharsets.UTF_8);
+                throw new IllegalStateException("BuilderFromVCF: Error processing site number: "+(chunk.startSite+s)+": "+e.getMessage()+"\n  Line: "+line);
+            }
+        }
+
+        if(hdf5Blocks!=null) {
+            hdf5Blocks.add(chunk.startSite, siteN, gTS, dTS, blkPosList);
+        } else {
+            inMemorySites.add(new ParsedChunk(chunk.startSite, gTS, dTS, blkPosList.toArray(new Position[siteN])));
+        }
+        blkPosList.clear();
+
+    }
+
+    private int fieldStart(int field, int lineStart) {
+        return (field==0)?lineStart:tabPos[field-1]+1;
+    }
+
+    private void processSite(byte[] data, int start, int end, int s) {
+
+        int numFixed=hp.NUM_HAPMAP_NON_TAXA_HEADERS;
+        int numTabs=0;
+        for (int i=start; (numTabs<numFixed)&&(i<end); i++) {
+            if (data[i]=='\t') {
+                tabPos[numTabs++]=i;
+            }
+        }
+        for (int i=numTabs; i<numFixed; i++) {
+            tabPos[i]=end;
+        }
+
+        Chromosome currChr=chromosome(data, fieldStart(hp.CHROMOSOME_INDEX, start), tabPos[hp.CHROMOSOME_INDEX]);
+        String snpID=null;
+        if(hp.SNPID_INDEX>0) snpID=string(data, fieldStart(hp.SNPID_INDEX, start), tabPos[hp.SNPID_INDEX]);
+        String refS=string(data, fieldStart(hp.REF_INDEX, start), tabPos[hp.REF_INDEX]);
+        String alt=string(data, fieldStart(hp.ALT_INDEX, start), tabPos[hp.ALT_INDEX]);
+        String variants=VCFUtil.knownVariants(refS, alt);
+
+        int position=parseInt(data, fieldStart(hp.POSITION_INDEX, start), tabPos[hp.POSITION_INDEX]);
+        GeneralPosition.Builder apb=new GeneralPosition.Builder(currChr, position)
+                .knownVariants(variants) //TODO strand, variants,
+                ;
+        if(snpID!=null && !snpID.equals(".")) {
+            apb.snpName(snpID);
+        }
+        byte[] alleles=VCFUtil.alleles(variants);
+        apb.allele(WHICH_ALLELE.Reference, alleles[0]);
+        if (alleles.length > 1) {
+            apb.allele(WHICH_ALLELE.Alternate, alleles[1]);
+        }
+        for(String annoS: Splitter.on(";").split(string(data, fieldStart(hp.INFO_INDEX, start), tabPos[hp.INFO_INDEX]))) {
+            apb.addAnno(annoS);
+        }
+        Position pos=apb.build();
+        blkPosList.add(pos);
+
+        int iAD=-1;  //alleleDepth, genotype is always first
+        if(hp.FORMAT_INDEX>=0) {
+            //Check to see if FORMAT tag is missing. Only applicable for single taxa files
+            if(numTabs<=hp.FORMAT_INDEX) {
+                throw new IllegalStateException("Error Processing VCF: Missing FORMAT tag.");
+            }
+            int formatStart=fieldStart(hp.FORMAT_INDEX, start);
+            int formatEnd=tabPos[hp.FORMAT_INDEX];
+            if((formatEnd-formatStart<2) || (data[formatStart]!='G') || (data[formatStart+1]!='T')) {
+                //Check to see it has the GT field
+                if(formatKeyIndex(data, formatStart, formatEnd, (byte) 'G', (byte) 'T')>=0) {
+                    throw new IllegalStateException("Error Processing VCF Block: GT field is not in first position of FORMAT.");
                 }
+                //If GT isnt in, we assume that it is missing FORMAT
                 else {
-                    //Check for reference deletion(insertion)
-                    //Loop through all variants to see if one alt is longer than the ref
-                    boolean isIndel = false;
-                    for(int i = 1; i < variantList.length; i++) {
-                        if(variantList[i].length() > variantList[0].length()) {
-                            isIndel = true;
-                            break;
-                        }
-                    }
-                    if(isIndel) {
-                        String[] parsedVariantList = new String[variantList.length];
-                        //ref+alt deletion
-                        for(int i = 0; i < variantList.length; i++) {
-                            //Pull off the first character if it exists
-                            if(variantList[i].length()>1) {
-                                parsedVariantList[i] = variantList[i].substring(1);
-                                if(parsedVariantList[i].length()==0) {
-                                    parsedVariantList[i] = "-";
-                                }
-                            }
-                            else {
-                                //Mark as deletion
-                                parsedVariantList[i] = "-";
-                            }
-                        }
-                        for(int i = 0; i<parsedVariantList.length; i++) {
-                            alleles[i] = NucleotideAlignmentConstants.getNucleotideAlleleByte(parsedVariantList[i].charAt(0));
-                        }
-                    }
-                    else {
-                        //if not just put it in the allele array
-                        for(int i = 0; i<variantList.length; i++) {
-                            alleles[i] = NucleotideAlignmentConstants.getNucleotideAlleleByte(variantList[i].charAt(0));
-                        }
-                    }
-                }
-                /***ZRM 8_27 New code end ***/
-                apb.allele(WHICH_ALLELE.Reference, alleles[0]);
-                if (alleles.length > 1) {
-                    apb.allele(WHICH_ALLELE.Alternate, alleles[1]);
+                    throw new IllegalStateException("Error Processing VCF Block: Missing FORMAT tag.");
                 }
-                for(String annoS: Splitter.on(";").split(input.substring(tabPos[hp.INFO_INDEX-1]+1, tabPos[hp.INFO_INDEX]))) {
-                    apb.addAnno(annoS);
-                }
-                blkPosList.add(apb.build());
-                final int iGT=0; //genotype index
-                int iAD=-1,iDP=-1,iGQ=-1, iPL=-1;  //alleleDepth, overall depth, genotypeQuality, phredGenotypeLikelihoods
-                if(hp.FORMAT_INDEX>=0) {
-                    //Check to see if FORMAT tag is missing. Only applicable for single taxa files
-                    if(tabPos[hp.FORMAT_INDEX]==0) {
-                        throw new IllegalStateException("Error Processing VCF: Missing FORMAT tag.");
-                    }
-                    String unsplitInput = input.substring(tabPos[hp.FORMAT_INDEX-1]+1, tabPos[hp.FORMAT_INDEX]);
-                    if(unsplitInput.length()==0|| !unsplitInput.startsWith("GT")) {
-                        //Check to see it has the GT field
-                        if(unsplitInput.contains("GT")) {
-                            throw new IllegalStateException("Error Processing VCF Block: GT field is not in first position of FORMAT.");
-                        }
-                        //If GT isnt in, we assume that it is missing FORMAT
-                        else {
-                            throw new IllegalStateException("Error Processing VCF Block: Missing FORMAT tag.");
-                        }
-                    }
-                    String[] formatS = unsplitInput.split(":");
-                    
-                    iAD=firstEqualIndex(formatS,"AD");
+            }
+            iAD=formatKeyIndex(data, formatStart, formatEnd, (byte) 'A', (byte) 'D');
+        }
+
+        int p=(numTabs==numFixed)?tabPos[numFixed-1]+1:end+1;
+        for (int t=0; t<taxaN; t++) {
+
+            if (p>end) {
+                gTS[t][s]=GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+                continue;
+            }
+
+            int fieldEnd=p;
+            while ((fieldEnd<end) && (data[fieldEnd]!='\t')) fieldEnd++;
+
+            if ((fieldEnd==p) || (data[p]=='.')) {
+                gTS[t][s]=GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+                p=fieldEnd+1;
+                continue;
+            }
+
+            int gtEnd=p;
+            while ((gtEnd<fieldEnd) && (data[gtEnd]!=':')) gtEnd++;
+            int a1;
+            int a2;
+            if (gtEnd-p==1) {
+                a1=data[p]-'0';
+                a2=a1;
+            } else if (gtEnd-p>=3) {
+                a1=data[p]-'0';
+                a2=data[p+2]-'0';
+            } else {
+                throw new IllegalStateException("Error Processing VCF block: Found unexpected genotype: "+string(data, p, gtEnd)
+                        +"\n  At Chromosome "+pos.getChromosome().getName()+", Position "+pos.getPosition()+".\nExpected a diploid entry.");
+            }
+            if(a1>alleles.length-1 || a2>alleles.length-1) {
+                throw new IllegalStateException("\nError Processing VCF block: Mismatch of alleles.\n  At Chromosome "+ pos.getChromosome().getName() + ", Position "+pos.getPosition() +".\nAllele ID larger than number of alleles" );
+            }
+            if (a1 < 0 || a2 < 0) {
+                gTS[t][s]=GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+            } else {
+                gTS[t][s]=GenotypeTableUtils.getDiploidValue(alleles[a1], alleles[a2]);
+            }
+
+            if(keepDepth && (iAD>0) && (gTS[t][s]!=GenotypeTable.UNKNOWN_DIPLOID_ALLELE)) {
+                int adStart=gtEnd;
+                int f=0;
+                while ((f<iAD) && (adStart<fieldEnd)) {
+                    if (data[adStart++]==':') f++;
                 }
-                int t=0;
-                for(String taxaAllG: Splitter.on("\t").split(input.substring(tabPos[hp.NUM_HAPMAP_NON_TAXA_HEADERS-1]+1))) {
-                    int f=0;
-                    //if(taxaAllG.equals(".")) {
-                    if(taxaAllG.startsWith(".")) {
-                        gTS[t][s] = GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
-                        //need to still move up the taxa counter by one as we have covered this now.
-                        t++;
-                        continue;
-                    }
-                    for(String fieldS: Splitter.on(":").split(taxaAllG)) {
-                        if(f==iGT) {
-                            //String "[.0-9]\\/[.0-9]||[.0-9]\\|[.0-9]" will match a valid diploid
-                            if (!fieldS.equals(".")) { //[TAS-509] Check to make sure we are using diploids in the form 0/1 or 0|0
-                                int a1 = 0;
-                                int a2 = 0;
-                                //Should be this, but for speed we just check the character
-                                //if(fieldS.split("|/").length ==1) {
-                                if(fieldS.length() ==1) {
-                                    a1 = fieldS.charAt(0) - '0';
-                                    a2 = fieldS.charAt(0) - '0';
-                                }
-                                else {
-                                    //zrm22 Jul 31, 2017
-                                    //int a1 = fieldS.charAt(0) - '0';
-                                    //int a2 = fieldS.charAt(2) - '0';
-                                    
-                                    a1 = fieldS.charAt(0) - '0';
-                                    a2 = fieldS.charAt(2) - '0';
-                                }
-                                if(a1>alleles.length-1 || a2>alleles.length-1) {
-                                    Position pos = blkPosList.get(blkPosList.size()-1);
-                                    throw new IllegalStateException("\nError Processing VCF block: Mismatch of alleles.\n  At Chromosome "+ pos.getChromosome().getName() + ", Position "+pos.getPosition() +".\nAllele ID larger than number of alleles" );
-                                }
-                                if (a1 < 0 || a2 < 0) {
-                                    gTS[t][s] = GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
-                                }
-                                else {
-                                    gTS[t][s] =
-                                            GenotypeTableUtils.getDiploidValue(alleles[a1], alleles[a2]);
-                                }
-                            }
-                            else {	//[TAS-509] if it isnt a diploid error out early
-                                throw new IllegalStateException("Error Processing VCF block: Found haploid information for the element: "
-                                        + taxaAllG + ".\nExpected a diploid entry.");
-                            }
-                        } else if((f==iAD)&&keepDepth) {
-                           // System.out.println("GTS: "+gTS[t][s] + " "+fieldS);
-                            if(gTS[t][s]!=GenotypeTable.UNKNOWN_DIPLOID_ALLELE) {
-                                int i=0;
-                                for(String ad: Splitter.on(",").split(fieldS)){
-                                    if(i>=alleles.length) continue;
-                                    if(alleles[i]==GenotypeTable.UNKNOWN_ALLELE || ad.equals(".") || alleles[i]==NucleotideAlignmentConstants.UNDEFINED_ALLELE ||
-                                            alleles[i]==NucleotideAlignmentConstants.UNDEFINED_DIPLOID_ALLELE) {  //no position for depth of unknown alleles or depth is set to missing, so skip
-                                        //Uncomment when converted
-                                        //dTS[t][alleles[i++]][s] = AlleleDepthUtil.depthIntToByte(AlleleDepthUtil.DEPTH_MISSING);
-                                        //Comment next two lines when converted
-                                        i++;
-                                        continue;
-                                        }
-                                    
-                                    int adInt=Integer.parseInt(ad);
-                                    dTS[t][alleles[i++]][s]=AlleleDepthUtil.depthIntToByte(adInt);
-                                }
-                            }
-                        }
-                        f++;
-                    }
-                    t++;
+                if ((f==iAD) && (adStart<fieldEnd) && (data[adStart]!=':')) {
+                    recordDepths(data, adStart, fieldEnd, alleles, t, s);
                 }
-            } catch(IllegalStateException e) {
-                e.printStackTrace();
-            	throw e;
-            }
-            catch(Exception e) {
-                System.err.println("Err Site Number:"+s);
-                System.err.println("Err Site Number:"+blkPosList.get(blkPosList.size()-1).toString());
-                System.err.println("Err:"+input);
-                throw e;
             }
 
+            p=fieldEnd+1;
+
         }
-        txtL=null;
-        if(hdf5Builder!=null) {
-            addResultsToHDF5Builder();
-            gTS=null;
-            dTS=null;
-            txtL=null;
-            blkPosList.clear();
+
+    }
+
+    /**
+     * Records comma separated allele depths from the AD field starting at
+     * start for taxon and site.
+     */
+    private void recordDepths(byte[] data, int start, int fieldEnd, byte[] alleles, int t, int s) {
+        int end=start;
+        while ((end<fieldEnd) && (data[end]!=':')) end++;
+        int i=0;
+        int current=start;
+        while ((current<=end) && (i<alleles.length)) {
+            int next=current;
+            while ((next<end) && (data[next]!=',')) next++;
+            boolean missing=(next-current==1) && (data[current]=='.');
+            if(alleles[i]==GenotypeTable.UNKNOWN_ALLELE || missing || alleles[i]==NucleotideAlignmentConstants.UNDEFINED_ALLELE ||
+                    alleles[i]==NucleotideAlignmentConstants.UNDEFINED_DIPLOID_ALLELE) {  //no position for depth of unknown alleles or depth is set to missing, so skip
+                i++;
+            } else {
+                dTS[t][alleles[i++]][s]=AlleleDepthUtil.depthIntToByte(parseInt(data, current, next));
+            }
+            current=next+1;
         }
-        //TODO TAS-315 Create memory efficient VCF to HDF5 insert writing to Builder of direct.
-        return this;
     }
 
-    private void addResultsToHDF5Builder() {
+    private Chromosome chromosome(byte[] data, int start, int end) {
+        int length=end-start;
+        boolean same=(lastChr!=null) && (lastChrName.length==length);
+        for (int i=0; same && (i<length); i++) {
+            same=lastChrName[i]==data[start+i];
+        }
+        if (!same) {
+            String chrName=string(data, start, end);
+            lastChr=chromosomeLookup.computeIfAbsent(chrName, Chromosome::new);
+            lastChrName=Arrays.copyOfRange(data, start, end);
+        }
+        return lastChr;
+    }
 
-        hdf5Builder.addSiteBlock(startSite, PositionListBuilder.getInstance(blkPosList), gTS, dTS);
+    /**
+     * Returns the index of the colon separated key in data from start to
+     * end, or -1 if not present.
+     */
+    private static int formatKeyIndex(byte[] data, int start, int end, byte first, byte second) {
+        int index=0;
+        int keyStart=start;
+        for (int i=start; i<=end; i++) {
+            if ((i==end) || (data[i]==':')) {
+                if ((i-keyStart==2) && (data[keyStart]==first) && (data[keyStart+1]==second)) {
+                    return index;
+                }
+                index++;
+                keyStart=i+1;
+            }
+        }
+        return -1;
     }
 
-    int getSiteNumber() {
-        return siteN;
+    private static int parseInt(byte[] data, int start, int end) {
+        if (start>=end) {
+            throw new NumberFormatException("For input string: \"\"");
+        }
+        boolean negative=data[start]=='-';
+        int i=(negative || (data[start]=='+'))?start+1:start;
+        if (i==end) {
+            throw new NumberFormatException("For input string: \""+string(data, start, end)+"\"");
+        }
+        long result=0;
+        for (; i<end; i++) {
+            int digit=data[i]-'0';
+            if ((digit<0) || (digit>9)) {
+                throw new NumberFormatException("For input string: \""+string(data, start, end)+"\"");
+            }
+            result=result*10+digit;
+            if (result>(long)Integer.MAX_VALUE+1L) {
+                throw new NumberFormatException("For input string: \""+string(data, start, end)+"\"");
+            }
+        }
+        result=negative?-result:result;
+        if (result>Integer.MAX_VALUE) {
+            throw new NumberFormatException("For input string: \""+string(data, start, end)+"\"");
+        }
+        return (int)result;
     }
 
-    byte[][] getGenoTS() {
-        return gTS;
+    private static String string(byte[] data, int start, int end) {
+        return new String(data, start, end-start, StandardCharsets.UTF_8);
     }
 
-    byte[][][] getDepthTS() {
-        return dTS;
+    /**
+     * Parsed genotypes ([taxon][site]), depths ([taxon][allele][site]) and
+     * positions of a chunk, starting at startSite.
+     */
+    static final class ParsedChunk {
+
+        final int startSite;
+        final byte[][] genotypes;
+        final byte[][][] depths;
+        final Position[] positions;
+
+        ParsedChunk(int startSite, byte[][] genotypes, byte[][][] depths, Position[] positions) {
+            this.startSite=startSite;
+            this.genotypes=genotypes;
+            this.depths=depths;
+            this.positions=positions;
+        }
+
     }
 
-    ArrayList<Position> getBlkPosList() {
-        return blkPosList;
+    /**
+     * Copies parsed chunks into the in memory genotype, depth, and position
+     * builders in site order. A chunk that finishes before an earlier one is
+     * held until the earlier one arrives. Only one worker copies at a time,
+     * while the others go back to parsing. Chunks are released once copied.
+     */
+    static final class InMemorySites {
+
+        private final GenotypeCallTableBuilder genotypes;
+        private final AlleleDepthBuilder depths;
+        private final Position[] positions;
+        private final int taxaN;
+        private final Map<Integer, ParsedChunk> pending=new HashMap<>();
+        private int nextSite=0;
+        private boolean copying=false;
+
+        InMemorySites(TaxaList taxaList, int totalSites, boolean keepDepth) {
+            taxaN=taxaList.numberOfTaxa();
+            genotypes=GenotypeCallTableBuilder.getUnphasedNucleotideGenotypeBuilder(taxaN, totalSites);
+            depths=(keepDepth)?AlleleDepthBuilder.getInstance(taxaN, totalSites, taxaList):null;
+            positions=new Position[totalSites];
+        }
+
+        void add(ParsedChunk chunk) {
+            synchronized (pending) {
+                pending.put(chunk.startSite, chunk);
+                if (copying) {
+                    return;
+                }
+                copying=true;
+            }
+            while (true) {
+                ParsedChunk next;
+                synchronized (pending) {
+                    next=pending.remove(nextSite);
+                    if (next==null) {
+                        copying=false;
+                        return;
+                    }
+                }
+                copy(next);
+                synchronized (pending) {
+                    nextSite+=next.positions.length;
+                }
+            }
+        }
+
+        private void copy(ParsedChunk chunk) {
+            for (int t=0; t<taxaN; t++) {
+                genotypes.setBaseRangeForTaxon(t, chunk.startSite, chunk.genotypes[t]);
+                if (depths!=null) depths.setDepthRangeForTaxon(t, chunk.startSite, chunk.depths[t]);
+            }
+            System.arraycopy(chunk.positions, 0, positions, chunk.startSite, chunk.positions.length);
+        }
+
+        GenotypeCallTableBuilder genotypeBuilder() {
+            checkComplete();
+            return genotypes;
+        }
+
+        AlleleDepthBuilder depthBuilder() {
+            checkComplete();
+            return depths;
+        }
+
+        Position[] positions() {
+            checkComplete();
+            return positions;
+        }
+
+        private void checkComplete() {
+            synchronized (pending) {
+                if ((nextSite!=positions.length) || !pending.isEmpty()) {
+                    throw new IllegalStateException("BuilderFromVCF: InMemorySites: only sites before: "+nextSite+" of: "+positions.length+" were copied");
+                }
+            }
+        }
+
     }
 
-    private static int firstEqualIndex(String[] sa, String match) {
-        for (int i=0; i<sa.length; i++) {
-            if(sa[i].equals(match)) return i;
+    /**
+     * Assembles parsed chunks into whole HDF5 blocks
+     * (Tassel5HDF5Constants.BLOCK_SIZE sites). A block is written by the
+     * worker that adds its last chunk. Chunks must not cross blocks.
+     */
+    static final class HDF5SiteBlocks {
+
+        private final GenotypeTableBuilder builder;
+        private final int taxaN;
+        private final int totalSites;
+        private final boolean keepDepth;
+        private final Map<Integer, PendingBlock> pending=new HashMap<>();
+
+        HDF5SiteBlocks(GenotypeTableBuilder builder, int taxaN, int totalSites, boolean keepDepth) {
+            this.builder=builder;
+            this.taxaN=taxaN;
+            this.totalSites=totalSites;
+            this.keepDepth=keepDepth;
         }
-        return -1;
+
+        void add(int startSite, int numSites, byte[][] genotypes, byte[][][] depths, List<Position> positions) {
+            int blockStart=startSite-startSite%Tassel5HDF5Constants.BLOCK_SIZE;
+            int blockSites=Math.min(Tassel5HDF5Constants.BLOCK_SIZE, totalSites-blockStart);
+            if (startSite+numSites>blockStart+blockSites) {
+                throw new IllegalStateException("BuilderFromVCF: HDF5SiteBlocks: add: sites: "+startSite+" to "+(startSite+numSites)+" cross HDF5 block at: "+blockStart);
+            }
+            PendingBlock block;
+            synchronized (pending) {
+                block=pending.computeIfAbsent(blockStart, k -> new PendingBlock(taxaN, blockSites, keepDepth));
+            }
+            int offset=startSite-blockStart;
+            for (int t=0; t<taxaN; t++) {
+                System.arraycopy(genotypes[t], 0, block.genotypes[t], offset, numSites);
+                if (keepDepth) {
+                    for (int a=0; a<depths[t].length; a++) {
+                        System.arraycopy(depths[t][a], 0, block.depths[t][a], offset, numSites);
+                    }
+                }
+            }
+            for (int s=0; s<numSites; s++) {
+                block.positions[offset+s]=positions.get(s);
+            }
+            //last chunk added sees the others' copies
+            if (block.remaining.addAndGet(-numSites)==0) {
+                synchronized (pending) {
+                    pending.remove(blockStart);
+                }
+                builder.addSiteBlock(blockStart, PositionListBuilder.getInstance(Arrays.asList(block.positions)), block.genotypes, block.depths);
+            }
+        }
+
+        private static final class PendingBlock {
+
+            final byte[][] genotypes;
+            final byte[][][] depths;
+            final Position[] positions;
+            final AtomicInteger remaining;
+
+            PendingBlock(int taxaN, int numSites, boolean keepDepth) {
+                genotypes=new byte[taxaN][numSites];
+                depths=(keepDepth)?new byte[taxaN][6][numSites]:null;
+                positions=new Position[numSites];
+                remaining=new AtomicInteger(numSites);
+            }
+
+        }
+
     }
-}
 
+}
@@ -0,0 +1,233 @@
+/*
+ *  BuilderFromVCFLIX
+ */
+package net.maizegenetics.dna.snp.io;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.SetMultimap;
+import htsjdk.tribble.util.ParsingUtils;
+import net.maizegenetics.dna.WHICH_ALLELE;
+import net.maizegenetics.dna.map.Chromosome;
+import net.maizegenetics.dna.map.GeneralPosition;
+import net.maizegenetics.dna.map.PositionList;
+import net.maizegenetics.dna.map.PositionListBuilder;
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.GenotypeTableBuilder;
+import net.maizegenetics.dna.snp.genotypecall.LineIndexVCFGenotypeCallTable;
+import net.maizegenetics.taxa.TaxaList;
+import net.maizegenetics.util.BGZFInputStream;
+import net.maizegenetics.util.TabixIndex;
+import net.maizegenetics.util.Tuple;
+import net.maizegenetics.util.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Builds a GenotypeTable from a bgzipped VCF file whose genotypes are read on
+ * demand. Either a line index (.lix) created by
+ * LineIndexBuilder.buildVCFIndex() is used, or for a single region, a tabix
+ * (.tbi or .csi) index is used to create a line index of just that region.
+ * Positions and taxa are loaded in memory. Allele depths are not loaded.
+ */
+public class BuilderFromVCFLIX {
+
+    private static final Logger myLogger = LogManager.getLogger(BuilderFromVCFLIX.class);
+    private static final Pattern TAB_PATTERN = Pattern.compile("[\\t]+");
+    private static final int NUM_VCF_NON_TAXA_HEADERS = 9;
+    private static final int CHROMOSOME_INDEX = 0;
+    private static final int POSITION_INDEX = 1;
+    private static final int SNPID_INDEX = 2;
+    private static final int REF_INDEX = 3;
+    private static final int ALT_INDEX = 4;
+    private static final int INFO_INDEX = 7;
+
+    private BuilderFromVCFLIX() {
+    }
+
+    public static GenotypeTable build(String vcfFileBGZip) {
+        return build(vcfFileBGZip, ParsingUtils.appendToPath(vcfFileBGZip, LineIndexBuilder.LINE_INDEX_FILE_EXTENSION));
+    }
+
+    public static GenotypeTable build(String vcfFileBGZip, String indexFilename) {
+
+        Tuple<LineIndex, String[]> indexPositionInfo = LineIndexBuilder.readIndex(indexFilename);
+        PositionList positionList = positions(Arrays.asList(indexPositionInfo.y));
+        TaxaList taxaList = taxa(vcfFileBGZip);
+
+        return GenotypeTableBuilder.getInstance(LineIndexVCFGenotypeCallTable.getInstance(taxaList.numberOfTaxa(), positionList.numberOfSites(), false, indexPositionInfo.x, vcfFileBGZip), positionList, taxaList);
+
+    }
+
+    /**
+     * Builds GenotypeTable for the sites in the given region of a bgzipped
+     * VCF file with a tabix (.tbi or .csi) index. The region is scanned once
+     * to get the positions and the file offsets of every
+     * LineIndex.NUM_LINES_PER_INTERVAL sites. Genotypes are read when
+     * accessed.
+     *
+     * @param vcfFileBGZip bgzipped VCF file
+     * @param chromosome chromosome name as it appears in the VCF file
+     * @param startPosition first position (inclusive)
+     * @param endPosition last position (inclusive)
+     *
+     * @return genotype table
+     */
+    public static GenotypeTable build(String vcfFileBGZip, String chromosome, int startPosition, int endPosition) {
+
+        if (startPosition > endPosition) {
+            throw new IllegalArgumentException("BuilderFromVCFLIX: build: start position: " + startPosition + " is after end position: " + endPosition);
+        }
+
+        TabixIndex tabix = TabixIndex.getInstanceIfExists(vcfFileBGZip);
+        if (tabix == null) {
+            throw new IllegalArgumentException("BuilderFromVCFLIX: build: no .tbi or .csi index for: " + vcfFileBGZip);
+        }
+
+        TaxaList taxaList = taxa(vcfFileBGZip);
+
+        List<String> sites = new ArrayList<>();
+        long[] offsets = new long[16];
+        int numOffsets = 0;
+        long startOffset = tabix.startOffset(chromosome, startPosition, endPosition);
+        if (startOffset != -1) {
+            try (BGZFInputStream input = new BGZFInputStream(vcfFileBGZip)) {
+                input.seek(startOffset);
+                long offset = input.getFilePointer();
+                String line;
+                while ((line = input.readLine()) != null) {
+                    if (line.isEmpty() || (line.charAt(0) == '#')) {
+                        offset = input.getFilePointer();
+                        continue;
+                    }
+                    String[] tokens = TAB_PATTERN.split(line, NUM_VCF_NON_TAXA_HEADERS);
+                    if (tokens.length < NUM_VCF_NON_TAXA_HEADERS) {
+                        throw new IllegalStateException("BuilderFromVCFLIX: build: too few columns near: " + tokens[0]);
+                    }
+                    if (!tokens[CHROMOSOME_INDEX].equals(chromosome)) {
+                        if (!sites.isEmpty()) {
+                            break;
+                        }
+                        offset = input.getFilePointer();
+                        continue;
+                    }
+                    int position = position(tokens[POSITION_INDEX]);
+                    if (position > endPosition) {
+                        break;
+                    }
+                    if (position >= startPosition) {
+                        if (sites.size() % LineIndex.NUM_LINES_PER_INTERVAL == 0) {
+                            if (numOffsets == offsets.length) {
+                                offsets = Arrays.copyOf(offsets, numOffsets * 2);
+                            }
+                            offsets[numOffsets++] = offset;
+                        }
+                        sites.add(tokens[CHROMOSOME_INDEX] + "\t" + tokens[POSITION_INDEX] + "\t" + tokens[SNPID_INDEX] + "\t"
+                                + tokens[REF_INDEX] + "\t" + tokens[ALT_INDEX] + "\t\t\t" + tokens[INFO_INDEX]);
+                    }
+                    offset = input.getFilePointer();
+                }
+            } catch (IOException e) {
+                myLogger.debug(e.getMessage(), e);
+                throw new IllegalStateException("BuilderFromVCFLIX: build: problem reading: " + vcfFileBGZip + ": " + e.getMessage());
+            }
+        }
+        myLogger.info("build: " + chromosome + ":" + startPosition + "-" + endPosition + " number of sites: " + sites.size());
+
+        LineIndex index = new LineIndex(LineIndexBuilder.MAGIC_NUMBER, '#', 0, LineIndex.NUM_LINES_PER_INTERVAL, Arrays.copyOf(offsets, numOffsets));
+        PositionList positionList = positions(sites);
+
+        return GenotypeTableBuilder.getInstance(LineIndexVCFGenotypeCallTable.getInstance(taxaList.numberOfTaxa(), positionList.numberOfSites(), false, index, vcfFileBGZip), positionList, taxaList);
+
+    }
+
+    /**
+     * Creates positions from the first eight (tab separated) columns of VCF
+     * site lines.
+     */
+    private static PositionList positions(List<String> sites) {
+
+        Map<String, Chromosome> chromosomeLookup = new HashMap<>();
+        PositionListBuilder positions = new PositionListBuilder();
+        for (String current : sites) {
+
+            String[] tokens = current.split("\t");
+
+            String chrName = tokens[CHROMOSOME_INDEX];
+            Chromosome currChr = chromosomeLookup.get(chrName);
+            if (currChr == null) {
+                currChr = Chromosome.instance(chrName);
+                chromosomeLookup.put(chrName, currChr);
+            }
+
+            String variants = VCFUtil.knownVariants(tokens[REF_INDEX], tokens[ALT_INDEX]);
+            GeneralPosition.Builder positionBuilder = new GeneralPosition.Builder(currChr, position(tokens[POSITION_INDEX]))
+                    .knownVariants(variants);
+            if (!tokens[SNPID_INDEX].equals(".")) {
+                positionBuilder.snpName(tokens[SNPID_INDEX]);
+            }
+
+            byte[] alleles = VCFUtil.alleles(variants);
+            positionBuilder.allele(WHICH_ALLELE.Reference, alleles[0]);
+            if (alleles.length > 1) {
+                positionBuilder.allele(WHICH_ALLELE.Alternate, alleles[1]);
+            }
+
+            if (tokens.length > INFO_INDEX) {
+                for (String annotation : Splitter.on(";").split(tokens[INFO_INDEX])) {
+                    positionBuilder.addAnno(annotation);
+                }
+            }
+
+            positions.add(positionBuilder.build());
+        }
+
+        if (!positions.validateOrdering()) {
+            throw new IllegalStateException("BuilderFromVCFLIX: positions: VCF file must be ordered by position. Please first use SortGenotypeFilePlugin to correctly order the file.");
+        }
+        return positions.build();
+
+    }
+
+    private static int position(String position) {
+        try {
+            return Integer.parseInt(position);
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("BuilderFromVCFLIX: Position must be an integer: " + position);
+        }
+    }
+
+    private static TaxaList taxa(String vcfFileBGZip) {
+
+        try (BufferedReader reader = Utils.getBufferedReader(vcfFileBGZip)) {
+
+            Map<String, SetMultimap<String, String>> sampAnnoBuild = new TreeMap<>();
+            String currLine = BuilderFromVCF.parseVCFHeadersIntoMaps(new HashMap<String, String>(), new HashMap<String, String>(), sampAnnoBuild, reader);
+            if (currLine == null) {
+                throw new IllegalStateException("BuilderFromVCFLIX: taxa: no header line in: " + vcfFileBGZip);
+            }
+
+            String[] header = TAB_PATTERN.split(currLine);
+            HeaderPositions hp = new HeaderPositions(header);
+            if ((header.length > NUM_VCF_NON_TAXA_HEADERS) && (hp.GENOIDX != NUM_VCF_NON_TAXA_HEADERS)) {
+                throw new IllegalStateException("BuilderFromVCFLIX: taxa: expected standard VCF columns with FORMAT column before taxa: " + vcfFileBGZip);
+            }
+            return BuilderFromVCF.processTaxa(header, hp, sampAnnoBuild);
+
+        } catch (IOException e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("BuilderFromVCFLIX: taxa: problem reading: " + vcfFileBGZip + ": " + e.getMessage());
+        }
+
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ *  HeaderPositions
+ */
+package net.maizegenetics.dna.snp.io;
+
+/**
+ * Column indices of the fixed fields of a VCF header line.
+ *
+ * @author Ed Buckler
+ */
+class HeaderPositions {
+    final int NUM_HAPMAP_NON_TAXA_HEADERS;
+    final int GENOIDX;
+    final int SNPID_INDEX;
+  //  final int VARIANT_INDEX;
+    final int FILTER_INDEX;
+    final int QUAL_INDEX;
+    final int CHROMOSOME_INDEX;
+    final int POSITION_INDEX;
+    final int REF_INDEX;
+    final int ALT_INDEX;
+    final int INFO_INDEX;
+    final int FORMAT_INDEX;
+
+    public HeaderPositions(String[] header){
+        int chrIdx=firstEqualIndex(header,"#CHROM");
+        if(chrIdx<0) chrIdx=firstEqualIndex(header,"#CHR");
+        CHROMOSOME_INDEX=chrIdx;
+        POSITION_INDEX=firstEqualIndex(header,"POS");
+        SNPID_INDEX=firstEqualIndex(header,"ID");
+        REF_INDEX=firstEqualIndex(header,"REF");
+        ALT_INDEX=firstEqualIndex(header,"ALT");
+        QUAL_INDEX=firstEqualIndex(header,"QUAL");
+        FILTER_INDEX=firstEqualIndex(header,"FILTER");
+        INFO_INDEX=firstEqualIndex(header,"INFO");
+        FORMAT_INDEX=firstEqualIndex(header,"FORMAT");
+
+        NUM_HAPMAP_NON_TAXA_HEADERS=Math.max(INFO_INDEX,FORMAT_INDEX)+1;
+        GENOIDX=NUM_HAPMAP_NON_TAXA_HEADERS;
+    }
+
+    private static int firstEqualIndex(String[] sa, String match) {
+        for (int i=0; i<sa.length; i++) {
+            if(sa[i].equals(match)) return i;
+        }
+        return -1;
+    }
+
+}
@@ -108,21 +108,25 @@ public class LineIndexBuilder {
 
             try (BlockCompressedInputStream input = new BlockCompressedInputStream(new File(myFileToIndex))) {
 
-                boolean notFinished = true;
+                // skip comment lines and the given number of header lines
                 int linesSkipped = 0;
-                while (notFinished) {
+                while (true) {
+                    long lineStart = input.getFilePointer();
                     String str = input.readLine();
-                    if (!(str.charAt(0) == myCommentChar)) {
-                        linesSkipped++;
-                    }
-                    if (myNumHeaderLinesToSkip <= linesSkipped) {
-                        notFinished = false;
+                    if (str == null) {
+                        break;
+                    } else if (!str.isEmpty() && (str.charAt(0) == myCommentChar)) {
+                        continue;
+                    } else if (linesSkipped == myNumHeaderLinesToSkip) {
+                        input.seek(lineStart);
+                        break;
                     }
+                    linesSkipped++;
                 }
 
                 List<Long> virtualFileOffsets = new ArrayList<>();
                 List<String> beginningColumnsPerRow = new ArrayList<>();
-                notFinished = true;
+                boolean notFinished = true;
                 while (notFinished) {
                     virtualFileOffsets.add(input.getFilePointer());
                     for (int i = 0; i < LineIndex.NUM_LINES_PER_INTERVAL; i++) {
@@ -183,4 +187,17 @@ public class LineIndexBuilder {
                 .build();
     }
 
+    /**
+     * Builds index for a bgzipped VCF. All header lines start with #, so none
+     * are counted as header lines to skip. The first 8 columns (CHROM to
+     * INFO) are kept in the index.
+     */
+    public static void buildVCFIndex(String filename) {
+        new LineIndexBuilder(filename)
+                .commentChar('#')
+                .numHeaderLinesToSkip(0)
+                .numColumnsPerRowToKeepInIndex(8)
+                .build();
+    }
+
 }
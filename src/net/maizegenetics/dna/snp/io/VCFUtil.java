@@ -12,10 +12,15 @@ import htsjdk.variant.variantcontext.VariantContextBuilder;
 import net.maizegenetics.dna.map.Position;
 import net.maizegenetics.dna.snp.GenotypeTable;
 import net.maizegenetics.dna.snp.NucleotideAlignmentConstants;
+import net.maizegenetics.util.BGZFInputStream;
+import net.maizegenetics.util.TabixIndex;
 import net.maizegenetics.util.Tuple;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -53,6 +58,145 @@ public class VCFUtil {
         // utility
     }
 
+    /**
+     * Returns known variants (i.e. A/C/-) for the REF and ALT columns of a
+     * VCF record.
+     *
+     * @param ref REF column
+     * @param alt ALT column
+     *
+     * @return known variants
+     */
+    public static String knownVariants(String ref, String alt) {
+        if (alt.equals(".")) {
+            return ref;
+        }
+        return (ref + "/" + alt).replace(',', '/')
+                .replace("<INS>", "+").replace('I', '+')
+                .replace("<DEL>", "-").replace('D', '-')
+                .replace("*", "N");
+    }
+
+    /**
+     * Returns allele bytes (reference first) from the known variants
+     * returned by knownVariants(). Indels are coded with - and +.
+     *
+     * @param variants known variants
+     *
+     * @return allele bytes
+     */
+    public static byte[] alleles(String variants) {
+        //byte[] alleles=new byte[(variants.length()+1)/2];
+        byte[] alleles = new byte[variants.split("/").length];
+        for (int i = 0, varInd=0; i < alleles.length; i++, varInd+=2) {
+            alleles[i]=NucleotideAlignmentConstants.getNucleotideAlleleByte(variants.charAt(varInd));
+        }
+        /***ZRM 8_27 New code ***/
+        String[] variantList = variants.split("/");
+        if(variantList[0].length()>1) {
+            String[] parsedVariantList = new String[variantList.length];
+            //alt deletion
+            for(int i = 0; i < variantList.length; i++) {
+                //Pull off the first character if it exists
+                if(variantList[i].length()>1) {
+                    parsedVariantList[i] = variantList[i].substring(1);
+                    if(parsedVariantList[i].length()==0) {
+                        parsedVariantList[i] = "-";
+                    }
+                }
+                else {
+                    //Mark as deletion
+                    parsedVariantList[i] = "-";
+                }
+            }
+            for(int i = 0; i<parsedVariantList.length; i++) {
+                alleles[i] = NucleotideAlignmentConstants.getNucleotideAlleleByte(parsedVariantList[i].charAt(0));
+            }
+        }
+        else {
+            //Check for reference deletion(insertion)
+            //Loop through all variants to see if one alt is longer than the ref
+            boolean isIndel = false;
+            for(int i = 1; i < variantList.length; i++) {
+                if(variantList[i].length() > variantList[0].length()) {
+                    isIndel = true;
+                    break;
+                }
+            }
+            if(isIndel) {
+                String[] parsedVariantList = new String[variantList.length];
+                //ref+alt deletion
+                for(int i = 0; i < variantList.length; i++) {
+                    //Pull off the first character if it exists
+                    if(variantList[i].length()>1) {
+                        parsedVariantList[i] = variantList[i].substring(1);
+                        if(parsedVariantList[i].length()==0) {
+                            parsedVariantList[i] = "-";
+                        }
+                    }
+                    else {
+                        //Mark as deletion
+                        parsedVariantList[i] = "-";
+                    }
+                }
+                for(int i = 0; i<parsedVariantList.length; i++) {
+                    alleles[i] = NucleotideAlignmentConstants.getNucleotideAlleleByte(parsedVariantList[i].charAt(0));
+                }
+            }
+            else {
+                //if not just put it in the allele array
+                for(int i = 0; i<variantList.length; i++) {
+                    alleles[i] = NucleotideAlignmentConstants.getNucleotideAlleleByte(variantList[i].charAt(0));
+                }
+            }
+        }
+        /***ZRM 8_27 New code end ***/
+        return alleles;
+    }
+
+    /**
+     * Returns stream of the given bgzip compressed VCF starting at the first
+     * record that may be in the region, using its .tbi or .csi index. Callers
+     * must still check each record's chromosome and position, and can stop at
+     * the first record past the region. Returns null if the file isn't BGZF
+     * or isn't indexed.
+     *
+     * @param vcfFilename VCF file name
+     * @param chromosome chromosome name as it appears in the VCF
+     * @param startPosition first position (inclusive)
+     * @param endPosition last position (inclusive)
+     *
+     * @return stream or null
+     * @throws IOException if problem reading the file
+     */
+    public static InputStream getRegionInputStream(String vcfFilename, String chromosome, int startPosition, int endPosition) throws IOException {
+
+        if (!vcfFilename.endsWith(".gz") || !BGZFInputStream.isBGZF(vcfFilename)) {
+            return null;
+        }
+
+        TabixIndex index = TabixIndex.getInstanceIfExists(vcfFilename);
+        if (index == null) {
+            return null;
+        }
+
+        long offset = index.startOffset(chromosome, startPosition, endPosition);
+        if (offset == -1) {
+            myLogger.info("getRegionInputStream: no records in: " + vcfFilename + " for: " + chromosome + ":" + startPosition + "-" + endPosition);
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        BGZFInputStream result = new BGZFInputStream(vcfFilename);
+        try {
+            result.seek(offset);
+        } catch (IOException e) {
+            result.close();
+            throw e;
+        }
+        return result;
+
+    }
+
 
     public static int[] getScore(int i, int j) {
         if (i > 127 || j > 127) return calcScore(i, j);
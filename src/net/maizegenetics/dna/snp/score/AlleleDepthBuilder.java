@@ -6,6 +6,9 @@ package net.maizegenetics.dna.snp.score;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import ch.systemsx.cisd.hdf5.IHDF5Writer;
 
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
 import net.maizegenetics.dna.snp.FilterGenotypeTable;
 import net.maizegenetics.dna.snp.MaskMatrix;
 import net.maizegenetics.dna.snp.Translate;
@@ -15,26 +18,109 @@ import net.maizegenetics.dna.snp.byte2d.Byte2DBuilder;
 import net.maizegenetics.taxa.TaxaList;
 
 /**
+ * Builds AlleleDepth stored in memory or in a HDF5 file. In memory depths are
+ * stored either dense (Byte2D for each allele) or sparse (SparseAlleleDepth),
+ * whichever build() finds more suitable for the density of non-zero depths.
+ * Taxa added whole with addTaxon(int, byte[][]) are kept sparse until
+ * something needs the dense storage (i.e. setDepthRangeForTaxon()).
  *
  * @author Terry Casstevens
  */
 public class AlleleDepthBuilder {
 
-    private Byte2DBuilder[] myBuilders;
+    // sparse storage is used when it would be at most this fraction of the dense storage size
+    private static final double MAX_SPARSE_SIZE_FRACTION = 0.25;
+    // bytes per non-zero depth in SparseAlleleDepth (int key and byte depth)
+    private static final int SPARSE_BYTES_PER_DEPTH = 5;
+
+    private volatile Byte2DBuilder[] myBuilders;
+    private SparseAlleleDepth.Row[] myRows;
+    // non-zero depths written to the dense builders. Values overwritten
+    // aren't subtracted, so this is an upper bound of the non-zero depths.
+    private final LongAdder myNumDenseDepths = new LongAdder();
+    private final int myNumTaxa;
     private final int myNumSites;
+    private final TaxaList myTaxaList;
 
     private AlleleDepthBuilder(int numTaxa, int numSites, TaxaList taxaList) {
-        myBuilders = new Byte2DBuilder[AlleleDepth.NUM_ALLELE_DEPTH_TYPES];
-        for (int i = 0; i < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; i++) {
-            myBuilders[i] = Byte2DBuilder.getInstance(numTaxa, numSites, AlleleDepth.ALLELE_DEPTH_TYPES[i], taxaList);
-        }
+        myNumTaxa = numTaxa;
         myNumSites = numSites;
+        myTaxaList = taxaList;
+        if (sparseSupported(numSites)) {
+            myBuilders = null;
+            myRows = new SparseAlleleDepth.Row[numTaxa];
+        } else {
+            myBuilders = createDenseBuilders();
+            myRows = null;
+        }
     }
 
     // For HDF5AlleleDepthBuilder
     protected AlleleDepthBuilder(int numSites) {
+        myNumTaxa = 0;
         myNumSites = numSites;
+        myTaxaList = null;
         myBuilders = null;
+        myRows = null;
+    }
+
+    private static boolean sparseSupported(int numSites) {
+        return numSites <= (Integer.MAX_VALUE / AlleleDepth.NUM_ALLELE_DEPTH_TYPES) - 1;
+    }
+
+    private Byte2DBuilder[] createDenseBuilders() {
+        Byte2DBuilder[] result = new Byte2DBuilder[AlleleDepth.NUM_ALLELE_DEPTH_TYPES];
+        for (int i = 0; i < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; i++) {
+            result[i] = Byte2DBuilder.getInstance(myNumTaxa, myNumSites, AlleleDepth.ALLELE_DEPTH_TYPES[i], myTaxaList);
+        }
+        return result;
+    }
+
+    /**
+     * Returns dense builders, copying any sparse rows into them the first time
+     * they are needed.
+     */
+    private Byte2DBuilder[] denseBuilders() {
+        Byte2DBuilder[] result = myBuilders;
+        if (result != null) {
+            return result;
+        }
+        synchronized (this) {
+            if (myBuilders == null) {
+                Byte2DBuilder[] builders = createDenseBuilders();
+                for (int t = 0; t < myNumTaxa; t++) {
+                    if (myRows[t] != null) {
+                        byte[][] values = myRows[t].toDense(myNumSites);
+                        for (int i = 0; i < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; i++) {
+                            builders[i].addTaxon(t, values[i]);
+                        }
+                        myNumDenseDepths.add(myRows[t].numStoredDepths());
+                    }
+                }
+                myRows = null;
+                myBuilders = builders;
+            }
+            return myBuilders;
+        }
+    }
+
+    /**
+     * Whether sparse storage should be used for the given number of non-zero
+     * depths.
+     */
+    private boolean useSparse(long numStoredDepths) {
+        double denseSize = (double) myNumTaxa * (double) myNumSites * (double) AlleleDepth.NUM_ALLELE_DEPTH_TYPES;
+        return sparseSupported(myNumSites) && (double) numStoredDepths * SPARSE_BYTES_PER_DEPTH <= denseSize * MAX_SPARSE_SIZE_FRACTION;
+    }
+
+    private static long numNonZero(byte[] values) {
+        long result = 0;
+        for (byte current : values) {
+            if (current != 0) {
+                result++;
+            }
+        }
+        return result;
     }
 
     /**
@@ -104,7 +190,8 @@ public class AlleleDepthBuilder {
             throw new IllegalArgumentException("AlleleDepthBuilder: addTaxon: number of values: " + values.length + " doesn't equal number of sites: " + myNumSites);
         }
         byte[] result = AlleleDepthUtil.depthIntToByte(values);
-        myBuilders[type.getIndex()].addTaxon(taxon, result);
+        denseBuilders()[type.getIndex()].addTaxon(taxon, result);
+        myNumDenseDepths.add(numNonZero(result));
         return this;
     }
 
@@ -115,8 +202,15 @@ public class AlleleDepthBuilder {
         if (myNumSites != values[0].length) {
             throw new IllegalArgumentException("AlleleDepthBuilder: addTaxon: number of values: " + values[0].length + " doesn't equal number of sites: " + myNumSites);
         }
+        synchronized (this) {
+            if (myBuilders == null) {
+                myRows[taxon] = SparseAlleleDepth.Row.getInstance(values);
+                return this;
+            }
+        }
         for (int i = 0; i < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; i++) {
             myBuilders[i].addTaxon(taxon, values[i]);
+            myNumDenseDepths.add(numNonZero(values[i]));
         }
         return this;
     }
@@ -138,8 +232,10 @@ public class AlleleDepthBuilder {
         if (numAlleles != AlleleDepth.NUM_ALLELE_DEPTH_TYPES) {
             throw new IllegalArgumentException("AlleleDepthBuilder: setDepthRangeForTaxon: value number of alleles: " + numAlleles + " should be: " + AlleleDepth.NUM_ALLELE_DEPTH_TYPES);
         }
+        Byte2DBuilder[] builders = denseBuilders();
         for (int a = 0; a < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; a++) {
-            myBuilders[a].setDepthRangeForTaxon(taxon, siteOffset, depths[a]);
+            builders[a].setDepthRangeForTaxon(taxon, siteOffset, depths[a]);
+            myNumDenseDepths.add(numNonZero(depths[a]));
         }
 
         return this;
@@ -147,18 +243,57 @@ public class AlleleDepthBuilder {
     }
 
     public void reorderPositions(int[] newIndices) {
+        Byte2DBuilder[] builders = denseBuilders();
         for (int i = 0; i < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; i++) {
-            myBuilders[i].reorderPositions(newIndices);
+            builders[i].reorderPositions(newIndices);
         }
     }
 
+    /**
+     * Builds AlleleDepth. Depths are stored sparse (SparseAlleleDepth) if
+     * that takes at most a quarter of the memory of dense storage. The number
+     * of non-zero depths is counted as they are added, so the dense builders
+     * aren't scanned unless they are converted to sparse.
+     *
+     * @return allele depth
+     */
     public AlleleDepth build() {
+
+        if (myBuilders == null) {
+            SparseAlleleDepth.Row[] rows = myRows;
+            long numStoredDepths = 0;
+            for (SparseAlleleDepth.Row row : rows) {
+                if (row != null) {
+                    numStoredDepths += row.numStoredDepths();
+                }
+            }
+            if (useSparse(numStoredDepths)) {
+                myRows = null;
+                return new SparseAlleleDepth(myNumSites, rows);
+            }
+        }
+
+        Byte2DBuilder[] builders = denseBuilders();
         Byte2D[] input = new Byte2D[AlleleDepth.NUM_ALLELE_DEPTH_TYPES];
         for (int a = 0; a < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; a++) {
-            input[a] = myBuilders[a].build();
+            input[a] = builders[a].build();
         }
         myBuilders = null;
-        return new AlleleDepth(input);
+
+        if (!useSparse(myNumDenseDepths.sum())) {
+            return new AlleleDepth(input);
+        }
+
+        SparseAlleleDepth.Row[] rows = new SparseAlleleDepth.Row[myNumTaxa];
+        IntStream.range(0, myNumTaxa).parallel().forEach(t -> {
+            byte[][] values = new byte[AlleleDepth.NUM_ALLELE_DEPTH_TYPES][];
+            for (int a = 0; a < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; a++) {
+                values[a] = input[a].valuesForAllSites(t);
+            }
+            rows[t] = SparseAlleleDepth.Row.getInstance(values);
+        });
+        return new SparseAlleleDepth(myNumSites, rows);
+
     }
 
 }
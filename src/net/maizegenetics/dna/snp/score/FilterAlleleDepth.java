@@ -40,6 +40,42 @@ public class FilterAlleleDepth extends AlleleDepth {
         return myBase.valuesByte((int) (taxonSite >>> 32), (int) (taxonSite & 0xFFFFFFFF));
     }
 
+    /**
+     * Returns the depth values of all nucleotides at given taxon and site.
+     * Depth values are stored in bytes and translated to integer using
+     * AlleleDepthUtil.depthByteToInt().
+     *
+     * @param taxon taxon
+     * @param site site
+     *
+     * @return depths
+     */
+    @Override
+    public int[] values(int taxon, int site) {
+        long taxonSite = myTranslate.taxonSite(taxon, site);
+        if (taxonSite == -1) {
+            return new int[NUM_ALLELE_DEPTH_TYPES];
+        }
+        return myBase.values((int) (taxonSite >>> 32), (int) (taxonSite & 0xFFFFFFFF));
+    }
+
+    /**
+     * Returns sum of all nucleotide depths at given taxon and site.
+     *
+     * @param taxon taxon
+     * @param site site
+     *
+     * @return sum of depths
+     */
+    @Override
+    public int depth(int taxon, int site) {
+        long taxonSite = myTranslate.taxonSite(taxon, site);
+        if (taxonSite == -1) {
+            return 0;
+        }
+        return myBase.depth((int) (taxonSite >>> 32), (int) (taxonSite & 0xFFFFFFFF));
+    }
+
     /**
      * Returns depth values (byte representation) of all nucleotides and sites
      * for given taxon. The first dimension of returned array is nucleotides
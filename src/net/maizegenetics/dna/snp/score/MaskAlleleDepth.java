@@ -45,6 +45,33 @@ public class MaskAlleleDepth extends AlleleDepth {
         }
     }
 
+    @Override
+    public byte[] valuesByte(int taxon, int site) {
+        if (myMask.get(taxon, site)) {
+            return new byte[NUM_ALLELE_DEPTH_TYPES];
+        } else {
+            return myDepth.valuesByte(taxon, site);
+        }
+    }
+
+    @Override
+    public int[] values(int taxon, int site) {
+        if (myMask.get(taxon, site)) {
+            return new int[NUM_ALLELE_DEPTH_TYPES];
+        } else {
+            return myDepth.values(taxon, site);
+        }
+    }
+
+    @Override
+    public int depth(int taxon, int site) {
+        if (myMask.get(taxon, site)) {
+            return 0;
+        } else {
+            return myDepth.depth(taxon, site);
+        }
+    }
+
     @Override
     Collection<Byte2D> byteStorage() {
         return null;
@@ -0,0 +1,234 @@
+/*
+ *  SparseAlleleDepth
+ */
+package net.maizegenetics.dna.snp.score;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import net.maizegenetics.dna.snp.byte2d.Byte2D;
+
+/**
+ * AlleleDepth that only stores non-zero depths. Each taxon has a sorted array
+ * of keys (site * NUM_ALLELE_DEPTH_TYPES + allele) and the matching depths
+ * (byte representation). Alleles are indices into ALLELE_DEPTH_TYPES. This
+ * takes five bytes per non-zero depth instead of six bytes per taxon and
+ * site, so it's much smaller when most depths are zero (i.e. GBS).
+ */
+public class SparseAlleleDepth extends AlleleDepth {
+
+    private final int[][] myKeys;
+    private final byte[][] myDepths;
+
+    SparseAlleleDepth(int numSites, Row[] rows) {
+        super(rows.length, numSites);
+        myKeys = new int[rows.length][];
+        myDepths = new byte[rows.length][];
+        for (int t = 0; t < rows.length; t++) {
+            Row row = rows[t] == null ? Row.EMPTY : rows[t];
+            myKeys[t] = row.myKeys;
+            myDepths[t] = row.myDepths;
+        }
+    }
+
+    /**
+     * Returns index of the first stored depth for the given taxon and site, or
+     * where it would be if there are none.
+     */
+    private int first(int taxon, int site) {
+        int index = Arrays.binarySearch(myKeys[taxon], site * NUM_ALLELE_DEPTH_TYPES);
+        return index < 0 ? -(index + 1) : index;
+    }
+
+    private static int alleleIndex(SITE_SCORE_TYPE scoreType) {
+        for (int i = 0; i < NUM_ALLELE_DEPTH_TYPES; i++) {
+            if (ALLELE_DEPTH_TYPES[i] == scoreType) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("SparseAlleleDepth: alleleIndex: not an allele depth type: " + scoreType);
+    }
+
+    @Override
+    public int value(int taxon, int site, SITE_SCORE_TYPE scoreType) {
+        return AlleleDepthUtil.depthByteToInt(valueByte(taxon, site, scoreType));
+    }
+
+    @Override
+    public int depthForAllele(int taxon, int site, int allele) {
+        int key = site * NUM_ALLELE_DEPTH_TYPES + allele;
+        int index = Arrays.binarySearch(myKeys[taxon], key);
+        return index < 0 ? 0 : AlleleDepthUtil.depthByteToInt(myDepths[taxon][index]);
+    }
+
+    @Override
+    public byte valueByte(int taxon, int site, SITE_SCORE_TYPE scoreType) {
+        int key = site * NUM_ALLELE_DEPTH_TYPES + alleleIndex(scoreType);
+        int index = Arrays.binarySearch(myKeys[taxon], key);
+        return index < 0 ? 0 : myDepths[taxon][index];
+    }
+
+    @Override
+    public byte[] valuesByte(int taxon, int site) {
+        byte[] result = new byte[NUM_ALLELE_DEPTH_TYPES];
+        int[] keys = myKeys[taxon];
+        int base = site * NUM_ALLELE_DEPTH_TYPES;
+        for (int i = first(taxon, site); i < keys.length && keys[i] < base + NUM_ALLELE_DEPTH_TYPES; i++) {
+            result[keys[i] - base] = myDepths[taxon][i];
+        }
+        return result;
+    }
+
+    @Override
+    public int[] values(int taxon, int site) {
+        return AlleleDepthUtil.depthByteToInt(valuesByte(taxon, site));
+    }
+
+    @Override
+    public byte[][] valuesForTaxonByte(int taxon) {
+        byte[][] result = new byte[NUM_ALLELE_DEPTH_TYPES][numSites()];
+        int[] keys = myKeys[taxon];
+        byte[] depths = myDepths[taxon];
+        for (int i = 0; i < keys.length; i++) {
+            result[keys[i] % NUM_ALLELE_DEPTH_TYPES][keys[i] / NUM_ALLELE_DEPTH_TYPES] = depths[i];
+        }
+        return result;
+    }
+
+    @Override
+    public int[][] values(int taxon) {
+        int[][] result = new int[NUM_ALLELE_DEPTH_TYPES][numSites()];
+        int[] keys = myKeys[taxon];
+        byte[] depths = myDepths[taxon];
+        for (int i = 0; i < keys.length; i++) {
+            result[keys[i] % NUM_ALLELE_DEPTH_TYPES][keys[i] / NUM_ALLELE_DEPTH_TYPES] = AlleleDepthUtil.depthByteToInt(depths[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public byte[][] valuesForSiteByte(int site) {
+        byte[][] result = new byte[NUM_ALLELE_DEPTH_TYPES][numTaxa()];
+        int base = site * NUM_ALLELE_DEPTH_TYPES;
+        for (int taxon = 0; taxon < numTaxa(); taxon++) {
+            int[] keys = myKeys[taxon];
+            for (int i = first(taxon, site); i < keys.length && keys[i] < base + NUM_ALLELE_DEPTH_TYPES; i++) {
+                result[keys[i] - base][taxon] = myDepths[taxon][i];
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int depth(int taxon, int site) {
+        int result = 0;
+        int[] keys = myKeys[taxon];
+        int end = (site + 1) * NUM_ALLELE_DEPTH_TYPES;
+        for (int i = first(taxon, site); i < keys.length && keys[i] < end; i++) {
+            result += AlleleDepthUtil.depthByteToInt(myDepths[taxon][i]);
+        }
+        return result;
+    }
+
+    @Override
+    public int depthForTaxon(int taxon) {
+        int result = 0;
+        for (byte depth : myDepths[taxon]) {
+            result += AlleleDepthUtil.depthByteToInt(depth);
+        }
+        return result;
+    }
+
+    @Override
+    public int depthForSite(int site) {
+        int result = 0;
+        for (int taxon = 0; taxon < numTaxa(); taxon++) {
+            result += depth(taxon, site);
+        }
+        return result;
+    }
+
+    /**
+     * Number of non-zero depths stored.
+     *
+     * @return number of depths
+     */
+    public long numStoredDepths() {
+        long result = 0;
+        for (int[] keys : myKeys) {
+            result += keys.length;
+        }
+        return result;
+    }
+
+    @Override
+    Collection<Byte2D> byteStorage() {
+        return null;
+    }
+
+    /**
+     * Non-zero depths of one taxon.
+     */
+    static final class Row {
+
+        static final Row EMPTY = new Row(new int[0], new byte[0]);
+
+        private final int[] myKeys;
+        private final byte[] myDepths;
+
+        private Row(int[] keys, byte[] depths) {
+            myKeys = keys;
+            myDepths = depths;
+        }
+
+        /**
+         * Creates row from depths of one taxon. First dimension of depths is
+         * alleles (ALLELE_DEPTH_TYPES) and second dimension is sites.
+         */
+        static Row getInstance(byte[][] depths) {
+            int numSites = depths[0].length;
+            int count = 0;
+            for (byte[] allele : depths) {
+                for (byte depth : allele) {
+                    if (depth != 0) {
+                        count++;
+                    }
+                }
+            }
+            if (count == 0) {
+                return EMPTY;
+            }
+            int[] keys = new int[count];
+            byte[] values = new byte[count];
+            int index = 0;
+            for (int site = 0; site < numSites; site++) {
+                for (int allele = 0; allele < depths.length; allele++) {
+                    byte depth = depths[allele][site];
+                    if (depth != 0) {
+                        keys[index] = site * NUM_ALLELE_DEPTH_TYPES + allele;
+                        values[index++] = depth;
+                    }
+                }
+            }
+            return new Row(keys, values);
+        }
+
+        int numStoredDepths() {
+            return myKeys.length;
+        }
+
+        /**
+         * Returns depths of this row. First dimension is alleles
+         * (ALLELE_DEPTH_TYPES) and second dimension is sites.
+         */
+        byte[][] toDense(int numSites) {
+            byte[][] result = new byte[NUM_ALLELE_DEPTH_TYPES][numSites];
+            for (int i = 0; i < myKeys.length; i++) {
+                result[myKeys[i] % NUM_ALLELE_DEPTH_TYPES][myKeys[i] / NUM_ALLELE_DEPTH_TYPES] = myDepths[i];
+            }
+            return result;
+        }
+
+    }
+
+}
@@ -122,4 +122,20 @@ public abstract class AbstractTag implements Tag, Comparable<Tag> {
         }
         return result;
     }
+
+    /**
+     * Same as {@link #getLongArrayFromSeq(String)} for the sequence (ASCII
+     * bases) in bytes offset to offset + length.
+     */
+    protected static long[] getLongArrayFromSeq(byte[] seq, int offset, int length) {
+        final int chunkSize=32;
+        int longsNeeded = (length + chunkSize - 1) / chunkSize;
+        long[] result = new long[longsNeeded];
+        for (int i = 0; i < result.length; i++) {
+            int start = i * chunkSize;
+            result[i] = BaseEncoder.getLongFromSeq(seq, offset + start, Math.min(chunkSize, length - start));
+            if(result[i]==-1) return null;
+        }
+        return result;
+    }
 }
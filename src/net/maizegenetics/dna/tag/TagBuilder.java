@@ -66,6 +66,18 @@ public class TagBuilder {
         return new TagBuilder(seq2Bit,(short)sequence.length());
     }
 
+    /**
+     * Tag for the sequence (ASCII bases) in bytes offset to offset + length.
+     * Same as {@link #instance(String)} without creating a String.
+     */
+    public static TagBuilder instanceFromASCII(byte[] sequence, int offset, int length) {
+        long[] seq2Bit = AbstractTag.getLongArrayFromSeq(sequence, offset, length);
+        if (seq2Bit == null) {
+            seq2Bit = new long[0];
+        }
+        return new TagBuilder(seq2Bit,(short)length);
+    }
+
     public static TagBuilder reverseComplement(Tag tag) {
         String revSequence = BaseEncoder.getReverseComplement(tag.sequence());
         if (revSequence == null) return null;
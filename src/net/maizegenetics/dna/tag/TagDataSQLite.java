@@ -17,6 +17,8 @@ import net.maizegenetics.taxa.Taxon;
 import net.maizegenetics.util.*;
 
 import net.maizegenetics.util.db.DBTuple;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.sqlite.SQLiteConfig;
 
 import java.io.InputStreamReader;
@@ -24,6 +26,8 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
@@ -38,6 +42,9 @@ import net.maizegenetics.util.db.SQL;
  * @author Ed Buckler
  */
 public class TagDataSQLite implements TagDataWriter, AutoCloseable {
+
+    private static final Logger myLogger = LogManager.getLogger(TagDataSQLite.class);
+
     private Connection connection = null;
 
     /*These maps contain  objects that are most queried by users.  This is a not the simplest way to do this, which
@@ -56,11 +63,19 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
 
     private TaxaList myTaxaList;
 
+    // SQL of indexes dropped by beginBulkLoad(), null if not bulk loading
+    private List<String> myDeferredIndexes = null;
+
+    // SQLite limits variables per statement to 999 and rows per values clause to 500
+    private static final int MAX_VARIABLES_PER_INSERT = 999;
+    private static final int MAX_ROWS_PER_INSERT = 500;
+    // rows prepared together by one worker thread
+    private static final int ROWS_PER_BLOCK = 4096;
+
     PreparedStatement tagTaxaDistPS;
     PreparedStatement tagAlleleWhereTagPS;
     PreparedStatement tagidWhereSNPidPS;
     PreparedStatement tagidWhereAlleleidPS;
-    PreparedStatement posTagInsertPS;
     PreparedStatement taxaDistWhereCutPositionIDPS;
     PreparedStatement snpPositionsForChromosomePS;
     PreparedStatement alleleTaxaDistForSnpidPS;
@@ -115,14 +130,157 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
     @Override
     public void close() throws Exception {
         System.out.println("Closing SQLDB");
+        if (myDeferredIndexes != null) endBulkLoad();
         connection.close();
     }
 
+    /**
+     * Starts bulk load mode for writing many rows (i.e. putAllTag() and
+     * putTaxaDistribution() from discovery). Non unique indexes are dropped
+     * until endBulkLoad() (or close()) recreates them, and syncing and the
+     * rollback journal are relaxed. A crash while bulk loading can leave the
+     * database unusable, so it should only be used when the database can be
+     * recreated.
+     */
+    public void beginBulkLoad() {
+        if (myDeferredIndexes != null) return;
+        long time = System.nanoTime();
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA synchronous=OFF");
+            statement.execute("PRAGMA journal_mode=MEMORY");
+            statement.execute("PRAGMA temp_store=MEMORY");
+            statement.execute("PRAGMA cache_size=-262144");  // 256 MB
+            List<String> names = new ArrayList<>();
+            List<String> indexes = new ArrayList<>();
+            ResultSet rs = statement.executeQuery("select name, sql from sqlite_master where type='index' and sql is not null");
+            while (rs.next()) {
+                String sql = rs.getString("sql");
+                // unique indexes enforce constraints during the inserts, so they are kept
+                if (sql.toUpperCase().startsWith("CREATE UNIQUE")) continue;
+                names.add(rs.getString("name"));
+                indexes.add(sql);
+            }
+            rs.close();
+            for (String name : names) {
+                statement.execute("DROP INDEX " + name);
+            }
+            myDeferredIndexes = indexes;
+            myLogger.info("beginBulkLoad: deferred indexes: " + names + " took " + (System.nanoTime() - time) / 1e6 + " milliseconds.");
+        } catch (SQLException e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("TagDataSQLite: beginBulkLoad: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ends bulk load mode started with beginBulkLoad(). Deferred indexes are
+     * recreated and syncing is restored.
+     */
+    public void endBulkLoad() {
+        if (myDeferredIndexes == null) return;
+        long time = System.nanoTime();
+        try (Statement statement = connection.createStatement()) {
+            for (String index : myDeferredIndexes) {
+                statement.execute(index);
+            }
+            myDeferredIndexes = null;
+            statement.execute("PRAGMA journal_mode=DELETE");
+            statement.execute("PRAGMA synchronous=FULL");
+            myLogger.info("endBulkLoad: recreating indexes took " + (System.nanoTime() - time) / 1e6 + " milliseconds.");
+        } catch (SQLException e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("TagDataSQLite: endBulkLoad: " + e.getMessage());
+        }
+    }
+
+    private static void reportRate(String method, long numRows, long startTime) {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        myLogger.info(String.format("%s: wrote %,d rows in %.3f seconds (%,.0f rows/sec)", method, numRows, seconds, seconds > 0 ? numRows / seconds : 0.0));
+    }
+
+    /**
+     * Inserts rows with multi-row insert statements, so SQLite parses and
+     * executes one statement per many rows. Rows are buffered until enough
+     * for one statement. finish() writes the remaining rows.
+     */
+    private final class MultiRowInsert {
+
+        private final String myInsert;
+        private final int myNumColumns;
+        private final int myRowsPerStatement;
+        private final PreparedStatement myStatement;
+        private final Object[][] myRows;
+        private int myNumRows = 0;
+        private long myTotalRows = 0;
+
+        /**
+         * @param insert insert statement up to and including "values"
+         * @param numColumns number of columns of each row
+         */
+        private MultiRowInsert(String insert, int numColumns) throws SQLException {
+            myInsert = insert;
+            myNumColumns = numColumns;
+            myRowsPerStatement = Math.min(MAX_ROWS_PER_INSERT, MAX_VARIABLES_PER_INSERT / numColumns);
+            myStatement = connection.prepareStatement(sql(myRowsPerStatement));
+            myRows = new Object[myRowsPerStatement][];
+        }
+
+        private String sql(int numRows) {
+            StringBuilder row = new StringBuilder("(");
+            for (int c = 0; c < myNumColumns; c++) {
+                if (c != 0) row.append(',');
+                row.append('?');
+            }
+            row.append(')');
+            StringBuilder result = new StringBuilder(myInsert);
+            for (int r = 0; r < numRows; r++) {
+                result.append(r == 0 ? " " : ",").append(row);
+            }
+            return result.toString();
+        }
+
+        private void add(Object... row) throws SQLException {
+            if (row.length != myNumColumns) {
+                throw new IllegalArgumentException("TagDataSQLite: MultiRowInsert: add: expected " + myNumColumns + " columns: " + row.length);
+            }
+            myRows[myNumRows++] = row;
+            if (myNumRows == myRowsPerStatement) {
+                execute(myStatement);
+            }
+        }
+
+        private void execute(PreparedStatement statement) throws SQLException {
+            int index = 1;
+            for (int r = 0; r < myNumRows; r++) {
+                for (Object value : myRows[r]) {
+                    statement.setObject(index++, value);
+                }
+                myRows[r] = null;
+            }
+            statement.executeUpdate();
+            myTotalRows += myNumRows;
+            myNumRows = 0;
+        }
+
+        /**
+         * Writes remaining rows and closes statement.
+         *
+         * @return number of rows written
+         */
+        private long finish() throws SQLException {
+            if (myNumRows > 0) {
+                try (PreparedStatement statement = connection.prepareStatement(sql(myNumRows))) {
+                    execute(statement);
+                }
+            }
+            myStatement.close();
+            return myTotalRows;
+        }
+
+    }
+
     private void initPreparedStatements() {
         try{
-            posTagInsertPS=connection.prepareStatement(
-                    "INSERT OR IGNORE into tagCutPosition (tagid, positionid, mapappid, bestmapping, forward, cigar, supportval)" +
-                            " values(?,?,?,?,?,?,?)");
             tagTaxaDistPS=connection.prepareStatement("select depthsRLE from tagtaxadistribution where tagid=?");
             tagAlleleWhereTagPS=connection.prepareStatement("select * from tagallele where tagid=?");
             tagidWhereSNPidPS=connection.prepareStatement(
@@ -154,8 +312,10 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
         try{
             ResultSet rs=connection.createStatement().executeQuery("select count(*) from tag");
             int size=rs.getInt(1);
+            rs.close();
             System.out.println("size of all tags in tag table=" + size);
             if(tagTagIDMap==null || size/(tagTagIDMap.size()+1)>3) tagTagIDMap=HashBiMap.create(size);
+            else tagTagIDMap.clear();
             rs=connection.createStatement().executeQuery("select * from tag");
             boolean hasName;
             try{rs.findColumn("tagName");hasName=true;}catch (SQLException e) {hasName=false;}
@@ -173,6 +333,7 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
         try{
             ResultSet rs=connection.createStatement().executeQuery("select count(*) from tissue");
             int size=rs.getInt(1);
+            rs.close();
             System.out.println("size of all tissues in tissue table=" + size);
             if(tissueTissueIDMap==null || size/(tissueTissueIDMap.size()+1)>3) tissueTissueIDMap=HashBiMap.create(size);
             rs=connection.createStatement().executeQuery("select * from tissue");
@@ -187,6 +348,7 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
         try{
             ResultSet rs=connection.createStatement().executeQuery("select count(*) from cutPosition");
             int size=rs.getInt(1);
+            rs.close();
             System.out.println("size of all positions in cutPosition table="+size);
             if(cutPosToIDMap==null) {cutPosToIDMap=new TreeMap<>();}
             else if(size==cutPosToIDMap.size()) return;
@@ -210,6 +372,7 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
         try{
             ResultSet rs=connection.createStatement().executeQuery("select count(*) from snpposition");
             int size=rs.getInt(1);
+            rs.close();
             System.out.println("size of all positions in snpPosition table="+size);
             if(snpPosToIDMap==null) {snpPosToIDMap=HashBiMap.create(size);}
             else if(size==snpPosToIDMap.size()) return;
@@ -236,6 +399,7 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
             loadSNPPositionHash(false);
             ResultSet rs=connection.createStatement().executeQuery("select count(*) from allele");
             int size=rs.getInt(1);
+            rs.close();
             System.out.println("size of all alleles in allele table="+size);
             if(alleleToIDMap==null) {alleleToIDMap=HashBiMap.create(size);}
             if(size==alleleToIDMap.size()) return;
@@ -255,6 +419,7 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
         try{
             ResultSet rs=connection.createStatement().executeQuery("select count(*) from mappingApproach");
             int size=rs.getInt(1);
+            rs.close();
             System.out.println("size of all tags in mappingApproach table="+size);
             if(size==0) {
                 connection.createStatement().executeUpdate("insert into mappingApproach (approach, software, protocols) " +
@@ -275,6 +440,7 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
         try{
             ResultSet rs=connection.createStatement().executeQuery("select count(*) from taxa");
             int size=rs.getInt(1);
+            rs.close();
             System.out.println("size of all taxa in taxa table="+size);
             TaxaListBuilder tlb=new TaxaListBuilder();
             rs=connection.createStatement().executeQuery("select * from taxa");
@@ -310,31 +476,42 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
 
     @Override
     public boolean putAllTag(Set<Tag> tags) {
-        int batchCount=0, totalCount=0;
+        long time=System.nanoTime();
+        long totalCount=0;
+        boolean committed=false;
         try {
+            // tag ids are assigned here (as SQLite would), so the tag table doesn't need to be reloaded
+            int nextTagID;
+            try (Statement statement=connection.createStatement();
+                 ResultSet rs=statement.executeQuery("select max(tagid) from tag")) {
+                nextTagID=rs.next() ? rs.getInt(1)+1 : 1;
+            }
             connection.setAutoCommit(false);
-            PreparedStatement tagInsertPS=connection.prepareStatement("insert into tag (sequence, seqlen) values(?,?)");
+            MultiRowInsert tagInsert=new MultiRowInsert("insert into tag (tagid, sequence, seqlen) values", 3);
+            // new tags are added to tagTagIDMap only after they are committed
+            Map<Tag,Integer> newTagIDs=new LinkedHashMap<>();
             for (Tag tag : tags) {
                 if(tagTagIDMap.containsKey(tag)) continue;  //it is already in the DB skip
-                tagInsertPS.setBytes(1, tag.seq2BitAsBytes());
-                tagInsertPS.setShort(2, tag.seqLength());
-                tagInsertPS.addBatch();
-                batchCount++;
-                totalCount++;
-                if(batchCount>100000) {
-                    System.out.println("tagInsertPS.executeBatch() "+batchCount);
-                    tagInsertPS.executeBatch();
-                    //connection.commit();
-                    batchCount=0;
-                }
+                tagInsert.add(nextTagID, tag.seq2BitAsBytes(), (int)tag.seqLength());
+                newTagIDs.put(tag, nextTagID);
+                nextTagID++;
             }
-            tagInsertPS.executeBatch();
-            connection.setAutoCommit(true);
+            totalCount=tagInsert.finish();
+            connection.commit();
+            committed=true;
+            tagTagIDMap.putAll(newTagIDs);
         } catch (SQLException e) {
-            e.printStackTrace();
+            myLogger.error("putAllTag: " + e.getMessage(), e);
             return false;
+        } finally {
+            try {
+                if (!committed && !connection.getAutoCommit()) connection.rollback();
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                myLogger.error("putAllTag: " + e.getMessage(), e);
+            }
         }
-        if(totalCount>0) loadTagHash();
+        reportRate("putAllTag", totalCount, time);
         return true;
     }
 
@@ -422,50 +599,73 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
         return true;
     }
 
+    /**
+     * Encoding the depths (depthsRLE) is done by worker threads in blocks of
+     * rows, while this thread writes the blocks already encoded.
+     */
     @Override
     public void putTaxaDistribution(Map<Tag, TaxaDistribution> tagTaxaDistributionMap) {
-        int batchCount=0;
+        long time=System.nanoTime();
+        long totalCount=0;
+        int maxPendingBlocks=2*Runtime.getRuntime().availableProcessors();
+        Deque<CompletableFuture<Object[][]>> pendingBlocks=new ArrayDeque<>();
         try {
             int numTaxa=myTaxaList.numberOfTaxa();
             connection.setAutoCommit(false);
-            PreparedStatement tagInsertPS=connection.prepareStatement("insert into tagtaxadistribution (tagid, depthsRLE, totalDepth) values(?,?,?)");
-            for (Map.Entry<Tag, TaxaDistribution> entry : tagTaxaDistributionMap.entrySet()) {
-                int tagID=tagTagIDMap.get(entry.getKey());
-                tagInsertPS.setInt(1,tagID);
-                if(entry.getValue().maxTaxa()!=numTaxa) throw new IllegalStateException("Number of taxa does not agree with taxa distribution");
-                tagInsertPS.setBytes(2, entry.getValue().encodeTaxaDepth());
-                tagInsertPS.setInt(3, entry.getValue().totalDepth());
-                tagInsertPS.addBatch();
-                batchCount++;
-                if(batchCount>100000) {
-                    System.out.println("putTaxaDistribution next"+batchCount);
-                    tagInsertPS.executeBatch();
-                    //connection.commit();
-                    batchCount=0;
+            MultiRowInsert tagInsert=new MultiRowInsert("insert into tagtaxadistribution (tagid, depthsRLE, totalDepth) values", 3);
+            Iterator<Map.Entry<Tag, TaxaDistribution>> entries=tagTaxaDistributionMap.entrySet().iterator();
+            while (entries.hasNext() || !pendingBlocks.isEmpty()) {
+                while (entries.hasNext() && pendingBlocks.size()<maxPendingBlocks) {
+                    List<Map.Entry<Tag, TaxaDistribution>> block=new ArrayList<>(ROWS_PER_BLOCK);
+                    while (entries.hasNext() && block.size()<ROWS_PER_BLOCK) block.add(entries.next());
+                    pendingBlocks.add(CompletableFuture.supplyAsync(() -> taxaDistributionRows(block, numTaxa)));
+                }
+                for (Object[] row : pendingBlocks.poll().join()) {
+                    tagInsert.add(row);
                 }
             }
-            tagInsertPS.executeBatch();
+            totalCount=tagInsert.finish();
             connection.setAutoCommit(true);  
         } catch (SQLException e) {
             e.printStackTrace();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+        reportRate("putTaxaDistribution", totalCount, time);
+    }
+
+    /**
+     * Rows (tagid, depthsRLE, totalDepth) for the tagtaxadistribution table.
+     */
+    private Object[][] taxaDistributionRows(List<Map.Entry<Tag, TaxaDistribution>> entries, int numTaxa) {
+        Object[][] result=new Object[entries.size()][];
+        for (int i = 0; i < result.length; i++) {
+            Map.Entry<Tag, TaxaDistribution> entry=entries.get(i);
+            Integer tagID=tagTagIDMap.get(entry.getKey());
+            if(tagID==null) throw new IllegalStateException("TagDataSQLite: putTaxaDistribution: tag not in database: " + entry.getKey().sequence());
+            if(entry.getValue().maxTaxa()!=numTaxa) throw new IllegalStateException("Number of taxa does not agree with taxa distribution");
+            result[i]=new Object[]{tagID, entry.getValue().encodeTaxaDepth(), entry.getValue().totalDepth()};
         }
+        return result;
     }
 
     @Override
     public void putTagAlignments(Multimap<Tag, Position> tagAnnotatedPositionMap) {
-        int batchCount=0;
+        long time=System.nanoTime();
+        long totalCount=0;
         try {
             putAllTag(tagAnnotatedPositionMap.keySet());
             putCutPositionsIfAbsent(tagAnnotatedPositionMap.values());
             connection.setAutoCommit(false);
+            MultiRowInsert posTagInsert=new MultiRowInsert(
+                    "INSERT OR IGNORE into tagCutPosition (tagid, positionid, mapappid, bestmapping, forward, cigar, supportval) values", 7);
             for (Map.Entry<Tag, Position> entry : tagAnnotatedPositionMap.entries()) {
                 Position p=entry.getValue();
                 GeneralAnnotation annotation = p.getAnnotation();
-                int ind=1;
-                posTagInsertPS.setInt(ind++, tagTagIDMap.get(entry.getKey()));
-                posTagInsertPS.setInt(ind++, cutPosToIDMap.get(p));
-                posTagInsertPS.setInt(ind++, getMappingApproachID(p));
-                posTagInsertPS.setBoolean(ind++, true);  //todo this needs to be derived from the position or set later.
+                int tagID=tagTagIDMap.get(entry.getKey());
+                int positionID=cutPosToIDMap.get(p);
+                int mapAppID=getMappingApproachID(p);
                 boolean forward=true;
                 try{
                     if(annotation.getTextAnnotation("forward")[0].toLowerCase().equals("false")) forward=false;
@@ -474,7 +674,6 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
                     System.err.println("Error with forward annotation");
                     //no valid cigarValue
                 }
-                posTagInsertPS.setBoolean(ind++,forward);
                 String cigarValue="";
                 try{
                     cigarValue=annotation.getTextAnnotation("cigar")[0];
@@ -483,7 +682,6 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
                     System.err.println("Error with cigar");
                     //no valid cigarValue
                 }
-                posTagInsertPS.setString(ind++, cigarValue);
                 short supportVal=0;
                 try{
                     String[] svS=annotation.getTextAnnotation("supportvalue");
@@ -494,18 +692,12 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
                     System.err.println("Error with supportVal");
                     //no valid supportVal
                 }
-                posTagInsertPS.setByte(ind++, (byte) supportVal);
-                //System.out.println(posTagInsertPS.toString());
-                posTagInsertPS.addBatch();
-                batchCount++;
-                if(batchCount>10000) {
-                    System.out.println("putTagAlignments next"+batchCount);
-                    posTagInsertPS.executeBatch();
-                    batchCount=0;
-                }
+                //todo bestmapping needs to be derived from the position or set later.
+                posTagInsert.add(tagID, positionID, mapAppID, 1, forward ? 1 : 0, cigarValue, (int) (byte) supportVal);
             }
-            posTagInsertPS.executeBatch();
+            totalCount=posTagInsert.finish();
             connection.setAutoCommit(true);
+            reportRate("putTagAlignments", totalCount, time);
             // print some metrics for debugging
             ResultSet rs = connection.createStatement().executeQuery("select count (DISTINCT positionid) as numCutSites from tagCutPosition");
             if (rs.next()) {
@@ -548,55 +740,39 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
     
     //@Override
     public void putSNPQualityProfile(Map<Position, Map<String,Double>> tagAnnotatedPositionMap, String taxaSubset) {
-        int batchCount=0;
+        long time=System.nanoTime();
+        long totalCount=0;
         try {
             putSNPPositionsIfAbsent(tagAnnotatedPositionMap.keySet());
             connection.setAutoCommit(false);
+            MultiRowInsert snpQualityInsert=new MultiRowInsert(
+                    "INSERT into snpQuality (snpid, taxasubset ,avgDepth, minorDepthProp, minor2DepthProp, gapDepthProp, " +
+                            "propCovered, propCovered2, taxaCntWithMinorAlleleGE2, minorAlleleFreqGE2, inbredF_DGE2) values", 11);
             for (Map.Entry<Position, Map<String,Double>> entry : tagAnnotatedPositionMap.entrySet()) {
                 Position p=entry.getKey();
                 Map<String,Double> vals=entry.getValue();
-                int ind=1;
-
-//                snpQualityInsertPS=connection.prepareStatement(
-//                        "INSERT OR IGNORE into snpQuality (snpid, taxasubset ,avgDepth, minorDepthProp, minor2DepthProp, gapDepthProp, " +
-//                                "propCovered, propCovered2, taxaCntWithMinorAlleleGE2,minorAlleleFreq, inbredF_DGE2)" +
-//                                " values(?,?,?,?,?,?,?,?,?,?,?)");
-//                System.out.println("vals = " + vals.size());
-//                System.out.println(vals.get("inbredF_DGE2").toString());
-                snpQualityInsertPS.setInt(ind++, snpPosToIDMap.get(p));
-                snpQualityInsertPS.setString(ind++, taxaSubset);
-                snpQualityInsertPS.setDouble(ind++,vals.getOrDefault("avgDepth",0.0));
-                snpQualityInsertPS.setDouble(ind++,vals.getOrDefault("minorDepthProp",0.0));
-                snpQualityInsertPS.setDouble(ind++,vals.getOrDefault("minor2DepthProp",0.0));
-                snpQualityInsertPS.setDouble(ind++,vals.getOrDefault("gapDepthProp",0.0));
-                snpQualityInsertPS.setDouble(ind++,vals.getOrDefault("propCovered",0.0));
-                snpQualityInsertPS.setDouble(ind++,vals.getOrDefault("propCovered2",0.0));
-                snpQualityInsertPS.setDouble(ind++,vals.getOrDefault("taxaCntWithMinorAlleleGE2",0.0));
-//                System.out.println("MAF:"+vals.getOrDefault("minorAlleleFreqGE2",-1.0));
+                Double minorAlleleFreq=0.0;
+                Double inbredF=Double.NaN;
                 if(vals.containsKey("minorAlleleFreqGE2")) {
-                    snpQualityInsertPS.setDouble(ind++,vals.getOrDefault("minorAlleleFreqGE2",0.0));
-                    snpQualityInsertPS.setDouble(ind++,vals.getOrDefault("inbredF_DGE2",null));
-                }
-                else {
-                    snpQualityInsertPS.setDouble(ind++,0.0);
-                    snpQualityInsertPS.setDouble(ind++,Double.NaN);
-                }
-                
-                //snpQualityInsertPS.get();
-                //System.out.println(posTagInsertPS.toString());
-                snpQualityInsertPS.addBatch();
-                batchCount++;
-                if(batchCount>10000) {
-                    System.out.println("putSNPQualityProfile next"+batchCount);
-                    snpQualityInsertPS.executeBatch();
-                    batchCount=0;
+                    minorAlleleFreq=vals.getOrDefault("minorAlleleFreqGE2",0.0);
+                    inbredF=vals.getOrDefault("inbredF_DGE2",null);
                 }
+                snpQualityInsert.add(snpPosToIDMap.get(p), taxaSubset,
+                        vals.getOrDefault("avgDepth",0.0),
+                        vals.getOrDefault("minorDepthProp",0.0),
+                        vals.getOrDefault("minor2DepthProp",0.0),
+                        vals.getOrDefault("gapDepthProp",0.0),
+                        vals.getOrDefault("propCovered",0.0),
+                        vals.getOrDefault("propCovered2",0.0),
+                        vals.getOrDefault("taxaCntWithMinorAlleleGE2",0.0),
+                        minorAlleleFreq, inbredF);
             }
-            snpQualityInsertPS.executeBatch();
+            totalCount=snpQualityInsert.finish();
             connection.setAutoCommit(true);
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        reportRate("putSNPQualityProfile", totalCount, time);
 
     }
 
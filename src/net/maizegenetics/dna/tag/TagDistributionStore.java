@@ -0,0 +1,1274 @@
+/*
+ *  TagDistributionStore
+ */
+package net.maizegenetics.dna.tag;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+import net.maizegenetics.dna.BaseEncoder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Tag to TaxaDistribution store for tag discovery over many taxa. This
+ * replaces a Map&lt;Tag, TaxaDistribution&gt;, which needs a Tag and an
+ * expandable TaxaDistribution object for every tag.
+ * <p>
+ * </p>
+ * Tags are kept in open addressing hash tables keyed by their 2-bit encoded
+ * longs (padded to the longest tag) and length. The depth of each taxon with
+ * the tag is kept in a byte arena as varint (taxon delta, depth) pairs
+ * sorted by taxon. The tables are divided into segments, each with its own
+ * lock, so threads adding to different tags rarely wait for each other.
+ * <p>
+ * </p>
+ * memoryUsed() is the exact size of the arrays holding the data. When it
+ * goes over the memory budget, all tags are written (sorted) to a run file
+ * in the spill directory and the tables are cleared. Runs are merged, with
+ * counts for the same tag combined, when the store is consolidated (i.e. by
+ * size(), removeIf(), and asMap()).
+ */
+public final class TagDistributionStore implements AutoCloseable {
+
+    private static final Logger myLogger = LogManager.getLogger(TagDistributionStore.class);
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int NUM_SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int MIN_SEGMENT_CAPACITY = 1 << 10;
+    private static final int INITIAL_ARENA_SIZE = 1 << 14;
+    private static final int MAX_ARENA_SIZE = Integer.MAX_VALUE - 16;
+    private static final float MAX_LOAD_FACTOR = 0.7f;
+    private static final int RUN_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Decides whether a tag is removed by removeIf().
+     */
+    public interface DistributionFilter {
+
+        /**
+         * @param totalDepth total depth of tag
+         * @param taxa taxa (indices) with the tag in increasing order
+         * @param depths depth of each taxon
+         * @param numTaxa number of taxa with the tag (taxa and depths can be
+         * longer)
+         *
+         * @return true if tag should be removed
+         */
+        boolean remove(int totalDepth, int[] taxa, int[] depths, int numTaxa);
+
+    }
+
+    private final int myMaxTaxa;
+    private final int myLongsPerTag;
+    private final long myMemoryBudget;
+    private final Path mySpillDirectory;
+    private final Segment[] mySegments;
+    private final AtomicLong myMemoryUsed = new AtomicLong();
+    private final ReentrantReadWriteLock myLock = new ReentrantReadWriteLock();
+    private final List<Path> myRuns = new ArrayList<>();
+    private long myNumTagsInRuns = 0;
+    private long myTotalDepthInRuns = 0;
+
+    private TagDistributionStore(int maxTaxa, int maxTagLength, int expectedTags, long memoryBudget, Path spillDirectory) {
+        if (maxTaxa < 1) {
+            throw new IllegalArgumentException("TagDistributionStore: init: max taxa must be positive: " + maxTaxa);
+        }
+        if ((maxTagLength < 1) || (maxTagLength > Short.MAX_VALUE)) {
+            throw new IllegalArgumentException("TagDistributionStore: init: invalid max tag length: " + maxTagLength);
+        }
+        myMaxTaxa = maxTaxa;
+        myLongsPerTag = (maxTagLength + BaseEncoder.chunkSize - 1) / BaseEncoder.chunkSize;
+        mySpillDirectory = spillDirectory;
+        int capacity = segmentCapacity(Math.max(0, expectedTags) / NUM_SEGMENTS);
+        mySegments = new Segment[NUM_SEGMENTS];
+        for (int s = 0; s < NUM_SEGMENTS; s++) {
+            mySegments[s] = new Segment(capacity);
+        }
+        // budget must leave room for tags beyond the empty tables
+        myMemoryBudget = memoryBudget <= 0 ? 0 : Math.max(memoryBudget, 2 * myMemoryUsed.get());
+    }
+
+    /**
+     * Creates store.
+     *
+     * @param maxTaxa number of taxa (TaxaDistribution.maxTaxa())
+     * @param maxTagLength longest tag (bases) to be added
+     * @param expectedTags expected number of tags (to size tables)
+     * @param memoryBudget bytes of memory used before spilling to disk (0 or
+     * less to never spill). At least twice the size of the empty tables is
+     * used.
+     * @param spillDirectory directory for run files
+     *
+     * @return store
+     */
+    public static TagDistributionStore getInstance(int maxTaxa, int maxTagLength, int expectedTags, long memoryBudget, Path spillDirectory) {
+        return new TagDistributionStore(maxTaxa, maxTagLength, expectedTags, memoryBudget, spillDirectory);
+    }
+
+    private static int segmentCapacity(int expectedTags) {
+        long needed = (long) (expectedTags / MAX_LOAD_FACTOR) + 1;
+        int result = MIN_SEGMENT_CAPACITY;
+        while ((result < needed) && (result < (1 << 30))) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    public int maxTaxa() {
+        return myMaxTaxa;
+    }
+
+    /**
+     * Exact number of bytes in the arrays holding tags and depths in memory.
+     */
+    public long memoryUsed() {
+        return myMemoryUsed.get();
+    }
+
+    /**
+     * Number of run files spilled to disk and not yet merged.
+     */
+    public int numRuns() {
+        myLock.readLock().lock();
+        try {
+            return myRuns.size();
+        } finally {
+            myLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds one read of tag for taxon.
+     *
+     * @return true if the tag was new (in memory)
+     */
+    public boolean increment(Tag tag, int taxon) {
+        return add(tag, new int[]{taxon}, new int[]{1}, 1);
+    }
+
+    /**
+     * Adds depths of the distribution to tag.
+     *
+     * @return true if the tag was new (in memory)
+     */
+    public boolean add(Tag tag, TaxaDistribution distribution) {
+        if (distribution.maxTaxa() != myMaxTaxa) {
+            throw new IllegalArgumentException("TagDistributionStore: add: max taxa of distribution: " + distribution.maxTaxa() + " should be: " + myMaxTaxa);
+        }
+        int[][] taxaDepths = distribution.taxaWithDepths();
+        return add(tag, taxaDepths[0], taxaDepths[1], taxaDepths[0].length);
+    }
+
+    /**
+     * Adds depths for taxa to tag.
+     *
+     * @param tag tag
+     * @param taxa taxa (indices)
+     * @param depths depth for each taxon
+     * @param numTaxa number of taxa used from taxa and depths
+     *
+     * @return true if the tag was new (in memory)
+     */
+    public boolean add(Tag tag, int[] taxa, int[] depths, int numTaxa) {
+
+        long[] seq2Bit = tag.seq2Bit();
+        short length = tag.seqLength();
+        if (seq2Bit.length > myLongsPerTag) {
+            throw new IllegalArgumentException("TagDistributionStore: add: tag length: " + length + " longer than max tag length: " + (myLongsPerTag * BaseEncoder.chunkSize));
+        }
+        if ((length < 1) || (numTaxa < 0) || (numTaxa > taxa.length) || (numTaxa > depths.length)) {
+            throw new IllegalArgumentException("TagDistributionStore: add: invalid tag length: " + length + " or number of taxa: " + numTaxa);
+        }
+        for (int i = 0; i < numTaxa; i++) {
+            if ((taxa[i] < 0) || (taxa[i] >= myMaxTaxa) || (depths[i] < 0)) {
+                throw new IllegalArgumentException("TagDistributionStore: add: invalid taxon: " + taxa[i] + " or depth: " + depths[i]);
+            }
+        }
+
+        int hash = hash(seq2Bit, length);
+        boolean result;
+        myLock.readLock().lock();
+        try {
+            result = mySegments[hash >>> (32 - SEGMENT_BITS)].add(seq2Bit, length, hash, taxa, depths, numTaxa);
+        } finally {
+            myLock.readLock().unlock();
+        }
+
+        if ((myMemoryBudget > 0) && (myMemoryUsed.get() > myMemoryBudget)) {
+            spill();
+        }
+        return result;
+
+    }
+
+    /**
+     * Number of distinct tags. This merges runs spilled to disk if any.
+     */
+    public long size() {
+        myLock.writeLock().lock();
+        try {
+            consolidate(null);
+            return myNumTagsInRuns + numTagsInMemory();
+        } finally {
+            myLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Total depth of all tags.
+     */
+    public long totalDepth() {
+        myLock.writeLock().lock();
+        try {
+            long result = myTotalDepthInRuns;
+            for (Segment segment : mySegments) {
+                result += segment.totalDepth();
+            }
+            return result;
+        } finally {
+            myLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes tags for which filter returns true. This merges runs spilled
+     * to disk if any.
+     *
+     * @return number of tags removed
+     */
+    public long removeIf(DistributionFilter filter) {
+        myLock.writeLock().lock();
+        try {
+            if (myRuns.isEmpty()) {
+                long before = numTagsInMemory();
+                IntStream.range(0, NUM_SEGMENTS).parallel().forEach(s -> mySegments[s].removeIf(filter));
+                return before - numTagsInMemory();
+            } else {
+                // tags can be in more than one run, so removed tags are counted by the merge
+                return consolidate(filter);
+            }
+        } finally {
+            myLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read only view for iterating over all tags and their distributions.
+     * Tags and distributions are created as entries are iterated. This
+     * merges runs spilled to disk if any. Do not add to the store while
+     * iterating.
+     */
+    public Map<Tag, TaxaDistribution> asMap() {
+        return new AbstractMap<Tag, TaxaDistribution>() {
+
+            @Override
+            public Set<Entry<Tag, TaxaDistribution>> entrySet() {
+                return new AbstractSet<Entry<Tag, TaxaDistribution>>() {
+
+                    @Override
+                    public Iterator<Entry<Tag, TaxaDistribution>> iterator() {
+                        return entryIterator();
+                    }
+
+                    @Override
+                    public int size() {
+                        return (int) Math.min(Integer.MAX_VALUE, TagDistributionStore.this.size());
+                    }
+
+                };
+            }
+
+        };
+    }
+
+    private Iterator<Map.Entry<Tag, TaxaDistribution>> entryIterator() {
+
+        Source source;
+        myLock.writeLock().lock();
+        try {
+            consolidate(null);
+            if (myRuns.isEmpty()) {
+                List<Source> sources = new ArrayList<>();
+                for (Segment segment : mySegments) {
+                    sources.add(segment.source());
+                }
+                source = new MergedSource(sources);
+            } else {
+                source = new RunSource(myRuns.get(0));
+            }
+        } catch (IOException e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("TagDistributionStore: iterator: problem opening run: " + e.getMessage());
+        } finally {
+            myLock.writeLock().unlock();
+        }
+
+        int[][] taxaDepths = new int[2][];
+        return new Iterator<Map.Entry<Tag, TaxaDistribution>>() {
+
+            private boolean myHasNext = advance();
+
+            private boolean advance() {
+                try {
+                    boolean result = source.next();
+                    if (!result) {
+                        source.close();
+                    }
+                    return result;
+                } catch (IOException e) {
+                    myLogger.debug(e.getMessage(), e);
+                    throw new IllegalStateException("TagDistributionStore: iterator: problem reading: " + e.getMessage());
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return myHasNext;
+            }
+
+            @Override
+            public Map.Entry<Tag, TaxaDistribution> next() {
+                if (!myHasNext) {
+                    throw new NoSuchElementException();
+                }
+                short length = source.length();
+                long[] seq2Bit = new long[(length + BaseEncoder.chunkSize - 1) / BaseEncoder.chunkSize];
+                System.arraycopy(source.key(), source.keyOffset(), seq2Bit, 0, seq2Bit.length);
+                Tag tag = TagBuilder.instance(seq2Bit, length).build();
+                int numTaxa = decode(source.record(), source.recordOffset(), source.recordLength(), taxaDepths);
+                TaxaDistribution distribution = new TaxaDistSparse(myMaxTaxa,
+                        Arrays.copyOf(taxaDepths[0], numTaxa), Arrays.copyOf(taxaDepths[1], numTaxa), source.totalDepth());
+                myHasNext = advance();
+                return new AbstractMap.SimpleImmutableEntry<>(tag, distribution);
+            }
+
+        };
+
+    }
+
+    /**
+     * Deletes run files.
+     */
+    @Override
+    public void close() {
+        myLock.writeLock().lock();
+        try {
+            for (Path run : myRuns) {
+                deleteRun(run);
+            }
+            myRuns.clear();
+            myNumTagsInRuns = 0;
+            myTotalDepthInRuns = 0;
+        } finally {
+            myLock.writeLock().unlock();
+        }
+    }
+
+    private long numTagsInMemory() {
+        long result = 0;
+        for (Segment segment : mySegments) {
+            result += segment.mySize;
+        }
+        return result;
+    }
+
+    /**
+     * Writes all tags in memory to a new run and clears memory.
+     */
+    private void spill() {
+        myLock.writeLock().lock();
+        try {
+            if ((myMemoryBudget <= 0) || (myMemoryUsed.get() <= myMemoryBudget) || (numTagsInMemory() == 0)) {
+                return;
+            }
+            long used = myMemoryUsed.get();
+            List<Source> sources = new ArrayList<>();
+            for (Segment segment : mySegments) {
+                sources.add(segment.source());
+            }
+            Path run = newRun();
+            long[] merged = merge(sources, null, run);
+            long numTags = merged[0];
+            myRuns.add(run);
+            myNumTagsInRuns += numTags;
+            myTotalDepthInRuns += merged[1];
+            clearMemory();
+            myLogger.info("spill: wrote " + numTags + " tags (" + used + " bytes in memory) to run: " + run + "  number of runs: " + myRuns.size());
+        } catch (IOException e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("TagDistributionStore: spill: problem writing run: " + e.getMessage());
+        } finally {
+            myLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * If there are runs, merges them and all tags in memory into one run
+     * (removing tags for which filter returns true) and clears memory. Must
+     * hold write lock.
+     *
+     * @return number of tags removed
+     */
+    private long consolidate(DistributionFilter filter) {
+        if (myRuns.isEmpty() || ((myRuns.size() == 1) && (numTagsInMemory() == 0) && (filter == null))) {
+            return 0;
+        }
+        List<Source> sources = new ArrayList<>();
+        try {
+            for (Path run : myRuns) {
+                sources.add(new RunSource(run));
+            }
+            for (Segment segment : mySegments) {
+                sources.add(segment.source());
+            }
+            Path run = newRun();
+            long[] merged = merge(sources, filter, run);
+            for (Path old : myRuns) {
+                deleteRun(old);
+            }
+            myRuns.clear();
+            myRuns.add(run);
+            myNumTagsInRuns = merged[0];
+            myTotalDepthInRuns = merged[1];
+            clearMemory();
+            return merged[2];
+        } catch (IOException e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("TagDistributionStore: consolidate: problem merging runs: " + e.getMessage());
+        }
+    }
+
+    private void clearMemory() {
+        for (Segment segment : mySegments) {
+            segment.clear();
+        }
+    }
+
+    private Path newRun() throws IOException {
+        Path result = Files.createTempFile(mySpillDirectory, "tagDistribution", ".run");
+        result.toFile().deleteOnExit();
+        return result;
+    }
+
+    private static void deleteRun(Path run) {
+        try {
+            Files.deleteIfExists(run);
+        } catch (IOException e) {
+            myLogger.warn("deleteRun: unable to delete: " + run + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Merges sorted sources into a new run. Depths of the same tag in
+     * different sources are added together.
+     *
+     * @return number of tags written, total depth written and number of tags
+     * removed by filter
+     */
+    private long[] merge(List<Source> sources, DistributionFilter filter, Path run) throws IOException {
+
+        long numTags = 0;
+        long depth = 0;
+        long numRemoved = 0;
+        int[][] merged = new int[][]{new int[16], new int[16]};
+        int[][] decoded = new int[2][];
+        int[][] temp = new int[][]{new int[16], new int[16]};
+        byte[] record = new byte[64];
+        long[] key = new long[myLongsPerTag];
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), RUN_BUFFER_SIZE))) {
+
+            MergedSource merging = new MergedSource(sources);
+            boolean hasNext = merging.next();
+            while (hasNext) {
+
+                System.arraycopy(merging.key(), merging.keyOffset(), key, 0, myLongsPerTag);
+                short length = merging.length();
+                long totalDepth = 0;
+                int numMerged = 0;
+                do {
+                    int numTaxa = decode(merging.record(), merging.recordOffset(), merging.recordLength(), decoded);
+                    int needed = numMerged + numTaxa;
+                    if (temp[0].length < needed) {
+                        temp[0] = new int[needed * 2];
+                        temp[1] = new int[needed * 2];
+                    }
+                    numMerged = mergeDepths(merged[0], merged[1], numMerged, decoded[0], decoded[1], numTaxa, temp[0], temp[1]);
+                    int[][] swap = merged;
+                    merged = temp;
+                    temp = swap;
+                    totalDepth += merging.totalDepth();
+                    hasNext = merging.next();
+                } while (hasNext && (compare(merging.key(), merging.keyOffset(), merging.length(), key, 0, length) == 0));
+
+                if (totalDepth > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("TagDistributionStore: merge: total depth of tag more than: " + Integer.MAX_VALUE);
+                }
+                if ((filter != null) && filter.remove((int) totalDepth, merged[0], merged[1], numMerged)) {
+                    numRemoved++;
+                    continue;
+                }
+
+                if (record.length < numMerged * 10) {
+                    record = new byte[numMerged * 20];
+                }
+                int recordLength = encode(merged[0], merged[1], numMerged, record);
+                for (long current : key) {
+                    output.writeLong(current);
+                }
+                output.writeShort(length);
+                output.writeInt((int) totalDepth);
+                output.writeInt(recordLength);
+                output.write(record, 0, recordLength);
+                numTags++;
+                depth += totalDepth;
+
+            }
+
+            merging.close();
+
+        }
+
+        return new long[]{numTags, depth, numRemoved};
+
+    }
+
+    private static int hash(long[] seq2Bit, short length) {
+        long result = length * 0x9E3779B97F4A7C15L;
+        for (long current : seq2Bit) {
+            result = (result ^ current) * 0xC2B2AE3D27D4EB4FL;
+            result ^= result >>> 29;
+        }
+        result *= 0x165667B19E3779F9L;
+        result ^= result >>> 32;
+        return (int) result;
+    }
+
+    /**
+     * Order of tags in runs: longs (padded) then length.
+     */
+    private int compare(long[] first, int firstOffset, short firstLength, long[] second, int secondOffset, short secondLength) {
+        for (int i = 0; i < myLongsPerTag; i++) {
+            int result = Long.compare(first[firstOffset + i], second[secondOffset + i]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Short.compare(firstLength, secondLength);
+    }
+
+    /**
+     * Merges two lists of (taxon, depth) sorted by taxon into result, adding
+     * depths of the same taxon. The second list may have repeated taxa.
+     *
+     * @return number of taxa in result
+     */
+    private static int mergeDepths(int[] firstTaxa, int[] firstDepths, int firstNum, int[] secondTaxa, int[] secondDepths, int secondNum,
+            int[] resultTaxa, int[] resultDepths) {
+        int result = 0;
+        int i = 0;
+        int j = 0;
+        while ((i < firstNum) || (j < secondNum)) {
+            int taxon;
+            int depth;
+            if ((j >= secondNum) || ((i < firstNum) && (firstTaxa[i] <= secondTaxa[j]))) {
+                taxon = firstTaxa[i];
+                depth = firstDepths[i++];
+            } else {
+                taxon = secondTaxa[j];
+                depth = secondDepths[j++];
+            }
+            if ((result > 0) && (resultTaxa[result - 1] == taxon)) {
+                resultDepths[result - 1] += depth;
+            } else {
+                resultTaxa[result] = taxon;
+                resultDepths[result] = depth;
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Encodes (taxon delta, depth) pairs as varints.
+     *
+     * @return number of bytes
+     */
+    private static int encode(int[] taxa, int[] depths, int numTaxa, byte[] result) {
+        int pos = 0;
+        int previous = 0;
+        for (int i = 0; i < numTaxa; i++) {
+            pos = putVarint(result, pos, taxa[i] - previous);
+            pos = putVarint(result, pos, depths[i]);
+            previous = taxa[i];
+        }
+        return pos;
+    }
+
+    private static int putVarint(byte[] result, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            result[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        result[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Decodes record into result[0] (taxa) and result[1] (depths), which are
+     * allocated or grown as needed.
+     *
+     * @return number of taxa
+     */
+    private static int decode(byte[] record, int offset, int length, int[][] result) {
+        int maxTaxa = length / 2 + 1;
+        if ((result[0] == null) || (result[0].length < maxTaxa)) {
+            result[0] = new int[Math.max(16, maxTaxa * 2)];
+            result[1] = new int[Math.max(16, maxTaxa * 2)];
+        }
+        int[] taxa = result[0];
+        int[] depths = result[1];
+        int numTaxa = 0;
+        int taxon = 0;
+        int pos = offset;
+        int end = offset + length;
+        while (pos < end) {
+            int value = 0;
+            int shift = 0;
+            byte current;
+            do {
+                current = record[pos++];
+                value |= (current & 0x7F) << shift;
+                shift += 7;
+            } while (current < 0);
+            taxon += value;
+            value = 0;
+            shift = 0;
+            do {
+                current = record[pos++];
+                value |= (current & 0x7F) << shift;
+                shift += 7;
+            } while (current < 0);
+            taxa[numTaxa] = taxon;
+            depths[numTaxa] = value;
+            numTaxa++;
+        }
+        return numTaxa;
+    }
+
+    /**
+     * One segment of the hash table. All access is synchronized on the
+     * segment (or under the store's write lock).
+     */
+    private final class Segment {
+
+        private int myCapacity;
+        private int myMask;
+        private int mySize = 0;
+        private long[] myKeys;
+        // tag length (0 if slot empty)
+        private short[] myLengths;
+        private int[] myTotalDepths;
+        private int[] myRecordOffsets;
+        private int[] myRecordLengths;
+        private byte[] myArena;
+        private int myArenaUsed = 0;
+        private long myGarbage = 0;
+        private long myMemory = 0;
+
+        private final int[][] myDecoded = new int[2][];
+        private int[] myMergedTaxa = new int[16];
+        private int[] myMergedDepths = new int[16];
+        private int[] mySortedTaxa = new int[16];
+        private int[] mySortedDepths = new int[16];
+        private byte[] myRecord = new byte[64];
+
+        private Segment(int capacity) {
+            allocate(capacity, INITIAL_ARENA_SIZE);
+        }
+
+        private void allocate(int capacity, int arenaSize) {
+            myCapacity = capacity;
+            myMask = capacity - 1;
+            mySize = 0;
+            myKeys = new long[capacity * myLongsPerTag];
+            myLengths = new short[capacity];
+            myTotalDepths = new int[capacity];
+            myRecordOffsets = new int[capacity];
+            myRecordLengths = new int[capacity];
+            myArena = new byte[arenaSize];
+            myArenaUsed = 0;
+            myGarbage = 0;
+            updateMemory();
+        }
+
+        private void updateMemory() {
+            long memory = 8L * myKeys.length + 2L * myLengths.length + 12L * myCapacity + myArena.length;
+            myMemoryUsed.addAndGet(memory - myMemory);
+            myMemory = memory;
+        }
+
+        private void clear() {
+            allocate(MIN_SEGMENT_CAPACITY, INITIAL_ARENA_SIZE);
+        }
+
+        /**
+         * Returns slot of tag, or -(insertion slot) - 1 if not present.
+         */
+        private int find(long[] seq2Bit, short length, int hash) {
+            int slot = hash & myMask;
+            while (myLengths[slot] != 0) {
+                if ((myLengths[slot] == length) && keyEquals(slot, seq2Bit)) {
+                    return slot;
+                }
+                slot = (slot + 1) & myMask;
+            }
+            return -slot - 1;
+        }
+
+        private boolean keyEquals(int slot, long[] seq2Bit) {
+            int offset = slot * myLongsPerTag;
+            for (int i = 0; i < myLongsPerTag; i++) {
+                long value = i < seq2Bit.length ? seq2Bit[i] : 0L;
+                if (myKeys[offset + i] != value) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private synchronized boolean add(long[] seq2Bit, short length, int hash, int[] taxa, int[] depths, int numTaxa) {
+
+            // incoming taxa sorted
+            if (mySortedTaxa.length < numTaxa) {
+                mySortedTaxa = new int[numTaxa * 2];
+                mySortedDepths = new int[numTaxa * 2];
+            }
+            long addedDepth = 0;
+            boolean sorted = true;
+            for (int i = 0; i < numTaxa; i++) {
+                mySortedTaxa[i] = taxa[i];
+                mySortedDepths[i] = depths[i];
+                addedDepth += depths[i];
+                if ((i > 0) && (taxa[i] < taxa[i - 1])) {
+                    sorted = false;
+                }
+            }
+            if (!sorted) {
+                int[] sortedTaxa = mySortedTaxa;
+                int[] sortedDepths = mySortedDepths;
+                it.unimi.dsi.fastutil.Arrays.quickSort(0, numTaxa, (a, b) -> Integer.compare(sortedTaxa[a], sortedTaxa[b]), (a, b) -> {
+                    int tempTaxon = sortedTaxa[a];
+                    sortedTaxa[a] = sortedTaxa[b];
+                    sortedTaxa[b] = tempTaxon;
+                    int tempDepth = sortedDepths[a];
+                    sortedDepths[a] = sortedDepths[b];
+                    sortedDepths[b] = tempDepth;
+                });
+            }
+
+            int slot = find(seq2Bit, length, hash);
+            boolean isNew = slot < 0;
+            int numExisting = 0;
+            long totalDepth = addedDepth;
+            if (isNew) {
+                if (mySize + 1 > myCapacity * MAX_LOAD_FACTOR) {
+                    resize(myCapacity * 2);
+                    slot = find(seq2Bit, length, hash);
+                }
+                slot = -slot - 1;
+                int offset = slot * myLongsPerTag;
+                for (int i = 0; i < myLongsPerTag; i++) {
+                    myKeys[offset + i] = i < seq2Bit.length ? seq2Bit[i] : 0L;
+                }
+                myLengths[slot] = length;
+                myRecordLengths[slot] = 0;
+                mySize++;
+            } else {
+                numExisting = decode(myArena, myRecordOffsets[slot], myRecordLengths[slot], myDecoded);
+                totalDepth += myTotalDepths[slot];
+            }
+            if (totalDepth > Integer.MAX_VALUE) {
+                throw new IllegalStateException("TagDistributionStore: add: total depth of tag more than: " + Integer.MAX_VALUE);
+            }
+
+            int needed = numExisting + numTaxa;
+            if (myMergedTaxa.length < needed) {
+                myMergedTaxa = new int[needed * 2];
+                myMergedDepths = new int[needed * 2];
+            }
+            int numMerged = mergeDepths(myDecoded[0], myDecoded[1], numExisting, mySortedTaxa, mySortedDepths, numTaxa, myMergedTaxa, myMergedDepths);
+            if (myRecord.length < numMerged * 10) {
+                myRecord = new byte[numMerged * 20];
+            }
+            int recordLength = encode(myMergedTaxa, myMergedDepths, numMerged, myRecord);
+
+            if (recordLength > myRecordLengths[slot]) {
+                myGarbage += myRecordLengths[slot];
+                myRecordOffsets[slot] = allocateRecord(recordLength);
+            } else {
+                myGarbage += myRecordLengths[slot] - recordLength;
+            }
+            System.arraycopy(myRecord, 0, myArena, myRecordOffsets[slot], recordLength);
+            myRecordLengths[slot] = recordLength;
+            myTotalDepths[slot] = (int) totalDepth;
+
+            return isNew;
+
+        }
+
+        /**
+         * Returns offset in arena for a record, compacting or growing the
+         * arena if needed.
+         */
+        private int allocateRecord(int length) {
+            if ((long) myArenaUsed + length > myArena.length) {
+                long live = myArenaUsed - myGarbage;
+                long needed = live + length;
+                long newSize = myGarbage > myArenaUsed / 2 ? Math.max(myArena.length, needed) : Math.max(needed, (long) myArena.length * 3 / 2);
+                if (newSize > MAX_ARENA_SIZE) {
+                    throw new IllegalStateException("TagDistributionStore: add: segment depths more than: " + MAX_ARENA_SIZE + " bytes. Use smaller memory budget.");
+                }
+                compact((int) newSize);
+            }
+            int result = myArenaUsed;
+            myArenaUsed += length;
+            return result;
+        }
+
+        /**
+         * Copies live records into a new arena of the given size.
+         */
+        private void compact(int arenaSize) {
+            byte[] arena = new byte[arenaSize];
+            int used = 0;
+            for (int slot = 0; slot < myCapacity; slot++) {
+                if (myLengths[slot] != 0) {
+                    System.arraycopy(myArena, myRecordOffsets[slot], arena, used, myRecordLengths[slot]);
+                    myRecordOffsets[slot] = used;
+                    used += myRecordLengths[slot];
+                }
+            }
+            myArena = arena;
+            myArenaUsed = used;
+            myGarbage = 0;
+            updateMemory();
+        }
+
+        private void resize(int capacity) {
+
+            long[] keys = myKeys;
+            short[] lengths = myLengths;
+            int[] totalDepths = myTotalDepths;
+            int[] recordOffsets = myRecordOffsets;
+            int[] recordLengths = myRecordLengths;
+            int oldCapacity = myCapacity;
+
+            myCapacity = capacity;
+            myMask = capacity - 1;
+            myKeys = new long[capacity * myLongsPerTag];
+            myLengths = new short[capacity];
+            myTotalDepths = new int[capacity];
+            myRecordOffsets = new int[capacity];
+            myRecordLengths = new int[capacity];
+
+            long[] key = new long[myLongsPerTag];
+            for (int old = 0; old < oldCapacity; old++) {
+                if (lengths[old] == 0) {
+                    continue;
+                }
+                System.arraycopy(keys, old * myLongsPerTag, key, 0, myLongsPerTag);
+                int slot = -find(key, lengths[old], hash(trim(key, lengths[old]), lengths[old])) - 1;
+                System.arraycopy(key, 0, myKeys, slot * myLongsPerTag, myLongsPerTag);
+                myLengths[slot] = lengths[old];
+                myTotalDepths[slot] = totalDepths[old];
+                myRecordOffsets[slot] = recordOffsets[old];
+                myRecordLengths[slot] = recordLengths[old];
+            }
+            updateMemory();
+
+        }
+
+        /**
+         * Total depth of tags in this segment.
+         */
+        private long totalDepth() {
+            long result = 0;
+            for (int slot = 0; slot < myCapacity; slot++) {
+                if (myLengths[slot] != 0) {
+                    result += myTotalDepths[slot];
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Removes tags for which filter returns true and compacts arena.
+         */
+        private void removeIf(DistributionFilter filter) {
+            int before = mySize;
+            int[][] decoded = new int[2][];
+            for (int slot = 0; slot < myCapacity; slot++) {
+                if (myLengths[slot] == 0) {
+                    continue;
+                }
+                int numTaxa = decode(myArena, myRecordOffsets[slot], myRecordLengths[slot], decoded);
+                if (filter.remove(myTotalDepths[slot], decoded[0], decoded[1], numTaxa)) {
+                    myLengths[slot] = 0;
+                    myGarbage += myRecordLengths[slot];
+                    mySize--;
+                }
+            }
+            if (mySize == before) {
+                return;
+            }
+            // re-insert remaining tags, since removing breaks linear probe chains
+            int capacity = segmentCapacity(mySize);
+            resize(Math.min(capacity, Math.max(MIN_SEGMENT_CAPACITY, myCapacity)));
+            compact((int) Math.max(INITIAL_ARENA_SIZE, myArenaUsed - myGarbage));
+        }
+
+        /**
+         * Tags in this segment in sorted order. Only valid until the segment
+         * is changed.
+         */
+        private Source source() {
+            int[] slots = new int[mySize];
+            int count = 0;
+            for (int slot = 0; slot < myCapacity; slot++) {
+                if (myLengths[slot] != 0) {
+                    slots[count++] = slot;
+                }
+            }
+            long[] keys = myKeys;
+            short[] lengths = myLengths;
+            IntArrays.quickSort(slots, 0, count, (a, b) -> compare(keys, a * myLongsPerTag, lengths[a], keys, b * myLongsPerTag, lengths[b]));
+            return new SegmentSource(this, slots);
+        }
+
+    }
+
+    private static long[] trim(long[] key, short length) {
+        int numLongs = (length + BaseEncoder.chunkSize - 1) / BaseEncoder.chunkSize;
+        return numLongs == key.length ? key : Arrays.copyOf(key, numLongs);
+    }
+
+    /**
+     * Sorted tags from memory or a run.
+     */
+    private interface Source {
+
+        boolean next() throws IOException;
+
+        long[] key();
+
+        int keyOffset();
+
+        short length();
+
+        int totalDepth();
+
+        byte[] record();
+
+        int recordOffset();
+
+        int recordLength();
+
+        void close() throws IOException;
+
+    }
+
+    private final class SegmentSource implements Source {
+
+        private final Segment mySegment;
+        private final int[] mySlots;
+        private int myIndex = -1;
+        private int mySlot;
+
+        private SegmentSource(Segment segment, int[] slots) {
+            mySegment = segment;
+            mySlots = slots;
+        }
+
+        @Override
+        public boolean next() {
+            myIndex++;
+            if (myIndex >= mySlots.length) {
+                return false;
+            }
+            mySlot = mySlots[myIndex];
+            return true;
+        }
+
+        @Override
+        public long[] key() {
+            return mySegment.myKeys;
+        }
+
+        @Override
+        public int keyOffset() {
+            return mySlot * myLongsPerTag;
+        }
+
+        @Override
+        public short length() {
+            return mySegment.myLengths[mySlot];
+        }
+
+        @Override
+        public int totalDepth() {
+            return mySegment.myTotalDepths[mySlot];
+        }
+
+        @Override
+        public byte[] record() {
+            return mySegment.myArena;
+        }
+
+        @Override
+        public int recordOffset() {
+            return mySegment.myRecordOffsets[mySlot];
+        }
+
+        @Override
+        public int recordLength() {
+            return mySegment.myRecordLengths[mySlot];
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private final class RunSource implements Source {
+
+        private final DataInputStream myInput;
+        private final long[] myKey = new long[myLongsPerTag];
+        private short myLength;
+        private int myTotalDepth;
+        private byte[] myRecord = new byte[64];
+        private int myRecordLength;
+
+        private RunSource(Path run) throws IOException {
+            myInput = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), RUN_BUFFER_SIZE));
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            try {
+                myKey[0] = myInput.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            for (int i = 1; i < myLongsPerTag; i++) {
+                myKey[i] = myInput.readLong();
+            }
+            myLength = myInput.readShort();
+            myTotalDepth = myInput.readInt();
+            myRecordLength = myInput.readInt();
+            if (myRecord.length < myRecordLength) {
+                myRecord = new byte[myRecordLength * 2];
+            }
+            myInput.readFully(myRecord, 0, myRecordLength);
+            return true;
+        }
+
+        @Override
+        public long[] key() {
+            return myKey;
+        }
+
+        @Override
+        public int keyOffset() {
+            return 0;
+        }
+
+        @Override
+        public short length() {
+            return myLength;
+        }
+
+        @Override
+        public int totalDepth() {
+            return myTotalDepth;
+        }
+
+        @Override
+        public byte[] record() {
+            return myRecord;
+        }
+
+        @Override
+        public int recordOffset() {
+            return 0;
+        }
+
+        @Override
+        public int recordLength() {
+            return myRecordLength;
+        }
+
+        @Override
+        public void close() throws IOException {
+            myInput.close();
+        }
+
+    }
+
+    /**
+     * Merges sorted sources into one sorted source. Equal tags from
+     * different sources are returned one after the other.
+     */
+    private final class MergedSource implements Source {
+
+        private final PriorityQueue<Source> myQueue;
+        private final List<Source> mySources;
+        private Source myCurrent = null;
+
+        private MergedSource(List<Source> sources) throws IOException {
+            mySources = sources;
+            myQueue = new PriorityQueue<>(Math.max(1, sources.size()),
+                    (a, b) -> compare(a.key(), a.keyOffset(), a.length(), b.key(), b.keyOffset(), b.length()));
+            for (Source source : sources) {
+                if (source.next()) {
+                    myQueue.add(source);
+                }
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if ((myCurrent != null) && myCurrent.next()) {
+                myQueue.add(myCurrent);
+            }
+            myCurrent = myQueue.poll();
+            return myCurrent != null;
+        }
+
+        @Override
+        public long[] key() {
+            return myCurrent.key();
+        }
+
+        @Override
+        public int keyOffset() {
+            return myCurrent.keyOffset();
+        }
+
+        @Override
+        public short length() {
+            return myCurrent.length();
+        }
+
+        @Override
+        public int totalDepth() {
+            return myCurrent.totalDepth();
+        }
+
+        @Override
+        public byte[] record() {
+            return myCurrent.record();
+        }
+
+        @Override
+        public int recordOffset() {
+            return myCurrent.recordOffset();
+        }
+
+        @Override
+        public int recordLength() {
+            return myCurrent.recordLength();
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Source source : mySources) {
+                source.close();
+            }
+        }
+
+    }
+
+    /**
+     * Read only TaxaDistribution of taxa with depths.
+     */
+    private static final class TaxaDistSparse extends AbstractTaxaDistribution {
+
+        private final int myMaxTaxa;
+        private final int[] myTaxa;
+        private final int[] myDepths;
+        private final int myTotalDepth;
+
+        private TaxaDistSparse(int maxTaxa, int[] taxa, int[] depths, int totalDepth) {
+            myMaxTaxa = maxTaxa;
+            myTaxa = taxa;
+            myDepths = depths;
+            myTotalDepth = totalDepth;
+        }
+
+        @Override
+        public TaxaDistribution increment(int taxaNum) {
+            throw new UnsupportedOperationException("TaxaDistSparse: increment: read only. Add to TagDistributionStore.");
+        }
+
+        @Override
+        public int[] depths() {
+            int[] result = new int[myMaxTaxa];
+            for (int i = 0; i < myTaxa.length; i++) {
+                result[myTaxa[i]] = myDepths[i];
+            }
+            return result;
+        }
+
+        @Override
+        public int[][] taxaWithDepths() {
+            return new int[][]{myTaxa.clone(), myDepths.clone()};
+        }
+
+        @Override
+        public int totalDepth() {
+            return myTotalDepth;
+        }
+
+        @Override
+        public int numberOfTaxaWithTag() {
+            return myTaxa.length;
+        }
+
+        @Override
+        public int maxTaxa() {
+            return myMaxTaxa;
+        }
+
+        @Override
+        public int memorySize() {
+            return 48 + 8 * myTaxa.length;
+        }
+
+    }
+
+}
@@ -32,6 +32,7 @@ import net.maizegenetics.analysis.tree.CreateTreePlugin;
 import net.maizegenetics.dna.map.Chromosome;
 import net.maizegenetics.dna.map.TagsOnPhysMapHDF5;
 import net.maizegenetics.dna.map.TagsOnPhysicalMap;
+import net.maizegenetics.dna.snp.genotypecall.GenotypeCallTableBuilder;
 import net.maizegenetics.plugindef.AbstractPlugin;
 import net.maizegenetics.plugindef.DataSet;
 import net.maizegenetics.plugindef.Datum;
@@ -49,6 +50,7 @@ import net.maizegenetics.taxa.TaxaListBuilder;
 import net.maizegenetics.taxa.Taxon;
 import net.maizegenetics.util.ExceptionUtils;
 import net.maizegenetics.util.LoggingUtils;
+import net.maizegenetics.util.SuperByteMatrixBuilder;
 import net.maizegenetics.util.Utils;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -87,7 +89,8 @@ public class TasselPipeline implements PluginListener {
         includeTaxaInFile, excludeTaxa, excludeTaxaInFile, includeSiteNames,
         includeSiteNamesInFile, excludeSiteNames, excludeSiteNamesInFile,
         subsetSites, subsetTaxa, newCoordinates,
-        archaeopteryx, filterTaxaNames, maxThreads, mhd, pca,
+        archaeopteryx, filterTaxaNames, maxThreads, memoryMappedThreshold,
+        memoryMappedDir, hdf5CacheSize, hdf5PrefetchBlocks, mhd, pca,
         printGenoSummary, printMemoryUsage;
 
         @Override
@@ -465,6 +468,35 @@ public class TasselPipeline implements PluginListener {
                         throw new IllegalArgumentException("TasselPipeline: parseArgs: Problem with number of max threads: " + str);
                     }
                     TasselPrefs.putMaxThreads(numThreads);
+                } else if (current.equalsIgnoreCase("-memoryMappedThreshold")) {
+                    String str = args[index++].trim();
+                    long numGenotypes = -1;
+                    try {
+                        numGenotypes = Long.parseLong(str);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: Problem with memory mapped threshold: " + str);
+                    }
+                    SuperByteMatrixBuilder.setMemoryMappedThreshold(numGenotypes);
+                } else if (current.equalsIgnoreCase("-memoryMappedDir")) {
+                    SuperByteMatrixBuilder.setMemoryMappedDirectory(args[index++].trim());
+                } else if (current.equalsIgnoreCase("-hdf5CacheSize")) {
+                    String str = args[index++].trim();
+                    long numBytes = -1;
+                    try {
+                        numBytes = Long.parseLong(str);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: Problem with HDF5 cache size: " + str);
+                    }
+                    GenotypeCallTableBuilder.setHDF5CacheSize(numBytes);
+                } else if (current.equalsIgnoreCase("-hdf5PrefetchBlocks")) {
+                    String str = args[index++].trim();
+                    int numBlocks = -1;
+                    try {
+                        numBlocks = Integer.parseInt(str);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: Problem with HDF5 prefetch blocks: " + str);
+                    }
+                    GenotypeCallTableBuilder.setHDF5NumBlocksToPrefetch(numBlocks);
                 } else if (current.equalsIgnoreCase("-t")) {
                     String traitFile = args[index++].trim();
                     loadFile(traitFile, FileLoadPlugin.TasselFileType.Phenotype);
@@ -928,6 +960,48 @@ public class TasselPipeline implements PluginListener {
 
                     plugin.setWinSize(winSize);
 
+                } else if (current.equalsIgnoreCase("-ldSummary")) {
+
+                    LinkageDisequilibriumPlugin plugin = null;
+                    try {
+                        plugin = (LinkageDisequilibriumPlugin) myCurrentPipe.get(myCurrentPipe.size() - 1);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: No LinkageDisequilibriumPlugin step defined: " + current);
+                    }
+
+                    plugin.setIsSummary(true);
+
+                } else if (current.equalsIgnoreCase("-ldDecayBinSize") || current.equalsIgnoreCase("-ldDecayNumBins")
+                        || current.equalsIgnoreCase("-ldR2NumBins") || current.equalsIgnoreCase("-ldSummaryWinSize")) {
+
+                    LinkageDisequilibriumPlugin plugin = null;
+                    try {
+                        plugin = (LinkageDisequilibriumPlugin) myCurrentPipe.get(myCurrentPipe.size() - 1);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: No LinkageDisequilibriumPlugin step defined: " + current);
+                    }
+
+                    String str = args[index++].trim();
+                    int value = -1;
+                    try {
+                        value = Integer.parseInt(str);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: Problem with " + current + ": " + str);
+                    }
+                    if (value < 1) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: " + current + " can't be less than 1.");
+                    }
+
+                    if (current.equalsIgnoreCase("-ldDecayBinSize")) {
+                        plugin.setDecayBinSize(value);
+                    } else if (current.equalsIgnoreCase("-ldDecayNumBins")) {
+                        plugin.setNumDecayBins(value);
+                    } else if (current.equalsIgnoreCase("-ldR2NumBins")) {
+                        plugin.setNumR2Bins(value);
+                    } else {
+                        plugin.setSummaryWindowSize(value);
+                    }
+
                 } else if (current.equalsIgnoreCase("-ldRapidAnalysis")) {
 
                     LinkageDisequilibriumPlugin plugin = null;
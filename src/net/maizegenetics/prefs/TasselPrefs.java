@@ -92,6 +92,14 @@ public class TasselPrefs {
     // Retain Rare Alleles
     public static final String ALIGNMENT_RETAIN_RARE_ALLELES = "retainRareAlleles";
     public static final boolean ALIGNMENT_RETAIN_RARE_ALLELES_DEFAULT = false;
+    public static final String ALIGNMENT_MEMORY_MAPPED_THRESHOLD = "memoryMappedThreshold";
+    public static final long ALIGNMENT_MEMORY_MAPPED_THRESHOLD_DEFAULT = Long.MAX_VALUE;
+    public static final String ALIGNMENT_MEMORY_MAPPED_DIR = "memoryMappedDir";
+    public static final String ALIGNMENT_MEMORY_MAPPED_DIR_DEFAULT = "";
+    public static final String ALIGNMENT_HDF5_CACHE_SIZE = "hdf5CacheSize";
+    public static final long ALIGNMENT_HDF5_CACHE_SIZE_DEFAULT = -1;
+    public static final String ALIGNMENT_HDF5_PREFETCH_BLOCKS = "hdf5PrefetchBlocks";
+    public static final int ALIGNMENT_HDF5_PREFETCH_BLOCKS_DEFAULT = 2;
     //
     // GOBII preferences
     //
@@ -211,6 +219,33 @@ public class TasselPrefs {
         }
     }
 
+    public static long getLongPref(String path, String key, long def) {
+        String pref = path + "/" + key;
+        Long result = (Long) TEMP_CACHED_VALUES.get(pref);
+        if (result != null) {
+            return result;
+        }
+        if (PERSIST_PREFERENCES) {
+            Preferences node = Preferences.userRoot();
+            node = node.node(path);
+            result = node.getLong(key, def);
+        } else {
+            result = def;
+        }
+        TEMP_CACHED_VALUES.put(pref, result);
+        return result;
+    }
+
+    public static void putLongPref(String path, String key, long value) {
+        String pref = path + "/" + key;
+        TEMP_CACHED_VALUES.put(pref, value);
+        if (PERSIST_PREFERENCES) {
+            Preferences node = Preferences.userRoot();
+            node = node.node(path);
+            node.putLong(key, value);
+        }
+    }
+
     public static boolean getBooleanPref(String path, String key, boolean def) {
         String pref = path + "/" + key;
         Boolean result = (Boolean) TEMP_CACHED_VALUES.get(pref);
@@ -426,6 +461,63 @@ public class TasselPrefs {
         putBooleanPref(ALIGNMENT_TOP, ALIGNMENT_RETAIN_RARE_ALLELES, value);
     }
 
+    /**
+     * Number of genotypes (taxa * sites) at which genotype matrices are stored
+     * in memory-mapped temporary files instead of the Java heap.
+     *
+     * @return number of genotypes
+     */
+    public static long getAlignmentMemoryMappedThreshold() {
+        return getLongPref(ALIGNMENT_TOP, ALIGNMENT_MEMORY_MAPPED_THRESHOLD, ALIGNMENT_MEMORY_MAPPED_THRESHOLD_DEFAULT);
+    }
+
+    public static void putAlignmentMemoryMappedThreshold(long value) {
+        putLongPref(ALIGNMENT_TOP, ALIGNMENT_MEMORY_MAPPED_THRESHOLD, value);
+    }
+
+    /**
+     * Directory for memory-mapped genotype matrix files. Empty is the system
+     * temporary directory.
+     *
+     * @return directory
+     */
+    public static String getAlignmentMemoryMappedDir() {
+        return getPref(ALIGNMENT_TOP, ALIGNMENT_MEMORY_MAPPED_DIR, ALIGNMENT_MEMORY_MAPPED_DIR_DEFAULT);
+    }
+
+    public static void putAlignmentMemoryMappedDir(String value) {
+        putPref(ALIGNMENT_TOP, ALIGNMENT_MEMORY_MAPPED_DIR, value);
+    }
+
+    /**
+     * Maximum bytes of genotypes cached by each HDF5 genotype table. Zero or
+     * less is the smaller of a third of max memory or one site block for all
+     * taxa per processor.
+     *
+     * @return cache size in bytes
+     */
+    public static long getAlignmentHDF5CacheSize() {
+        return getLongPref(ALIGNMENT_TOP, ALIGNMENT_HDF5_CACHE_SIZE, ALIGNMENT_HDF5_CACHE_SIZE_DEFAULT);
+    }
+
+    public static void putAlignmentHDF5CacheSize(long value) {
+        putLongPref(ALIGNMENT_TOP, ALIGNMENT_HDF5_CACHE_SIZE, value);
+    }
+
+    /**
+     * Number of site blocks (65536 sites) HDF5 genotype tables read ahead when
+     * sequential access is detected. Zero disables read ahead.
+     *
+     * @return number of site blocks
+     */
+    public static int getAlignmentHDF5PrefetchBlocks() {
+        return getIntPref(ALIGNMENT_TOP, ALIGNMENT_HDF5_PREFETCH_BLOCKS, ALIGNMENT_HDF5_PREFETCH_BLOCKS_DEFAULT);
+    }
+
+    public static void putAlignmentHDF5PrefetchBlocks(int value) {
+        putIntPref(ALIGNMENT_TOP, ALIGNMENT_HDF5_PREFETCH_BLOCKS, value);
+    }
+
     //
     // GOBII preferences
     //
@@ -0,0 +1,342 @@
+package net.maizegenetics.stats.PCA;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrix;
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory;
+import net.maizegenetics.matrixalgebra.decomposition.EigenvalueDecomposition;
+import net.maizegenetics.stats.PCA.PrinComp.PC_TYPE;
+
+/**
+ * Principal components of a genotype table from a randomized truncated singular value decomposition
+ * (randomized range finder with power iterations, Halko, Martinsson and Tropp 2011, SIAM Review 53:217-288).
+ * The results are the same as PrinComp for the first components, but only the requested components are
+ * calculated and the taxa by sites matrix is never created. Each pass over the data reads blocks of sites
+ * from the genotype table in parallel and only keeps matrices of taxa by (components + oversampling).
+ * So a genotype table backed by a file (i.e. HDF5) is read from disk on each pass instead of being loaded into memory.
+ * <p>
+ * The data are the reference probabilities of the genotype table if there are any. Otherwise, the data are the
+ * proportion of major alleles with missing values set to the mean of the taxon, which is the same as
+ * NumericalGenotypePlugin followed by ImputationPlugin (by mean).
+ */
+public class RandomizedPrinComp {
+
+	//additional random vectors, which improve accuracy of the requested components
+	private static final int OVERSAMPLING = 10;
+	//approximate number of values in a block of sites
+	private static final int BLOCK_VALUES = 1 << 21;
+	//fixed so that results are the same every run
+	private static final long SEED = 20150202L;
+
+	private final GenotypeTable myGenotype;
+	private final boolean myScale;
+	private final int myNumTaxa;
+	private final int myNumSites;
+	private final int myBlockSize;
+	private final int myNumBlocks;
+	//used for missing values, null when data are reference probabilities
+	private final float[] myTaxonMeans;
+
+	private final double[] myEigenvalues;
+	private final double myTotalVariance;
+	//the left singular vectors (one per component) of length number of taxa
+	private final double[][] myU;
+	private final DoubleMatrix myEigenvectors;
+
+	/**
+	 * @param genotype	the genotype table
+	 * @param type	should the analysis use the covariance (cov) or the correlation (corr) matrix of the data
+	 * @param numberOfComponents	number of components to calculate
+	 * @param powerIterations	number of power iterations. More iterations are more accurate when eigenvalues decrease slowly.
+	 * @param calculateEigenvectors	whether to calculate eigenvectors, which takes one more pass over the data
+	 */
+	public RandomizedPrinComp(GenotypeTable genotype, PC_TYPE type, int numberOfComponents, int powerIterations, boolean calculateEigenvectors) {
+
+		myGenotype = genotype;
+		myScale = type == PC_TYPE.corr;
+		myNumTaxa = genotype.numberOfTaxa();
+		myNumSites = genotype.numberOfSites();
+		if (myNumTaxa < 2 || myNumSites < 1) {
+			throw new IllegalArgumentException("RandomizedPrinComp: init: need at least two taxa and one site.");
+		}
+		int maxComponents = Math.min(myNumTaxa, myNumSites);
+		int numComponents = Math.min(Math.max(1, numberOfComponents), maxComponents);
+		int numVectors = Math.min(numComponents + OVERSAMPLING, maxComponents);
+		myBlockSize = Math.max(1, Math.min(myNumSites, BLOCK_VALUES / myNumTaxa));
+		myNumBlocks = (myNumSites + myBlockSize - 1) / myBlockSize;
+
+		myTaxonMeans = genotype.hasReferenceProbablity() ? null : taxonMeans();
+
+		//Q = orth(A * Omega) where Omega is random, then Q = orth(A * A' * Q) for each power iteration
+		double[][] q = orthonormalize(accumulate(numVectors, myNumTaxa, this::multiplyRandom).myValues);
+		for (int i = 0; i < powerIterations; i++) {
+			double[][] current = q;
+			q = orthonormalize(accumulate(numVectors, myNumTaxa, (block, firstSite, result) -> multiplyTranspose(block, current, result)).myValues);
+		}
+
+		//eigenvalues of Q' * A * A' * Q are the squared singular values of A
+		double[][] basis = q;
+		Accumulator projection = accumulate(numVectors, numVectors, (block, firstSite, result) -> projectedCrossproduct(block, basis, result));
+		myTotalVariance = projection.mySumOfSquares;
+		EigenvalueDecomposition eigen = DoubleMatrixFactory.DEFAULT.make(projection.myValues).getEigenvalueDecomposition();
+		double[] values = eigen.getEigenvalues();
+		DoubleMatrix vectors = eigen.getEigenvectors();
+		Integer[] order = new Integer[numVectors];
+		for (int i = 0; i < numVectors; i++) order[i] = i;
+		Arrays.sort(order, (i1, i2) -> Double.compare(values[i2], values[i1]));
+
+		//U = Q * W, where W are the eigenvectors
+		myEigenvalues = new double[numComponents];
+		myU = new double[numComponents][myNumTaxa];
+		for (int c = 0; c < numComponents; c++) {
+			myEigenvalues[c] = Math.max(0.0, values[order[c]]);
+			for (int v = 0; v < numVectors; v++) {
+				axpy(vectors.get(v, order[c]), q[v], myU[c]);
+			}
+		}
+
+		myEigenvectors = calculateEigenvectors ? eigenvectors() : null;
+
+	}
+
+	/**
+	 * @return	a double[] of the requested number of eigenvalues (high to low) from the decomposition of either
+	 * the covariance or correlation matrix of the data
+	 */
+	public double[] getEigenValues() {
+		return Arrays.copyOf(myEigenvalues, myEigenvalues.length);
+	}
+
+	/**
+	 * @return	the sum of all eigenvalues (total variance), including those that were not calculated
+	 */
+	public double getTotalVariance() {
+		return myTotalVariance;
+	}
+
+	/**
+	 * @return	the eigenvectors (sites by components) or null if they were not calculated
+	 */
+	public DoubleMatrix getEigenVectors() {
+		return myEigenvectors;
+	}
+
+	/**
+	 * calculated as data * eigenvectors
+	 * @return	the principal components (taxa by components)
+	 */
+	public DoubleMatrix getPrincipalComponents() {
+		int numComponents = myEigenvalues.length;
+		double multiplier = Math.sqrt(myNumTaxa - 1);
+		DoubleMatrix result = DoubleMatrixFactory.DEFAULT.make(myNumTaxa, numComponents);
+		for (int c = 0; c < numComponents; c++) {
+			double singularValue = Math.sqrt(myEigenvalues[c]);
+			for (int t = 0; t < myNumTaxa; t++) {
+				result.set(t, c, multiplier * singularValue * myU[c][t]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Eigenvector for each component is A' * U / singular value. Each block of sites fills its own rows.
+	 */
+	private DoubleMatrix eigenvectors() {
+		int numComponents = myEigenvalues.length;
+		double[] result = new double[myNumSites * numComponents];
+		IntStream.range(0, myNumBlocks).parallel().forEach(b -> {
+			int firstSite = b * myBlockSize;
+			double[][] block = readBlock(firstSite, Math.min(myNumSites, firstSite + myBlockSize));
+			for (int s = 0; s < block.length; s++) {
+				for (int c = 0; c < numComponents; c++) {
+					double singularValue = Math.sqrt(myEigenvalues[c]);
+					if (singularValue > 0.0) {
+						result[(firstSite + s) * numComponents + c] = dot(block[s], myU[c]) / singularValue;
+					}
+				}
+			}
+		});
+		return DoubleMatrixFactory.DEFAULT.make(myNumSites, numComponents, result);
+	}
+
+	/**
+	 * Mean of the proportion of major alleles for each taxon over the non-missing sites.
+	 */
+	private float[] taxonMeans() {
+		double[][] sums = IntStream.range(0, myNumSites).parallel().collect(() -> new double[2][myNumTaxa], (result, s) -> {
+			byte major = myGenotype.majorAllele(s);
+			byte[] genotypes = myGenotype.genotypeAllTaxa(s);
+			for (int t = 0; t < myNumTaxa; t++) {
+				if (genotypes[t] != GenotypeTable.UNKNOWN_DIPLOID_ALLELE) {
+					result[0][t] += majorProportion(genotypes[t], major);
+					result[1][t]++;
+				}
+			}
+		}, (result1, result2) -> {
+			for (int t = 0; t < myNumTaxa; t++) {
+				result1[0][t] += result2[0][t];
+				result1[1][t] += result2[1][t];
+			}
+		});
+		float[] result = new float[myNumTaxa];
+		for (int t = 0; t < myNumTaxa; t++) {
+			result[t] = (float) (sums[0][t] / sums[1][t]);
+		}
+		return result;
+	}
+
+	private static double majorProportion(byte genotype, byte major) {
+		double result = 0.0;
+		if (((genotype >>> 4) & 0xf) == major) result += 0.5;
+		if ((genotype & 0xf) == major) result += 0.5;
+		return result;
+	}
+
+	/**
+	 * Reads sites firstSite (inclusive) to lastSite (exclusive). Each site is centered (and scaled for correlation)
+	 * and divided by the square root of number of taxa - 1, which makes it a column of the matrix A decomposed by PrinComp.
+	 */
+	private double[][] readBlock(int firstSite, int lastSite) {
+		double[][] result = new double[lastSite - firstSite][];
+		double multiplier = 1.0 / Math.sqrt(myNumTaxa - 1);
+		for (int s = firstSite; s < lastSite; s++) {
+			double[] values = new double[myNumTaxa];
+			if (myTaxonMeans == null) {
+				for (int t = 0; t < myNumTaxa; t++) {
+					values[t] = myGenotype.referenceProbability(t, s);
+				}
+			} else {
+				byte major = myGenotype.majorAllele(s);
+				byte[] genotypes = myGenotype.genotypeAllTaxa(s);
+				for (int t = 0; t < myNumTaxa; t++) {
+					if (genotypes[t] == GenotypeTable.UNKNOWN_DIPLOID_ALLELE) values[t] = myTaxonMeans[t];
+					else values[t] = majorProportion(genotypes[t], major);
+				}
+			}
+
+			double mean = 0.0;
+			for (double value : values) mean += value;
+			mean /= myNumTaxa;
+			double sumsq = 0.0;
+			for (int t = 0; t < myNumTaxa; t++) {
+				values[t] -= mean;
+				sumsq += values[t] * values[t];
+			}
+
+			//monomorphic sites are left at zero rather than divided by a standard deviation of zero
+			double siteMultiplier = multiplier;
+			if (myScale && sumsq > 0.0) siteMultiplier /= Math.sqrt(sumsq / (myNumTaxa - 1));
+			for (int t = 0; t < myNumTaxa; t++) {
+				values[t] *= siteMultiplier;
+			}
+			result[s - firstSite] = values;
+		}
+		return result;
+	}
+
+	/**
+	 * Adds block * Omega to result, where Omega is the block's rows of a matrix of standard normal values.
+	 */
+	private void multiplyRandom(double[][] block, int firstSite, Accumulator result) {
+		Random random = new Random(SEED + firstSite);
+		for (double[] site : block) {
+			for (double[] vector : result.myValues) {
+				axpy(random.nextGaussian(), site, vector);
+			}
+		}
+	}
+
+	/**
+	 * Adds block * block' * q to result.
+	 */
+	private static void multiplyTranspose(double[][] block, double[][] q, Accumulator result) {
+		for (double[] site : block) {
+			for (int v = 0; v < q.length; v++) {
+				axpy(dot(site, q[v]), site, result.myValues[v]);
+			}
+		}
+	}
+
+	/**
+	 * Adds q' * block * block' * q to result and sum of squares of block to total.
+	 */
+	private static void projectedCrossproduct(double[][] block, double[][] q, Accumulator result) {
+		double[] projected = new double[q.length];
+		for (double[] site : block) {
+			for (int v = 0; v < q.length; v++) {
+				projected[v] = dot(site, q[v]);
+			}
+			for (int r = 0; r < q.length; r++) {
+				for (int c = 0; c < q.length; c++) {
+					result.myValues[r][c] += projected[r] * projected[c];
+				}
+			}
+			result.mySumOfSquares += dot(site, site);
+		}
+	}
+
+	/**
+	 * Applies operation to every block of sites in parallel and sums the results.
+	 */
+	private Accumulator accumulate(int numRows, int numColumns, BlockOperation operation) {
+		return IntStream.range(0, myNumBlocks).parallel().collect(() -> new Accumulator(numRows, numColumns), (result, b) -> {
+			int firstSite = b * myBlockSize;
+			operation.apply(readBlock(firstSite, Math.min(myNumSites, firstSite + myBlockSize)), firstSite, result);
+		}, Accumulator::add);
+	}
+
+	/**
+	 * Modified Gram-Schmidt, done twice for numerical stability. Vectors that are linear combinations of the
+	 * previous ones are left as zero.
+	 */
+	private static double[][] orthonormalize(double[][] vectors) {
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < vectors.length; i++) {
+				for (int j = 0; j < i; j++) {
+					axpy(-dot(vectors[i], vectors[j]), vectors[j], vectors[i]);
+				}
+				double norm = Math.sqrt(dot(vectors[i], vectors[i]));
+				for (int t = 0; t < vectors[i].length; t++) {
+					vectors[i][t] = norm > 0.0 ? vectors[i][t] / norm : 0.0;
+				}
+			}
+		}
+		return vectors;
+	}
+
+	private static double dot(double[] x, double[] y) {
+		double result = 0.0;
+		for (int i = 0; i < x.length; i++) result += x[i] * y[i];
+		return result;
+	}
+
+	//y = y + a * x
+	private static void axpy(double a, double[] x, double[] y) {
+		for (int i = 0; i < x.length; i++) y[i] += a * x[i];
+	}
+
+	private interface BlockOperation {
+		void apply(double[][] block, int firstSite, Accumulator result);
+	}
+
+	private static final class Accumulator {
+
+		final double[][] myValues;
+		double mySumOfSquares = 0.0;
+
+		Accumulator(int numRows, int numColumns) {
+			myValues = new double[numRows][numColumns];
+		}
+
+		void add(Accumulator other) {
+			for (int r = 0; r < myValues.length; r++) {
+				axpy(1.0, other.myValues[r], myValues[r]);
+			}
+			mySumOfSquares += other.mySumOfSquares;
+		}
+	}
+
+}
@@ -358,6 +358,26 @@ public class SweepFast {
     	return copy;
     }
     
+    /**
+     * Copies this into target, reusing the arrays of target when they are the
+     * right size. So target can be used as a workspace for repeated copies.
+     *
+     * @param target copy destination
+     * @return target
+     */
+    public SweepFast copyInto(SweepFast target) {
+    	if (target.A == null || target.A.length != A.length) target.A = new double[A.length];
+    	System.arraycopy(A, 0, target.A, 0, A.length);
+    	target.dimA = dimA;
+    	if (target.Dmin == null || target.Dmin.length != Dmin.length) target.Dmin = new double[Dmin.length];
+    	System.arraycopy(Dmin, 0, target.Dmin, 0, Dmin.length);
+    	if (target.singular == null || target.singular.length != singular.length) target.singular = new boolean[singular.length];
+    	System.arraycopy(singular, 0, target.singular, 0, singular.length);
+    	if (target.V == null || target.V.length != V.length) target.V = new double[V.length];
+    	System.arraycopy(V, 0, target.V, 0, V.length);
+    	return target;
+    }
+    
     public int getDimensionOfA() { return dimA; }
     
     public boolean isSingular(int column) { return singular[column]; }
@@ -28,6 +28,17 @@ public class SymmetricMatrixInverterDM {
 	 * @return the inverse of the original matrix as updated by removing excluded rows and columns
 	 */
 	public DoubleMatrix getInverse(boolean[] exclude) {
+		return getInverse(exclude, null);
+	}
+	
+	/**
+	 * Same as getInverse(boolean[]) but uses workspace for the intermediate sweep, so that
+	 * repeated calls don't allocate it each time. A workspace must only be used by one thread at a time.
+	 * @param exclude	a boolean array with number of elements equal to the dimension of the original matrix.
+	 * @param workspace	reused for intermediate results or null
+	 * @return the inverse of the original matrix as updated by removing excluded rows and columns
+	 */
+	public DoubleMatrix getInverse(boolean[] exclude, SweepFast workspace) {
 		int n = exclude.length;
 //		myLogger.debug("exclude.length = " + n + ", dim(A) = " + originalSweep.getDimensionOfA());
 		DoubleMatrix inverse;
@@ -44,7 +55,7 @@ public class SymmetricMatrixInverterDM {
 			}
 			return inverse;
 		} else {
-			SweepFast sf = originalSweep.copy();
+			SweepFast sf = workspace == null ? originalSweep.copy() : originalSweep.copyInto(workspace);
 			for (int i = 0; i < n; i++) if (exclude[i]) sf.revg2sweep(i);
 			sf.sweepSingularColumns();
 			inverse = sf.getSubsetOfA(exclude);
@@ -75,12 +86,23 @@ public class SymmetricMatrixInverterDM {
 	 * @return the inverse of the original matrix as updated by removing excluded rows and columns
 	 */
 	public DoubleMatrix getInverse(BitSet exclude, int size) {
+		return getInverse(exclude, size, null);
+	}
+	
+	/**
+	 * Same as getInverse(BitSet, int) but uses workspace for the intermediate sweep.
+	 * @param exclude	a BitSet with number of elements equal to the dimension of the original matrix.
+	 * @param size		the number of elements
+	 * @param workspace	reused for intermediate results or null
+	 * @return the inverse of the original matrix as updated by removing excluded rows and columns
+	 */
+	public DoubleMatrix getInverse(BitSet exclude, int size, SweepFast workspace) {
 		boolean[] boolExclude = new boolean[size];
 		for (int i = 0; i < size; i++) {
 			if (exclude.fastGet(i)) boolExclude[i] = true;
 			else boolExclude[i] = false;
 		}
-		return getInverse(boolExclude);
+		return getInverse(boolExclude, workspace);
 	}
 
 }
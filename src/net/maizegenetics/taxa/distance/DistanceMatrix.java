@@ -18,7 +18,10 @@ import java.io.StringWriter;
 
 /**
  * Storage for pairwise distance matrices. Only stores half the matrix as it is
- * symmetrical.<p>
+ * symmetrical. The lower triangle is stored as one contiguous block of floats,
+ * which may be memory mapped from a binary file (see
+ * ReadDistanceMatrix.readBinaryDistanceMatrix()). Use getDistancesForRow()
+ * or getDistancesForTile() rather than getDistances() for large matrices.<p>
  *
  * For best performance, iterate over matrix this way.
  * <blockquote><pre>
@@ -39,14 +42,14 @@ public class DistanceMatrix implements TableReport {
     private final TaxaList myTaxaList;
     private final int myNumTaxa;
     private final GeneralAnnotation myAnnotations;
-    private final float[][] myDistances;
+    private final LowerTriangleStorage myDistances;
 
     /**
      * Use DistanceMatrixBuilder instead of this.
      *
      * @see DistanceMatrixBuilder
      */
-    DistanceMatrix(float[][] distances, TaxaList taxa, GeneralAnnotation annotations) {
+    DistanceMatrix(LowerTriangleStorage distances, TaxaList taxa, GeneralAnnotation annotations) {
         myDistances = distances;
         myTaxaList = taxa;
         myNumTaxa = myTaxaList.numberOfTaxa();
@@ -73,16 +76,13 @@ public class DistanceMatrix implements TableReport {
         if ((distances == null) || (distances.length != myNumTaxa) || (distances[0].length != myNumTaxa)) {
             throw new IllegalArgumentException("DistanceMatrix: init: dimensions of distances aren't correct.");
         }
-        myDistances = new float[myNumTaxa][];
-        for (int i = 0; i < myNumTaxa; i++) {
-            myDistances[i] = new float[i + 1];
-        }
+        myDistances = LowerTriangleStorage.getInstance(myNumTaxa);
         for (int x = 0; x < myNumTaxa; x++) {
             for (int y = 0; y <= x; y++) {
                 if (Math.abs(distances[x][y] - distances[y][x]) > 0.0000001) {
                     throw new IllegalStateException("DistanceMatrix: init: values passed in are not symmetrical: " + distances[x][y] + " and: " + distances[y][x]);
                 }
-                myDistances[x][y] = (float) distances[x][y];
+                myDistances.putFloat(x, y, (float) distances[x][y]);
             }
         }
         myTaxaList = taxa;
@@ -94,15 +94,8 @@ public class DistanceMatrix implements TableReport {
      */
     public DistanceMatrix(DistanceMatrix dm) {
         myNumTaxa = dm.numberOfTaxa();
-        myDistances = new float[myNumTaxa][];
-        for (int i = 0; i < myNumTaxa; i++) {
-            myDistances[i] = new float[i + 1];
-        }
-        for (int x = 0; x < myNumTaxa; x++) {
-            for (int y = 0; y <= x; y++) {
-                myDistances[x][y] = dm.myDistances[x][y];
-            }
-        }
+        myDistances = LowerTriangleStorage.getInstance(myNumTaxa);
+        dm.myDistances.copyTo(myDistances);
         myTaxaList = dm.myTaxaList;
         myAnnotations = dm.myAnnotations;
     }
@@ -114,17 +107,14 @@ public class DistanceMatrix implements TableReport {
     public DistanceMatrix(DistanceMatrix dm, TaxaList subset) {
 
         myNumTaxa = subset.numberOfTaxa();
-        myDistances = new float[myNumTaxa][];
-        for (int i = 0; i < myNumTaxa; i++) {
-            myDistances[i] = new float[i + 1];
-        }
+        myDistances = LowerTriangleStorage.getInstance(myNumTaxa);
 
         for (int i = 0; i < myNumTaxa; i++) {
             int index1 = dm.whichIdNumber(subset.taxaName(i));
-            myDistances[i][i] = dm.myDistances[index1][index1];
+            myDistances.putFloat(i, i, dm.getDistance(index1, index1));
             for (int j = 0; j < i; j++) {
                 int index2 = dm.whichIdNumber(subset.taxaName(j));
-                myDistances[i][j] = dm.getDistance(index1, index2);
+                myDistances.putFloat(i, j, dm.getDistance(index1, index2));
             }
         }
         myTaxaList = subset;
@@ -183,12 +173,12 @@ public class DistanceMatrix implements TableReport {
         double sum = 0;
         for (int i = 0; i < myNumTaxa - 1; i++) {
             for (int j = 0; j < i; j++) {
-                double diff = myDistances[i][j] - mat.getDistance(i, j);
+                float distance = myDistances.getFloat(i, j);
+                double diff = distance - mat.getDistance(i, j);
                 double weight;
                 if (weighted) {
                     // Fitch-Margoliash weight
                     // (variances proportional to distances)
-                    float distance = myDistances[i][j];
                     weight = 1.0 / distance * distance;
                 } else {
                     // Cavalli-Sforza-Edwards weight
@@ -209,7 +199,7 @@ public class DistanceMatrix implements TableReport {
         double sum = 0;
         for (int i = 0; i < myNumTaxa - 1; i++) {
             for (int j = 0; j < i; j++) {
-                double diff = Math.abs(myDistances[i][j] - mat.getDistance(i, j));
+                double diff = Math.abs(myDistances.getFloat(i, j) - mat.getDistance(i, j));
                 sum += diff;
             }
         }
@@ -233,7 +223,7 @@ public class DistanceMatrix implements TableReport {
         double[][] copy = new double[myNumTaxa][myNumTaxa];
         for (int i = 0; i < myNumTaxa; i++) {
             for (int j = 0; j <= i; j++) {
-                copy[i][j] = myDistances[i][j];
+                copy[i][j] = myDistances.getFloat(i, j);
                 copy[j][i] = copy[i][j];
             }
         }
@@ -249,11 +239,61 @@ public class DistanceMatrix implements TableReport {
     }
 
     public final float getDistance(final int row, final int col) {
-        if (row > col) {
-            return myDistances[row][col];
-        } else {
-            return myDistances[col][row];
+        return myDistances.getFloat(row, col);
+    }
+
+    /**
+     * Copies the distances for one row of the matrix into the given array.
+     * Unlike getDistances(), this doesn't create a copy of the whole matrix.
+     *
+     * @param row row
+     * @param result array with length at least number of taxa or null to
+     * create one
+     *
+     * @return distances for row
+     */
+    public float[] getDistancesForRow(int row, float[] result) {
+        if (result == null) {
+            result = new float[myNumTaxa];
+        } else if (result.length < myNumTaxa) {
+            throw new IllegalArgumentException("DistanceMatrix: getDistancesForRow: result array length: " + result.length + " less than number of taxa: " + myNumTaxa);
         }
+        myDistances.floatRow(row, result);
+        return result;
+    }
+
+    /**
+     * Copies the distances for a tile of the matrix (row major) into the given
+     * array. Unlike getDistances(), this doesn't create a copy of the whole
+     * matrix.
+     *
+     * @param startRow first row (inclusive)
+     * @param endRow last row (exclusive)
+     * @param startCol first column (inclusive)
+     * @param endCol last column (exclusive)
+     * @param result array with length at least (endRow - startRow) * (endCol
+     * - startCol) or null to create one
+     *
+     * @return distances for tile
+     */
+    public float[] getDistancesForTile(int startRow, int endRow, int startCol, int endCol, float[] result) {
+        if ((startRow < 0) || (startRow > endRow) || (endRow > myNumTaxa) || (startCol < 0) || (startCol > endCol) || (endCol > myNumTaxa)) {
+            throw new IndexOutOfBoundsException("DistanceMatrix: getDistancesForTile: rows: " + startRow + " to " + endRow + " columns: " + startCol + " to " + endCol + " not within number of taxa: " + myNumTaxa);
+        }
+        int numCols = endCol - startCol;
+        int size = (endRow - startRow) * numCols;
+        if (result == null) {
+            result = new float[size];
+        } else if (result.length < size) {
+            throw new IllegalArgumentException("DistanceMatrix: getDistancesForTile: result array length: " + result.length + " less than tile size: " + size);
+        }
+        for (int r = startRow; r < endRow; r++) {
+            int offset = (r - startRow) * numCols - startCol;
+            for (int c = startCol; c < endCol; c++) {
+                result[offset + c] = myDistances.getFloat(r, c);
+            }
+        }
+        return result;
     }
 
     /**
@@ -264,7 +304,7 @@ public class DistanceMatrix implements TableReport {
         int count = 0;
         for (int i = 1; i < myNumTaxa; i++) {
             for (int j = 0; j < i; j++) {
-                float distance = myDistances[i][j];
+                float distance = myDistances.getFloat(i, j);
                 if (!Float.isNaN(distance)) {
                     dist += distance;
                     count++;
@@ -303,7 +343,7 @@ public class DistanceMatrix implements TableReport {
      */
     public boolean isSymmetric() {
         for (int i = 0; i < myNumTaxa; i++) {
-            if (myDistances[i][i] != 0) {
+            if (myDistances.getFloat(i, i) != 0) {
                 return false;
             }
         }
@@ -354,7 +394,7 @@ public class DistanceMatrix implements TableReport {
         DistanceMatrixBuilder builder = DistanceMatrixBuilder.getInstance(m0.getTaxaList());
         for (int r = 0; r < n; r++) {
             for (int c = 0; c <= r; c++) {
-                builder.set(r, c, m0.myDistances[r][c] * m1.myDistances[r][c]);
+                builder.set(r, c, m0.myDistances.getFloat(r, c) * m1.myDistances.getFloat(r, c));
             }
         }
 
@@ -432,4 +472,8 @@ public class DistanceMatrix implements TableReport {
         return myAnnotations;
     }
 
+    LowerTriangleStorage storage() {
+        return myDistances;
+    }
+
 }
@@ -5,12 +5,22 @@
  */
 package net.maizegenetics.taxa.distance;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import net.maizegenetics.taxa.TaxaList;
 import net.maizegenetics.taxa.TaxaListBuilder;
 import net.maizegenetics.taxa.Taxon;
 import net.maizegenetics.util.GeneralAnnotation;
+import net.maizegenetics.util.Utils;
 
 /**
+ * Builds DistanceMatrix (or DistanceMatrixWithCounts if counts are set).
+ * Values are stored in one contiguous lower triangle, either on heap or
+ * memory mapped to a binary distance matrix file (see
+ * getInstance(TaxaList, String)), so matrices larger than the heap can be
+ * built.
  *
  * @author Terry Casstevens
  */
@@ -28,17 +38,26 @@ public class DistanceMatrixBuilder {
 
     private final int myNumTaxa;
     private final TaxaList myTaxa;
-    private final float[][] myMatrix;
+    private final LowerTriangleStorage myMatrix;
     private GeneralAnnotation myAnnotation = null;
     private final TaxaListBuilder myTaxaBuilder;
-    private int[][] myCounts = null;
+    private LowerTriangleStorage myCounts = null;
+    private final FileChannel myChannel;
+    private final String myFilename;
 
     private DistanceMatrixBuilder(int numTaxa, TaxaList taxa) {
+        this(numTaxa, taxa, null, null);
+    }
+
+    private DistanceMatrixBuilder(int numTaxa, TaxaList taxa, FileChannel channel, String filename) {
         myTaxa = taxa;
         myNumTaxa = numTaxa;
-        myMatrix = new float[myNumTaxa][];
-        for (int i = 0; i < myNumTaxa; i++) {
-            myMatrix[i] = new float[i + 1];
+        myChannel = channel;
+        myFilename = filename;
+        if (myChannel == null) {
+            myMatrix = LowerTriangleStorage.getInstance(myNumTaxa);
+        } else {
+            myMatrix = LowerTriangleStorage.getInstance(myNumTaxa, myChannel, WriteDistanceMatrix.BINARY_HEADER_BYTES, FileChannel.MapMode.READ_WRITE);
         }
         if (myTaxa == null) {
             myTaxaBuilder = new TaxaListBuilder();
@@ -55,20 +74,32 @@ public class DistanceMatrixBuilder {
         return new DistanceMatrixBuilder(numTaxa, null);
     }
 
-    public void set(int x, int y, float value) {
-        if (x > y) {
-            myMatrix[x][y] = value;
-        } else {
-            myMatrix[y][x] = value;
+    /**
+     * Creates builder that memory maps values to the given binary distance
+     * matrix file instead of heap. The file is complete when build() is
+     * called, and the resulting matrix remains memory mapped.
+     *
+     * @param taxa taxa
+     * @param filename binary distance matrix filename
+     *
+     * @return builder
+     */
+    public static DistanceMatrixBuilder getInstance(TaxaList taxa, String filename) {
+        String binaryFilename = Utils.addSuffixIfNeeded(filename, DistanceMatrixUtils.BINARY_FILE_EXTENSION);
+        try {
+            FileChannel channel = FileChannel.open(Paths.get(binaryFilename), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            return new DistanceMatrixBuilder(taxa.numberOfTaxa(), taxa, channel, binaryFilename);
+        } catch (IOException e) {
+            throw new IllegalStateException("DistanceMatrixBuilder: getInstance: problem creating: " + binaryFilename + ".  " + e.getMessage());
         }
     }
 
+    public void set(int x, int y, float value) {
+        myMatrix.putFloat(x, y, value);
+    }
+
     public void set(int x, int y, double value) {
-        if (x > y) {
-            myMatrix[x][y] = (float) value;
-        } else {
-            myMatrix[y][x] = (float) value;
-        }
+        myMatrix.putFloat(x, y, (float) value);
     }
 
     public void addTaxon(Taxon taxon) {
@@ -85,16 +116,13 @@ public class DistanceMatrixBuilder {
 
     public void setCount(int x, int y, int value) {
         if (myCounts == null) {
-            myCounts = new int[myNumTaxa][];
-            for (int i = 0; i < myNumTaxa; i++) {
-                myCounts[i] = new int[i + 1];
+            if (myChannel == null) {
+                myCounts = LowerTriangleStorage.getInstance(myNumTaxa);
+            } else {
+                myCounts = LowerTriangleStorage.getInstance(myNumTaxa, myChannel, WriteDistanceMatrix.BINARY_HEADER_BYTES + LowerTriangleStorage.numBytes(myNumTaxa), FileChannel.MapMode.READ_WRITE);
             }
         }
-        if (x > y) {
-            myCounts[x][y] = value;
-        } else {
-            myCounts[y][x] = value;
-        }
+        myCounts.putInt(x, y, value);
     }
 
     public DistanceMatrix build() {
@@ -106,6 +134,17 @@ public class DistanceMatrixBuilder {
             taxa = myTaxaBuilder.build();
         }
 
+        if (myChannel != null) {
+            long metadataOffset = WriteDistanceMatrix.BINARY_HEADER_BYTES + LowerTriangleStorage.numBytes(myNumTaxa) * (myCounts == null ? 1L : 2L);
+            try {
+                WriteDistanceMatrix.writeBinaryMetadata(myChannel, metadataOffset, myNumTaxa, myCounts != null, myAnnotation, taxa);
+                myChannel.force(true);
+                myChannel.close();
+            } catch (IOException e) {
+                throw new IllegalStateException("DistanceMatrixBuilder: build: problem writing: " + myFilename + ".  " + e.getMessage());
+            }
+        }
+
         if (myCounts == null) {
             return new DistanceMatrix(myMatrix, taxa, myAnnotation);
         } else {
@@ -24,6 +24,8 @@ import java.util.List;
  */
 public class DistanceMatrixUtils {
 
+    public static final String BINARY_FILE_EXTENSION = ".dist.bin";
+
     private DistanceMatrixUtils() {
         // utility class
     }
@@ -14,24 +14,19 @@ import net.maizegenetics.util.GeneralAnnotation;
  */
 public class DistanceMatrixWithCounts extends DistanceMatrix {
 
-    private final int[][] myCounts;
+    private final LowerTriangleStorage myCounts;
 
-    DistanceMatrixWithCounts(float[][] distances, TaxaList taxa, GeneralAnnotation annotations, int[][] counts) {
+    DistanceMatrixWithCounts(LowerTriangleStorage distances, TaxaList taxa, GeneralAnnotation annotations, LowerTriangleStorage counts) {
         super(distances, taxa, annotations);
         myCounts = counts;
     }
 
-    DistanceMatrixWithCounts(double[][] distance, TaxaList taxaList, GeneralAnnotation annotations, int[][] counts) {
-        super(distance, taxaList, annotations);
-        myCounts = counts;
+    public int getCount(int x, int y) {
+        return myCounts.getInt(x, y);
     }
 
-    public int getCount(int x, int y) {
-        if (x > y) {
-            return myCounts[x][y];
-        } else {
-            return myCounts[y][x];
-        }
+    LowerTriangleStorage countStorage() {
+        return myCounts;
     }
 
 }
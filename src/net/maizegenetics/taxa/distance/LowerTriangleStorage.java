@@ -0,0 +1,315 @@
+/*
+ *  LowerTriangleStorage
+ */
+package net.maizegenetics.taxa.distance;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Lower triangle (including diagonal) of a symmetric matrix of four byte
+ * values (float or int), stored row after row as one contiguous little
+ * endian block: row i starts at value i * (i + 1) / 2. The block is either
+ * on heap or memory mapped from a file. Since a ByteBuffer is limited to 2GB,
+ * the block is divided into segments of whole rows. On heap storage that fits
+ * in one segment is a float array instead, so values are read without
+ * ByteBuffer segment lookups.
+ */
+final class LowerTriangleStorage {
+
+    static final int BYTES_PER_VALUE = 4;
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    private static final int COPY_BUFFER_VALUES = 1 << 18;
+
+    private final int myNumTaxa;
+    // Either myValues (on heap, fits in one segment) or mySegments is null
+    private final float[] myValues;
+    private final ByteBuffer[] mySegments;
+    private final int[] mySegmentOfRow;
+    // Start of each row: value index for myValues, byte offset in segment otherwise
+    private final int[] myRowOffset;
+
+    private LowerTriangleStorage(int numTaxa, ByteBuffer[] segments, int[] segmentOfRow, int[] rowOffset) {
+        myNumTaxa = numTaxa;
+        myValues = null;
+        mySegments = segments;
+        mySegmentOfRow = segmentOfRow;
+        myRowOffset = rowOffset;
+    }
+
+    private LowerTriangleStorage(int numTaxa) {
+        myNumTaxa = numTaxa;
+        myValues = new float[(int) (numBytes(numTaxa) / BYTES_PER_VALUE)];
+        mySegments = null;
+        mySegmentOfRow = null;
+        myRowOffset = new int[numTaxa];
+        for (int row = 0; row < numTaxa; row++) {
+            myRowOffset[row] = (int) ((long) row * (long) (row + 1) / 2L);
+        }
+    }
+
+    /**
+     * Creates storage on heap with all values zero.
+     *
+     * @param numTaxa number of taxa
+     *
+     * @return storage
+     */
+    static LowerTriangleStorage getInstance(int numTaxa) {
+        return getInstance(numTaxa, null, 0L, null);
+    }
+
+    /**
+     * Creates storage memory mapped from the given file starting at position.
+     *
+     * @param numTaxa number of taxa
+     * @param channel file channel
+     * @param position position in file of first value
+     * @param mode map mode
+     *
+     * @return storage
+     */
+    static LowerTriangleStorage getInstance(int numTaxa, FileChannel channel, long position, FileChannel.MapMode mode) {
+
+        if (numTaxa < 0) {
+            throw new IllegalArgumentException("LowerTriangleStorage: getInstance: number of taxa can't be negative: " + numTaxa);
+        }
+
+        if ((channel == null) && (numBytes(numTaxa) <= MAX_SEGMENT_BYTES)) {
+            return new LowerTriangleStorage(numTaxa);
+        }
+
+        int[] segmentOfRow = new int[numTaxa];
+        int[] rowOffset = new int[numTaxa];
+        long[] segmentSizes = new long[numTaxa + 1];
+        int numSegments = 0;
+        long currentSize = 0L;
+        for (int row = 0; row < numTaxa; row++) {
+            long rowBytes = (long) (row + 1) * BYTES_PER_VALUE;
+            if ((currentSize != 0L) && (currentSize + rowBytes > MAX_SEGMENT_BYTES)) {
+                segmentSizes[numSegments++] = currentSize;
+                currentSize = 0L;
+            }
+            segmentOfRow[row] = numSegments;
+            rowOffset[row] = (int) currentSize;
+            currentSize += rowBytes;
+        }
+        if (currentSize != 0L) {
+            segmentSizes[numSegments++] = currentSize;
+        }
+
+        ByteBuffer[] segments = new ByteBuffer[numSegments];
+        long start = position;
+        for (int s = 0; s < numSegments; s++) {
+            if (channel == null) {
+                segments[s] = ByteBuffer.allocate((int) segmentSizes[s]);
+            } else {
+                try {
+                    segments[s] = channel.map(mode, start, segmentSizes[s]);
+                } catch (IOException e) {
+                    throw new IllegalStateException("LowerTriangleStorage: getInstance: problem memory mapping file: " + e.getMessage());
+                }
+            }
+            segments[s].order(ByteOrder.LITTLE_ENDIAN);
+            start += segmentSizes[s];
+        }
+
+        return new LowerTriangleStorage(numTaxa, segments, segmentOfRow, rowOffset);
+
+    }
+
+    /**
+     * Number of bytes to store the lower triangle for the given number of
+     * taxa.
+     *
+     * @param numTaxa number of taxa
+     *
+     * @return number of bytes
+     */
+    static long numBytes(int numTaxa) {
+        return (long) numTaxa * (long) (numTaxa + 1) / 2L * BYTES_PER_VALUE;
+    }
+
+    int numTaxa() {
+        return myNumTaxa;
+    }
+
+    private int valueIndex(int row, int col) {
+        if (row >= col) {
+            return myRowOffset[row] + col;
+        } else {
+            return myRowOffset[col] + row;
+        }
+    }
+
+    private int index(int row, int col) {
+        if (row >= col) {
+            return myRowOffset[row] + col * BYTES_PER_VALUE;
+        } else {
+            return myRowOffset[col] + row * BYTES_PER_VALUE;
+        }
+    }
+
+    private ByteBuffer segment(int row, int col) {
+        return mySegments[mySegmentOfRow[row >= col ? row : col]];
+    }
+
+    float getFloat(int row, int col) {
+        if (myValues != null) {
+            return myValues[valueIndex(row, col)];
+        }
+        return segment(row, col).getFloat(index(row, col));
+    }
+
+    void putFloat(int row, int col, float value) {
+        if (myValues != null) {
+            myValues[valueIndex(row, col)] = value;
+        } else {
+            segment(row, col).putFloat(index(row, col), value);
+        }
+    }
+
+    int getInt(int row, int col) {
+        if (myValues != null) {
+            return Float.floatToRawIntBits(myValues[valueIndex(row, col)]);
+        }
+        return segment(row, col).getInt(index(row, col));
+    }
+
+    void putInt(int row, int col, int value) {
+        if (myValues != null) {
+            myValues[valueIndex(row, col)] = Float.intBitsToFloat(value);
+        } else {
+            segment(row, col).putInt(index(row, col), value);
+        }
+    }
+
+    /**
+     * Copies values for one row of the full (symmetric) matrix.
+     *
+     * @param row row
+     * @param result destination with length at least number of taxa
+     */
+    void floatRow(int row, float[] result) {
+        if (myValues != null) {
+            System.arraycopy(myValues, myRowOffset[row], result, 0, row + 1);
+            for (int col = row + 1; col < myNumTaxa; col++) {
+                result[col] = myValues[myRowOffset[col] + row];
+            }
+            return;
+        }
+        ByteBuffer segment = mySegments[mySegmentOfRow[row]];
+        int offset = myRowOffset[row];
+        for (int col = 0; col <= row; col++) {
+            result[col] = segment.getFloat(offset + col * BYTES_PER_VALUE);
+        }
+        for (int col = row + 1; col < myNumTaxa; col++) {
+            result[col] = mySegments[mySegmentOfRow[col]].getFloat(myRowOffset[col] + row * BYTES_PER_VALUE);
+        }
+    }
+
+    /**
+     * Copies all values to another storage with same number of taxa.
+     */
+    void copyTo(LowerTriangleStorage other) {
+        if (other.myNumTaxa != myNumTaxa) {
+            throw new IllegalArgumentException("LowerTriangleStorage: copyTo: storage must have same number of taxa.");
+        }
+        if ((myValues != null) && (other.myValues != null)) {
+            System.arraycopy(myValues, 0, other.myValues, 0, myValues.length);
+            return;
+        } else if (myValues != null) {
+            // other has one segment, since the values fit in one
+            floats(other.mySegments[0]).put(myValues);
+            return;
+        } else if (other.myValues != null) {
+            floats(mySegments[0]).get(other.myValues);
+            return;
+        }
+        if (other.mySegments.length != mySegments.length) {
+            throw new IllegalArgumentException("LowerTriangleStorage: copyTo: storage must have same number of taxa.");
+        }
+        for (int s = 0; s < mySegments.length; s++) {
+            ByteBuffer source = mySegments[s].duplicate();
+            source.clear();
+            ByteBuffer destination = other.mySegments[s].duplicate();
+            destination.clear();
+            destination.put(source);
+        }
+    }
+
+    /**
+     * Writes all values (little endian) to the given channel.
+     */
+    void writeTo(WritableByteChannel channel) throws IOException {
+        if (myValues != null) {
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_VALUES * BYTES_PER_VALUE).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < myValues.length; i += COPY_BUFFER_VALUES) {
+                int length = Math.min(COPY_BUFFER_VALUES, myValues.length - i);
+                buffer.clear();
+                buffer.asFloatBuffer().put(myValues, i, length);
+                buffer.limit(length * BYTES_PER_VALUE);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            return;
+        }
+        for (ByteBuffer current : mySegments) {
+            ByteBuffer source = current.duplicate();
+            source.clear();
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        }
+    }
+
+    /**
+     * Reads all values (little endian) from the given channel starting at
+     * position.
+     */
+    void readFrom(FileChannel channel, long position) throws IOException {
+        if (myValues != null) {
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_VALUES * BYTES_PER_VALUE).order(ByteOrder.LITTLE_ENDIAN);
+            long current = position;
+            for (int i = 0; i < myValues.length; i += COPY_BUFFER_VALUES) {
+                int length = Math.min(COPY_BUFFER_VALUES, myValues.length - i);
+                buffer.clear();
+                buffer.limit(length * BYTES_PER_VALUE);
+                while (buffer.hasRemaining()) {
+                    int numRead = channel.read(buffer, current + buffer.position());
+                    if (numRead < 0) {
+                        throw new IOException("LowerTriangleStorage: readFrom: unexpected end of file.");
+                    }
+                }
+                buffer.flip();
+                buffer.asFloatBuffer().get(myValues, i, length);
+                current += length * BYTES_PER_VALUE;
+            }
+            return;
+        }
+        long start = position;
+        for (ByteBuffer current : mySegments) {
+            ByteBuffer destination = current.duplicate();
+            destination.clear();
+            while (destination.hasRemaining()) {
+                int numRead = channel.read(destination, start + destination.position());
+                if (numRead < 0) {
+                    throw new IOException("LowerTriangleStorage: readFrom: unexpected end of file.");
+                }
+            }
+            start += current.capacity();
+        }
+    }
+
+    private static FloatBuffer floats(ByteBuffer segment) {
+        ByteBuffer result = segment.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        result.clear();
+        return result.asFloatBuffer();
+    }
+
+}
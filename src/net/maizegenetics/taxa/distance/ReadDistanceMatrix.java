@@ -11,10 +11,16 @@ import net.maizegenetics.taxa.TaxaListBuilder;
 
 import java.io.IOException;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 import java.util.regex.Pattern;
 
@@ -150,6 +156,111 @@ public class ReadDistanceMatrix {
 
     }
 
+    /**
+     * Reads distance matrix (and counts if present) saved by
+     * WriteDistanceMatrix.saveBinaryDistanceMatrix() into heap memory.
+     *
+     * @param filename filename
+     *
+     * @return distance matrix
+     */
+    public static DistanceMatrix readBinaryDistanceMatrix(String filename) {
+        return readBinaryDistanceMatrix(filename, false);
+    }
+
+    /**
+     * Reads distance matrix (and counts if present) saved by
+     * WriteDistanceMatrix.saveBinaryDistanceMatrix(). If memory mapped, the
+     * distances are not loaded on heap, but paged from the file by the
+     * operating system as accessed. That allows matrices larger than the
+     * heap.
+     *
+     * @param filename filename
+     * @param memoryMapped whether to memory map the file
+     *
+     * @return distance matrix
+     */
+    public static DistanceMatrix readBinaryDistanceMatrix(String filename, boolean memoryMapped) {
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+
+            ByteBuffer header = ByteBuffer.allocate(WriteDistanceMatrix.BINARY_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0L);
+            header.flip();
+            byte[] magic = new byte[WriteDistanceMatrix.BINARY_MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, WriteDistanceMatrix.BINARY_MAGIC)) {
+                throw new IllegalArgumentException("ReadDistanceMatrix: readBinaryDistanceMatrix: not a binary distance matrix file: " + filename);
+            }
+            int version = header.getInt();
+            if (version != WriteDistanceMatrix.BINARY_VERSION) {
+                throw new IllegalArgumentException("ReadDistanceMatrix: readBinaryDistanceMatrix: unsupported version: " + version + " file: " + filename);
+            }
+            int numTaxa = header.getInt();
+            boolean hasCounts = (header.getInt() & WriteDistanceMatrix.BINARY_FLAG_COUNTS) != 0;
+            header.getInt();
+            long metadataOffset = header.getLong();
+
+            long distancesOffset = WriteDistanceMatrix.BINARY_HEADER_BYTES;
+            long countsOffset = distancesOffset + LowerTriangleStorage.numBytes(numTaxa);
+            long expectedMetadataOffset = hasCounts ? countsOffset + LowerTriangleStorage.numBytes(numTaxa) : countsOffset;
+            if ((metadataOffset != expectedMetadataOffset) || (metadataOffset > channel.size())) {
+                throw new IllegalStateException("ReadDistanceMatrix: readBinaryDistanceMatrix: file is truncated or corrupt: " + filename);
+            }
+
+            ByteBuffer metadataBytes = ByteBuffer.allocate((int) (channel.size() - metadataOffset));
+            readFully(channel, metadataBytes, metadataOffset);
+            GeneralAnnotationStorage.Builder annotations = GeneralAnnotationStorage.getBuilder();
+            TaxaListBuilder taxa = new TaxaListBuilder();
+            try (DataInputStream metadata = new DataInputStream(new ByteArrayInputStream(metadataBytes.array()))) {
+                int numAnnotations = metadata.readInt();
+                for (int i = 0; i < numAnnotations; i++) {
+                    String key = metadata.readUTF();
+                    annotations.addAnnotation(key, metadata.readUTF());
+                }
+                int numTaxaNames = metadata.readInt();
+                if (numTaxaNames != numTaxa) {
+                    throw new IllegalStateException("ReadDistanceMatrix: readBinaryDistanceMatrix: number of taxa names: " + numTaxaNames + " doesn't match matrix size: " + numTaxa);
+                }
+                for (int t = 0; t < numTaxa; t++) {
+                    taxa.add(new Taxon(metadata.readUTF()));
+                }
+            }
+
+            LowerTriangleStorage distances = storage(channel, numTaxa, distancesOffset, memoryMapped);
+            if (hasCounts) {
+                LowerTriangleStorage counts = storage(channel, numTaxa, countsOffset, memoryMapped);
+                return new DistanceMatrixWithCounts(distances, taxa.build(), annotations.build(), counts);
+            } else {
+                return new DistanceMatrix(distances, taxa.build(), annotations.build());
+            }
+
+        } catch (IOException e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("ReadDistanceMatrix: readBinaryDistanceMatrix: Problem reading: " + filename + ".  " + e.getMessage());
+        }
+
+    }
+
+    private static LowerTriangleStorage storage(FileChannel channel, int numTaxa, long offset, boolean memoryMapped) throws IOException {
+        if (memoryMapped) {
+            return LowerTriangleStorage.getInstance(numTaxa, channel, offset, FileChannel.MapMode.READ_ONLY);
+        } else {
+            LowerTriangleStorage result = LowerTriangleStorage.getInstance(numTaxa);
+            result.readFrom(channel, offset);
+            return result;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int numRead = channel.read(buffer, position + buffer.position());
+            if (numRead < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+    }
+
     public static TaxaList readBinMultiBlupID(String filename) {
 
         TaxaListBuilder builder = new TaxaListBuilder();
@@ -2,8 +2,15 @@ package net.maizegenetics.taxa.distance;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
 import net.maizegenetics.taxa.TaxaList;
 import net.maizegenetics.taxa.Taxon;
@@ -20,6 +27,20 @@ public class WriteDistanceMatrix {
 
     private static final Logger myLogger = LogManager.getLogger(WriteDistanceMatrix.class);
 
+    //
+    // Binary distance matrix format (little endian). Header of
+    // BINARY_HEADER_BYTES: magic, version, number of taxa, flags,
+    // (reserved), and offset of metadata.  Followed by lower triangle
+    // (including diagonal) of float distances row after row, then
+    // lower triangle of int counts if BINARY_FLAG_COUNTS. The metadata
+    // (annotations and taxa names) is at the end so that distances can be
+    // written (or memory mapped) before the metadata is known.
+    //
+    static final byte[] BINARY_MAGIC = "TASSELDM".getBytes(StandardCharsets.US_ASCII);
+    static final int BINARY_VERSION = 1;
+    static final int BINARY_HEADER_BYTES = 64;
+    static final int BINARY_FLAG_COUNTS = 1;
+
     private WriteDistanceMatrix() {
         //utility
     }
@@ -199,6 +220,92 @@ public class WriteDistanceMatrix {
 
     }
 
+    /**
+     * Saves distance matrix in binary format (and counts if
+     * DistanceMatrixWithCounts). Distances are streamed from the matrix
+     * storage without creating a full copy. This format can be memory mapped
+     * by ReadDistanceMatrix.readBinaryDistanceMatrix().
+     *
+     * @param matrix distance matrix
+     * @param saveFile filename
+     *
+     * @return filename written
+     */
+    public static String saveBinaryDistanceMatrix(DistanceMatrix matrix, String saveFile) {
+
+        if ((saveFile == null) || (saveFile.isEmpty())) {
+            throw new IllegalArgumentException("WriteDistanceMatrix: saveBinaryDistanceMatrix: No file specified.");
+        }
+
+        String filename = Utils.addSuffixIfNeeded(saveFile, DistanceMatrixUtils.BINARY_FILE_EXTENSION);
+        boolean hasCounts = matrix instanceof DistanceMatrixWithCounts;
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(BINARY_HEADER_BYTES);
+            matrix.storage().writeTo(channel);
+            if (hasCounts) {
+                ((DistanceMatrixWithCounts) matrix).countStorage().writeTo(channel);
+            }
+            writeBinaryMetadata(channel, channel.position(), matrix.numberOfTaxa(), hasCounts, matrix.annotations(), matrix.getTaxaList());
+        } catch (Exception e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("WriteDistanceMatrix: saveBinaryDistanceMatrix: problem writing: " + filename + ".  " + e.getMessage());
+        }
+
+        myLogger.info("saveBinaryDistanceMatrix: wrote file: " + filename);
+        return filename;
+
+    }
+
+    /**
+     * Writes metadata of binary format at the given offset (after distances
+     * and counts) and then the header.
+     */
+    static void writeBinaryMetadata(FileChannel channel, long metadataOffset, int numTaxa, boolean hasCounts, GeneralAnnotation annotations, TaxaList taxa) throws IOException {
+
+        if (taxa.numberOfTaxa() != numTaxa) {
+            throw new IllegalStateException("WriteDistanceMatrix: writeBinaryMetadata: number of taxa: " + taxa.numberOfTaxa() + " doesn't match matrix size: " + numTaxa);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream metadata = new DataOutputStream(bytes)) {
+            if (annotations == null) {
+                metadata.writeInt(0);
+            } else {
+                Map.Entry<String, String>[] entries = annotations.getAllAnnotationEntries();
+                metadata.writeInt(entries.length);
+                for (Map.Entry<String, String> current : entries) {
+                    metadata.writeUTF(current.getKey());
+                    metadata.writeUTF(current.getValue());
+                }
+            }
+            metadata.writeInt(numTaxa);
+            for (Taxon taxon : taxa) {
+                metadata.writeUTF(taxon.getName());
+            }
+        }
+        writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()), metadataOffset);
+        channel.truncate(metadataOffset + bytes.size());
+
+        ByteBuffer header = ByteBuffer.allocate(BINARY_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(BINARY_MAGIC);
+        header.putInt(BINARY_VERSION);
+        header.putInt(numTaxa);
+        header.putInt(hasCounts ? BINARY_FLAG_COUNTS : 0);
+        header.putInt(0);
+        header.putLong(metadataOffset);
+        header.clear();
+        writeFully(channel, header, 0L);
+
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            current += channel.write(buffer, current);
+        }
+    }
+
     public static void saveDARwinMatrix(DistanceMatrix matrix, String saveFile) {
         String[] filenames = DistanceMatrixUtils.getDARwinFilenames(saveFile);
         saveDARwinMatrix(matrix, filenames[0], filenames[1]);
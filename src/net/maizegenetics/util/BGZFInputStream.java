@@ -0,0 +1,428 @@
+/*
+ *  BGZFInputStream
+ */
+package net.maizegenetics.util;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Input stream for BGZF (blocked gzip) files, such as those written by bgzip
+ * and indexed by tabix. BGZF blocks are independent gzip members of at most
+ * 64 KB uncompressed. The compressed blocks are read ahead by the calling
+ * thread and inflated in parallel. Use {@link #isBGZF(String)} to check a
+ * file first. Plain gzip files should be read with GZIPInputStream.
+ *
+ * Positions are BGZF virtual offsets (compressed block address << 16 |
+ * offset within uncompressed block) as used by .tbi and .csi indices.
+ */
+public class BGZFInputStream extends InputStream {
+
+    private static final Logger myLogger = LogManager.getLogger(BGZFInputStream.class);
+
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int NUM_BLOCKS_READ_AHEAD = NUM_THREADS * 4;
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    private static final int GZIP_ID1 = 31;
+    private static final int GZIP_ID2 = 139;
+    private static final int GZIP_CM_DEFLATE = 8;
+    private static final int GZIP_FLG_FEXTRA = 4;
+    private static final int BLOCK_HEADER_LENGTH = 12;
+    private static final int BLOCK_TRAILER_LENGTH = 8;
+    private static final int BGZF_SUBFIELD_LENGTH = 2;
+
+    private static final ExecutorService DECOMPRESS_POOL = Executors.newFixedThreadPool(NUM_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "BGZFInputStream decompress");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final String myFilename;
+    private final FileChannel myChannel;
+    private InputStream myInput;
+    private long myNextBlockAddress = 0;
+    private boolean myEndOfBlocks = false;
+    private final Deque<Block> myPendingBlocks = new ArrayDeque<>();
+
+    private byte[] myCurrentBlock = null;
+    private long myCurrentBlockAddress = 0;
+    private int myCurrentPosition = 0;
+    private byte[] myLineBuffer = new byte[1024];
+
+    public BGZFInputStream(String filename) throws IOException {
+        myFilename = filename;
+        myChannel = new RandomAccessFile(filename, "r").getChannel();
+        myInput = new BufferedInputStream(Channels.newInputStream(myChannel), READ_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns whether the given file starts with a BGZF block.
+     *
+     * @param filename file name
+     *
+     * @return true if BGZF
+     */
+    public static boolean isBGZF(String filename) {
+        try (InputStream input = new FileInputStream(filename)) {
+            byte[] header = new byte[BLOCK_HEADER_LENGTH];
+            if (readFully(input, header, 0, BLOCK_HEADER_LENGTH) != BLOCK_HEADER_LENGTH) {
+                return false;
+            }
+            if (!isGzipHeaderWithExtra(header)) {
+                return false;
+            }
+            int extraLength = unsignedShort(header, 10);
+            byte[] extra = new byte[extraLength];
+            if (readFully(input, extra, 0, extraLength) != extraLength) {
+                return false;
+            }
+            return blockSize(extra, 0, extraLength) != -1;
+        } catch (Exception e) {
+            myLogger.debug(e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Moves to the given virtual offset.
+     *
+     * @param virtualOffset BGZF virtual offset
+     *
+     * @throws IOException if problem reading the file
+     */
+    public void seek(long virtualOffset) throws IOException {
+
+        long blockAddress = virtualOffset >>> 16;
+        int offset = (int) (virtualOffset & 0xFFFF);
+
+        clearPending();
+        myChannel.position(blockAddress);
+        myInput = new BufferedInputStream(Channels.newInputStream(myChannel), READ_BUFFER_SIZE);
+        myNextBlockAddress = blockAddress;
+        myEndOfBlocks = false;
+        myCurrentBlock = null;
+        myCurrentPosition = 0;
+
+        if (!nextBlock()) {
+            if (offset != 0) {
+                throw new EOFException("BGZFInputStream: seek: virtual offset: " + virtualOffset + " past end of file: " + myFilename);
+            }
+            return;
+        }
+        if (offset > myCurrentBlock.length) {
+            throw new IOException("BGZFInputStream: seek: offset: " + offset + " past end of block at: " + blockAddress);
+        }
+        myCurrentPosition = offset;
+
+    }
+
+    /**
+     * Returns virtual offset of the next byte to be read.
+     *
+     * @return virtual offset
+     */
+    public long getFilePointer() {
+        if ((myCurrentBlock != null) && (myCurrentPosition == myCurrentBlock.length)) {
+            Block next = myPendingBlocks.peekFirst();
+            return ((next == null) ? myNextBlockAddress : next.myAddress) << 16;
+        }
+        return (myCurrentBlockAddress << 16) | myCurrentPosition;
+    }
+
+    /**
+     * Reads the next line without the line terminator. Reads directly from
+     * the uncompressed blocks, so getFilePointer() is the start of the
+     * following line.
+     *
+     * @return line or null at end of file
+     * @throws IOException if problem reading the file
+     */
+    public String readLine() throws IOException {
+
+        if (!ensureAvailable()) {
+            return null;
+        }
+
+        int lineLength = 0;
+        while (true) {
+            int start = myCurrentPosition;
+            int end = start;
+            int limit = myCurrentBlock.length;
+            while ((end < limit) && (myCurrentBlock[end] != '\n')) {
+                end++;
+            }
+            boolean foundEnd = end < limit;
+            if (foundEnd && (lineLength == 0)) {
+                myCurrentPosition = end + 1;
+                return line(myCurrentBlock, start, end);
+            }
+            int length = end - start;
+            if (myLineBuffer.length < lineLength + length) {
+                myLineBuffer = Arrays.copyOf(myLineBuffer, Math.max(myLineBuffer.length * 2, lineLength + length));
+            }
+            System.arraycopy(myCurrentBlock, start, myLineBuffer, lineLength, length);
+            lineLength += length;
+            if (foundEnd) {
+                myCurrentPosition = end + 1;
+                return line(myLineBuffer, 0, lineLength);
+            }
+            myCurrentPosition = end;
+            if (!ensureAvailable()) {
+                return line(myLineBuffer, 0, lineLength);
+            }
+        }
+
+    }
+
+    private static String line(byte[] data, int start, int end) {
+        if ((end > start) && (data[end - 1] == '\r')) {
+            end--;
+        }
+        return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        return myCurrentBlock[myCurrentPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        int result = Math.min(length, myCurrentBlock.length - myCurrentPosition);
+        System.arraycopy(myCurrentBlock, myCurrentPosition, buffer, offset, result);
+        myCurrentPosition += result;
+        return result;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (myCurrentBlock == null) ? 0 : myCurrentBlock.length - myCurrentPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        clearPending();
+        myCurrentBlock = null;
+        myChannel.close();
+    }
+
+    private boolean ensureAvailable() throws IOException {
+        while ((myCurrentBlock == null) || (myCurrentPosition == myCurrentBlock.length)) {
+            if (!nextBlock()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean nextBlock() throws IOException {
+
+        fillReadAhead();
+        Block block = myPendingBlocks.pollFirst();
+        if (block == null) {
+            return false;
+        }
+
+        try {
+            myCurrentBlock = block.myData.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("BGZFInputStream: nextBlock: interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("BGZFInputStream: nextBlock: problem decompressing block at: " + block.myAddress + " in: " + myFilename + ": " + e.getCause().getMessage());
+        }
+        myCurrentBlockAddress = block.myAddress;
+        myCurrentPosition = 0;
+        return true;
+
+    }
+
+    private void fillReadAhead() throws IOException {
+        while (!myEndOfBlocks && (myPendingBlocks.size() < NUM_BLOCKS_READ_AHEAD)) {
+            byte[] compressed = readCompressedBlock();
+            if (compressed == null) {
+                myEndOfBlocks = true;
+            } else {
+                long address = myNextBlockAddress;
+                myNextBlockAddress += compressed.length;
+                myPendingBlocks.addLast(new Block(address, DECOMPRESS_POOL.submit(() -> inflate(compressed, address))));
+            }
+        }
+    }
+
+    private void clearPending() {
+        for (Block block : myPendingBlocks) {
+            block.myData.cancel(false);
+        }
+        myPendingBlocks.clear();
+    }
+
+    /**
+     * Reads the next whole compressed block (header to trailer). Returns null
+     * at end of file.
+     */
+    private byte[] readCompressedBlock() throws IOException {
+
+        byte[] header = new byte[BLOCK_HEADER_LENGTH];
+        int numRead = readFully(myInput, header, 0, BLOCK_HEADER_LENGTH);
+        if (numRead == 0) {
+            return null;
+        } else if (numRead != BLOCK_HEADER_LENGTH) {
+            throw new EOFException("BGZFInputStream: readCompressedBlock: truncated block header at: " + myNextBlockAddress + " in: " + myFilename);
+        }
+
+        if (!isGzipHeaderWithExtra(header)) {
+            throw new ZipException("BGZFInputStream: readCompressedBlock: not a BGZF block at: " + myNextBlockAddress + " in: " + myFilename);
+        }
+
+        int extraLength = unsignedShort(header, 10);
+        byte[] extra = new byte[extraLength];
+        if (readFully(myInput, extra, 0, extraLength) != extraLength) {
+            throw new EOFException("BGZFInputStream: readCompressedBlock: truncated block header at: " + myNextBlockAddress + " in: " + myFilename);
+        }
+        int blockSize = blockSize(extra, 0, extraLength);
+        if (blockSize == -1) {
+            throw new ZipException("BGZFInputStream: readCompressedBlock: missing BGZF block size at: " + myNextBlockAddress + " in: " + myFilename);
+        }
+
+        byte[] result = new byte[blockSize];
+        System.arraycopy(header, 0, result, 0, BLOCK_HEADER_LENGTH);
+        System.arraycopy(extra, 0, result, BLOCK_HEADER_LENGTH, extraLength);
+        int remaining = blockSize - BLOCK_HEADER_LENGTH - extraLength;
+        if (readFully(myInput, result, BLOCK_HEADER_LENGTH + extraLength, remaining) != remaining) {
+            throw new EOFException("BGZFInputStream: readCompressedBlock: truncated block at: " + myNextBlockAddress + " in: " + myFilename);
+        }
+        return result;
+
+    }
+
+    private static byte[] inflate(byte[] compressed, long address) throws IOException {
+
+        int dataStart = BLOCK_HEADER_LENGTH + unsignedShort(compressed, 10);
+        int dataLength = compressed.length - dataStart - BLOCK_TRAILER_LENGTH;
+        int expectedCRC = littleEndianInt(compressed, compressed.length - 8);
+        int uncompressedSize = littleEndianInt(compressed, compressed.length - 4);
+
+        byte[] result = new byte[uncompressedSize];
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(compressed, dataStart, dataLength);
+        try {
+            int numInflated = 0;
+            while (numInflated < uncompressedSize) {
+                int count = inflater.inflate(result, numInflated, uncompressedSize - numInflated);
+                if ((count == 0) && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                numInflated += count;
+            }
+            if (numInflated != uncompressedSize) {
+                throw new ZipException("BGZFInputStream: inflate: block at: " + address + " inflated to: " + numInflated + " bytes instead of: " + uncompressedSize);
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("BGZFInputStream: inflate: block at: " + address + ": " + e.getMessage());
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(result, 0, uncompressedSize);
+        if ((int) crc.getValue() != expectedCRC) {
+            throw new ZipException("BGZFInputStream: inflate: CRC mismatch for block at: " + address);
+        }
+
+        return result;
+
+    }
+
+    private static boolean isGzipHeaderWithExtra(byte[] header) {
+        return ((header[0] & 0xFF) == GZIP_ID1)
+                && ((header[1] & 0xFF) == GZIP_ID2)
+                && ((header[2] & 0xFF) == GZIP_CM_DEFLATE)
+                && ((header[3] & GZIP_FLG_FEXTRA) != 0);
+    }
+
+    /**
+     * Returns total block size from the BC extra subfield, or -1 if there
+     * isn't one.
+     */
+    private static int blockSize(byte[] extra, int start, int length) {
+        int index = start;
+        int end = start + length;
+        while (index + 4 <= end) {
+            int subfieldLength = unsignedShort(extra, index + 2);
+            if ((extra[index] == 'B') && (extra[index + 1] == 'C') && (subfieldLength == BGZF_SUBFIELD_LENGTH) && (index + 6 <= end)) {
+                return unsignedShort(extra, index + 4) + 1;
+            }
+            index += 4 + subfieldLength;
+        }
+        return -1;
+    }
+
+    private static int unsignedShort(byte[] data, int index) {
+        return (data[index] & 0xFF) | ((data[index + 1] & 0xFF) << 8);
+    }
+
+    private static int littleEndianInt(byte[] data, int index) {
+        return (data[index] & 0xFF) | ((data[index + 1] & 0xFF) << 8) | ((data[index + 2] & 0xFF) << 16) | ((data[index + 3] & 0xFF) << 24);
+    }
+
+    private static int readFully(InputStream input, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int count = input.read(buffer, offset + total, length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    private static class Block {
+
+        private final long myAddress;
+        private final Future<byte[]> myData;
+
+        private Block(long address, Future<byte[]> data) {
+            myAddress = address;
+            myData = data;
+        }
+
+    }
+
+}
@@ -5,6 +5,9 @@
  */
 package net.maizegenetics.util;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.SetMultimap;
@@ -15,10 +18,10 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  *
@@ -33,19 +36,63 @@ public class GeneralAnnotationStorage implements GeneralAnnotation {
 
     private static final int MAX_CACHE_SIZE = 1_000_000;
 
-    private static final Map<Map.Entry<String, String>, Map.Entry<String, String>> CACHE = Collections.synchronizedMap(new LinkedHashMap<Map.Entry<String, String>, Map.Entry<String, String>>((3 * MAX_CACHE_SIZE) / 2) {
+    /**
+     * Canonical instances of annotations. Reads don't lock and writes only lock
+     * one segment, so threads building annotations at the same time (i.e.
+     * parallel VCF / HapMap parsing) don't wait on each other. When full, least
+     * recently used entries of a segment are evicted.
+     */
+    private static final Cache<Map.Entry<String, String>, Map.Entry<String, String>> CACHE = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHE_SIZE)
+            .concurrencyLevel(Math.max(4, Runtime.getRuntime().availableProcessors() * 2))
+            .recordStats()
+            .build();
 
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Map.Entry<String, String>, Map.Entry<String, String>> eldest) {
-            return size() > MAX_CACHE_SIZE;
-        }
-
-    });
+    // number of misses where another thread added the same annotation first
+    private static final LongAdder NUM_RACES = new LongAdder();
 
     private static Map.Entry<String, String> getCanonicalAnnotation(String key, String value) {
         Map.Entry<String, String> temp = new AbstractMap.SimpleImmutableEntry<>(key, value);
-        Map.Entry<String, String> entry = CACHE.putIfAbsent(temp, temp);
-        return (entry == null) ? temp : entry;
+        Map.Entry<String, String> entry = CACHE.getIfPresent(temp);
+        if (entry != null) {
+            return entry;
+        }
+        entry = CACHE.asMap().putIfAbsent(temp, temp);
+        if (entry == null) {
+            return temp;
+        }
+        NUM_RACES.increment();
+        return entry;
+    }
+
+    /**
+     * Statistics of the canonical annotation cache (i.e. hit rate and number
+     * of evictions).
+     *
+     * @return cache statistics
+     */
+    public static CacheStats canonicalAnnotationStats() {
+        return CACHE.stats();
+    }
+
+    /**
+     * Number of times an annotation wasn't found in the canonical annotation
+     * cache, but another thread added it before this thread could. This
+     * indicates how often threads contend for the same annotations.
+     *
+     * @return number of races
+     */
+    public static long canonicalAnnotationRaces() {
+        return NUM_RACES.sum();
+    }
+
+    /**
+     * Number of canonical annotations currently cached.
+     *
+     * @return number of annotations
+     */
+    public static long canonicalAnnotationCacheSize() {
+        return CACHE.size();
     }
 
     private final Map.Entry<String, String>[] myAnnotations;
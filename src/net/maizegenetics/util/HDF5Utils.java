@@ -8,6 +8,8 @@ import com.google.common.base.Splitter;
 import net.maizegenetics.dna.WHICH_ALLELE;
 import net.maizegenetics.dna.snp.GenotypeTable;
 import net.maizegenetics.dna.tag.Tag;
+import net.maizegenetics.taxa.TaxaList;
+import net.maizegenetics.taxa.TaxaListBuilder;
 import net.maizegenetics.taxa.Taxon;
 
 import java.util.*;
@@ -279,6 +281,7 @@ public final class HDF5Utils {
         if (!h5w.exists(callsPath)) {
             throw new IllegalStateException("Taxa Calls Do Not Already Exists to replace");
         }
+        deleteHDF5SiteMajorGenotypes(h5w);
         writeHDF5EntireArray(callsPath, h5w, calls.length, Tassel5HDF5Constants.BLOCK_SIZE, calls);
     }
 
@@ -293,9 +296,79 @@ public final class HDF5Utils {
         if (startSite % Tassel5HDF5Constants.BLOCK_SIZE != 0) {
             throw new IllegalStateException("Taxa Calls Start Site not a multiple of the block size");
         }
+        deleteHDF5SiteMajorGenotypes(h5w);
         writeHDF5Block(callsPath, h5w, Tassel5HDF5Constants.BLOCK_SIZE, startSite / Tassel5HDF5Constants.BLOCK_SIZE, calls);
     }
 
+    /**
+     * Returns whether the site-major copy of the genotype calls exists and
+     * matches the given number of taxa and sites.
+     */
+    public static boolean doesHDF5SiteMajorGenotypesExist(IHDF5Reader reader, int numTaxa, int numSites) {
+        String path = Tassel5HDF5Constants.GENOTYPES_SITE_MAJOR_CALLS;
+        if (!reader.exists(path)
+                || !reader.object().hasAttribute(path, Tassel5HDF5Constants.GENOTYPES_NUM_TAXA)
+                || !reader.object().hasAttribute(path, Tassel5HDF5Constants.POSITION_NUM_SITES)) {
+            return false;
+        }
+        return (reader.int32().getAttr(path, Tassel5HDF5Constants.GENOTYPES_NUM_TAXA) == numTaxa)
+                && (reader.int32().getAttr(path, Tassel5HDF5Constants.POSITION_NUM_SITES) == numSites);
+    }
+
+    /**
+     * Deletes the site-major copy of the genotype calls if it exists. Called
+     * whenever calls are replaced, since the copy would no longer match them
+     * even though the number of taxa and sites are unchanged.
+     */
+    public static void deleteHDF5SiteMajorGenotypes(IHDF5Writer h5w) {
+        if (h5w.exists(Tassel5HDF5Constants.GENOTYPES_SITE_MAJOR_CALLS)) {
+            h5w.object().delete(Tassel5HDF5Constants.GENOTYPES_SITE_MAJOR_CALLS);
+        }
+    }
+
+    /**
+     * Writes (or rewrites) the site-major copy of the genotype calls: a sites
+     * x taxa matrix chunked in tiles of SITE_MAJOR_BLOCK_SITES sites by
+     * SITE_MAJOR_BLOCK_TAXA taxa. Taxa are in the same order as the
+     * GenotypeTable read from this file, so the Taxa module must be locked.
+     * This is written even if the Genotype module is locked, since it only
+     * copies the existing calls.
+     */
+    public static void writeHDF5SiteMajorGenotypes(IHDF5Writer h5w) {
+        TaxaList taxa = new TaxaListBuilder().buildFromHDF5Genotypes(h5w);
+        int numTaxa = taxa.numberOfTaxa();
+        int numSites = getHDF5PositionNumber(h5w);
+        String path = Tassel5HDF5Constants.GENOTYPES_SITE_MAJOR_CALLS;
+        deleteHDF5SiteMajorGenotypes(h5w);
+        if ((numTaxa == 0) || (numSites == 0)) {
+            return;
+        }
+        if (!h5w.exists(Tassel5HDF5Constants.GENOTYPES_SITE_MAJOR)) {
+            h5w.object().createGroup(Tassel5HDF5Constants.GENOTYPES_SITE_MAJOR);
+        }
+        int tileSites = Math.min(numSites, Tassel5HDF5Constants.SITE_MAJOR_BLOCK_SITES);
+        int tileTaxa = Math.min(numTaxa, Tassel5HDF5Constants.SITE_MAJOR_BLOCK_TAXA);
+        h5w.int8().createMatrix(path, numSites, numTaxa, tileSites, tileTaxa, Tassel5HDF5Constants.intDeflation);
+        //each per taxon block is read once, and written as one column of tiles
+        for (int startSite = 0; startSite < numSites; startSite += Tassel5HDF5Constants.BLOCK_SIZE) {
+            int numBlockSites = Math.min(Tassel5HDF5Constants.BLOCK_SIZE, numSites - startSite);
+            for (int startTaxon = 0; startTaxon < numTaxa; startTaxon += tileTaxa) {
+                int numBlockTaxa = Math.min(tileTaxa, numTaxa - startTaxon);
+                byte[][] block = new byte[numBlockSites][numBlockTaxa];
+                for (int t = 0; t < numBlockTaxa; t++) {
+                    String callsPath = Tassel5HDF5Constants.getGenotypesCallsPath(taxa.taxaName(startTaxon + t));
+                    byte[] calls = h5w.int8().readArrayBlockWithOffset(callsPath, numBlockSites, startSite);
+                    for (int s = 0; s < numBlockSites; s++) {
+                        block[s][t] = calls[s];
+                    }
+                }
+                h5w.int8().writeMatrixBlockWithOffset(path, block, startSite, startTaxon);
+            }
+        }
+        h5w.int32().setAttr(path, Tassel5HDF5Constants.GENOTYPES_NUM_TAXA, numTaxa);
+        h5w.int32().setAttr(path, Tassel5HDF5Constants.POSITION_NUM_SITES, numSites);
+    }
+
     public static byte[][] getHDF5GenotypesDepth(IHDF5Reader reader, String taxon) {
         String callsPath = Tassel5HDF5Constants.getGenotypesDepthPath(taxon);
         if (reader.exists(callsPath)) {
@@ -3,9 +3,10 @@
  */
 package net.maizegenetics.util;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.io.File;
+import java.util.stream.LongStream;
+
+import net.maizegenetics.prefs.TasselPrefs;
 
 /**
  *
@@ -13,7 +14,10 @@ import java.util.concurrent.TimeUnit;
  */
 public class SuperByteMatrixBuilder {
 
-    private static final int TRANSPOSE_BLOCK_SIZE = 64;
+    private static final int TRANSPOSE_BLOCK_SIZE = 256;
+
+    private static volatile long myMemoryMappedThreshold = TasselPrefs.getAlignmentMemoryMappedThreshold();
+    private static volatile File myMemoryMappedDirectory = toDirectory(TasselPrefs.getAlignmentMemoryMappedDir());
 
     private SuperByteMatrixBuilder() {
     }
@@ -29,13 +33,77 @@ public class SuperByteMatrixBuilder {
      */
     public static SuperByteMatrix getInstance(int numRows, int numColumns) {
         long numElements = (long) numRows * (long) numColumns;
-        if (numElements > (long) (Integer.MAX_VALUE - 10)) {
+        if (numElements >= myMemoryMappedThreshold) {
+            return getInstanceMemoryMapped(numRows, numColumns);
+        } else if (numElements > (long) (Integer.MAX_VALUE - 10)) {
             return new SuperByteMatrixMultiple(numRows, numColumns);
         } else {
             return new SuperByteMatrixSingle(numRows, numColumns);
         }
     }
     
+    /**
+     * This returns a SuperByteMatrix stored in a memory-mapped temporary file
+     * instead of the Java heap. Performance is better when column iteration
+     * loop inside row iteration loop.
+     *
+     * @param numRows number of rows
+     * @param numColumns number of columns
+     *
+     * @return SuperByteMatrix (double dimension byte array)
+     */
+    public static SuperByteMatrix getInstanceMemoryMapped(int numRows, int numColumns) {
+        return new SuperByteMatrixMapped(numRows, numColumns, myMemoryMappedDirectory);
+    }
+
+    /**
+     * Sets the number of elements at which getInstance() returns a
+     * memory-mapped matrix instead of one on the Java heap. Default is
+     * TasselPrefs.getAlignmentMemoryMappedThreshold() (Long.MAX_VALUE, never,
+     * unless set). The value is also stored in TasselPrefs.
+     *
+     * @param numElements number of elements (rows * columns)
+     */
+    public static void setMemoryMappedThreshold(long numElements) {
+        if (numElements <= 0) {
+            throw new IllegalArgumentException("SuperByteMatrixBuilder: setMemoryMappedThreshold: must be positive: " + numElements);
+        }
+        myMemoryMappedThreshold = numElements;
+        TasselPrefs.putAlignmentMemoryMappedThreshold(numElements);
+    }
+
+    public static long getMemoryMappedThreshold() {
+        return myMemoryMappedThreshold;
+    }
+
+    /**
+     * Sets directory for memory-mapped matrix files. Null or empty is the
+     * system temporary directory. The value is also stored in TasselPrefs.
+     *
+     * @param directory directory
+     */
+    public static void setMemoryMappedDirectory(String directory) {
+        myMemoryMappedDirectory = toDirectory(directory);
+        TasselPrefs.putAlignmentMemoryMappedDir((directory == null) ? "" : directory);
+    }
+
+    private static File toDirectory(String directory) {
+        return ((directory == null) || directory.isEmpty()) ? null : new File(directory);
+    }
+
+    /**
+     * Releases resources held by the given matrix (i.e. deletes the file of a
+     * memory-mapped matrix). The memory mapping itself is released when the
+     * matrix is garbage collected.
+     *
+     * @param matrix matrix
+     */
+    public static void release(SuperByteMatrix matrix) {
+        if (matrix instanceof SuperByteMatrixMapped) {
+            ((SuperByteMatrixMapped) matrix).close();
+        }
+    }
+
     public static SuperByteMatrix getInstanceSingleValue(int numRows, int numColumns, byte value) {
         return new SuperByteMatrixSingleValue(numRows, numColumns, value);
     }
@@ -44,7 +112,7 @@ public class SuperByteMatrixBuilder {
 
         int numRows = matrix.getNumRows();
         int numColumns = matrix.getNumColumns();
-        if ((matrix instanceof SuperByteMatrixSingle) || (matrix instanceof SuperByteMatrixMultiple)) {
+        if ((matrix instanceof SuperByteMatrixSingle) || (matrix instanceof SuperByteMatrixMultiple) || (matrix instanceof SuperByteMatrixMapped)) {
             SuperByteMatrix result = getInstance(numRows, numColumns);
             for (int r = 0; r < numRows; r++) {
                 for (int c = 0; c < numColumns; c++) {
@@ -52,6 +120,8 @@ public class SuperByteMatrixBuilder {
                 }
             }
             return result;
+        } else if (matrix instanceof SuperByteMatrixLazyTranspose) {
+            return getInstanceTranspose(((SuperByteMatrixLazyTranspose) matrix).mySource);
         } else if (matrix instanceof SuperByteMatrixTranspose) {
             SuperByteMatrix result = getInstanceTranspose(numRows, numColumns);
             for (int c = 0; c < numColumns; c++) {
@@ -81,7 +151,9 @@ public class SuperByteMatrixBuilder {
 
     /**
      * This returns a SuperByteMatrix that performs better in the reverse row /
-     * column iteration nesting than the given matrix.
+     * column iteration nesting than the given matrix. The copy is done in
+     * square tiles (in parallel) so that both the source and destination are
+     * accessed in cache sized pieces.
      *
      * @param matrix input matrix
      *
@@ -89,140 +161,96 @@ public class SuperByteMatrixBuilder {
      */
     public static SuperByteMatrix getInstanceTranspose(SuperByteMatrix matrix) {
 
-
         int numRows = matrix.getNumRows();
         int numColumns = matrix.getNumColumns();
-        SuperByteMatrix result;
-        int numThreads = Runtime.getRuntime().availableProcessors();
-        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
-
-        if ((matrix instanceof SuperByteMatrixSingle) || (matrix instanceof SuperByteMatrixMultiple)) {
-            result = getInstanceTranspose(numRows, numColumns);
-            int rowBlockSize = TRANSPOSE_BLOCK_SIZE;
-            for (int rowOffset = 0; rowOffset < numRows; rowOffset += TRANSPOSE_BLOCK_SIZE) {
-                if (numRows - rowOffset < TRANSPOSE_BLOCK_SIZE) {
-                    rowBlockSize = numRows - rowOffset;
-                }
-
-                pool.execute(new TransposeColumnToRowProcess(matrix, result, numColumns, rowBlockSize, rowOffset));
-            }
-
-            try {
-                pool.shutdown();
-                if (!pool.awaitTermination(60, TimeUnit.SECONDS)) {
-                    throw new IllegalStateException("SuperByteMatrixBuilder: getInstanceTranspose: processing threads timed out.");
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
 
+        if ((matrix instanceof SuperByteMatrixSingle) || (matrix instanceof SuperByteMatrixMultiple) || (matrix instanceof SuperByteMatrixMapped)) {
+            SuperByteMatrixTranspose result = new SuperByteMatrixTranspose(numRows, numColumns);
+            transposeTiled(matrix, result.myMatrix);
+            return result;
         } else if (matrix instanceof SuperByteMatrixTranspose) {
-            result = getInstance(numRows, numColumns);
-            int columnBlockSize = TRANSPOSE_BLOCK_SIZE;
-            for (int columnOffset = 0; columnOffset < numColumns; columnOffset += TRANSPOSE_BLOCK_SIZE) {
-                if (numColumns - columnOffset < TRANSPOSE_BLOCK_SIZE) {
-                    columnBlockSize = numColumns - columnOffset;
-                }
-
-                pool.execute(new TransposeRowToColumnProcess(matrix, result, numRows, columnBlockSize, columnOffset));
-            }
-
-            try {
-                pool.shutdown();
-                if (!pool.awaitTermination(60, TimeUnit.SECONDS)) {
-                    throw new IllegalStateException("SuperByteMatrixBuilder: getInstanceTranspose: processing threads timed out.");
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-
+            SuperByteMatrix result = getInstance(numRows, numColumns);
+            transposeTiled(((SuperByteMatrixTranspose) matrix).myMatrix, result);
+            return result;
+        } else if (matrix instanceof SuperByteMatrixLazyTranspose) {
+            return getInstanceCopy(((SuperByteMatrixLazyTranspose) matrix).mySource);
         } else {
             throw new IllegalArgumentException("SuperByteMatrixBuilder: getInstanceTranspose: Don't Know how to Transpose: " + matrix.getClass().getName());
         }
 
-        return result;
     }
 
-    private static class TransposeRowToColumnProcess implements Runnable {
-
-        private final int myColumnBlockSize;
-        private final int myColumnOffset;
-        private final SuperByteMatrix mySourceMatrix;
-        private final SuperByteMatrix myDestMatrix;
-        private final int myNumRows;
-
-        public TransposeRowToColumnProcess(SuperByteMatrix srcMatrix, SuperByteMatrix destMatrix, int numRows, int columnBlockSize, int columnOffset) {
-            myColumnBlockSize = columnBlockSize;
-            myColumnOffset = columnOffset;
-            mySourceMatrix = srcMatrix;
-            myDestMatrix = destMatrix;
-            myNumRows = numRows;
+    /**
+     * This returns a view of the given matrix that performs better in the
+     * reverse row / column iteration nesting. Unlike
+     * getInstanceTranspose(SuperByteMatrix), the transposed data is built one
+     * stripe of columns at a time as it's accessed. The given matrix must
+     * have better performance when column loop inside row loop, and it
+     * remains the backing store for the view.
+     *
+     * @param matrix input matrix
+     *
+     * @return SuperByteMatrix (double dimension byte array)
+     */
+    public static SuperByteMatrix getInstanceTransposeLazy(SuperByteMatrix matrix) {
+        if (!matrix.isColumnInnerLoop()) {
+            throw new IllegalArgumentException("SuperByteMatrixBuilder: getInstanceTransposeLazy: matrix must have column inner loop: " + matrix.getClass().getName());
         }
+        return new SuperByteMatrixLazyTranspose(matrix);
+    }
 
-        @Override
-        public void run() {
-            byte[][] temp = new byte[TRANSPOSE_BLOCK_SIZE][myColumnBlockSize];
+    /**
+     * Copies source (numRows x numColumns) into destination (numColumns x
+     * numRows), transposed. Both must have better performance when column
+     * loop inside row loop.
+     */
+    static void transposeTiled(SuperByteMatrix src, SuperByteMatrix dest) {
 
-            int rowBlockSize = TRANSPOSE_BLOCK_SIZE;
-            for (int rowOffset = 0; rowOffset < myNumRows; rowOffset += TRANSPOSE_BLOCK_SIZE) {
-                if (myNumRows - rowOffset < TRANSPOSE_BLOCK_SIZE) {
-                    rowBlockSize = myNumRows - rowOffset;
-                }
+        int numRows = src.getNumRows();
+        int numColumns = src.getNumColumns();
+        long numRowTiles = (numRows + TRANSPOSE_BLOCK_SIZE - 1) / TRANSPOSE_BLOCK_SIZE;
+        long numColumnTiles = (numColumns + TRANSPOSE_BLOCK_SIZE - 1) / TRANSPOSE_BLOCK_SIZE;
 
-                for (int c = 0; c < myColumnBlockSize; c++) {
-                    for (int r = 0; r < rowBlockSize; r++) {
-                        temp[r][c] = mySourceMatrix.get(r + rowOffset, c + myColumnOffset);
-                    }
-                }
+        LongStream.range(0, numRowTiles * numColumnTiles).parallel().forEach(tile -> {
+            int rowOffset = (int) (tile / numColumnTiles) * TRANSPOSE_BLOCK_SIZE;
+            int columnOffset = (int) (tile % numColumnTiles) * TRANSPOSE_BLOCK_SIZE;
+            transposeTile(src, dest, rowOffset, Math.min(numRows, rowOffset + TRANSPOSE_BLOCK_SIZE), columnOffset, Math.min(numColumns, columnOffset + TRANSPOSE_BLOCK_SIZE));
+        });
 
-                for (int r = 0; r < rowBlockSize; r++) {
-                    for (int c = 0; c < myColumnBlockSize; c++) {
-                        myDestMatrix.set(r + rowOffset, c + myColumnOffset, temp[r][c]);
-                    }
+    }
+
+    private static void transposeTile(SuperByteMatrix src, SuperByteMatrix dest, int startRow, int endRow, int startColumn, int endColumn) {
+
+        if ((src instanceof SuperByteMatrixSingle) && (dest instanceof SuperByteMatrixSingle)) {
+            byte[] srcData = ((SuperByteMatrixSingle) src).myData;
+            byte[] destData = ((SuperByteMatrixSingle) dest).myData;
+            int numSrcColumns = src.getNumColumns();
+            int numDestColumns = dest.getNumColumns();
+            for (int c = startColumn; c < endColumn; c++) {
+                int destIndex = c * numDestColumns + startRow;
+                int srcIndex = startRow * numSrcColumns + c;
+                for (int r = startRow; r < endRow; r++) {
+                    destData[destIndex++] = srcData[srcIndex];
+                    srcIndex += numSrcColumns;
                 }
             }
+            return;
         }
-    }
-
-    private static class TransposeColumnToRowProcess implements Runnable {
 
-        private final int myRowBlockSize;
-        private final int myRowOffset;
-        private final SuperByteMatrix mySourceMatrix;
-        private final SuperByteMatrix myDestMatrix;
-        private final int myNumColumns;
-
-        public TransposeColumnToRowProcess(SuperByteMatrix srcMatrix, SuperByteMatrix destMatrix, int numColumns, int rowBlockSize, int rowOffset) {
-            myRowBlockSize = rowBlockSize;
-            myRowOffset = rowOffset;
-            mySourceMatrix = srcMatrix;
-            myDestMatrix = destMatrix;
-            myNumColumns = numColumns;
+        int rowBlockSize = endRow - startRow;
+        byte[][] temp = new byte[rowBlockSize][];
+        for (int r = 0; r < rowBlockSize; r++) {
+            temp[r] = src.getColumnRange(r + startRow, startColumn, endColumn);
         }
 
-        @Override
-        public void run() {
-            byte[][] temp = new byte[myRowBlockSize][TRANSPOSE_BLOCK_SIZE];
-
-            int columnBlockSize = TRANSPOSE_BLOCK_SIZE;
-            for (int columnOffset = 0; columnOffset < myNumColumns; columnOffset += TRANSPOSE_BLOCK_SIZE) {
-                if (myNumColumns - columnOffset < TRANSPOSE_BLOCK_SIZE) {
-                    columnBlockSize = myNumColumns - columnOffset;
-                }
-
-                for (int r = 0; r < myRowBlockSize; r++) {
-                    for (int c = 0; c < columnBlockSize; c++) {
-                        temp[r][c] = mySourceMatrix.get(r + myRowOffset, c + columnOffset);
-                    }
-                }
-
-                for (int c = 0; c < columnBlockSize; c++) {
-                    for (int r = 0; r < myRowBlockSize; r++) {
-                        myDestMatrix.set(r + myRowOffset, c + columnOffset, temp[r][c]);
-                    }
-                }
-
+        for (int c = startColumn; c < endColumn; c++) {
+            int index = c - startColumn;
+            byte[] column = new byte[rowBlockSize];
+            for (int r = 0; r < rowBlockSize; r++) {
+                column[r] = temp[r][index];
             }
+            dest.arraycopy(c, column, startRow);
         }
+
     }
 }
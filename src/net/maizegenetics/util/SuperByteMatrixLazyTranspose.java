@@ -0,0 +1,172 @@
+/*
+ *  SuperByteMatrixLazyTranspose
+ */
+package net.maizegenetics.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Transposed view of a SuperByteMatrix (with column inner loop) that is built
+ * one stripe of columns at a time as it's accessed. Each stripe stores its
+ * columns contiguously, so this performs better when row loop inside column
+ * loop. The source matrix remains the backing store. Changes made through
+ * this view are written to the source, and built stripes are updated or
+ * discarded.
+ */
+public class SuperByteMatrixLazyTranspose implements SuperByteMatrix {
+
+    private static final int TARGET_STRIPE_SIZE = 1 << 24;
+
+    final SuperByteMatrix mySource;
+    private final int myNumRows;
+    private final int myNumColumns;
+    private final int myStripeWidth;
+    private final AtomicReferenceArray<byte[]> myStripes;
+
+    SuperByteMatrixLazyTranspose(SuperByteMatrix source) {
+        mySource = source;
+        myNumRows = source.getNumRows();
+        myNumColumns = source.getNumColumns();
+        int maxWidth = Integer.MAX_VALUE / Math.max(1, myNumRows);
+        myStripeWidth = Math.max(1, Math.min(maxWidth, TARGET_STRIPE_SIZE / Math.max(1, myNumRows)));
+        myStripes = new AtomicReferenceArray<>((myNumColumns + myStripeWidth - 1) / myStripeWidth);
+    }
+
+    private byte[] stripe(int column) {
+        int index = column / myStripeWidth;
+        byte[] result = myStripes.get(index);
+        if (result == null) {
+            int startColumn = index * myStripeWidth;
+            int endColumn = Math.min(myNumColumns, startColumn + myStripeWidth);
+            result = buildStripe(startColumn, endColumn);
+            if (!myStripes.compareAndSet(index, null, result)) {
+                result = myStripes.get(index);
+            }
+        }
+        return result;
+    }
+
+    private byte[] buildStripe(int startColumn, int endColumn) {
+        int width = endColumn - startColumn;
+        byte[] result = new byte[width * myNumRows];
+        for (int r = 0; r < myNumRows; r++) {
+            byte[] values = mySource.getColumnRange(r, startColumn, endColumn);
+            for (int c = 0; c < width; c++) {
+                result[c * myNumRows + r] = values[c];
+            }
+        }
+        return result;
+    }
+
+    private int stripeIndex(int row, int column) {
+        return (column % myStripeWidth) * myNumRows + row;
+    }
+
+    private void clearStripes() {
+        for (int i = 0; i < myStripes.length(); i++) {
+            myStripes.set(i, null);
+        }
+    }
+
+    @Override
+    public int getNumRows() {
+        return myNumRows;
+    }
+
+    @Override
+    public int getNumColumns() {
+        return myNumColumns;
+    }
+
+    @Override
+    public void set(int row, int column, byte value) {
+        mySource.set(row, column, value);
+        byte[] stripe = myStripes.get(column / myStripeWidth);
+        if (stripe != null) {
+            stripe[stripeIndex(row, column)] = value;
+        }
+    }
+
+    @Override
+    public void arraycopy(int row, byte[] src, int startColumn) {
+        mySource.arraycopy(row, src, startColumn);
+        for (int i = 0; i < src.length; i++) {
+            byte[] stripe = myStripes.get((startColumn + i) / myStripeWidth);
+            if (stripe != null) {
+                stripe[stripeIndex(row, startColumn + i)] = src[i];
+            }
+        }
+    }
+
+    @Override
+    public void setAll(byte value) {
+        mySource.setAll(value);
+        clearStripes();
+    }
+
+    @Override
+    public byte get(int row, int column) {
+        return stripe(column)[stripeIndex(row, column)];
+    }
+
+    @Override
+    public byte[] getAllColumns(int row) {
+        return mySource.getAllColumns(row);
+    }
+
+    @Override
+    public byte[] getColumnRange(int row, int start, int end) {
+        return mySource.getColumnRange(row, start, end);
+    }
+
+    @Override
+    public byte[] getAllRows(int column) {
+
+        if ((column < 0) || (column >= myNumColumns)) {
+            throw new IndexOutOfBoundsException("SuperByteMatrixLazyTranspose: getAllRows: column: " + column);
+        }
+
+        byte[] result = new byte[myNumRows];
+        System.arraycopy(stripe(column), stripeIndex(0, column), result, 0, myNumRows);
+        return result;
+
+    }
+
+    @Override
+    public boolean isColumnInnerLoop() {
+        return false;
+    }
+
+    @Override
+    public void reorderRows(int[] newIndices) {
+        mySource.reorderRows(newIndices);
+        clearStripes();
+    }
+
+    @Override
+    public void reorderColumns(int[] newIndices) {
+        mySource.reorderColumns(newIndices);
+        clearStripes();
+    }
+
+    @Override
+    public void setHetsTo(byte value) {
+        mySource.setHetsTo(value);
+        clearStripes();
+    }
+
+    @Override
+    public Stream<Byte> stream() {
+        return IntStream.range(0, myNumColumns)
+                .mapToObj(this::getAllRows)
+                .flatMap(column -> IntStream.range(0, column.length).mapToObj(r -> column[r]));
+    }
+
+    @Override
+    public Stream<Byte> stream(int row) {
+        return mySource.stream(row);
+    }
+
+}
@@ -0,0 +1,368 @@
+/*
+ *  SuperByteMatrixMapped
+ */
+package net.maizegenetics.util;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Spliterator;
+import static java.util.Spliterator.IMMUTABLE;
+import static java.util.Spliterator.ORDERED;
+import static java.util.Spliterator.SIZED;
+import static java.util.Spliterator.SUBSIZED;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * SuperByteMatrix stored off the Java heap in a memory-mapped temporary file.
+ * The file is mapped in segments of whole rows, so residency is left to the
+ * operating system page cache. close() deletes the file, otherwise the file
+ * is deleted when the JVM exits.
+ * <p>
+ * Created by SuperByteMatrixBuilder.getInstance() once rows * columns reaches
+ * the memory-mapped threshold. Nucleotide genotypes are normally packed by
+ * GenotypeCallTableBuilder and don't reach this, so the callers that still
+ * do are non-nucleotide genotypes (ByteGenotypeCallTable), nucleotide
+ * genotypes that can't be packed, the fallback sites of
+ * PackedNucleotideGenotypeCallTable, depth and score matrices (Byte2DBuilder),
+ * and the HapMap and HTSJDK VCF readers.
+ */
+public class SuperByteMatrixMapped implements SuperByteMatrix, AutoCloseable {
+
+    private static final Logger myLogger = LogManager.getLogger(SuperByteMatrixMapped.class);
+
+    private static final int SEGMENT_SIZE = 1 << 30;
+    private static final int FILL_BUFFER_SIZE = 1 << 16;
+
+    private final MappedByteBuffer[] myData;
+    private final int myNumRows;
+    private final int myNumColumns;
+    private final int myNumRowsPerSegment;
+    private final long myNumElements;
+    private final int myNumElementsPerSegment;
+    private final File myFile;
+
+    SuperByteMatrixMapped(int rows, int columns, File directory) {
+
+        myNumRows = rows;
+        myNumColumns = columns;
+
+        myNumElements = (long) myNumRows * (long) myNumColumns;
+        myNumRowsPerSegment = Math.max(1, SEGMENT_SIZE / Math.max(1, myNumColumns));
+        myNumElementsPerSegment = myNumRowsPerSegment * myNumColumns;
+        int numSegments = (myNumRows + myNumRowsPerSegment - 1) / myNumRowsPerSegment;
+        myData = new MappedByteBuffer[numSegments];
+
+        try {
+            myFile = File.createTempFile("tassel_superbytematrix_", ".bin", directory);
+            myFile.deleteOnExit();
+            try (RandomAccessFile file = new RandomAccessFile(myFile, "rw")) {
+                file.setLength(myNumElements);
+                FileChannel channel = file.getChannel();
+                for (int i = 0; i < numSegments; i++) {
+                    long offset = (long) i * (long) myNumElementsPerSegment;
+                    long size = Math.min((long) myNumElementsPerSegment, myNumElements - offset);
+                    myData[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+                }
+            }
+        } catch (Exception e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("SuperByteMatrixMapped: init: problem creating memory mapped file for rows: " + rows + " and columns: " + columns + ": " + e.getMessage());
+        }
+
+        myLogger.info("SuperByteMatrixMapped: init: rows: " + rows + " columns: " + columns + " file: " + myFile.getAbsolutePath());
+
+    }
+
+    /**
+     * Deletes the file. The buffers aren't unmapped explicitly since other
+     * threads may still be reading them (an unmapped buffer crashes the JVM
+     * instead of throwing). The mapping is released when this matrix is
+     * garbage collected. On platforms that can't delete a mapped file, it is
+     * deleted when the JVM exits.
+     */
+    @Override
+    public synchronized void close() {
+        if (myFile.exists() && !myFile.delete()) {
+            myLogger.debug("close: file will be deleted on exit: " + myFile.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public void set(int row, int column, byte value) {
+        myData[getFirstIndex(row)].put(getSecondIndex(row, column), value);
+    }
+
+    @Override
+    public void setAll(byte value) {
+        byte[] temp = new byte[FILL_BUFFER_SIZE];
+        Arrays.fill(temp, value);
+        for (MappedByteBuffer current : myData) {
+            ByteBuffer buffer = current.duplicate();
+            buffer.clear();
+            while (buffer.remaining() > 0) {
+                buffer.put(temp, 0, Math.min(FILL_BUFFER_SIZE, buffer.remaining()));
+            }
+        }
+    }
+
+    @Override
+    public byte get(int row, int column) {
+        return myData[getFirstIndex(row)].get(getSecondIndex(row, column));
+    }
+
+    @Override
+    public byte[] getAllColumns(int row) {
+
+        if ((row < 0) || (row >= myNumRows)) {
+            throw new IndexOutOfBoundsException("SuperByteMatrixMapped: getAllColumns: row: " + row);
+        }
+
+        byte[] result = new byte[myNumColumns];
+        copyFrom(row, 0, result);
+        return result;
+
+    }
+
+    @Override
+    public byte[] getColumnRange(int row, int start, int end) {
+
+        if ((row < 0) || (row >= myNumRows)) {
+            throw new IndexOutOfBoundsException("SuperByteMatrixMapped: getColumnRange: row: " + row);
+        }
+
+        if ((start < 0) || (start >= myNumColumns)) {
+            throw new IndexOutOfBoundsException("SuperByteMatrixMapped: getColumnRange: start: " + start);
+        }
+
+        if ((end < 0) || (end > myNumColumns)) {
+            throw new IndexOutOfBoundsException("SuperByteMatrixMapped: getColumnRange: end: " + end);
+        }
+
+        if (end < start) {
+            throw new IllegalArgumentException("SuperByteMatrixMapped: getColumnRange: end: " + end + " less than start: " + start);
+        }
+
+        byte[] result = new byte[end - start];
+        copyFrom(row, start, result);
+        return result;
+
+    }
+
+    @Override
+    public byte[] getAllRows(int column) {
+
+        if ((column < 0) || (column >= myNumColumns)) {
+            throw new IndexOutOfBoundsException("SuperByteMatrixMapped: getAllRows: column: " + column);
+        }
+
+        byte[] result = new byte[myNumRows];
+        for (int row = 0; row < myNumRows; row++) {
+            result[row] = get(row, column);
+        }
+        return result;
+
+    }
+
+    private void copyFrom(int row, int startColumn, byte[] dest) {
+        ByteBuffer buffer = myData[getFirstIndex(row)].duplicate();
+        buffer.position(getSecondIndex(row, startColumn));
+        buffer.get(dest);
+    }
+
+    private void copyTo(int row, int startColumn, byte[] src) {
+        ByteBuffer buffer = myData[getFirstIndex(row)].duplicate();
+        buffer.position(getSecondIndex(row, startColumn));
+        buffer.put(src);
+    }
+
+    private int getFirstIndex(int row) {
+        return row / myNumRowsPerSegment;
+    }
+
+    private int getSecondIndex(int row, int column) {
+        return (row % myNumRowsPerSegment) * myNumColumns + column;
+    }
+
+    @Override
+    public int getNumRows() {
+        return myNumRows;
+    }
+
+    @Override
+    public int getNumColumns() {
+        return myNumColumns;
+    }
+
+    @Override
+    public boolean isColumnInnerLoop() {
+        return true;
+    }
+
+    @Override
+    public void reorderRows(int[] newIndices) {
+
+        if (newIndices.length != myNumRows) {
+            throw new IllegalArgumentException("SuperByteMatrixMapped: reorderRows: index array size: " + newIndices.length + " doesn't equal num rows in matrix: " + myNumRows);
+        }
+
+        int[] tempIndices = new int[newIndices.length];
+        System.arraycopy(newIndices, 0, tempIndices, 0, myNumRows);
+
+        int currentRow = 0;
+        byte[] temp = new byte[myNumColumns];
+        byte[] srcTemp = new byte[myNumColumns];
+
+        while (currentRow < myNumRows) {
+
+            while (currentRow < myNumRows) {
+                if ((tempIndices[currentRow] == currentRow) || (tempIndices[currentRow] == -1)) {
+                    tempIndices[currentRow] = -1;
+                } else {
+                    break;
+                }
+                currentRow++;
+            }
+
+            if (currentRow < myNumRows) {
+
+                copyFrom(currentRow, 0, temp);
+
+                int srcRow = tempIndices[currentRow];
+                int destRow = currentRow;
+                while (srcRow != currentRow) {
+                    copyFrom(srcRow, 0, srcTemp);
+                    copyTo(destRow, 0, srcTemp);
+                    tempIndices[destRow] = -1;
+                    destRow = srcRow;
+                    srcRow = tempIndices[destRow];
+                }
+
+                copyTo(destRow, 0, temp);
+                tempIndices[destRow] = -1;
+
+            }
+
+        }
+
+    }
+
+    @Override
+    public void reorderColumns(int[] newIndices) {
+
+        if (newIndices.length != myNumColumns) {
+            throw new IllegalArgumentException("SuperByteMatrixMapped: reorderColumns: index array size: " + newIndices.length + " doesn't equal num columns in matrix: " + myNumColumns);
+        }
+
+        byte[] current = new byte[myNumColumns];
+        byte[] reordered = new byte[myNumColumns];
+        for (int r = 0; r < myNumRows; r++) {
+            copyFrom(r, 0, current);
+            for (int c = 0; c < myNumColumns; c++) {
+                reordered[c] = current[newIndices[c]];
+            }
+            copyTo(r, 0, reordered);
+        }
+
+    }
+
+    @Override
+    public void setHetsTo(byte value) {
+        for (MappedByteBuffer current : myData) {
+            for (int i = 0, n = current.limit(); i < n; i++) {
+                byte temp = current.get(i);
+                if (((temp >>> 4) & 0xf) != (temp & 0xf)) {
+                    current.put(i, value);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void arraycopy(int row, byte[] src, int startColumn) {
+        copyTo(row, startColumn, src);
+    }
+
+    @Override
+    public Stream<Byte> stream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    @Override
+    public Stream<Byte> stream(int row) {
+        long start = (long) row * (long) myNumColumns;
+        return StreamSupport.stream(new SuperByteMatrixMappedSpliterator<>(start, start + (long) myNumColumns), true);
+    }
+
+    public Spliterator<Byte> spliterator() {
+        return new SuperByteMatrixMappedSpliterator<>(0, myNumElements);
+    }
+
+    class SuperByteMatrixMappedSpliterator<T extends Byte> implements Spliterator<Byte> {
+
+        private long myCurrentIndex;
+        private final long myFence;
+
+        SuperByteMatrixMappedSpliterator(long currentIndex, long fence) {
+            myCurrentIndex = currentIndex;
+            myFence = fence;
+        }
+
+        private int firstIndex(long index) {
+            return (int) (index / myNumElementsPerSegment);
+        }
+
+        private int secondIndex(long index) {
+            return (int) (index % myNumElementsPerSegment);
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Byte> action) {
+            for (; myCurrentIndex < myFence; myCurrentIndex++) {
+                action.accept(Byte.valueOf(myData[firstIndex(myCurrentIndex)].get(secondIndex(myCurrentIndex))));
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Byte> action) {
+            if (myCurrentIndex < myFence) {
+                action.accept(Byte.valueOf(myData[firstIndex(myCurrentIndex)].get(secondIndex(myCurrentIndex))));
+                myCurrentIndex++;
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public Spliterator<Byte> trySplit() {
+            long lo = myCurrentIndex;
+            long mid = (lo + myFence) >>> 1;
+            if (lo < mid) {
+                myCurrentIndex = mid;
+                return new SuperByteMatrixMappedSpliterator<>(lo, mid);
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            return myFence - myCurrentIndex;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | IMMUTABLE | SUBSIZED;
+        }
+    }
+
+}
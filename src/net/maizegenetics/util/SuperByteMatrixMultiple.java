@@ -94,7 +94,7 @@ public class SuperByteMatrixMultiple implements SuperByteMatrix {
             throw new IndexOutOfBoundsException("SuperByteMatrixMultiple: getColumnRange: start: " + start);
         }
 
-        if ((end < 0) || (end >= myNumColumns)) {
+        if ((end < 0) || (end > myNumColumns)) {
             throw new IndexOutOfBoundsException("SuperByteMatrixMultiple: getColumnRange: end: " + end);
         }
 
@@ -15,7 +15,7 @@ import java.util.stream.StreamSupport;
  */
 public class SuperByteMatrixSingle implements SuperByteMatrix {
 
-    private final byte[] myData;
+    final byte[] myData;
     private int myNumRows;
     private int myNumColumns;
     private final long myPrecompute1;
@@ -80,7 +80,7 @@ public class SuperByteMatrixSingle implements SuperByteMatrix {
             throw new IndexOutOfBoundsException("SuperByteMatrixSingle: getColumnRange: start: " + start);
         }
 
-        if ((end < 0) || (end >= myNumColumns)) {
+        if ((end < 0) || (end > myNumColumns)) {
             throw new IndexOutOfBoundsException("SuperByteMatrixSingle: getColumnRange: end: " + end);
         }
 
@@ -60,7 +60,7 @@ public class SuperByteMatrixSingleValue implements SuperByteMatrix {
             throw new IndexOutOfBoundsException("SuperByteMatrixSingleValue: getColumnRange: start: " + start);
         }
 
-        if ((end < 0) || (end >= myNumColumns)) {
+        if ((end < 0) || (end > myNumColumns)) {
             throw new IndexOutOfBoundsException("SuperByteMatrixSingleValue: getColumnRange: end: " + end);
         }
 
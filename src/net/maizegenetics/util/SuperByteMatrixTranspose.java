@@ -11,7 +11,7 @@ import java.util.stream.Stream;
  */
 public class SuperByteMatrixTranspose implements SuperByteMatrix {
 
-    private final SuperByteMatrix myMatrix;
+    final SuperByteMatrix myMatrix;
 
     SuperByteMatrixTranspose(int rows, int columns) {
         myMatrix = SuperByteMatrixBuilder.getInstance(columns, rows);
@@ -52,7 +52,7 @@ public class SuperByteMatrixTranspose implements SuperByteMatrix {
         int length = end - start;
         byte[] result = new byte[length];
         for (int i = 0; i < length; i++) {
-            result[i] = get(row, i);
+            result[i] = get(row, start + i);
         }
         return result;
     }
@@ -0,0 +1,272 @@
+/*
+ *  TabixIndex
+ */
+package net.maizegenetics.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tabix (.tbi) or coordinate sorted (.csi) index of a BGZF compressed file.
+ * Used to find where to start reading for a chromosome region with
+ * BGZFInputStream.seek().
+ */
+public class TabixIndex {
+
+    private static final int TBI_MIN_SHIFT = 14;
+    private static final int TBI_DEPTH = 5;
+
+    private final int myMinShift;
+    private final int myDepth;
+    private final Map<String, Integer> myChromosomeIndex = new HashMap<>();
+
+    /**
+     * Bins for each chromosome. Bin number -> chunk virtual offsets (begin
+     * and end pairs).
+     */
+    private final List<Map<Integer, long[]>> myBins;
+
+    /**
+     * Linear index (.tbi only) for each chromosome. Smallest virtual offset
+     * for each 16 KB window.
+     */
+    private final long[][] myLinearIndex;
+
+    private TabixIndex(int minShift, int depth, List<Map<Integer, long[]>> bins, long[][] linearIndex) {
+        myMinShift = minShift;
+        myDepth = depth;
+        myBins = bins;
+        myLinearIndex = linearIndex;
+    }
+
+    /**
+     * Returns index for given BGZF file if filename.tbi or filename.csi
+     * exists. Otherwise, returns null.
+     *
+     * @param filename BGZF file name
+     *
+     * @return index or null
+     */
+    public static TabixIndex getInstanceIfExists(String filename) {
+        if (new File(filename + ".tbi").isFile()) {
+            return getInstance(filename + ".tbi");
+        } else if (new File(filename + ".csi").isFile()) {
+            return getInstance(filename + ".csi");
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Reads .tbi or .csi index.
+     *
+     * @param indexFilename index file name
+     *
+     * @return index
+     */
+    public static TabixIndex getInstance(String indexFilename) {
+
+        ByteBuffer buffer;
+        try (InputStream input = new BGZFInputStream(indexFilename)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] temp = new byte[1 << 16];
+            int numRead;
+            while ((numRead = input.read(temp)) != -1) {
+                bytes.write(temp, 0, numRead);
+            }
+            buffer = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            throw new IllegalStateException("TabixIndex: getInstance: problem reading: " + indexFilename + ": " + e.getMessage());
+        }
+
+        try {
+            byte[] magic = new byte[4];
+            buffer.get(magic);
+            String type = new String(magic, 0, 3, StandardCharsets.US_ASCII);
+            if (type.equals("TBI") && (magic[3] == 1)) {
+                return readTBI(buffer);
+            } else if (type.equals("CSI") && (magic[3] == 1)) {
+                return readCSI(buffer);
+            } else {
+                throw new IllegalStateException("TabixIndex: getInstance: not a .tbi or .csi index: " + indexFilename);
+            }
+        } catch (RuntimeException e) {
+            if (e instanceof IllegalStateException) {
+                throw e;
+            }
+            throw new IllegalStateException("TabixIndex: getInstance: problem parsing: " + indexFilename + ": " + e.getMessage());
+        }
+
+    }
+
+    private static TabixIndex readTBI(ByteBuffer buffer) {
+
+        int numReferences = buffer.getInt();
+        String[] names = readTabixHeader(buffer);
+
+        List<Map<Integer, long[]>> bins = new ArrayList<>(numReferences);
+        long[][] linearIndex = new long[numReferences][];
+        for (int r = 0; r < numReferences; r++) {
+            bins.add(readBins(buffer, false));
+            int numIntervals = buffer.getInt();
+            linearIndex[r] = new long[numIntervals];
+            for (int i = 0; i < numIntervals; i++) {
+                linearIndex[r][i] = buffer.getLong();
+            }
+        }
+
+        TabixIndex result = new TabixIndex(TBI_MIN_SHIFT, TBI_DEPTH, bins, linearIndex);
+        result.addNames(names);
+        return result;
+
+    }
+
+    private static TabixIndex readCSI(ByteBuffer buffer) {
+
+        int minShift = buffer.getInt();
+        int depth = buffer.getInt();
+        int auxLength = buffer.getInt();
+        String[] names = null;
+        if (auxLength >= 28) {
+            ByteBuffer aux = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            aux.limit(auxLength);
+            names = readTabixHeader(aux);
+        }
+        buffer.position(buffer.position() + auxLength);
+
+        int numReferences = buffer.getInt();
+        List<Map<Integer, long[]>> bins = new ArrayList<>(numReferences);
+        for (int r = 0; r < numReferences; r++) {
+            bins.add(readBins(buffer, true));
+        }
+
+        TabixIndex result = new TabixIndex(minShift, depth, bins, null);
+        if (names == null) {
+            throw new IllegalStateException("TabixIndex: readCSI: index doesn't contain chromosome names");
+        }
+        result.addNames(names);
+        return result;
+
+    }
+
+    /**
+     * Reads format, column, meta, skip, and names fields. Returns names.
+     */
+    private static String[] readTabixHeader(ByteBuffer buffer) {
+        // format, col_seq, col_beg, col_end, meta, skip
+        for (int i = 0; i < 6; i++) {
+            buffer.getInt();
+        }
+        int namesLength = buffer.getInt();
+        byte[] names = new byte[namesLength];
+        buffer.get(names);
+        String all = new String(names, StandardCharsets.UTF_8);
+        if (all.endsWith("\0")) {
+            all = all.substring(0, all.length() - 1);
+        }
+        return all.isEmpty() ? new String[0] : all.split("\0", -1);
+    }
+
+    private static Map<Integer, long[]> readBins(ByteBuffer buffer, boolean hasLinearOffset) {
+        int numBins = buffer.getInt();
+        Map<Integer, long[]> result = new HashMap<>(numBins * 2);
+        for (int b = 0; b < numBins; b++) {
+            int bin = buffer.getInt();
+            if (hasLinearOffset) {
+                buffer.getLong();
+            }
+            int numChunks = buffer.getInt();
+            long[] chunks = new long[numChunks * 2];
+            for (int c = 0; c < numChunks * 2; c++) {
+                chunks[c] = buffer.getLong();
+            }
+            result.put(bin, chunks);
+        }
+        return result;
+    }
+
+    private void addNames(String[] names) {
+        for (int i = 0; i < names.length; i++) {
+            myChromosomeIndex.put(names[i], i);
+        }
+    }
+
+    /**
+     * Returns whether chromosome (name as it appears in the indexed file) is
+     * in the index.
+     *
+     * @param chromosome chromosome name
+     *
+     * @return true if indexed
+     */
+    public boolean contains(String chromosome) {
+        return myChromosomeIndex.containsKey(chromosome);
+    }
+
+    /**
+     * Returns virtual offset from which reading will find all records
+     * overlapping the region, or -1 if the region has no records.
+     *
+     * @param chromosome chromosome name as it appears in the indexed file
+     * @param startPosition first position (1-based inclusive)
+     * @param endPosition last position (1-based inclusive)
+     *
+     * @return virtual offset for BGZFInputStream.seek() or -1
+     */
+    public long startOffset(String chromosome, int startPosition, int endPosition) {
+
+        Integer reference = myChromosomeIndex.get(chromosome);
+        if ((reference == null) || (reference >= myBins.size())) {
+            return -1;
+        }
+
+        long begin = Math.max(0, startPosition - 1);
+        long end = Math.max(begin + 1, (long) endPosition);
+
+        long minOffset = 0;
+        if (myLinearIndex != null) {
+            long[] linear = myLinearIndex[reference];
+            int window = (int) (begin >> TBI_MIN_SHIFT);
+            if (linear.length != 0) {
+                minOffset = linear[Math.min(window, linear.length - 1)];
+            }
+        }
+
+        Map<Integer, long[]> bins = myBins.get(reference);
+        long result = Long.MAX_VALUE;
+        end--;
+        int levelStart = 0;
+        for (int level = 0, shift = myMinShift + myDepth * 3; level <= myDepth; level++, shift -= 3) {
+            long firstBin = levelStart + (begin >> shift);
+            long lastBin = levelStart + (end >> shift);
+            for (long bin = firstBin; bin <= lastBin; bin++) {
+                long[] chunks = bins.get((int) bin);
+                if (chunks == null) {
+                    continue;
+                }
+                for (int c = 0; c < chunks.length; c += 2) {
+                    if ((Long.compareUnsigned(chunks[c + 1], minOffset) > 0) && (Long.compareUnsigned(chunks[c], result) < 0)) {
+                        result = chunks[c];
+                    }
+                }
+            }
+            levelStart += 1 << (level * 3);
+        }
+
+        if (result == Long.MAX_VALUE) {
+            return -1;
+        }
+        return (Long.compareUnsigned(result, minOffset) < 0) ? minOffset : result;
+
+    }
+
+}
@@ -77,6 +77,15 @@ public final class Tassel5HDF5Constants {
     public static final String REF_ALLELES = POSITION_ATTRIBUTES_PATH + "ReferenceAlleles";
     public static final String ANC_ALLELES = POSITION_ATTRIBUTES_PATH + "AncestralAlleles";
 
+    //Site-Major Genotypes Module
+    // Optional copy of all genotype calls as one sites x taxa matrix (site-major), for reading whole sites.
+    // It's not under the Genotypes module, whose members are taxa.
+    // Attributes numTaxa and numSites of the matrix must match the file, otherwise it's out of date.
+    public static final String GENOTYPES_SITE_MAJOR = "SiteMajorGenotypes";
+    public static final String GENOTYPES_SITE_MAJOR_CALLS = GENOTYPES_SITE_MAJOR + "/calls";
+    public static final int SITE_MAJOR_BLOCK_SITES = 1 << 8;
+    public static final int SITE_MAJOR_BLOCK_TAXA = 1 << 10;
+
     //Standard Compression (deflation) levels
     public static final HDF5IntStorageFeatures intDeflation = HDF5IntStorageFeatures.createDeflation(2);
     public static final HDF5GenericStorageFeatures genDeflation = HDF5GenericStorageFeatures.createDeflation(2);
@@ -0,0 +1,107 @@
+package net.maizegenetics.analysis.distance;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import net.maizegenetics.dna.map.Chromosome;
+import net.maizegenetics.dna.map.GeneralPosition;
+import net.maizegenetics.dna.map.PositionListBuilder;
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.GenotypeTableBuilder;
+import net.maizegenetics.dna.snp.GenotypeTableUtils;
+import net.maizegenetics.dna.snp.genotypecall.GenotypeCallTableBuilder;
+import net.maizegenetics.taxa.TaxaListBuilder;
+import net.maizegenetics.taxa.distance.DistanceMatrix;
+import net.maizegenetics.taxa.distance.DistanceMatrixBuilder;
+
+import org.junit.Test;
+
+/**
+ * Compares IBSDistanceMatrix2Alleles and IBSDistanceMatrix3Alleles with the
+ * previous implementations (PreviousIBSDistanceMatrix2Alleles and
+ * PreviousIBSDistanceMatrix3Alleles).
+ */
+public class IBSDistanceMatrixTest {
+
+    // more taxa than one tile and sites that don't fill the last word
+    private static final int NUM_TAXA = 83;
+    private static final int NUM_SITES = 1237;
+
+    @Test
+    public void testTwoAllelesMatchesPrevious() {
+        GenotypeTable genotypes = genotypes();
+        for (boolean trueIBS : new boolean[]{false, true}) {
+            for (int minSiteComp : new int[]{0, 900}) {
+                assertSame(PreviousIBSDistanceMatrix2Alleles.getInstance(genotypes, minSiteComp, trueIBS, null),
+                        IBSDistanceMatrix2Alleles.getInstance(genotypes, minSiteComp, trueIBS, null));
+            }
+        }
+    }
+
+    @Test
+    public void testThreeAllelesMatchesPrevious() {
+        GenotypeTable genotypes = genotypes();
+        for (boolean trueIBS : new boolean[]{false, true}) {
+            for (int minSiteComp : new int[]{0, 900}) {
+                assertSame(PreviousIBSDistanceMatrix3Alleles.getInstance(genotypes, minSiteComp, trueIBS, null),
+                        IBSDistanceMatrix3Alleles.getInstance(genotypes, minSiteComp, trueIBS, null));
+            }
+        }
+    }
+
+    private static void assertSame(DistanceMatrix expected, DistanceMatrix actual) {
+        assertEquals(expected.numberOfTaxa(), actual.numberOfTaxa());
+        for (int i = 0; i < expected.numberOfTaxa(); i++) {
+            for (int j = 0; j < expected.numberOfTaxa(); j++) {
+                assertEquals("taxa: " + i + " and " + j, expected.getDistance(i, j), actual.getDistance(i, j), 1e-6);
+            }
+        }
+        assertArrayEquals(expected.annotations().getTextAnnotation(DistanceMatrixBuilder.IBS_DISTANCE_MATRIX_AVE_TOTAL_SITES),
+                actual.annotations().getTextAnnotation(DistanceMatrixBuilder.IBS_DISTANCE_MATRIX_AVE_TOTAL_SITES));
+    }
+
+    /**
+     * Nucleotide genotypes with missing data, hets, sites with up to four
+     * alleles, a site with no known genotypes, and a taxon with no known
+     * genotypes.
+     */
+    private static GenotypeTable genotypes() {
+
+        Random random = new Random(7);
+        GenotypeCallTableBuilder genotypes = GenotypeCallTableBuilder.getUnphasedNucleotideGenotypeBuilder(NUM_TAXA, NUM_SITES);
+        for (int s = 0; s < NUM_SITES; s++) {
+            int numAlleles = 1 + s % 4;
+            byte[] alleles = new byte[numAlleles];
+            for (int a = 0; a < numAlleles; a++) {
+                alleles[a] = (byte) ((s + a) % 4);
+            }
+            for (int t = 0; t < NUM_TAXA; t++) {
+                if ((s == 100) || (t == 5) || (random.nextInt(5) == 0)) {
+                    genotypes.setBase(t, s, GenotypeTable.UNKNOWN_DIPLOID_ALLELE);
+                } else {
+                    // skewed, so allele frequencies differ
+                    byte first = alleles[Math.min(random.nextInt(numAlleles + 1), numAlleles - 1)];
+                    byte second = (random.nextInt(3) == 0) ? alleles[random.nextInt(numAlleles)] : first;
+                    genotypes.setBase(t, s, GenotypeTableUtils.getDiploidValue(first, second));
+                }
+            }
+        }
+
+        PositionListBuilder positions = new PositionListBuilder();
+        Chromosome chromosome = new Chromosome("1");
+        for (int s = 0; s < NUM_SITES; s++) {
+            positions.add(new GeneralPosition.Builder(chromosome, s + 1).build());
+        }
+
+        TaxaListBuilder taxa = new TaxaListBuilder();
+        for (int t = 0; t < NUM_TAXA; t++) {
+            taxa.add("Taxon" + t);
+        }
+
+        return GenotypeTableBuilder.getInstance(genotypes.build(), positions.build(), taxa.build());
+
+    }
+
+}
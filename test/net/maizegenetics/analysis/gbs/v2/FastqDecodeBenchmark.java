@@ -0,0 +1,198 @@
+/*
+ *  FastqDecodeBenchmark
+ */
+package net.maizegenetics.analysis.gbs.v2;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.maizegenetics.analysis.gbs.Barcode;
+import net.maizegenetics.dna.BaseEncoder;
+import net.maizegenetics.dna.tag.Tag;
+import net.maizegenetics.dna.tag.TagBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Times decoding a synthetic FastQ lane (barcode lookup, quality check, and
+ * 2-bit encoding of the tag) with the previous String based path
+ * (GBSUtils.readFastQBlock(), BarcodeTrie.longestPrefix(String),
+ * TagBuilder.instance(String)) and the byte based path (FastqReader and the
+ * byte[] versions of those methods). The lane is held in memory, so
+ * decompression is not included.
+ *
+ * Scores are reads per second. Run with -prof gc for the allocation rate
+ * (gc.alloc.rate.norm is bytes allocated per read). The lane is 1,000,000
+ * reads of 100 bases with 96 barcodes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class FastqDecodeBenchmark {
+
+    private static final int NUM_READS = 1000000;
+    private static final int READ_LENGTH = 100;
+    private static final int TAG_LENGTH = 64;
+    private static final int MIN_QUALITY = 20;
+    private static final int QUALITY_BASE = 33;
+    private static final int NUM_BARCODES = 96;
+    private static final String[] OVERHANGS = new String[]{"CAGC", "CTGC"};
+
+    private BarcodeTrie myTrie;
+    private byte[] myLane;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(12345);
+        Barcode[] barcodes = barcodes(random);
+        myTrie = new BarcodeTrie();
+        for (Barcode barcode : barcodes) {
+            myTrie.addBarcode(barcode);
+        }
+        myLane = lane(NUM_READS, barcodes, random);
+        long previous = previous(myLane, myTrie);
+        long current = current(myLane, myTrie);
+        if (previous != current) {
+            throw new IllegalStateException("FastqDecodeBenchmark: setup: results differ: previous: " + previous + "  byte based: " + current);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_READS)
+    public long previous() throws IOException {
+        return previous(myLane, myTrie);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_READS)
+    public long byteBased() throws IOException {
+        return current(myLane, myTrie);
+    }
+
+    /**
+     * Previous String based decoding. Returns checksum of tags.
+     */
+    private static long previous(byte[] lane, BarcodeTrie trie) throws IOException {
+        long result = 0;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(lane), StandardCharsets.US_ASCII), 1 << 22)) {
+            String[] seqAndQual;
+            int allReads = 0;
+            while ((seqAndQual = GBSUtils.readFastQBlock(br, allReads)) != null) {
+                allReads++;
+                Barcode barcode = trie.longestPrefix(seqAndQual[0]);
+                if (barcode == null) continue;
+                int barcodeLen = barcode.getBarLength();
+                if (BaseEncoder.getFirstLowQualityPos(seqAndQual[1], MIN_QUALITY, QUALITY_BASE) < barcodeLen + TAG_LENGTH) continue;
+                Tag tag = TagBuilder.instance(seqAndQual[0].substring(barcodeLen, barcodeLen + TAG_LENGTH)).build();
+                result = checksum(result, barcode, tag);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Byte based decoding. Returns checksum of tags.
+     */
+    private static long current(byte[] lane, BarcodeTrie trie) throws IOException {
+        long result = 0;
+        try (FastqReader reader = FastqReader.getInstance(new ByteArrayInputStream(lane), FastqReader.DEFAULT_BUFFER_SIZE)) {
+            while (reader.next()) {
+                byte[] buffer = reader.buffer();
+                int seqOffset = reader.sequenceOffset();
+                Barcode barcode = trie.longestPrefix(buffer, seqOffset, reader.sequenceLength());
+                if (barcode == null) continue;
+                int barcodeLen = barcode.getBarLength();
+                if (BaseEncoder.getFirstLowQualityPos(buffer, reader.qualityOffset(), reader.qualityLength(), MIN_QUALITY, QUALITY_BASE) < barcodeLen + TAG_LENGTH) continue;
+                Tag tag = TagBuilder.instanceFromASCII(buffer, seqOffset + barcodeLen, TAG_LENGTH).build();
+                result = checksum(result, barcode, tag);
+            }
+        }
+        return result;
+    }
+
+    private static long checksum(long current, Barcode barcode, Tag tag) {
+        long result = current * 31 + barcode.getTaxaIndex();
+        return tag == null ? result * 31 : result * 31 + tag.hashCode();
+    }
+
+    private static Barcode[] barcodes(Random random) {
+        Barcode[] result = new Barcode[NUM_BARCODES];
+        for (int b = 0; b < NUM_BARCODES; b++) {
+            String sequence = randomBases(4 + random.nextInt(5), random);
+            result[b] = new Barcode(sequence, OVERHANGS.clone(), "Taxon" + b, b, "FLOWCELL", "1");
+        }
+        return result;
+    }
+
+    /**
+     * Creates lane where most reads start with a barcode and overhang. Some
+     * have no barcode, an N, or low quality.
+     */
+    private static byte[] lane(int numReads, Barcode[] barcodes, Random random) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(numReads * (2 * READ_LENGTH + 40));
+        StringBuilder builder = new StringBuilder();
+        for (int r = 0; r < numReads; r++) {
+            builder.setLength(0);
+            builder.append("@A00123:45:FLOWCELL:1:1101:").append(r % 30000).append(':').append(r / 30000).append(" 1:N:0:1\n");
+            String sequence;
+            if (random.nextInt(10) == 0) {
+                sequence = randomBases(READ_LENGTH, random);
+            } else {
+                Barcode barcode = barcodes[random.nextInt(barcodes.length)];
+                String prefix = barcode.getBarWOverHang()[random.nextInt(OVERHANGS.length)];
+                sequence = prefix + randomBases(READ_LENGTH - prefix.length(), random);
+            }
+            if (random.nextInt(50) == 0) {
+                int position = random.nextInt(READ_LENGTH);
+                sequence = sequence.substring(0, position) + 'N' + sequence.substring(position + 1);
+            }
+            builder.append(sequence).append("\n+\n");
+            int lowQuality = random.nextInt(20) == 0 ? random.nextInt(READ_LENGTH) : READ_LENGTH;
+            for (int i = 0; i < READ_LENGTH; i++) {
+                int quality = i == lowQuality ? random.nextInt(MIN_QUALITY) : MIN_QUALITY + random.nextInt(22);
+                builder.append((char) (quality + QUALITY_BASE));
+            }
+            builder.append('\n');
+            byte[] record = builder.toString().getBytes(StandardCharsets.US_ASCII);
+            result.write(record, 0, record.length);
+        }
+        return result.toByteArray();
+    }
+
+    private static String randomBases(int length, Random random) {
+        char[] result = new char[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = BaseEncoder.bases[random.nextInt(4)];
+        }
+        return new String(result);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FastqDecodeBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,110 @@
+package net.maizegenetics.dna.snp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import java.io.File;
+import java.util.Random;
+import net.maizegenetics.dna.map.Chromosome;
+import net.maizegenetics.dna.map.GeneralPosition;
+import net.maizegenetics.dna.map.PositionList;
+import net.maizegenetics.dna.map.PositionListBuilder;
+import net.maizegenetics.taxa.Taxon;
+import net.maizegenetics.util.HDF5Utils;
+import net.maizegenetics.util.Tassel5HDF5Constants;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that genotypeForAllTaxa() read from the site-major copy of a Tassel5
+ * HDF5 file matches the per-taxon calls, including after calls are replaced.
+ */
+public class HDF5SiteMajorGenotypesTest {
+
+    // spans more than one site-major tile and taxa tile
+    private static final int NUM_TAXA = 1100;
+    private static final int NUM_SITES = 700;
+
+    private static final byte[] GENOTYPES = new byte[]{
+        GenotypeTableUtils.getDiploidValue((byte) 0, (byte) 0),
+        GenotypeTableUtils.getDiploidValue((byte) 1, (byte) 1),
+        GenotypeTableUtils.getDiploidValue((byte) 0, (byte) 1),
+        GenotypeTableUtils.getDiploidValue((byte) 2, (byte) 2),
+        GenotypeTable.UNKNOWN_DIPLOID_ALLELE
+    };
+
+    @Rule
+    public TemporaryFolder myTempFolder = new TemporaryFolder();
+
+    private static byte[][] randomGenotypes(long seed) {
+        Random random = new Random(seed);
+        byte[][] result = new byte[NUM_TAXA][NUM_SITES];
+        for (int t = 0; t < NUM_TAXA; t++) {
+            for (int s = 0; s < NUM_SITES; s++) {
+                result[t][s] = GENOTYPES[random.nextInt(GENOTYPES.length)];
+            }
+        }
+        return result;
+    }
+
+    private File buildFile(byte[][] genotypes) throws Exception {
+        Chromosome chr = new Chromosome("1");
+        PositionListBuilder positions = new PositionListBuilder();
+        for (int s = 0; s < NUM_SITES; s++) {
+            positions.add(new GeneralPosition.Builder(chr, 100 + s * 10).build());
+        }
+        PositionList positionList = positions.build();
+        File file = new File(myTempFolder.getRoot(), "siteMajor.h5");
+        GenotypeTableBuilder builder = GenotypeTableBuilder.getTaxaIncremental(positionList, file.getAbsolutePath()).siteMajorGenotypes();
+        for (int t = 0; t < NUM_TAXA; t++) {
+            builder.addTaxon(new Taxon(String.format("Taxon%04d", t)), genotypes[t]);
+        }
+        builder.build();
+        return file;
+    }
+
+    private static void assertSitesMatchTaxa(GenotypeTable table) {
+        for (int s = 0; s < table.numberOfSites(); s++) {
+            byte[] expected = new byte[table.numberOfTaxa()];
+            for (int t = 0; t < expected.length; t++) {
+                expected[t] = table.genotype(t, s);
+            }
+            assertArrayEquals("site: " + s, expected, table.genotypeAllTaxa(s));
+        }
+    }
+
+    @Test
+    public void testSiteMajorMatchesPerTaxon() throws Exception {
+        byte[][] genotypes = randomGenotypes(1L);
+        File file = buildFile(genotypes);
+        GenotypeTable table = GenotypeTableBuilder.getInstance(file.getAbsolutePath());
+        assertTrue(HDF5Utils.doesHDF5SiteMajorGenotypesExist(HDF5Factory.openForReading(file), NUM_TAXA, NUM_SITES));
+        for (int t = 0; t < NUM_TAXA; t++) {
+            assertArrayEquals("taxon: " + t, genotypes[t], table.genotypeAllSites(t));
+        }
+        assertSitesMatchTaxa(table);
+    }
+
+    @Test
+    public void testReplacedCallsDropSiteMajor() throws Exception {
+        File file = buildFile(randomGenotypes(2L));
+        byte[] replacement = randomGenotypes(3L)[0];
+        IHDF5Writer writer = HDF5Factory.open(file);
+        try {
+            HDF5Utils.unlockHDF5GenotypeModule(writer);
+            HDF5Utils.replaceHDF5GenotypesCalls(writer, "Taxon0005", replacement);
+            assertFalse(writer.exists(Tassel5HDF5Constants.GENOTYPES_SITE_MAJOR_CALLS));
+            HDF5Utils.lockHDF5GenotypeModule(writer);
+        } finally {
+            writer.close();
+        }
+        GenotypeTable table = GenotypeTableBuilder.getInstance(file.getAbsolutePath());
+        assertArrayEquals(replacement, table.genotypeAllSites(5));
+        assertSitesMatchTaxa(table);
+    }
+
+}
@@ -0,0 +1,129 @@
+package net.maizegenetics.dna.snp.genotypecall;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.GenotypeTableUtils;
+import org.junit.Test;
+
+/**
+ * Tests that PackedNucleotideGenotypeCallTable returns the same genotypes as
+ * the byte matrix table for the same calls, including sites with more than
+ * three distinct diploid values (stored in the fallback matrix) and
+ * heterozygotes with alleles in either order.
+ */
+public class PackedNucleotideGenotypeCallTableTest {
+
+    private static final int NUM_TAXA = 71;
+    private static final int NUM_SITES = 523;
+
+    /**
+     * Random genotypes. Every fifth site draws from all nucleotide alleles
+     * (non-biallelic), the others from two alleles with hets in both orders
+     * and missing.
+     */
+    private static byte[][] randomGenotypes(long seed) {
+        Random random = new Random(seed);
+        byte[][] result = new byte[NUM_TAXA][NUM_SITES];
+        for (int s = 0; s < NUM_SITES; s++) {
+            boolean multiAllelic = s % 5 == 0;
+            byte major = (byte) random.nextInt(4);
+            byte minor = (byte) ((major + 1 + random.nextInt(3)) % 4);
+            for (int t = 0; t < NUM_TAXA; t++) {
+                if (multiAllelic) {
+                    result[t][s] = GenotypeTableUtils.getDiploidValue((byte) random.nextInt(6), (byte) random.nextInt(6));
+                } else {
+                    switch (random.nextInt(5)) {
+                        case 0:
+                            result[t][s] = GenotypeTableUtils.getDiploidValue(minor, minor);
+                            break;
+                        case 1:
+                            result[t][s] = GenotypeTableUtils.getDiploidValue(major, minor);
+                            break;
+                        case 2:
+                            result[t][s] = GenotypeTableUtils.getDiploidValue(minor, major);
+                            break;
+                        case 3:
+                            result[t][s] = GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+                            break;
+                        default:
+                            result[t][s] = GenotypeTableUtils.getDiploidValue(major, major);
+                            break;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static GenotypeCallTable build(byte[][] genotypes, boolean pack) {
+        GenotypeCallTableBuilder builder = GenotypeCallTableBuilder.getInstance(NUM_TAXA, NUM_SITES).packGenotypes(pack);
+        for (int t = 0; t < NUM_TAXA; t++) {
+            for (int s = 0; s < NUM_SITES; s++) {
+                builder.setBase(t, s, genotypes[t][s]);
+            }
+        }
+        return builder.build();
+    }
+
+    private static void assertSameGenotypes(byte[][] expected, GenotypeCallTable actual) {
+        assertEquals(NUM_TAXA, actual.numberOfTaxa());
+        assertEquals(NUM_SITES, actual.numberOfSites());
+        for (int t = 0; t < NUM_TAXA; t++) {
+            assertArrayEquals("taxon: " + t, expected[t], actual.genotypeForAllSites(t));
+            byte[] range = new byte[NUM_SITES - 100];
+            System.arraycopy(expected[t], 50, range, 0, range.length);
+            assertArrayEquals("taxon: " + t, range, actual.genotypeForSiteRange(t, 50, NUM_SITES - 50));
+            for (int s = 0; s < NUM_SITES; s++) {
+                assertEquals("taxon: " + t + " site: " + s, expected[t][s], actual.genotype(t, s));
+            }
+        }
+        for (int s = 0; s < NUM_SITES; s++) {
+            byte[] column = new byte[NUM_TAXA];
+            for (int t = 0; t < NUM_TAXA; t++) {
+                column[t] = expected[t][s];
+            }
+            assertArrayEquals("site: " + s, column, actual.genotypeForAllTaxa(s));
+        }
+    }
+
+    @Test
+    public void testPackedMatchesByteTable() {
+        byte[][] genotypes = randomGenotypes(1L);
+        GenotypeCallTable packed = build(genotypes, true);
+        GenotypeCallTable unpacked = build(genotypes, false);
+        assertTrue(packed instanceof PackedNucleotideGenotypeCallTable);
+        assertFalse(unpacked instanceof PackedNucleotideGenotypeCallTable);
+        assertSameGenotypes(genotypes, unpacked);
+        assertSameGenotypes(genotypes, packed);
+    }
+
+    @Test
+    public void testTransposeKeepsGenotypes() {
+        byte[][] genotypes = randomGenotypes(2L);
+        GenotypeCallTable packed = build(genotypes, true);
+        assertFalse(packed.isSiteOptimized());
+        packed.transposeData(false);
+        assertTrue(packed.isSiteOptimized());
+        assertSameGenotypes(genotypes, packed);
+        packed.transposeData(true);
+        assertSameGenotypes(genotypes, packed);
+    }
+
+    @Test
+    public void testCopyRoundTrip() {
+        byte[][] genotypes = randomGenotypes(3L);
+        GenotypeCallTable packed = build(genotypes, true);
+        GenotypeCallTable bytes = GenotypeCallTableBuilder.getInstanceCopy(packed).packGenotypes(false).build();
+        assertFalse(bytes instanceof PackedNucleotideGenotypeCallTable);
+        assertSameGenotypes(genotypes, bytes);
+        GenotypeCallTable repacked = GenotypeCallTableBuilder.getInstanceCopy(bytes).build();
+        assertTrue(repacked instanceof PackedNucleotideGenotypeCallTable);
+        assertSameGenotypes(genotypes, repacked);
+    }
+
+}
@@ -0,0 +1,147 @@
+package net.maizegenetics.dna.snp.genotypecall;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+import net.maizegenetics.dna.map.Chromosome;
+import net.maizegenetics.dna.map.DonorHaplotypes;
+import net.maizegenetics.dna.map.GeneralPosition;
+import net.maizegenetics.dna.map.PositionList;
+import net.maizegenetics.dna.map.PositionListBuilder;
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.GenotypeTableBuilder;
+import net.maizegenetics.dna.snp.GenotypeTableUtils;
+import net.maizegenetics.taxa.TaxaListBuilder;
+import org.junit.Test;
+
+/**
+ * Tests that the block cache of ProjectionGenotypeCallTable returns the same
+ * genotypes as the previous range map lookup (PreviousProjectionGenotypeCallTable),
+ * including sites not covered by a donor haplotype, overlapping donor
+ * haplotypes, and access from multiple threads.
+ */
+public class ProjectionGenotypeCallTableTest {
+
+    private static final int NUM_BASE_TAXA = 40;
+    private static final int NUM_TAXA = 25;
+    // sites per chromosome, not a multiple of the 4096 site block
+    private static final int NUM_SITES_PER_CHROMOSOME = 6000;
+    private static final Chromosome[] CHROMOSOMES = {new Chromosome("1"), new Chromosome("2")};
+
+    private static int position(int site) {
+        return site * 7 + 3;
+    }
+
+    private static GenotypeTable baseGenotypes(Random random) {
+        PositionListBuilder positions = new PositionListBuilder();
+        for (Chromosome chromosome : CHROMOSOMES) {
+            for (int s = 0; s < NUM_SITES_PER_CHROMOSOME; s++) {
+                positions.add(new GeneralPosition.Builder(chromosome, position(s)).build());
+            }
+        }
+        PositionList positionList = positions.build();
+        int numSites = positionList.numberOfSites();
+        GenotypeCallTableBuilder genotypes = GenotypeCallTableBuilder.getInstance(NUM_BASE_TAXA, numSites);
+        for (int t = 0; t < NUM_BASE_TAXA; t++) {
+            for (int s = 0; s < numSites; s++) {
+                if (random.nextInt(10) == 0) {
+                    genotypes.setBase(t, s, GenotypeTable.UNKNOWN_DIPLOID_ALLELE);
+                } else {
+                    genotypes.setBase(t, s, GenotypeTableUtils.getDiploidValue((byte) random.nextInt(4), (byte) random.nextInt(4)));
+                }
+            }
+        }
+        return GenotypeTableBuilder.getInstance(genotypes.build(), positionList, TaxaListBuilder.getInstance(NUM_BASE_TAXA));
+    }
+
+    /**
+     * Donor haplotypes with gaps between them, some overlapping the previous
+     * one, and some with the same parent twice. Positions are not always
+     * sites of the base genotypes.
+     */
+    private static ImmutableList<NavigableSet<DonorHaplotypes>> donors(Random random) {
+        ImmutableList.Builder<NavigableSet<DonorHaplotypes>> result = ImmutableList.builder();
+        for (int t = 0; t < NUM_TAXA; t++) {
+            NavigableSet<DonorHaplotypes> haplotypes = new TreeSet<>();
+            for (Chromosome chromosome : CHROMOSOMES) {
+                int site = random.nextInt(100);
+                while (site < NUM_SITES_PER_CHROMOSOME) {
+                    int length = 1 + random.nextInt(3000);
+                    int end = Math.min(site + length, NUM_SITES_PER_CHROMOSOME + 50);
+                    int parent1 = random.nextInt(NUM_BASE_TAXA);
+                    int parent2 = random.nextInt(4) == 0 ? parent1 : random.nextInt(NUM_BASE_TAXA);
+                    haplotypes.add(new DonorHaplotypes(chromosome, position(site) + random.nextInt(3), position(end), parent1, parent2));
+                    site = random.nextInt(3) == 0 ? end - random.nextInt(50) : end + random.nextInt(200);
+                }
+            }
+            result.add(haplotypes);
+        }
+        return result.build();
+    }
+
+    private static void assertSameGenotypes(GenotypeCallTable expected, ProjectionGenotypeCallTable actual) {
+        int numSites = expected.numberOfSites();
+        IntStream.range(0, NUM_TAXA).parallel().forEach(t -> {
+            byte[] expectedTaxon = new byte[numSites];
+            for (int s = 0; s < numSites; s++) {
+                expectedTaxon[s] = expected.genotype(t, s);
+            }
+            assertArrayEquals("taxon: " + t, expectedTaxon, actual.genotypeAllSites(t));
+            for (int s = numSites - 1; s >= 0; s -= 3) {
+                assertEquals("taxon: " + t + " site: " + s, expectedTaxon[s], actual.genotype(t, s));
+            }
+            byte[] range = new byte[5000];
+            System.arraycopy(expectedTaxon, 4000, range, 0, range.length);
+            assertArrayEquals("taxon: " + t, range, actual.genotypeRange(t, 4000, 9000));
+        });
+        IntStream.range(0, numSites).parallel().forEach(s -> {
+            byte[] expectedSite = new byte[NUM_TAXA];
+            for (int t = 0; t < NUM_TAXA; t++) {
+                expectedSite[t] = expected.genotype(t, s);
+            }
+            assertArrayEquals("site: " + s, expectedSite, actual.genotypeForAllTaxa(s));
+        });
+    }
+
+    @Test
+    public void testBlockCacheMatchesPrevious() {
+        Random random = new Random(5);
+        GenotypeTable base = baseGenotypes(random);
+        ImmutableList<NavigableSet<DonorHaplotypes>> donors = donors(random);
+        PreviousProjectionGenotypeCallTable previous = new PreviousProjectionGenotypeCallTable(base, donors);
+        ProjectionGenotypeCallTable projection = new ProjectionGenotypeCallTable(base, donors);
+        assertEquals(previous.numberOfTaxa(), projection.numberOfTaxa());
+        assertEquals(previous.numberOfSites(), projection.numberOfSites());
+        assertSameGenotypes(previous, projection);
+    }
+
+    @Test
+    public void testTaxonDonors() {
+        Random random = new Random(6);
+        GenotypeTable base = baseGenotypes(random);
+        ImmutableList<NavigableSet<DonorHaplotypes>> donors = donors(random);
+        ProjectionGenotypeCallTable projection = new ProjectionGenotypeCallTable(base, donors);
+        int numUncovered = 0;
+        for (int t = 0; t < NUM_TAXA; t++) {
+            for (int s = 0; s < projection.numberOfSites(); s++) {
+                int[] parents = projection.taxonDonors(t, s);
+                if (parents == null) {
+                    numUncovered++;
+                    assertEquals(GenotypeTable.UNKNOWN_DIPLOID_ALLELE, projection.genotype(t, s));
+                } else {
+                    byte expected = GenotypeTableUtils.getUnphasedDiploidValueNoHets(base.genotype(parents[0], s), base.genotype(parents[1], s));
+                    assertEquals("taxon: " + t + " site: " + s, expected, projection.genotype(t, s));
+                }
+            }
+        }
+        assertTrue(numUncovered > 0);
+        assertTrue(numUncovered < NUM_TAXA * projection.numberOfSites() / 2);
+    }
+
+}
@@ -0,0 +1,132 @@
+package net.maizegenetics.dna.snp.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.GenotypeTableBuilder;
+import net.maizegenetics.dna.snp.GenotypeTableUtils;
+import net.maizegenetics.dna.snp.score.AlleleDepthUtil;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BuilderFromVCFTest {
+
+    // more sites than one chunk (4096 lines), so chunks can finish out of order
+    private static final int NUM_SITES = 10000;
+    private static final int NUM_TAXA = 7;
+    private static final String[] REF = {"A", "C", "G", "T"};
+
+    @Rule
+    public TemporaryFolder myFolder = new TemporaryFolder();
+
+    private byte[][] myExpectedGenotypes;
+    private int[][][] myExpectedDepths;
+
+    @Test
+    public void testInMemoryMatchesVCF() throws IOException {
+
+        File vcf = writeVCF();
+        GenotypeTable genotypes = BuilderFromVCF.getBuilder(vcf.getAbsolutePath()).keepDepth().build();
+
+        assertEquals(NUM_TAXA, genotypes.numberOfTaxa());
+        assertEquals(NUM_SITES, genotypes.numberOfSites());
+        for (int s = 0; s < NUM_SITES; s++) {
+            assertEquals(position(s), genotypes.chromosomalPosition(s));
+            for (int t = 0; t < NUM_TAXA; t++) {
+                assertEquals("taxon: " + t + " site: " + s, myExpectedGenotypes[t][s], genotypes.genotype(t, s));
+                assertArrayEquals("taxon: " + t + " site: " + s, myExpectedDepths[t][s], genotypes.depth().values(t, s));
+            }
+        }
+
+    }
+
+    @Test
+    public void testInMemoryMatchesHDF5() throws IOException {
+
+        File vcf = writeVCF();
+        GenotypeTable inMemory = BuilderFromVCF.getBuilder(vcf.getAbsolutePath()).keepDepth().build();
+        String hdf5 = new File(myFolder.getRoot(), "genotypes.h5").getAbsolutePath();
+        BuilderFromVCF.getBuilder(vcf.getAbsolutePath()).keepDepth().convertToHDF5(hdf5).build();
+        GenotypeTable fromHDF5 = GenotypeTableBuilder.getInstance(hdf5);
+
+        assertEquals(inMemory.numberOfTaxa(), fromHDF5.numberOfTaxa());
+        assertEquals(inMemory.numberOfSites(), fromHDF5.numberOfSites());
+        for (int s = 0; s < NUM_SITES; s++) {
+            assertEquals(inMemory.positions().get(s), fromHDF5.positions().get(s));
+        }
+        for (int t = 0; t < NUM_TAXA; t++) {
+            assertArrayEquals("taxon: " + t, inMemory.genotypeAllSites(t), fromHDF5.genotypeAllSites(t));
+            for (int s = 0; s < NUM_SITES; s++) {
+                assertArrayEquals("taxon: " + t + " site: " + s, inMemory.depth().values(t, s), fromHDF5.depth().values(t, s));
+            }
+        }
+
+    }
+
+    private static int position(int site) {
+        return site * 10 + 1;
+    }
+
+    /**
+     * Writes a VCF with missing genotypes, hets and some sites with a second
+     * alternate allele, and records the expected genotypes and depths.
+     */
+    private File writeVCF() throws IOException {
+
+        myExpectedGenotypes = new byte[NUM_TAXA][NUM_SITES];
+        myExpectedDepths = new int[NUM_TAXA][NUM_SITES][6];
+        Random random = new Random(42);
+        File result = myFolder.newFile("test.vcf");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(result))) {
+            writer.write("##fileformat=VCFv4.0\n");
+            writer.write("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">\n");
+            writer.write("##FORMAT=<ID=AD,Number=.,Type=Integer,Description=\"Allelic depths\">\n");
+            writer.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+            for (int t = 0; t < NUM_TAXA; t++) {
+                writer.write("\tTaxon" + t);
+            }
+            writer.write("\n");
+            for (int s = 0; s < NUM_SITES; s++) {
+                int ref = s % 4;
+                int alt1 = (ref + 1) % 4;
+                int alt2 = (ref + 2) % 4;
+                boolean triallelic = s % 5 == 0;
+                byte[] alleles = triallelic ? new byte[]{(byte) ref, (byte) alt1, (byte) alt2} : new byte[]{(byte) ref, (byte) alt1};
+                writer.write("1\t" + position(s) + "\tS" + s + "\t" + REF[ref] + "\t" + REF[alt1] + (triallelic ? "," + REF[alt2] : "") + "\t.\tPASS\t.\tGT:AD");
+                for (int t = 0; t < NUM_TAXA; t++) {
+                    if (random.nextInt(6) == 0) {
+                        writer.write("\t./.");
+                        myExpectedGenotypes[t][s] = GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+                        continue;
+                    }
+                    int a1 = random.nextInt(alleles.length);
+                    int a2 = random.nextInt(alleles.length);
+                    myExpectedGenotypes[t][s] = GenotypeTableUtils.getDiploidValue(alleles[a1], alleles[a2]);
+                    StringBuilder depths = new StringBuilder();
+                    for (int a = 0; a < alleles.length; a++) {
+                        int depth = random.nextInt(50);
+                        if (a != 0) {
+                            depths.append(',');
+                        }
+                        depths.append(depth);
+                        myExpectedDepths[t][s][alleles[a]] = AlleleDepthUtil.depthByteToInt(AlleleDepthUtil.depthIntToByte(depth));
+                    }
+                    writer.write("\t" + a1 + "/" + a2 + ":" + depths);
+                }
+                writer.write("\n");
+            }
+        }
+        return result;
+
+    }
+
+}
@@ -0,0 +1,149 @@
+package net.maizegenetics.dna.snp.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.variant.vcf.VCFCodec;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.util.BGZFInputStream;
+import net.maizegenetics.util.TabixIndex;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests reading bgzip compressed VCFs with BGZFInputStream, and that loading a
+ * region through a tabix index gives the same sites as filtering the whole
+ * file.
+ */
+public class VCFRegionTest {
+
+    private static final String[] CHROMOSOMES = {"1", "2", "3"};
+    // enough sites for many 64 KB BGZF blocks per chromosome
+    private static final int NUM_SITES_PER_CHROMOSOME = 20000;
+    private static final int NUM_TAXA = 5;
+    private static final String[] NUCLEOTIDES = {"A", "C", "G", "T"};
+    private static final String[] CALLS = {"0/0", "0/1", "1/1", "./."};
+
+    @Rule
+    public TemporaryFolder myFolder = new TemporaryFolder();
+
+    private static int position(int site) {
+        return site * 10 + 1;
+    }
+
+    /**
+     * Writes the VCF uncompressed and bgzip compressed, and returns the
+     * compressed file. If index is true, a .tbi index is written next to it.
+     */
+    private File writeVCF(String name, boolean index) throws IOException {
+        Random random = new Random(7);
+        StringBuilder vcf = new StringBuilder();
+        vcf.append("##fileformat=VCFv4.1\n");
+        vcf.append("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">\n");
+        vcf.append("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+        for (int t = 0; t < NUM_TAXA; t++) {
+            vcf.append("\tTaxon").append(t);
+        }
+        vcf.append('\n');
+        for (String chromosome : CHROMOSOMES) {
+            for (int s = 0; s < NUM_SITES_PER_CHROMOSOME; s++) {
+                int ref = random.nextInt(4);
+                vcf.append(chromosome).append('\t').append(position(s)).append("\t.\t").append(NUCLEOTIDES[ref]).append('\t')
+                        .append(NUCLEOTIDES[(ref + 1) % 4]).append("\t.\tPASS\t.\tGT");
+                for (int t = 0; t < NUM_TAXA; t++) {
+                    vcf.append('\t').append(CALLS[random.nextInt(CALLS.length)]);
+                }
+                vcf.append('\n');
+            }
+        }
+        Files.write(new File(myFolder.getRoot(), name).toPath(), vcf.toString().getBytes(StandardCharsets.UTF_8));
+        File result = new File(myFolder.getRoot(), name + ".gz");
+        try (Writer writer = new OutputStreamWriter(new BlockCompressedOutputStream(result), StandardCharsets.UTF_8)) {
+            writer.write(vcf.toString());
+        }
+        if (index) {
+            IndexFactory.createTabixIndex(result, new VCFCodec(), TabixFormat.VCF, null)
+                    .write(new File(result.getAbsolutePath() + ".tbi"));
+        }
+        return result;
+    }
+
+    @Test
+    public void testBGZFMatchesUncompressed() throws IOException {
+        File compressed = writeVCF("whole.vcf", false);
+        assertTrue(BGZFInputStream.isBGZF(compressed.getAbsolutePath()));
+        byte[] expected = Files.readAllBytes(new File(myFolder.getRoot(), "whole.vcf").toPath());
+        byte[] actual = new byte[expected.length];
+        try (BGZFInputStream input = new BGZFInputStream(compressed.getAbsolutePath())) {
+            int offset = 0;
+            while (offset < actual.length) {
+                int count = input.read(actual, offset, Math.min(5000, actual.length - offset));
+                assertTrue(count > 0);
+                offset += count;
+            }
+            assertEquals(-1, input.read());
+        }
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testRegionStartsBeforeRegion() throws IOException {
+        File compressed = writeVCF("indexed.vcf", true);
+        TabixIndex index = TabixIndex.getInstanceIfExists(compressed.getAbsolutePath());
+        assertNotNull(index);
+        assertTrue(index.contains("2"));
+        int start = position(12000);
+        int end = position(13000);
+        // the first record read from the seeked stream must be at or before the region start
+        try (InputStream input = VCFUtil.getRegionInputStream(compressed.getAbsolutePath(), "2", start, end);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            String[] first = reader.readLine().split("\t", 3);
+            assertEquals("2", first[0]);
+            assertTrue(Integer.parseInt(first[1]) <= start);
+        }
+        assertNull(VCFUtil.getRegionInputStream(writeVCF("unindexed.vcf", false).getAbsolutePath(), "2", start, end));
+    }
+
+    @Test
+    public void testIndexedRegionMatchesFiltered() throws IOException {
+        File indexed = writeVCF("indexed.vcf", true);
+        File unindexed = writeVCF("unindexed.vcf", false);
+        GenotypeTable all = BuilderFromVCF.getBuilder(unindexed.getAbsolutePath()).build();
+        int start = position(5000) + 3;
+        int end = position(15000);
+        for (String chromosome : CHROMOSOMES) {
+            GenotypeTable fromIndex = BuilderFromVCF.getBuilder(indexed.getAbsolutePath()).region(chromosome, start, end).build();
+            GenotypeTable filtered = BuilderFromVCF.getBuilder(unindexed.getAbsolutePath()).region(chromosome, start, end).build();
+            assertEquals(10000, fromIndex.numberOfSites());
+            assertEquals(filtered.numberOfSites(), fromIndex.numberOfSites());
+            int offset = all.siteOfPhysicalPosition(position(5001), all.positions().chromosome(chromosome));
+            for (int s = 0; s < fromIndex.numberOfSites(); s++) {
+                assertEquals(chromosome, fromIndex.chromosomeName(s));
+                assertEquals(filtered.chromosomalPosition(s), fromIndex.chromosomalPosition(s));
+                assertEquals(all.chromosomalPosition(offset + s), fromIndex.chromosomalPosition(s));
+                for (int t = 0; t < NUM_TAXA; t++) {
+                    assertEquals(all.genotype(t, offset + s), fromIndex.genotype(t, s));
+                    assertEquals(filtered.genotype(t, s), fromIndex.genotype(t, s));
+                }
+            }
+        }
+    }
+
+}
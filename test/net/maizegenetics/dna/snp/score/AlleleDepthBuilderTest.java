@@ -0,0 +1,79 @@
+package net.maizegenetics.dna.snp.score;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import net.maizegenetics.taxa.TaxaList;
+import net.maizegenetics.taxa.TaxaListBuilder;
+import org.junit.Test;
+
+/**
+ * Tests that AlleleDepthBuilder picks sparse or dense storage from the depths
+ * written by setDepthRangeForTaxon() (as the VCF readers do) and that both
+ * keep the depths.
+ */
+public class AlleleDepthBuilderTest {
+
+    private static final int NUM_TAXA = 37;
+    private static final int NUM_SITES = 1013;
+    private static final int RANGE_SIZE = 100;
+
+    private static byte[][][] randomDepths(double fractionNonZero, long seed) {
+        Random random = new Random(seed);
+        byte[][][] result = new byte[NUM_TAXA][AlleleDepth.NUM_ALLELE_DEPTH_TYPES][NUM_SITES];
+        for (int t = 0; t < NUM_TAXA; t++) {
+            for (int a = 0; a < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; a++) {
+                for (int s = 0; s < NUM_SITES; s++) {
+                    if (random.nextDouble() < fractionNonZero) {
+                        result[t][a][s] = (byte) (1 + random.nextInt(100));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static AlleleDepth buildByRanges(byte[][][] depths) {
+        TaxaList taxa = TaxaListBuilder.getInstance(NUM_TAXA);
+        AlleleDepthBuilder builder = AlleleDepthBuilder.getInstance(NUM_TAXA, NUM_SITES, taxa);
+        for (int start = 0; start < NUM_SITES; start += RANGE_SIZE) {
+            int end = Math.min(NUM_SITES, start + RANGE_SIZE);
+            for (int t = 0; t < NUM_TAXA; t++) {
+                byte[][] range = new byte[AlleleDepth.NUM_ALLELE_DEPTH_TYPES][end - start];
+                for (int a = 0; a < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; a++) {
+                    System.arraycopy(depths[t][a], start, range[a], 0, end - start);
+                }
+                builder.setDepthRangeForTaxon(t, start, range);
+            }
+        }
+        return builder.build();
+    }
+
+    private static void assertDepths(byte[][][] expected, AlleleDepth actual) {
+        for (int t = 0; t < NUM_TAXA; t++) {
+            byte[][] values = actual.valuesForTaxonByte(t);
+            for (int a = 0; a < AlleleDepth.NUM_ALLELE_DEPTH_TYPES; a++) {
+                assertArrayEquals("taxon: " + t + " allele: " + a, expected[t][a], values[a]);
+            }
+        }
+    }
+
+    @Test
+    public void testSparseDepthsBuildSparse() {
+        byte[][][] depths = randomDepths(0.02, 1L);
+        AlleleDepth result = buildByRanges(depths);
+        assertTrue(result instanceof SparseAlleleDepth);
+        assertDepths(depths, result);
+    }
+
+    @Test
+    public void testDenseDepthsBuildDense() {
+        byte[][][] depths = randomDepths(0.5, 2L);
+        AlleleDepth result = buildByRanges(depths);
+        assertFalse(result instanceof SparseAlleleDepth);
+        assertDepths(depths, result);
+    }
+
+}
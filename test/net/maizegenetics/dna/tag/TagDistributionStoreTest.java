@@ -0,0 +1,121 @@
+package net.maizegenetics.dna.tag;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that TagDistributionStore gives the same tags and depths whether or
+ * not it spills runs to disk, and that runs are merged and deleted.
+ */
+public class TagDistributionStoreTest {
+
+    private static final int NUM_TAXA = 32;
+    private static final int MAX_TAG_LENGTH = 64;
+    // the smallest memory budget holds roughly 90000 tags, so these spill several runs
+    private static final int NUM_TAGS = 150000;
+    private static final int NUM_READS = 600000;
+    private static final char[] BASES = {'A', 'C', 'G', 'T'};
+
+    @Rule
+    public TemporaryFolder myFolder = new TemporaryFolder();
+
+    private static String[] randomTags(Random random) {
+        String[] result = new String[NUM_TAGS];
+        for (int i = 0; i < NUM_TAGS; i++) {
+            // mixed lengths, so tags that share a prefix are distinct
+            int length = 20 + random.nextInt(MAX_TAG_LENGTH - 19);
+            StringBuilder builder = new StringBuilder(length);
+            for (int b = 0; b < length; b++) {
+                builder.append(BASES[random.nextInt(4)]);
+            }
+            result[i] = builder.toString();
+        }
+        return result;
+    }
+
+    /**
+     * Adds the same random reads to store, and returns expected depths by
+     * tag sequence.
+     */
+    private static Map<String, int[]> addReads(TagDistributionStore store, String[] tags, long seed) {
+        Random random = new Random(seed);
+        Map<String, int[]> result = new HashMap<>();
+        for (int r = 0; r < NUM_READS; r++) {
+            String sequence = tags[random.nextInt(tags.length)];
+            int taxon = random.nextInt(NUM_TAXA);
+            store.increment(TagBuilder.instance(sequence).build(), taxon);
+            result.computeIfAbsent(sequence, k -> new int[NUM_TAXA])[taxon]++;
+        }
+        return result;
+    }
+
+    private static void assertStoreMatches(Map<String, int[]> expected, TagDistributionStore store) {
+        assertEquals(expected.size(), store.size());
+        long totalDepth = 0;
+        for (int[] depths : expected.values()) {
+            totalDepth += IntStream.of(depths).sum();
+        }
+        assertEquals(totalDepth, store.totalDepth());
+        int numEntries = 0;
+        for (Map.Entry<Tag, TaxaDistribution> entry : store.asMap().entrySet()) {
+            int[] depths = expected.get(entry.getKey().sequence());
+            assertNotNull(entry.getKey().sequence(), depths);
+            assertArrayEquals(entry.getKey().sequence(), depths, entry.getValue().depths());
+            numEntries++;
+        }
+        assertEquals(expected.size(), numEntries);
+    }
+
+    @Test
+    public void testSpilledMatchesInMemory() throws Exception {
+        String[] tags = randomTags(new Random(1));
+        Path spillDirectory = myFolder.newFolder("spill").toPath();
+        try (TagDistributionStore inMemory = TagDistributionStore.getInstance(NUM_TAXA, MAX_TAG_LENGTH, NUM_TAGS, 0, null);
+                TagDistributionStore spilled = TagDistributionStore.getInstance(NUM_TAXA, MAX_TAG_LENGTH, 0, 1, spillDirectory)) {
+            Map<String, int[]> expected = addReads(inMemory, tags, 2L);
+            addReads(spilled, tags, 2L);
+            assertEquals(0, inMemory.numRuns());
+            assertTrue(spilled.numRuns() > 1);
+            assertStoreMatches(expected, inMemory);
+            assertStoreMatches(expected, spilled);
+        }
+        assertEquals(0, spillDirectory.toFile().list().length);
+    }
+
+    @Test
+    public void testRemoveIfAcrossRuns() throws Exception {
+        String[] tags = randomTags(new Random(3));
+        Path spillDirectory = myFolder.newFolder("spill").toPath();
+        TagDistributionStore.DistributionFilter filter = (totalDepth, taxa, depths, numTaxa) -> (totalDepth < 4) || (numTaxa < 3);
+        try (TagDistributionStore inMemory = TagDistributionStore.getInstance(NUM_TAXA, MAX_TAG_LENGTH, NUM_TAGS, 0, null);
+                TagDistributionStore spilled = TagDistributionStore.getInstance(NUM_TAXA, MAX_TAG_LENGTH, 0, 1, spillDirectory)) {
+            Map<String, int[]> expected = addReads(inMemory, tags, 4L);
+            addReads(spilled, tags, 4L);
+            assertTrue(spilled.numRuns() > 1);
+            long removed = inMemory.removeIf(filter);
+            assertEquals(removed, spilled.removeIf(filter));
+            expected.values().removeIf(depths -> {
+                int numTaxa = (int) IntStream.of(depths).filter(d -> d > 0).count();
+                return (IntStream.of(depths).sum() < 4) || (numTaxa < 3);
+            });
+            assertTrue(removed > 0);
+            assertFalse(expected.isEmpty());
+            assertStoreMatches(expected, inMemory);
+            assertStoreMatches(expected, spilled);
+        }
+        assertEquals(0, spillDirectory.toFile().list().length);
+    }
+
+}
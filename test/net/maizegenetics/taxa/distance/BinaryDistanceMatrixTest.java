@@ -0,0 +1,105 @@
+package net.maizegenetics.taxa.distance;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Random;
+import net.maizegenetics.taxa.TaxaList;
+import net.maizegenetics.taxa.TaxaListBuilder;
+import net.maizegenetics.util.GeneralAnnotationStorage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests writing and reading the binary distance matrix format, both into heap
+ * and memory mapped, and building directly into a binary file.
+ */
+public class BinaryDistanceMatrixTest {
+
+    private static final int NUM_TAXA = 257;
+
+    @Rule
+    public TemporaryFolder myFolder = new TemporaryFolder();
+
+    private static TaxaList taxa() {
+        TaxaListBuilder builder = new TaxaListBuilder();
+        for (int t = 0; t < NUM_TAXA; t++) {
+            builder.add("Taxon" + t);
+        }
+        return builder.build();
+    }
+
+    private static void fill(DistanceMatrixBuilder builder, boolean counts) {
+        Random random = new Random(11);
+        for (int r = 0; r < NUM_TAXA; r++) {
+            for (int c = 0; c <= r; c++) {
+                builder.set(r, c, (r == c) ? 0.0f : random.nextFloat());
+                if (counts) {
+                    builder.setCount(r, c, random.nextInt(100000));
+                }
+            }
+        }
+        builder.annotation(GeneralAnnotationStorage.getBuilder().addAnnotation("Matrix_Type", "IBS").addAnnotation("Num_Sites", 1234).build());
+    }
+
+    private static void assertSameMatrix(DistanceMatrix expected, DistanceMatrix actual) {
+        assertEquals(expected.numberOfTaxa(), actual.numberOfTaxa());
+        for (int t = 0; t < NUM_TAXA; t++) {
+            assertEquals(expected.getTaxon(t), actual.getTaxon(t));
+        }
+        for (int r = 0; r < NUM_TAXA; r++) {
+            assertArrayEquals("row: " + r, expected.getDistancesForRow(r, null), actual.getDistancesForRow(r, null), 0.0f);
+            for (int c = 0; c < NUM_TAXA; c++) {
+                assertEquals(expected.getDistance(r, c), actual.getDistance(r, c), 0.0f);
+                assertEquals(actual.getDistance(r, c), actual.getDistance(c, r), 0.0f);
+            }
+        }
+        assertArrayEquals(expected.getDistancesForTile(30, 90, 100, 200, null), actual.getDistancesForTile(30, 90, 100, 200, null), 0.0f);
+        assertArrayEquals(expected.annotations().getTextAnnotation("Matrix_Type"), actual.annotations().getTextAnnotation("Matrix_Type"));
+        assertEquals(expected.annotations().getAverageAnnotation("Num_Sites"), actual.annotations().getAverageAnnotation("Num_Sites"), 0.0);
+        assertEquals(expected instanceof DistanceMatrixWithCounts, actual instanceof DistanceMatrixWithCounts);
+        if (expected instanceof DistanceMatrixWithCounts) {
+            for (int r = 0; r < NUM_TAXA; r++) {
+                for (int c = 0; c < NUM_TAXA; c++) {
+                    assertEquals(((DistanceMatrixWithCounts) expected).getCount(r, c), ((DistanceMatrixWithCounts) actual).getCount(r, c));
+                }
+            }
+        }
+    }
+
+    private void testWriteRead(boolean counts) {
+        DistanceMatrixBuilder builder = DistanceMatrixBuilder.getInstance(taxa());
+        fill(builder, counts);
+        DistanceMatrix expected = builder.build();
+        String filename = WriteDistanceMatrix.saveBinaryDistanceMatrix(expected, new File(myFolder.getRoot(), "matrix").getAbsolutePath());
+        assertTrue(filename.endsWith(DistanceMatrixUtils.BINARY_FILE_EXTENSION));
+        assertSameMatrix(expected, ReadDistanceMatrix.readBinaryDistanceMatrix(filename));
+        assertSameMatrix(expected, ReadDistanceMatrix.readBinaryDistanceMatrix(filename, true));
+    }
+
+    @Test
+    public void testWriteReadDistances() {
+        testWriteRead(false);
+    }
+
+    @Test
+    public void testWriteReadDistancesWithCounts() {
+        testWriteRead(true);
+    }
+
+    @Test
+    public void testBuildIntoFile() {
+        DistanceMatrixBuilder heap = DistanceMatrixBuilder.getInstance(taxa());
+        fill(heap, true);
+        DistanceMatrix expected = heap.build();
+        String filename = new File(myFolder.getRoot(), "built" + DistanceMatrixUtils.BINARY_FILE_EXTENSION).getAbsolutePath();
+        DistanceMatrixBuilder mapped = DistanceMatrixBuilder.getInstance(taxa(), filename);
+        fill(mapped, true);
+        assertSameMatrix(expected, mapped.build());
+        assertSameMatrix(expected, ReadDistanceMatrix.readBinaryDistanceMatrix(filename, true));
+    }
+
+}
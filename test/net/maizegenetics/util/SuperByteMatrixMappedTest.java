@@ -0,0 +1,53 @@
+package net.maizegenetics.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class SuperByteMatrixMappedTest {
+
+    @Test
+    public void testMatchesHeapMatrix() throws Exception {
+
+        File directory = Files.createTempDirectory("superbytematrix").toFile();
+        directory.deleteOnExit();
+
+        int numRows = 37;
+        int numColumns = 53;
+        SuperByteMatrixMapped mapped = new SuperByteMatrixMapped(numRows, numColumns, directory);
+        SuperByteMatrix heap = new SuperByteMatrixSingle(numRows, numColumns);
+        mapped.setAll((byte) 0xFF);
+        heap.setAll((byte) 0xFF);
+        for (int r = 0; r < numRows; r++) {
+            for (int c = 0; c < numColumns; c += 3) {
+                byte value = (byte) (r * 31 + c);
+                mapped.set(r, c, value);
+                heap.set(r, c, value);
+            }
+        }
+
+        for (int r = 0; r < numRows; r++) {
+            assertArrayEquals(heap.getAllColumns(r), mapped.getAllColumns(r));
+        }
+        for (int c = 0; c < numColumns; c++) {
+            assertArrayEquals(heap.getAllRows(c), mapped.getAllRows(c));
+        }
+
+        // Reads must still be safe after the file is released
+        SuperByteMatrixBuilder.release(mapped);
+        assertEquals(0, directory.listFiles().length);
+        for (int r = 0; r < numRows; r++) {
+            for (int c = 0; c < numColumns; c++) {
+                assertEquals(heap.get(r, c), mapped.get(r, c));
+            }
+        }
+        assertTrue(directory.delete());
+
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ *  SuperByteMatrixTransposeBenchmark
+ */
+package net.maizegenetics.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Times transposing a SuperByteMatrix with the previous get() / set() copy,
+ * SuperByteMatrixBuilder.getInstanceTranspose() (tiled and parallel), and
+ * SuperByteMatrixBuilder.getInstanceTransposeLazy() when every column is
+ * visited.
+ *
+ * Sizes are 1,000 and 10,000 taxa (rows) by 1,000,000 sites (columns), which
+ * need a heap of at least three times the number of elements. Override with
+ * JMH parameters, i.e. -p numRows=100 -p numColumns=100000
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx40g"})
+public class SuperByteMatrixTransposeBenchmark {
+
+    @Param({"1000", "10000"})
+    public int numRows;
+
+    @Param({"1000000"})
+    public int numColumns;
+
+    private SuperByteMatrix myMatrix;
+
+    @Setup
+    public void setup() {
+        myMatrix = SuperByteMatrixBuilder.getInstance(numRows, numColumns);
+        Random random = new Random(12345);
+        byte[] row = new byte[numColumns];
+        for (int r = 0; r < numRows; r++) {
+            random.nextBytes(row);
+            myMatrix.arraycopy(r, row, 0);
+        }
+    }
+
+    @Benchmark
+    public SuperByteMatrix previous() {
+        return previous(myMatrix);
+    }
+
+    @Benchmark
+    public SuperByteMatrix tiledParallel() {
+        return SuperByteMatrixBuilder.getInstanceTranspose(myMatrix);
+    }
+
+    @Benchmark
+    public SuperByteMatrix lazyAllColumns() {
+        SuperByteMatrix lazy = SuperByteMatrixBuilder.getInstanceTransposeLazy(myMatrix);
+        for (int c = 0; c < numColumns; c++) {
+            lazy.getAllRows(c);
+        }
+        return lazy;
+    }
+
+    /**
+     * Previous implementation: blocks of 64 rows processed in parallel, each
+     * copied through get() / set() in 64 x 64 tiles.
+     */
+    private static SuperByteMatrix previous(SuperByteMatrix matrix) {
+        final int blockSize = 64;
+        int numRows = matrix.getNumRows();
+        int numColumns = matrix.getNumColumns();
+        SuperByteMatrix result = SuperByteMatrixBuilder.getInstanceTranspose(numRows, numColumns);
+        IntStream.range(0, (numRows + blockSize - 1) / blockSize).parallel().forEach(block -> {
+            int rowOffset = block * blockSize;
+            int rowBlockSize = Math.min(blockSize, numRows - rowOffset);
+            byte[][] temp = new byte[rowBlockSize][blockSize];
+            for (int columnOffset = 0; columnOffset < numColumns; columnOffset += blockSize) {
+                int columnBlockSize = Math.min(blockSize, numColumns - columnOffset);
+                for (int r = 0; r < rowBlockSize; r++) {
+                    for (int c = 0; c < columnBlockSize; c++) {
+                        temp[r][c] = matrix.get(r + rowOffset, c + columnOffset);
+                    }
+                }
+                for (int c = 0; c < columnBlockSize; c++) {
+                    for (int r = 0; r < rowBlockSize; r++) {
+                        result.set(r + rowOffset, c + columnOffset, temp[r][c]);
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SuperByteMatrixTransposeBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}